@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.MainDialog;
+import bunwarpj.Param;
+import bunwarpj.Transformation;
+import bunwarpj.bUnwarpJ_;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * Shared inputs of the JMH benchmarks: synthetic images, registered
+ * transformations and access to the private kernels of {@link Transformation}.
+ */
+final class BenchmarkData
+{
+	private BenchmarkData() {}
+
+	/**
+	 * Smooth synthetic image made of random Gaussian blobs, with gray
+	 * values between 0 and 255.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param seed random seed
+	 * @return image as a matrix (rows x columns)
+	 */
+	static int[][] syntheticImage(int width, int height, long seed)
+	{
+		final Random random = new Random(seed);
+		final int nBlobs = 32;
+		final double[] cx = new double[nBlobs];
+		final double[] cy = new double[nBlobs];
+		final double[] sigma2 = new double[nBlobs];
+		final double[] amplitude = new double[nBlobs];
+		for (int k = 0; k < nBlobs; k++)
+		{
+			cx[k] = random.nextDouble() * width;
+			cy[k] = random.nextDouble() * height;
+			final double sigma = (0.03 + 0.07 * random.nextDouble()) * Math.min(width, height);
+			sigma2[k] = 2 * sigma * sigma;
+			amplitude[k] = 0.5 + random.nextDouble();
+		}
+
+		final double[][] value = new double[height][width];
+		double max = 0;
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				double v = 0;
+				for (int k = 0; k < nBlobs; k++)
+				{
+					final double dx = x - cx[k];
+					final double dy = y - cy[k];
+					v += amplitude[k] * Math.exp(-(dx * dx + dy * dy) / sigma2[k]);
+				}
+				value[y][x] = v;
+				max = Math.max(max, v);
+			}
+
+		final int[][] image = new int[height][width];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				image[y][x] = (int) Math.round(255 * value[y][x] / max);
+		return image;
+	}
+
+	/**
+	 * Deform an image with a smooth sinusoidal displacement field
+	 * (nearest-neighbor sampling).
+	 *
+	 * @param image input image
+	 * @param amplitude maximum displacement in pixels
+	 * @return deformed image
+	 */
+	static int[][] sinusoidalWarp(int[][] image, double amplitude)
+	{
+		final int height = image.length;
+		final int width = image[0].length;
+		final int[][] warped = new int[height][width];
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				final double u = x + amplitude * Math.sin(2 * Math.PI * y / height);
+				final double v = y + amplitude * Math.cos(2 * Math.PI * x / width);
+				final int xs = Math.min(Math.max((int) Math.round(u), 0), width - 1);
+				final int ys = Math.min(Math.max((int) Math.round(v), 0), height - 1);
+				warped[y][x] = image[ys][xs];
+			}
+		return warped;
+	}
+
+	/**
+	 * Register a synthetic pair of images of the given size.
+	 *
+	 * @param size image width and height
+	 * @param maxScale maximum deformation scale (2^maxScale intervals)
+	 * @param mode registration mode (see {@link MainDialog})
+	 * @return registered transformation
+	 */
+	static Transformation registerSyntheticPair(int size, int maxScale, int mode)
+	{
+		final int[][] target = syntheticImage(size, size, 17);
+		final int[][] source = sinusoidalWarp(target, 0.02 * size);
+
+		final Param parameter = new Param();
+		parameter.mode = mode;
+		parameter.min_scale_deformation = 0;
+		parameter.max_scale_deformation = maxScale;
+		parameter.stopThreshold = 0.1;
+		return bUnwarpJ_.computeTransformationBatch(target, source, parameter);
+	}
+
+	/**
+	 * Access a private method of {@link Transformation}.
+	 *
+	 * @param name method name
+	 * @param types parameter types
+	 * @return accessible method
+	 */
+	static Method transformationMethod(String name, Class<?>... types)
+	{
+		try
+		{
+			final Method method = Transformation.class.getDeclaredMethod(name, types);
+			method.setAccessible(true);
+			return method;
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new IllegalStateException("Transformation." + name + " not found", e);
+		}
+	}
+
+	/**
+	 * Flatten a pair of coefficient matrices as [x coefficients, y coefficients].
+	 *
+	 * @param cx x- coefficients
+	 * @param cy y- coefficients
+	 * @return flat coefficients
+	 */
+	static double[] flatten(double[][] cx, double[][] cy)
+	{
+		final int n = cx.length * cx[0].length;
+		final double[] c = new double[2 * n];
+		for (int i = 0, p = 0; i < cx.length; i++)
+			for (int j = 0; j < cx[0].length; j++, p++)
+			{
+				c[p] = cx[i][j];
+				c[p + n] = cy[i][j];
+			}
+		return c;
+	}
+}
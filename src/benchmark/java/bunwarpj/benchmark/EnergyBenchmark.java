@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.MainDialog;
+import bunwarpj.Transformation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Energy evaluations of the optimizer: the (multi-threaded) similarity of
+ * one direction and the full bidirectional energy function, both with
+ * gradient, evaluated at the coefficients of a registered synthetic pair.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnergyBenchmark
+{
+	/** image width and height */
+	@Param({"256", "512"})
+	public int size;
+
+	/** maximum deformation scale (2^maxScale intervals) */
+	@Param({"1", "2"})
+	public int maxScale;
+
+	private Transformation warp;
+	private int intervals;
+	private double[] directCoeffs;
+	private double[] bidirectionalCoeffs;
+	private Method evaluateSimilarityMultiThread;
+	private Method energyFunction;
+
+	@Setup
+	public void setup()
+	{
+		this.warp = BenchmarkData.registerSyntheticPair(this.size, this.maxScale, MainDialog.ACCURATE_MODE);
+		this.intervals = this.warp.getIntervals();
+
+		this.directCoeffs = BenchmarkData.flatten(this.warp.getDirectDeformationCoefficientsX(),
+				this.warp.getDirectDeformationCoefficientsY());
+		final double[] inverseCoeffs = BenchmarkData.flatten(this.warp.getInverseDeformationCoefficientsX(),
+				this.warp.getInverseDeformationCoefficientsY());
+
+		// Bidirectional layout: [x direct, x inverse, y direct, y inverse]
+		final int halfM = this.directCoeffs.length / 2;
+		this.bidirectionalCoeffs = new double[4 * halfM];
+		System.arraycopy(this.directCoeffs, 0, this.bidirectionalCoeffs, 0, halfM);
+		System.arraycopy(inverseCoeffs, 0, this.bidirectionalCoeffs, halfM, halfM);
+		System.arraycopy(this.directCoeffs, halfM, this.bidirectionalCoeffs, 2 * halfM, halfM);
+		System.arraycopy(inverseCoeffs, halfM, this.bidirectionalCoeffs, 3 * halfM, halfM);
+
+		this.evaluateSimilarityMultiThread = BenchmarkData.transformationMethod("evaluateSimilarityMultiThread",
+				double[].class, int.class, double[].class, boolean.class, boolean.class, double[].class);
+		this.energyFunction = BenchmarkData.transformationMethod("energyFunction",
+				double[].class, int.class, double[].class, boolean.class, boolean.class);
+	}
+
+	@Benchmark
+	public double evaluateSimilarityMultiThread() throws Exception
+	{
+		final double[] grad = new double[this.directCoeffs.length];
+		return (Double) this.evaluateSimilarityMultiThread.invoke(this.warp, this.directCoeffs, this.intervals,
+				grad, false, false, new double[2]);
+	}
+
+	@Benchmark
+	public double energyFunction() throws Exception
+	{
+		final double[] grad = new double[this.bidirectionalCoeffs.length];
+		return (Double) this.energyFunction.invoke(this.warp, this.bidirectionalCoeffs, this.intervals,
+				grad, false, false);
+	}
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.BSplineModel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * B-spline interpolation kernels: image interpolation with derivatives at
+ * arbitrary points and interpolation of the deformation on the precomputed
+ * pixel grid. Each invocation visits every pixel of the image once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpolationBenchmark
+{
+	/** image width and height */
+	@Param({"256", "1024"})
+	public int size;
+
+	/** number of intervals of the deformation */
+	@Param({"4", "16"})
+	public int intervals;
+
+	private BSplineModel image;
+	private BSplineModel deformation;
+
+	@Setup
+	public void setup() throws InterruptedException
+	{
+		this.image = new BSplineModel(BenchmarkData.syntheticImage(this.size, this.size, 17), true);
+		this.image.setPyramidDepth(0);
+		this.image.startPyramids();
+		this.image.getThread().join();
+		this.image.popFromPyramid();
+
+		// Smooth deformation coefficients (identity plus a perturbation)
+		final int int3 = this.intervals + 3;
+		final double[] c = new double[int3 * int3];
+		for (int i = 0, p = 0; i < int3; i++)
+			for (int j = 0; j < int3; j++, p++)
+				c[p] = (j - 1) * (this.size - 1.0) / this.intervals + Math.sin(i + j);
+		this.deformation = new BSplineModel(c, int3, int3, 0);
+		this.deformation.precomputed_prepareForInterpolation(this.size, this.size, this.intervals);
+	}
+
+	@Benchmark
+	public double interpolateIAndD()
+	{
+		final double[] D = new double[2];
+		double sum = 0;
+		for (int v = 0; v < this.size; v++)
+			for (int u = 0; u < this.size; u++)
+				sum += this.image.prepareForInterpolationAndInterpolateIAndD(u + 0.37, v + 0.61, D, false, true)
+						+ D[0] + D[1];
+		return sum;
+	}
+
+	@Benchmark
+	public double precomputedInterpolateI()
+	{
+		double sum = 0;
+		for (int v = 0; v < this.size; v++)
+			for (int u = 0; u < this.size; u++)
+				sum += this.deformation.precomputed_interpolateI(u, v);
+		return sum;
+	}
+}
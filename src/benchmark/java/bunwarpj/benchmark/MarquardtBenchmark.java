@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.BSplineModel;
+import bunwarpj.Mask;
+import bunwarpj.PointHandler;
+import bunwarpj.Transformation;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+/**
+ * One Levenberg-Marquardt update of the optimizer (selection of the largest
+ * gradient components and solution of the damped linear system) for the
+ * number of coefficients of a given deformation scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarquardtBenchmark
+{
+	/** number of intervals of the deformation */
+	@Param({"4", "8", "16"})
+	public int intervals;
+
+	private Transformation warp;
+	private Method marquardtIt;
+	private double[] x;
+	private boolean[] optimize;
+	private double[] gradient;
+	private double[] hessian;
+
+	@Setup
+	public void setup()
+	{
+		// Marquardt_it only depends on its arguments, any transformation will do
+		// (bunwarpj.Param is qualified because of the JMH Param annotation)
+		final int[][] image = BenchmarkData.syntheticImage(16, 16, 17);
+		final ImagePlus imp = new ImagePlus("benchmark", new ByteProcessor(16, 16));
+		final BSplineModel model = new BSplineModel(image, true);
+		this.warp = new Transformation(new bunwarpj.Param(), imp, imp, model, model,
+				new PointHandler(imp), new PointHandler(imp), new Mask(16, 16), new Mask(16, 16),
+				null, null, -1, false, null, null, null, null, imp.getProcessor(), imp.getProcessor());
+		this.marquardtIt = BenchmarkData.transformationMethod("Marquardt_it",
+				double[].class, boolean[].class, double[].class, double[].class, double.class);
+
+		final int M = 2 * (this.intervals + 3) * (this.intervals + 3);
+		final Random random = new Random(17);
+		this.x = new double[M];
+		this.optimize = new boolean[M];
+		this.gradient = new double[M];
+		for (int i = 0; i < M; i++)
+		{
+			this.x[i] = random.nextDouble();
+			this.optimize[i] = true;
+			this.gradient[i] = random.nextGaussian();
+		}
+
+		// Symmetric, diagonally dominant Hessian
+		this.hessian = new double[M * M];
+		for (int i = 0; i < M; i++)
+			for (int j = 0; j <= i; j++)
+			{
+				final double h = (i == j) ? M : 0.1 * random.nextDouble();
+				this.hessian[i * M + j] = h;
+				this.hessian[j * M + i] = h;
+			}
+	}
+
+	@Benchmark
+	public double[] marquardtIt() throws Exception
+	{
+		final double[] xCopy = this.x.clone();
+		this.marquardtIt.invoke(this.warp, xCopy, this.optimize, this.gradient, this.hessian, 1.0);
+		return xCopy;
+	}
+}
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.BSplineModel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction of the coefficient and image pyramids of an image model
+ * (B-spline coefficients of the full image plus every reduced level).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PyramidBenchmark
+{
+	/** image width and height */
+	@Param({"256", "1024", "2048"})
+	public int size;
+
+	/** pyramid depth (maximum - minimum deformation scale + 1) */
+	@Param({"3"})
+	public int depth;
+
+	private int[][] image;
+
+	@Setup
+	public void setup()
+	{
+		this.image = BenchmarkData.syntheticImage(this.size, this.size, 17);
+	}
+
+	@Benchmark
+	public BSplineModel startPyramids() throws InterruptedException
+	{
+		final BSplineModel model = new BSplineModel(this.image, true);
+		model.setPyramidDepth(this.depth);
+		model.startPyramids();
+		model.getThread().join();
+		return model;
+	}
+}
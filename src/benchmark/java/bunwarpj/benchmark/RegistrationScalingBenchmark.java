@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.MainDialog;
+import bunwarpj.MiscTools;
+import bunwarpj.Param;
+import bunwarpj.RegistrationMetrics;
+import bunwarpj.Transformation;
+import bunwarpj.bUnwarpJ_;
+
+import ij.ImagePlus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End-to-end scaling benchmark: registers synthetic pairs with a known
+ * ground-truth deformation through the complete batch pipeline
+ * ({@link bUnwarpJ_#computeTransformationBatch(ImagePlus, ImagePlus, ij.process.ImageProcessor, ij.process.ImageProcessor, Param)})
+ * for every combination of image size, deformation scale, number of
+ * threads and registration mode, and prints one CSV row per configuration
+ * with the wall time, the energy evaluations and Marquardt steps, the
+ * measured and estimated peak heap usage and the warping index of the result with respect to the ground truth.
+ * <p>
+ * Arguments are key=value pairs with comma separated values:
+ * <pre>
+ * sizes=256,512,1024  scales=2,3  threads=1,4  modes=mono,accurate
+ * displacement=0.25  repeats=1  seed=1
+ * </pre>
+ * Run it with:
+ * mvn -Pbenchmarks test-compile exec:exec -Dbenchmark.mainClass=bunwarpj.benchmark.RegistrationScalingBenchmark -Djmh.args="sizes=512,2048"
+ */
+public class RegistrationScalingBenchmark
+{
+	private RegistrationScalingBenchmark() {}
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param args key=value arguments (see class description)
+	 */
+	public static void main(String[] args)
+	{
+		final Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("sizes", "256,512,1024");
+		options.put("scales", "2,3");
+		options.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+		options.put("modes", "mono,accurate");
+		options.put("displacement", "0.25");
+		options.put("repeats", "1");
+		options.put("seed", "1");
+		for (String arg : args)
+		{
+			final int eq = arg.indexOf('=');
+			if (eq <= 0 || !options.containsKey(arg.substring(0, eq)))
+			{
+				System.err.println("Unknown argument: " + arg + " (valid keys: " + options.keySet() + ")");
+				System.exit(1);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		final int[] sizes = parseInts(options.get("sizes"));
+		final int[] scales = parseInts(options.get("scales"));
+		final int[] threads = parseInts(options.get("threads"));
+		final String[] modes = options.get("modes").split(",");
+		final double displacement = Double.parseDouble(options.get("displacement"));
+		final int repeats = Integer.parseInt(options.get("repeats"));
+		final long seed = Long.parseLong(options.get("seed"));
+
+		System.out.println("size,megapixels,mode,maxScale,threads,repeat,wallMs,pyramidMs,"
+				+ "energyEvaluations,acceptedSteps,rejectedSteps,peakHeapMB,estimatedMB,warpingIndex");
+		for (int size : sizes)
+			for (int scale : scales)
+			{
+				// The ground truth lives at the finest scale being registered
+				final SyntheticPair pair = new SyntheticPair(size, size, scale, displacement, seed);
+				final ImagePlus sourceImp = new ImagePlus("source", pair.source);
+				final ImagePlus targetImp = new ImagePlus("target", pair.target);
+				final double[][][] groundTruth = pair.rawGroundTruth();
+
+				for (String modeName : modes)
+					for (int nThreads : threads)
+						for (int r = 0; r < repeats; r++)
+						{
+							final Param parameter = new Param();
+							parameter.mode = parseMode(modeName);
+							parameter.min_scale_deformation = 0;
+							parameter.max_scale_deformation = scale;
+							parameter.setNumberOfThreads(nThreads);
+
+							System.gc();
+							resetPeakHeap();
+							final long start = System.nanoTime();
+							final Transformation warp = bUnwarpJ_.computeTransformationBatch(
+									targetImp, sourceImp, null, null, parameter);
+							final double wallMs = (System.nanoTime() - start) / 1e6;
+							final double peakHeapMB = peakHeap() / (1024.0 * 1024.0);
+
+							final double warpingIndex = MiscTools.rawWarpingIndex(sourceImp, targetImp,
+									warp.getIntervals(),
+									warp.getDirectDeformationCoefficientsX(),
+									warp.getDirectDeformationCoefficientsY(),
+									groundTruth[0], groundTruth[1]);
+
+							final RegistrationMetrics metrics = warp.getMetrics();
+							final double estimatedMB = parameter.estimatePeakMemory(size, size, size, size) / (1024.0 * 1024.0);
+							System.out.println(String.format(Locale.ROOT, "%d,%.3f,%s,%d,%d,%d,%.1f,%.1f,%d,%d,%d,%.1f,%.1f,%.4f",
+									size, size * (double) size / 1e6, modeName, scale, nThreads, r,
+									wallMs, metrics.getPyramidTime() / 1e6, metrics.getEnergyEvaluations(),
+									metrics.getAcceptedSteps(), metrics.getRejectedSteps(), peakHeapMB, estimatedMB, warpingIndex));
+						}
+			}
+	} // end main
+
+	//------------------------------------------------------------------
+	/**
+	 * Reset the peak usage of all heap memory pools.
+	 */
+	private static void resetPeakHeap()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Sum of the peak usage of all heap memory pools since the last reset.
+	 *
+	 * @return peak heap usage in bytes
+	 */
+	private static long peakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	//------------------------------------------------------------------
+	private static int parseMode(String name)
+	{
+		if (name.equalsIgnoreCase("mono"))
+			return MainDialog.MONO_MODE;
+		if (name.equalsIgnoreCase("fast"))
+			return MainDialog.FAST_MODE;
+		if (name.equalsIgnoreCase("accurate"))
+			return MainDialog.ACCURATE_MODE;
+		throw new IllegalArgumentException("Unknown registration mode: " + name);
+	}
+
+	//------------------------------------------------------------------
+	private static int[] parseInts(String values)
+	{
+		final String[] tokens = values.split(",");
+		final int[] result = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++)
+			result[i] = Integer.parseInt(tokens[i].trim());
+		return result;
+	}
+} // end class RegistrationScalingBenchmark
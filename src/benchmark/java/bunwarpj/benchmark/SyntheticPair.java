@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.BSplineModel;
+
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+/**
+ * Synthetic registration problem with a known solution: a smooth analytic
+ * source image and a target image obtained by sampling the source through
+ * a random cubic B-spline deformation (target to source), so the direct
+ * transformation found by the registration can be compared with the
+ * ground truth. Images are generated row by row without intermediate
+ * full-size buffers, so tens of megapixels only cost the two output images.
+ */
+final class SyntheticPair
+{
+	/** number of sinusoidal components of the source image */
+	private static final int N_WAVES = 8;
+
+	final int width;
+	final int height;
+	/** number of intervals of the ground-truth deformation */
+	final int intervals;
+	/** ground-truth x- coefficients (target to source) */
+	final double[][] cx;
+	/** ground-truth y- coefficients (target to source) */
+	final double[][] cy;
+	final FloatProcessor source;
+	final FloatProcessor target;
+
+	private final double[] fx = new double[N_WAVES];
+	private final double[] fy = new double[N_WAVES];
+	private final double[] phase = new double[N_WAVES];
+
+	/**
+	 * Generate a synthetic pair.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param scale deformation scale of the ground truth (2^scale intervals)
+	 * @param maxDisplacement maximum displacement of the coefficients, as a fraction of the interval size
+	 * @param seed random seed
+	 */
+	SyntheticPair(int width, int height, int scale, double maxDisplacement, long seed)
+	{
+		this.width = width;
+		this.height = height;
+		this.intervals = 1 << scale;
+
+		final Random random = new Random(seed);
+
+		// Source image: sum of plane waves with periods between 1/32 and 1/6 of the image
+		for (int k = 0; k < N_WAVES; k++)
+		{
+			final double period = (1.0 / 32 + random.nextDouble() * (1.0 / 6 - 1.0 / 32)) * Math.min(width, height);
+			final double angle = random.nextDouble() * Math.PI;
+			this.fx[k] = 2 * Math.PI * Math.cos(angle) / period;
+			this.fy[k] = 2 * Math.PI * Math.sin(angle) / period;
+			this.phase[k] = 2 * Math.PI * random.nextDouble();
+		}
+
+		// Ground truth: identity plus a random perturbation of the coefficients
+		final int int3 = this.intervals + 3;
+		final double stepX = (width - 1.0) / this.intervals;
+		final double stepY = (height - 1.0) / this.intervals;
+		this.cx = new double[int3][int3];
+		this.cy = new double[int3][int3];
+		for (int i = 0; i < int3; i++)
+			for (int j = 0; j < int3; j++)
+			{
+				this.cx[i][j] = (j - 1) * stepX + maxDisplacement * stepX * (2 * random.nextDouble() - 1);
+				this.cy[i][j] = (i - 1) * stepY + maxDisplacement * stepY * (2 * random.nextDouble() - 1);
+			}
+
+		this.source = new FloatProcessor(width, height);
+		this.target = new FloatProcessor(width, height);
+		final float[] sourcePixels = (float[]) this.source.getPixels();
+		final float[] targetPixels = (float[]) this.target.getPixels();
+
+		// Deformation models evaluated on the pixel grid
+		final BSplineModel swx = new BSplineModel(this.cx);
+		final BSplineModel swy = new BSplineModel(this.cy);
+		swx.precomputed_prepareForInterpolation(height, width, this.intervals);
+		swy.precomputed_prepareForInterpolation(height, width, this.intervals);
+
+		for (int v = 0, k = 0; v < height; v++)
+			for (int u = 0; u < width; u++, k++)
+			{
+				sourcePixels[k] = (float) sourceValue(u, v);
+				targetPixels[k] = (float) sourceValue(swx.precomputed_interpolateI(u, v),
+						swy.precomputed_interpolateI(u, v));
+			}
+	}
+
+	/**
+	 * Gray value of the analytic source image at any point (0-255).
+	 *
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @return gray value
+	 */
+	double sourceValue(double x, double y)
+	{
+		double value = 0;
+		for (int k = 0; k < N_WAVES; k++)
+			value += Math.sin(this.fx[k] * x + this.fy[k] * y + this.phase[k]);
+		return 127.5 + 127.5 * value / N_WAVES;
+	}
+
+	/**
+	 * Ground-truth raw transformation (target to source) of every pixel.
+	 *
+	 * @return {x coordinates, y coordinates}, each [height][width]
+	 */
+	double[][][] rawGroundTruth()
+	{
+		final BSplineModel swx = new BSplineModel(this.cx);
+		final BSplineModel swy = new BSplineModel(this.cy);
+		swx.precomputed_prepareForInterpolation(this.height, this.width, this.intervals);
+		swy.precomputed_prepareForInterpolation(this.height, this.width, this.intervals);
+
+		final double[][] x = new double[this.height][this.width];
+		final double[][] y = new double[this.height][this.width];
+		for (int v = 0; v < this.height; v++)
+			for (int u = 0; u < this.width; u++)
+			{
+				x[v][u] = swx.precomputed_interpolateI(u, v);
+				y[v][u] = swy.precomputed_interpolateI(u, v);
+			}
+		return new double[][][] {x, y};
+	}
+}
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj.benchmark;
+
+import bunwarpj.MainDialog;
+import bunwarpj.MiscTools;
+import bunwarpj.Transformation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Warping of a grayscale image with a registered elastic transformation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WarpBenchmark
+{
+	/** image width and height */
+	@Param({"256", "1024"})
+	public int size;
+
+	/** maximum deformation scale (2^maxScale intervals) */
+	@Param({"2"})
+	public int maxScale;
+
+	private Transformation warp;
+	private int[][] source;
+
+	@Setup
+	public void setup()
+	{
+		this.warp = BenchmarkData.registerSyntheticPair(this.size, this.maxScale, MainDialog.MONO_MODE);
+		this.source = BenchmarkData.sinusoidalWarp(BenchmarkData.syntheticImage(this.size, this.size, 17),
+				0.02 * this.size);
+	}
+
+	@Benchmark
+	public int[][] applyTransformationToGreyscaleImageMtx()
+	{
+		return MiscTools.applyTransformationToGreyscaleImageMtx(this.warp, this.source);
+	}
+}
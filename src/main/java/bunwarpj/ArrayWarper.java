@@ -0,0 +1,452 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
+
+/*====================================================================
+|   ArrayWarper
+\===================================================================*/
+
+/**
+ * Warp greyscale images given as primitive arrays with an elastic
+ * transformation, without ImageJ objects on the path. The target to source
+ * coordinates are computed once, when the warper is created, and reused for
+ * every image warped with it.
+ * <p>
+ * Images are given as a pixel array, the index of pixel (0, 0) (offset) and
+ * the distance between the first pixels of two consecutive rows (stride),
+ * so sub-images and padded buffers can be used directly. Output buffers can
+ * be passed in to be reused between calls; they are only allocated when
+ * null. Pixels that fall outside the source image are set to 0. Nearest
+ * neighbor and bilinear interpolation read the source pixels in place;
+ * cubic interpolation computes the B-spline coefficients in a buffer,
+ * allocated once per call, or once per thread for a batch of images.
+ */
+public class ArrayWarper
+{
+	/** source image width */
+	private final int sourceWidth;
+	/** source image height */
+	private final int sourceHeight;
+	/** target to source coordinates */
+	private final CoordinateMap map;
+	/** maximum number of threads used to warp one image or a batch of images */
+	private int numThreads;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a warper for an elastic transformation.
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx transformation x- B-spline coefficients
+	 * @param cy transformation y- B-spline coefficients
+	 * @param sourceWidth width of the images to warp
+	 * @param sourceHeight height of the images to warp
+	 * @param targetWidth width of the warped images
+	 * @param targetHeight height of the warped images
+	 */
+	public ArrayWarper(
+			int intervals,
+			double[][] cx,
+			double[][] cy,
+			int sourceWidth,
+			int sourceHeight,
+			int targetWidth,
+			int targetHeight)
+	{
+		this(intervals, cx, cy, sourceWidth, sourceHeight, targetWidth, targetHeight,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a warper for an elastic transformation.
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx transformation x- B-spline coefficients
+	 * @param cy transformation y- B-spline coefficients
+	 * @param sourceWidth width of the images to warp
+	 * @param sourceHeight height of the images to warp
+	 * @param targetWidth width of the warped images
+	 * @param targetHeight height of the warped images
+	 * @param numThreads maximum number of threads (see {@link #setNumberOfThreads})
+	 */
+	public ArrayWarper(
+			int intervals,
+			double[][] cx,
+			double[][] cy,
+			int sourceWidth,
+			int sourceHeight,
+			int targetWidth,
+			int targetHeight,
+			int numThreads)
+	{
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.numThreads = Math.max(numThreads, 1);
+		this.map = CoordinateMap.fromElastic(intervals, cx, cy, targetWidth, targetHeight, false, this.numThreads);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a warper for the direct deformation of a registration (the one
+	 * that warps the source image onto the target), for images of the same
+	 * size as the target. The warper uses as many threads as the
+	 * registration (see {@link Transformation#getNumberOfThreads()}).
+	 *
+	 * @param transformation registration result
+	 * @param width image width
+	 * @param height image height
+	 */
+	public ArrayWarper(Transformation transformation, int width, int height)
+	{
+		this(transformation.getIntervals(), transformation.getDirectDeformationCoefficientsX(),
+				transformation.getDirectDeformationCoefficientsY(), width, height, width, height,
+				transformation.getNumberOfThreads());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the maximum number of threads used to warp one image (split by
+	 * rows) or a batch of images (split by image). Callers that already
+	 * warp concurrently should set it to their share of the processors.
+	 *
+	 * @param numThreads number of threads (at least 1)
+	 */
+	public void setNumberOfThreads(int numThreads)
+	{
+		this.numThreads = Math.max(numThreads, 1);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the maximum number of threads used to warp.
+	 *
+	 * @return number of threads
+	 */
+	public int getNumberOfThreads()
+	{
+		return this.numThreads;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the width of the warped images.
+	 *
+	 * @return target width
+	 */
+	public int getTargetWidth()
+	{
+		return this.map.getWidth();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the height of the warped images.
+	 *
+	 * @return target height
+	 */
+	public int getTargetHeight()
+	{
+		return this.map.getHeight();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a tightly packed image (offset 0, stride equal to the width).
+	 *
+	 * @param source source pixels
+	 * @param output output pixels (reused) or null to allocate them
+	 * @param interpolation interpolation of the source image
+	 * @return output pixels
+	 */
+	public float[] warp(float[] source, float[] output, MiscTools.Interpolation interpolation)
+	{
+		if (output == null)
+			output = new float[getTargetWidth() * getTargetHeight()];
+		warp(source, 0, this.sourceWidth, output, 0, getTargetWidth(), interpolation, true);
+		return output;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a tightly packed image (offset 0, stride equal to the width).
+	 *
+	 * @param source source pixels
+	 * @param output output pixels (reused) or null to allocate them
+	 * @param interpolation interpolation of the source image
+	 * @return output pixels
+	 */
+	public double[] warp(double[] source, double[] output, MiscTools.Interpolation interpolation)
+	{
+		if (output == null)
+			output = new double[getTargetWidth() * getTargetHeight()];
+		warp(source, 0, this.sourceWidth, output, 0, getTargetWidth(), interpolation, true);
+		return output;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp an image stored with offset and stride.
+	 *
+	 * @param source source pixels
+	 * @param sourceOffset index of the source pixel (0, 0)
+	 * @param sourceStride distance between two source rows
+	 * @param output output pixels
+	 * @param outputOffset index of the output pixel (0, 0)
+	 * @param outputStride distance between two output rows
+	 * @param interpolation interpolation of the source image
+	 * @param parallel split the rows between the threads of the warper
+	 */
+	public void warp(
+			final float[] source,
+			int sourceOffset,
+			int sourceStride,
+			final float[] output,
+			final int outputOffset,
+			final int outputStride,
+			MiscTools.Interpolation interpolation,
+			boolean parallel)
+	{
+		final int targetWidth = getTargetWidth();
+		warp(k -> source[k], sourceOffset, sourceStride,
+				(n, value) -> output[outputOffset + n + (n / targetWidth) * (outputStride - targetWidth)] = (float) value,
+				interpolation, parallel ? this.numThreads : 1, null);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp an image stored with offset and stride.
+	 *
+	 * @param source source pixels
+	 * @param sourceOffset index of the source pixel (0, 0)
+	 * @param sourceStride distance between two source rows
+	 * @param output output pixels
+	 * @param outputOffset index of the output pixel (0, 0)
+	 * @param outputStride distance between two output rows
+	 * @param interpolation interpolation of the source image
+	 * @param parallel split the rows between the threads of the warper
+	 */
+	public void warp(
+			final double[] source,
+			int sourceOffset,
+			int sourceStride,
+			final double[] output,
+			final int outputOffset,
+			final int outputStride,
+			MiscTools.Interpolation interpolation,
+			boolean parallel)
+	{
+		final int targetWidth = getTargetWidth();
+		warp(k -> source[k], sourceOffset, sourceStride,
+				(n, value) -> output[outputOffset + n + (n / targetWidth) * (outputStride - targetWidth)] = value,
+				interpolation, parallel ? this.numThreads : 1, null);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a batch of tightly packed images. The images are distributed
+	 * between the threads of the warper, one image per thread.
+	 *
+	 * @param sources source pixels of each image
+	 * @param outputs output pixels of each image (reused), or null; null
+	 *        entries are allocated
+	 * @param interpolation interpolation of the source images
+	 * @return output pixels of each image, or null if there are not as many
+	 *         outputs as sources
+	 */
+	public float[][] warpAll(
+			final float[][] sources,
+			float[][] outputs,
+			final MiscTools.Interpolation interpolation)
+	{
+		if (outputs != null && outputs.length != sources.length)
+		{
+			IJ.error("Error in ArrayWarper: " + outputs.length + " output buffers for " + sources.length + " images");
+			return null;
+		}
+		final float[][] result = (outputs == null) ? new float[sources.length][] : outputs;
+		CoordinateMap.forEachRowBlock(sources.length, this.numThreads, (start, end) -> {
+			// coefficient buffer shared by the images of this block
+			final double[] coefficient = createCoefficientBuffer(interpolation);
+			for (int i = start; i < end; i++)
+			{
+				if (result[i] == null)
+					result[i] = new float[getTargetWidth() * getTargetHeight()];
+				final float[] source = sources[i];
+				final float[] output = result[i];
+				warp(k -> source[k], 0, this.sourceWidth, (n, value) -> output[n] = (float) value,
+						interpolation, 1, coefficient);
+			}
+		});
+		return result;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a batch of tightly packed images. The images are distributed
+	 * between the threads of the warper, one image per thread.
+	 *
+	 * @param sources source pixels of each image
+	 * @param outputs output pixels of each image (reused), or null; null
+	 *        entries are allocated
+	 * @param interpolation interpolation of the source images
+	 * @return output pixels of each image, or null if there are not as many
+	 *         outputs as sources
+	 */
+	public double[][] warpAll(
+			final double[][] sources,
+			double[][] outputs,
+			final MiscTools.Interpolation interpolation)
+	{
+		if (outputs != null && outputs.length != sources.length)
+		{
+			IJ.error("Error in ArrayWarper: " + outputs.length + " output buffers for " + sources.length + " images");
+			return null;
+		}
+		final double[][] result = (outputs == null) ? new double[sources.length][] : outputs;
+		CoordinateMap.forEachRowBlock(sources.length, this.numThreads, (start, end) -> {
+			// coefficient buffer shared by the images of this block
+			final double[] coefficient = createCoefficientBuffer(interpolation);
+			for (int i = start; i < end; i++)
+			{
+				if (result[i] == null)
+					result[i] = new double[getTargetWidth() * getTargetHeight()];
+				final double[] source = sources[i];
+				final double[] output = result[i];
+				warp(k -> source[k], 0, this.sourceWidth, (n, value) -> output[n] = value,
+						interpolation, 1, coefficient);
+			}
+		});
+		return result;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Allocate the buffer of the B-spline coefficients of a source image.
+	 *
+	 * @param interpolation interpolation of the source images
+	 * @return coefficient buffer, or null if the interpolation needs none
+	 */
+	private double[] createCoefficientBuffer(MiscTools.Interpolation interpolation)
+	{
+		return interpolation == MiscTools.Interpolation.BSPLINE ?
+				new double[this.sourceWidth * this.sourceHeight] : null;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a source image stored with offset and stride into a sink.
+	 *
+	 * @param source source pixel at an array index
+	 * @param sourceOffset index of the source pixel (0, 0)
+	 * @param sourceStride distance between two source rows
+	 * @param sink destination of the warped pixels
+	 * @param interpolation interpolation of the source image
+	 * @param numThreads maximum number of threads the rows are split between
+	 * @param coefficient buffer for the B-spline coefficients of the source
+	 *        image (cubic interpolation only), or null to allocate it
+	 */
+	private void warp(
+			final IntToDoubleFunction source,
+			final int sourceOffset,
+			final int sourceStride,
+			final CoordinateMap.PixelSink sink,
+			final MiscTools.Interpolation interpolation,
+			int numThreads,
+			double[] coefficient)
+	{
+		final Supplier<CoordinateMap.Sampler> samplers;
+		if (interpolation == MiscTools.Interpolation.BSPLINE)
+		{
+			// B-spline coefficients only for cubic interpolation
+			if (coefficient == null)
+				coefficient = createCoefficientBuffer(interpolation);
+			for (int v = 0, n = 0; v < this.sourceHeight; v++)
+				for (int u = 0, k = sourceOffset + v * sourceStride; u < this.sourceWidth; u++, n++, k++)
+					coefficient[n] = source.applyAsDouble(k);
+			BSplineModel.samplesToCoefficients2D(coefficient, this.sourceWidth, this.sourceHeight, coefficient);
+			final MultiChannelBSplineModel model =
+					new MultiChannelBSplineModel(coefficient, this.sourceWidth, this.sourceHeight);
+			// one value buffer per row block
+			samplers = () -> {
+				final double[] value = new double[1];
+				return (x, y) -> {
+					model.interpolate(x, y, value);
+					return value[0];
+				};
+			};
+		}
+		else
+		{
+			final boolean nearest = interpolation == MiscTools.Interpolation.NEAREST_NEIGHBOR;
+			final CoordinateMap.Sampler sampler = (x, y) -> interpolate(source, sourceOffset, sourceStride, x, y, nearest);
+			samplers = () -> sampler;
+		}
+		this.map.apply(samplers, this.sourceWidth, this.sourceHeight, sink, numThreads);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Nearest neighbor or bilinear interpolation of a source image stored
+	 * with offset and stride at a point inside the image.
+	 *
+	 * @param source source pixel at an array index
+	 * @param offset index of the source pixel (0, 0)
+	 * @param stride distance between two source rows
+	 * @param x x- point coordinate
+	 * @param y y- point coordinate
+	 * @param nearest nearest neighbor (true) or bilinear (false) interpolation
+	 * @return interpolated value
+	 */
+	private double interpolate(
+			IntToDoubleFunction source,
+			int offset,
+			int stride,
+			double x,
+			double y,
+			boolean nearest)
+	{
+		if (nearest)
+			return source.applyAsDouble(offset + Math.min((int) (y + 0.5), this.sourceHeight - 1) * stride
+					+ Math.min((int) (x + 0.5), this.sourceWidth - 1));
+
+		final int x0 = (int) x;
+		final int y0 = (int) y;
+		final double dx = x - x0;
+		final double dy = y - y0;
+		final int k00 = offset + y0 * stride + x0;
+		final int k01 = (x0 + 1 < this.sourceWidth) ? k00 + 1 : k00;
+		final int k10 = (y0 + 1 < this.sourceHeight) ? k00 + stride : k00;
+		final int k11 = (x0 + 1 < this.sourceWidth) ? k10 + 1 : k10;
+		final double s00 = source.applyAsDouble(k00);
+		final double s10 = source.applyAsDouble(k10);
+		final double top = s00 + dx * (source.applyAsDouble(k01) - s00);
+		final double bottom = s10 + dx * (source.applyAsDouble(k11) - s10);
+		return top + dy * (bottom - top);
+	}
+
+} // end class ArrayWarper
@@ -183,6 +183,11 @@ public class BSplineModel implements Runnable
 	/** subsampled output image */
 	private double[] subImage = null;
 
+	/** time spent in the image pre-computations (nanoseconds) */
+	private long pyramidBuildTime = 0;
+	/** per-model context used to report the pyramid construction */
+	private RegistrationContext context = new RegistrationContext();
+
 	// Some variables to speedup interpolation (precomputed)
 	// All these information is set through prepareForInterpolation()
 	// Indexes related
@@ -1827,6 +1832,8 @@ public class BSplineModel implements Runnable
 	 */
 	public void run ()
 	{
+		final long start = System.nanoTime();
+		final Object event = RegistrationEvents.INSTANCE.beginPyramid();
 		if(image == null && ip != null)
 		{
 			// Original image
@@ -1869,8 +1876,22 @@ public class BSplineModel implements Runnable
 		
 		if (isTarget || this.bSubsampledOutput) 
 			buildImagePyramid();
+		this.pyramidBuildTime = System.nanoTime() - start;
+		RegistrationEvents.INSTANCE.endPyramid(event, this.width, this.height, this.pyramidDepth, this.isTarget);
 	} // end run 
 
+	//------------------------------------------------------------------
+	/**
+	 * Get the time spent in the image pre-computations (B-spline
+	 * coefficients and pyramids) by the last call to {@link #run()}.
+	 *
+	 * @return pre-computation time in nanoseconds (0 if not run yet)
+	 */
+	public long getPyramidBuildTime ()
+	{
+		return this.pyramidBuildTime;
+	}
+
 	//------------------------------------------------------------------
 	/**
 	 * Set spline coefficients. Copy coefficients to the model array.
@@ -1890,6 +1911,18 @@ public class BSplineModel implements Runnable
 		System.arraycopy(c, offset, coefficient, 0, Ydim*Xdim);
 	}
 
+	//------------------------------------------------------------------
+	/**
+	 * Set the context used to report the construction of the pyramids.
+	 *
+	 * @param context registration context
+	 */
+	public void setContext (final RegistrationContext context)
+	{
+		if (context != null)
+			this.context = context;
+	}
+
 	//------------------------------------------------------------------
 	/**
 	 * Sets the depth up to which the pyramids should be computed.
@@ -2055,8 +2088,8 @@ public class BSplineModel implements Runnable
 		// We compute the coefficients pyramid 
 		for (int depth = 1; ((depth <= pyramidDepth) && (!t.isInterrupted())); depth++) 
 		{
-			IJ.showStatus("Building coefficients pyramid...");
-			IJ.showProgress((double) depth / pyramidDepth );
+			context.showStatus("Building coefficients pyramid...");
+			context.showProgress((double) depth / pyramidDepth );
 			fullWidth = halfWidth;
 			fullHeight = halfHeight;
 			halfWidth /= 2;
@@ -2066,7 +2099,7 @@ public class BSplineModel implements Runnable
 			if(fullWidth <= getMinImageWidth() || (this.is2D() && (fullHeight <= getMinImageHeight())))
 			{				 
 				if(this.bSubsampledOutput)
-					IJ.log("Coefficients pyramid " + fullWidth + "x" + fullHeight);
+					context.log("Coefficients pyramid " + fullWidth + "x" + fullHeight);
 				cpyramid.push(fullDual);
 				cpyramid.push(new Integer(fullHeight));
 				cpyramid.push(new Integer(fullWidth));
@@ -2081,7 +2114,7 @@ public class BSplineModel implements Runnable
 
 			
 			if(this.bSubsampledOutput)
-				IJ.log("Coefficients pyramid " + halfWidth + "x" + halfHeight);
+				context.log("Coefficients pyramid " + halfWidth + "x" + halfHeight);
 			cpyramid.push(halfCoefficient);
 			cpyramid.push(new Integer(halfHeight));
 			cpyramid.push(new Integer(halfWidth));
@@ -2121,8 +2154,8 @@ public class BSplineModel implements Runnable
 		// We compute the coefficients pyramid
 		for (int depth = 1; ((depth <= pyramidDepth) && (!t.isInterrupted())); depth++)
 		{
-			IJ.showStatus("Building coefficients pyramid...");
-			IJ.showProgress((double) depth / pyramidDepth );
+			context.showStatus("Building coefficients pyramid...");
+			context.showProgress((double) depth / pyramidDepth );
 			fullWidth = halfWidth;
 			fullHeight = halfHeight;
 			halfWidth /= 2;
@@ -2132,7 +2165,7 @@ public class BSplineModel implements Runnable
 			if(fullWidth <= getMinImageWidth() || fullHeight <= getMinImageHeight())
 			{
 				if(this.bSubsampledOutput)
-					IJ.log("Coefficients pyramid " + fullWidth + "x" + fullHeight);
+					context.log("Coefficients pyramid " + fullWidth + "x" + fullHeight);
 
 				cpyramid.push(fullDual);
 				cpyramid.push(new Integer(fullHeight));
@@ -2144,7 +2177,7 @@ public class BSplineModel implements Runnable
 
 			// Otherwise, we reduce the coefficients by 2
 			if(this.bSubsampledOutput)
-				IJ.log("Coefficients pyramid " + halfWidth + "x" + halfHeight);
+				context.log("Coefficients pyramid " + halfWidth + "x" + halfHeight);
 			cpyramid.push(halfCoefficient);
 			cpyramid.push(new Integer(halfHeight));
 			cpyramid.push(new Integer(halfWidth));
@@ -2180,8 +2213,8 @@ public class BSplineModel implements Runnable
 		 
 		 for (int depth = 1; depth <= pyramidDepth  && !t.isInterrupted(); depth++) 
 		 {			 
-			 IJ.showStatus("Building image pyramid...");
-		     IJ.showProgress((double) depth / pyramidDepth);
+			 context.showStatus("Building image pyramid...");
+		     context.showProgress((double) depth / pyramidDepth);
 				
 			 fullWidth = halfWidth;
 			 fullHeight = halfHeight;			 			 
@@ -2192,7 +2225,7 @@ public class BSplineModel implements Runnable
 			 if(fullWidth <= getMinImageWidth() || (this.is2D() && (fullHeight <= getMinImageHeight())))
 			 {				 
 				 if(this.bSubsampledOutput)
-						IJ.log(" Image pyramid " + fullWidth + "x" + fullHeight);
+						context.log(" Image pyramid " + fullWidth + "x" + fullHeight);
 				 imgpyramid.push(fullDual);
 				 imgpyramid.push(new Integer(fullHeight));
 				 imgpyramid.push(new Integer(fullWidth));
@@ -2207,7 +2240,7 @@ public class BSplineModel implements Runnable
 			 
 			
 			 if(this.bSubsampledOutput)
-				 IJ.log(" Image pyramid " + halfWidth + "x" + halfHeight);
+				 context.log(" Image pyramid " + halfWidth + "x" + halfHeight);
 			 imgpyramid.push(halfImage);
 			 imgpyramid.push(new Integer(halfHeight));
 			 imgpyramid.push(new Integer(halfWidth));
@@ -2364,7 +2397,7 @@ public class BSplineModel implements Runnable
 	  * @param x column position in the array
 	  * @param column output, extracted column
 	  */
-	 private void extractColumn (
+	 private static void extractColumn (
 			 final double[] array,
 			 final int width,
 			 int x,
@@ -2382,7 +2415,7 @@ public class BSplineModel implements Runnable
 	  * @param y row position in the array
 	  * @param row output, extracted row
 	  */
-	 private void extractRow (
+	 private static void extractRow (
 			 final double[] array,
 			 int y,
 			 final double[] row)
@@ -2403,7 +2436,47 @@ public class BSplineModel implements Runnable
 		 if(this.image == null)
 			 return null;
 		 
+		 return samplesToCoefficients2D(this.image, this.width, this.height);
+	 } /* end getBasicFromCardinal2D */
+
+	 //------------------------------------------------------------------
+	 /**
+	  * Convert a 2D image from regular samples to cubic B-spline
+	  * coefficients (mirror boundary conditions).
+	  *
+	  * @param image image samples (row-major)
+	  * @param width image width
+	  * @param height image height
+	  * 
+	  * @return array of standard B-spline coefficients
+	  */
+	 static double[] samplesToCoefficients2D (
+			 final double[] image,
+			 final int width,
+			 final int height)
+	 {
 		 final double[] basic = new double[width * height];
+		 samplesToCoefficients2D(image, width, height, basic);
+		 return(basic);
+	 } /* end samplesToCoefficients2D */
+
+	 //------------------------------------------------------------------
+	 /**
+	  * Convert a 2D image from regular samples to cubic B-spline
+	  * coefficients (mirror boundary conditions) into a given array,
+	  * which can be the sample array itself.
+	  *
+	  * @param image image samples (row-major)
+	  * @param width image width
+	  * @param height image height
+	  * @param basic output, standard B-spline coefficients
+	  */
+	 static void samplesToCoefficients2D (
+			 final double[] image,
+			 final int width,
+			 final int height,
+			 final double[] basic)
+	 {
 		 final double[] hLine = new double[width];
 		 final double[] vLine = new double[height];
 		 for (int y = 0; (y < height); y++) {
@@ -2417,8 +2490,7 @@ public class BSplineModel implements Runnable
 			 samplesToInterpolationCoefficient1D(vLine, 3, 0.0);
 			 putColumn(basic, width, x, vLine);
 		 }
-		 return(basic);
-	 } /* end getBasicFromCardinal2D */
+	 } /* end samplesToCoefficients2D */
 
 	 //------------------------------------------------------------------
 	 /**
@@ -2503,7 +2575,7 @@ public class BSplineModel implements Runnable
 	  * @param z
 	  * @param tolerance
 	  */
-	 private double getInitialAntiCausalCoefficientMirrorOffBounds (
+	 private static double getInitialAntiCausalCoefficientMirrorOffBounds (
 			 final double[] c,
 			 final double z,
 			 final double tolerance)
@@ -2519,7 +2591,7 @@ public class BSplineModel implements Runnable
 	  * @param z
 	  * @param tolerance
 	  */
-	 private double getInitialCausalCoefficientMirrorOffBounds (
+	 private static double getInitialCausalCoefficientMirrorOffBounds (
 			 final double[] c,
 			 final double z,
 			 final double tolerance)
@@ -2550,7 +2622,7 @@ public class BSplineModel implements Runnable
 	  * @param x column position in the array
 	  * @param column column to be put
 	  */
-	 private void putColumn (
+	 private static void putColumn (
 			 final double[] array,
 			 final int width,
 			 int x,
@@ -2568,7 +2640,7 @@ public class BSplineModel implements Runnable
 	  * @param y row position in the array
 	  * @param row row to be put
 	  */
-	 private void putRow (
+	 private static void putRow (
 			 final double[] array,
 			 int y,
 			 final double[] row)
@@ -2626,7 +2698,7 @@ public class BSplineModel implements Runnable
 	  * @param degree
 	  * @param tolerance
 	  */
-	 private void samplesToInterpolationCoefficient1D (
+	 private static void samplesToInterpolationCoefficient1D (
 			 final double[] c,
 			 final int degree,
 			 final double tolerance)
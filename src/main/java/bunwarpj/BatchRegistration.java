@@ -0,0 +1,463 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*====================================================================
+|   BatchRegistration
+\===================================================================*/
+
+/**
+ * Engine to register many independent pairs of images concurrently with
+ * no graphical interface. At most a fixed number of registrations run
+ * at the same time and the available threads are split between them, so
+ * many small registrations can use all the processors of a machine
+ * without oversubscribing it. Results are returned as futures.
+ * <p>
+ * Before running a job, its peak memory is estimated with
+ * {@link Transformation#estimatePeakMemory} and checked against a memory
+ * budget following a {@link MemoryPolicy}, so jobs that cannot fit are
+ * refused, delayed or downgraded up front instead of failing with an
+ * {@link OutOfMemoryError} in the middle of the registration.
+ */
+public class BatchRegistration
+{
+	/**
+	 * What to do with the jobs whose estimated memory does not fit the budget.
+	 */
+	public enum MemoryPolicy
+	{
+		/** run every job, ignoring the memory estimates */
+		IGNORE,
+		/** refuse the jobs that need more memory than the budget (their
+		 *  futures fail with a RejectedExecutionException) */
+		REFUSE,
+		/** refuse the jobs that need more memory than the budget and
+		 *  delay the others until the running jobs leave enough memory */
+		QUEUE,
+		/** reduce the deformation scale and then the image resolution of
+		 *  the jobs that need more memory than the budget, and queue them */
+		DOWNGRADE
+	}
+
+	/** maximum image sub-sampling factor (2^7 = 128) used to downgrade jobs */
+	private static final int MAX_SUBSAMPLING_FACTOR = 7;
+
+	/** executor running the registrations */
+	private final ExecutorService executor;
+	/** number of threads used inside each registration */
+	private final int threadsPerJob;
+	/** memory policy */
+	private MemoryPolicy memoryPolicy = MemoryPolicy.QUEUE;
+	/** memory available to the running registrations (bytes) */
+	private long memoryBudget;
+	/** estimated memory of the running registrations (bytes) */
+	private long reservedMemory = 0;
+	/** lock guarding the reserved memory */
+	private final Object memoryLock = new Object();
+	/** number of submitted jobs (used to name their trace files) */
+	private final AtomicInteger submittedJobs = new AtomicInteger();
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a batch registration engine that uses all available processors.
+	 */
+	public BatchRegistration()
+	{
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a batch registration engine.
+	 *
+	 * @param maxConcurrentJobs maximum number of registrations running at the same time
+	 * @param threadBudget total number of threads to split between the running registrations
+	 */
+	public BatchRegistration(final int maxConcurrentJobs, final int threadBudget)
+	{
+		final int nJobs = Math.max(maxConcurrentJobs, 1);
+		this.threadsPerJob = Math.max(threadBudget / nJobs, 1);
+		this.executor = Executors.newFixedThreadPool(nJobs, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				final Thread t = new Thread(r, "bUnwarpJ-batch-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// By default the registrations can use the heap that is still free
+		final Runtime runtime = Runtime.getRuntime();
+		this.memoryBudget = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the number of threads used inside each registration.
+	 *
+	 * @return number of threads per registration
+	 */
+	public int getThreadsPerJob()
+	{
+		return this.threadsPerJob;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the policy applied to the jobs whose estimated memory does not
+	 * fit the budget (QUEUE by default). It applies to the jobs submitted
+	 * afterwards.
+	 *
+	 * @param memoryPolicy memory policy
+	 */
+	public void setMemoryPolicy(final MemoryPolicy memoryPolicy)
+	{
+		this.memoryPolicy = (memoryPolicy != null) ? memoryPolicy : MemoryPolicy.IGNORE;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the policy applied to the jobs whose estimated memory does not
+	 * fit the budget.
+	 *
+	 * @return memory policy
+	 */
+	public MemoryPolicy getMemoryPolicy()
+	{
+		return this.memoryPolicy;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the memory available to the running registrations (by default,
+	 * the free heap when the engine was created).
+	 *
+	 * @param memoryBudget memory budget in bytes
+	 */
+	public void setMemoryBudget(final long memoryBudget)
+	{
+		synchronized (this.memoryLock)
+		{
+			this.memoryBudget = memoryBudget;
+			this.memoryLock.notifyAll();
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the memory available to the running registrations.
+	 *
+	 * @return memory budget in bytes
+	 */
+	public long getMemoryBudget()
+	{
+		return this.memoryBudget;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Queue the registration of a pair of images.
+	 *
+	 * @param job registration job
+	 * @return future holding the resulting transformation (null if the job
+	 *         was not valid). If the memory policy refuses the job, the future
+	 *         is completed exceptionally with a {@link RejectedExecutionException}
+	 *         whose message gives the estimated memory and the budget.
+	 */
+	public Future<Transformation> submit(final Job job)
+	{
+		// Each job works on its own copy of the parameters with its share of threads
+		final Param parameter = (job.parameter != null) ? new Param(job.parameter) : null;
+		final int jobIndex = this.submittedJobs.incrementAndGet();
+		if (parameter != null)
+		{
+			parameter.setNumberOfThreads(this.threadsPerJob);
+			if (job.listener != null)
+				parameter.setRegistrationListener(job.listener);
+			// Concurrent jobs must not share the trace file of their parameters
+			if (job.optimizationTraceFile != null)
+				parameter.setOptimizationTraceFile(job.optimizationTraceFile);
+			else if (job.parameter.getOptimizationTraceFile() != null)
+				parameter.setOptimizationTraceFile(OptimizationTraceWriter.getIndexedFileName(
+						job.parameter.getOptimizationTraceFile(), "job", jobIndex));
+		}
+
+		final MemoryPolicy policy = this.memoryPolicy;
+		long estimate = 0;
+		if (policy != MemoryPolicy.IGNORE && parameter != null
+				&& job.targetImp != null && job.sourceImp != null)
+		{
+			estimate = estimatePeakMemory(job, parameter);
+			if (estimate > this.memoryBudget && policy == MemoryPolicy.DOWNGRADE)
+				estimate = downgrade(job, parameter);
+			if (estimate > this.memoryBudget)
+			{
+				final CompletableFuture<Transformation> refused = new CompletableFuture<Transformation>();
+				refused.completeExceptionally(new RejectedExecutionException("Registration of "
+						+ job.sourceImp.getTitle() + " refused: it needs about " + estimate
+						+ " bytes and the memory budget is " + this.memoryBudget + " bytes"));
+				return refused;
+			}
+		}
+
+		final boolean queue = policy == MemoryPolicy.QUEUE || policy == MemoryPolicy.DOWNGRADE;
+		final long reservation = estimate;
+		return this.executor.submit(new Callable<Transformation>()
+		{
+			@Override
+			public Transformation call() throws InterruptedException
+			{
+				if (queue)
+					reserveMemory(reservation);
+				try
+				{
+					return bUnwarpJ_.computeTransformationBatch(job.targetImp, job.sourceImp,
+							job.targetMskIP, job.sourceMskIP, parameter);
+				}
+				finally
+				{
+					if (queue)
+						releaseMemory(reservation);
+				}
+			}
+		});
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Estimate the peak memory of a job.
+	 *
+	 * @param job registration job
+	 * @param parameter registration parameters of the job
+	 * @return estimated peak memory in bytes
+	 */
+	private static long estimatePeakMemory(final Job job, final Param parameter)
+	{
+		return parameter.estimatePeakMemory(job.targetImp.getWidth(), job.targetImp.getHeight(),
+				job.sourceImp.getWidth(), job.sourceImp.getHeight());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Reduce the maximum deformation scale and then increase the image
+	 * sub-sampling of a job until its estimated memory fits the budget.
+	 *
+	 * @param job registration job
+	 * @param parameter registration parameters of the job (modified)
+	 * @return estimated peak memory of the downgraded job in bytes
+	 */
+	private long downgrade(final Job job, final Param parameter)
+	{
+		final int maxScale = parameter.max_scale_deformation;
+		final int subsampling = parameter.img_subsamp_fact;
+		long estimate = estimatePeakMemory(job, parameter);
+		while (estimate > this.memoryBudget)
+		{
+			if (parameter.max_scale_deformation > parameter.min_scale_deformation)
+				parameter.max_scale_deformation--;
+			else if (parameter.img_subsamp_fact < MAX_SUBSAMPLING_FACTOR)
+				parameter.img_subsamp_fact++;
+			else
+				break;
+			estimate = estimatePeakMemory(job, parameter);
+		}
+		if (estimate <= this.memoryBudget)
+			IJ.log("Registration of " + job.sourceImp.getTitle() + " downgraded to fit the memory budget:"
+					+ " max. deformation scale " + maxScale + " -> " + parameter.max_scale_deformation
+					+ ", image sub-sampling factor " + subsampling + " -> " + parameter.img_subsamp_fact);
+		return estimate;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Wait until the running registrations leave enough memory for a job
+	 * and reserve it. A job always starts if no other job is running.
+	 *
+	 * @param bytes estimated memory of the job
+	 * @throws InterruptedException if the engine is shut down while waiting
+	 */
+	private void reserveMemory(final long bytes) throws InterruptedException
+	{
+		synchronized (this.memoryLock)
+		{
+			while (this.reservedMemory > 0 && this.reservedMemory + bytes > this.memoryBudget)
+				this.memoryLock.wait();
+			this.reservedMemory += bytes;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Release the memory reserved by a finished job.
+	 *
+	 * @param bytes estimated memory of the job
+	 */
+	private void releaseMemory(final long bytes)
+	{
+		synchronized (this.memoryLock)
+		{
+			this.reservedMemory -= bytes;
+			this.memoryLock.notifyAll();
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Queue the registration of a list of pairs of images.
+	 *
+	 * @param jobs registration jobs
+	 * @return futures holding the resulting transformations, in the same order as the jobs
+	 */
+	public List<Future<Transformation>> submitAll(final List<Job> jobs)
+	{
+		final List<Future<Transformation>> futures = new ArrayList<Future<Transformation>>(jobs.size());
+		for (final Job job : jobs)
+			futures.add(submit(job));
+		return futures;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Stop accepting new jobs. Queued jobs are still run.
+	 */
+	public void shutdown()
+	{
+		this.executor.shutdown();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Stop accepting new jobs and cancel the queued ones.
+	 */
+	public void shutdownNow()
+	{
+		this.executor.shutdownNow();
+	}
+
+	/*====================================================================
+	|   Job
+	\===================================================================*/
+
+	/**
+	 * Registration of one pair of images.
+	 */
+	public static class Job
+	{
+		/** target image */
+		final ImagePlus targetImp;
+		/** source image */
+		final ImagePlus sourceImp;
+		/** target mask (can be null) */
+		final ImageProcessor targetMskIP;
+		/** source mask (can be null) */
+		final ImageProcessor sourceMskIP;
+		/** registration parameters */
+		final Param parameter;
+		/** optimization trace file of this job (null to derive it from the parameters) */
+		String optimizationTraceFile = null;
+		/** listener receiving the messages of this job (null to use the one of the parameters) */
+		RegistrationListener listener = null;
+
+		/**
+		 * Create a registration job with no masks.
+		 *
+		 * @param targetImp target image
+		 * @param sourceImp source image
+		 * @param parameter registration parameters
+		 */
+		public Job(
+				final ImagePlus targetImp,
+				final ImagePlus sourceImp,
+				final Param parameter)
+		{
+			this(targetImp, sourceImp, null, null, parameter);
+		}
+
+		/**
+		 * Create a registration job.
+		 *
+		 * @param targetImp target image
+		 * @param sourceImp source image
+		 * @param targetMskIP target mask (can be null)
+		 * @param sourceMskIP source mask (can be null)
+		 * @param parameter registration parameters
+		 */
+		public Job(
+				final ImagePlus targetImp,
+				final ImagePlus sourceImp,
+				final ImageProcessor targetMskIP,
+				final ImageProcessor sourceMskIP,
+				final Param parameter)
+		{
+			this.targetImp = targetImp;
+			this.sourceImp = sourceImp;
+			this.targetMskIP = targetMskIP;
+			this.sourceMskIP = sourceMskIP;
+			this.parameter = parameter;
+		}
+
+		/**
+		 * Set the file receiving the per-iteration optimizer records of
+		 * this job. By default, if the parameters have a trace file, the
+		 * job writes to that name with the suffix "_job" and the submission
+		 * number (see {@link OptimizationTraceWriter#getIndexedFileName}).
+		 *
+		 * @param optimizationTraceFile trace file name (CSV if it ends with ".csv", binary otherwise)
+		 */
+		public void setOptimizationTraceFile(final String optimizationTraceFile)
+		{
+			this.optimizationTraceFile = optimizationTraceFile;
+		}
+
+		/**
+		 * Set the listener receiving the progress and diagnostic messages
+		 * of this job. By default, the listener of the parameters is used
+		 * (see {@link Param#setRegistrationListener}).
+		 *
+		 * @param listener registration listener
+		 */
+		public void setRegistrationListener(final RegistrationListener listener)
+		{
+			this.listener = listener;
+		}
+	} // end class Job
+
+} // end class BatchRegistration
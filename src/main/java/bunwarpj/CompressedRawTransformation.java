@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*====================================================================
+|   CompressedRawTransformation
+\===================================================================*/
+
+/**
+ * Compact storage of raw transformations. Instead of the absolute mapping
+ * coordinates, the displacements (x - u, y - v) are stored, quantized and
+ * compressed with a deflate stream. Raw deformation fields are smooth and
+ * close to the identity, so the compressed files are a small fraction of
+ * the text or binary ones.
+ * <p>
+ * The file starts with the magic bytes "BUJQ", the format version, the
+ * width and the height (little-endian ints), the encoding (byte) and the
+ * quantization step (little-endian double), followed by the deflated x-
+ * and then y- displacements, row by row, as little-endian 32-bit values:
+ * <ul>
+ * <li>{@link Encoding#FLOAT}: displacements as floats. The error of each
+ * coordinate is at most |d|&middot;2<sup>-24</sup> (6&middot;10<sup>-5</sup>
+ * pixels for displacements up to 1000 pixels).</li>
+ * <li>{@link Encoding#FIXED_POINT}: displacements as multiples of the
+ * quantization step, each one stored as the difference with the previous
+ * one. The error of each coordinate is at most step/2.</li>
+ * </ul>
+ */
+public class CompressedRawTransformation
+{
+	/** magic bytes ("BUJQ") at the beginning of compressed raw transformation files */
+	private static final byte[] MAGIC = { 'B', 'U', 'J', 'Q' };
+	/** version of the compressed raw transformation format */
+	private static final int VERSION = 1;
+	/** size of the header (magic, version, width, height, encoding, step) */
+	private static final int HEADER = 25;
+	/** largest quantized displacement (keeps the differences in an int) */
+	private static final long MAX_QUANTIZED = 1L << 30;
+
+	/** default quantization step of the fixed-point encoding (error below 0.0005 pixels) */
+	public static final double DEFAULT_STEP = 1.0 / 1024;
+
+	/**
+	 * Encoding of the displacements.
+	 */
+	public enum Encoding
+	{
+		/** 32-bit floats */
+		FLOAT,
+		/** fixed-point multiples of the quantization step, difference coded */
+		FIXED_POINT
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Private constructor: only static methods.
+	 */
+	private CompressedRawTransformation()
+	{
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check if a file holds a compressed raw transformation.
+	 *
+	 * @param filename transformation file name
+	 * @return true if the file starts with the compressed format magic bytes
+	 */
+	public static boolean isCompressed(String filename)
+	{
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+			if (file.length() < HEADER)
+				return false;
+			final byte[] magic = new byte[MAGIC.length];
+			file.readFully(magic);
+			return Arrays.equals(magic, MAGIC);
+		} catch (IOException e) {
+			// Let the text loaders report the error
+			return false;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Save a raw transformation in compressed format. Fixed-point encoding
+	 * needs finite displacements smaller than 2<sup>30</sup> steps; otherwise
+	 * the transformation is saved with float encoding.
+	 *
+	 * @param filename transformation file name
+	 * @param width image width
+	 * @param height image height
+	 * @param transformation_x transformation coordinates in x-axis
+	 * @param transformation_y transformation coordinates in y-axis
+	 * @param encoding encoding of the displacements
+	 * @param step quantization step of the fixed-point encoding (pixels)
+	 */
+	public static void save(
+			String filename,
+			int width,
+			int height,
+			double [][] transformation_x,
+			double [][] transformation_y,
+			Encoding encoding,
+			double step)
+	{
+		if (encoding == Encoding.FIXED_POINT
+				&& !(step > 0 && fitsFixedPoint(width, height, transformation_x, transformation_y, step)))
+		{
+			IJ.log("Raw transformation " + filename + " cannot be quantized with step " + step
+					+ ", saving it with float encoding");
+			encoding = Encoding.FLOAT;
+		}
+
+		final ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+				.put((byte) encoding.ordinal()).putDouble(encoding == Encoding.FIXED_POINT ? step : 0);
+
+		// The deflater is ended explicitly: its native memory must be released
+		// even when the stream cannot be finished
+		final Deflater deflater = new Deflater();
+		try (OutputStream file = new BufferedOutputStream(new FileOutputStream(filename));
+			 DeflaterOutputStream out = new DeflaterOutputStream(file, deflater))
+		{
+			file.write(header.array());
+			final ByteBuffer row = ByteBuffer.allocate(width * 4).order(ByteOrder.LITTLE_ENDIAN);
+			long previous = 0;
+			for (int axis = 0; axis < 2; axis++)
+			{
+				final double[][] transformation = axis == 0 ? transformation_x : transformation_y;
+				for (int v = 0; v < height; v++)
+				{
+					row.clear();
+					for (int u = 0; u < width; u++)
+					{
+						final double displacement = transformation[v][u] - (axis == 0 ? u : v);
+						if (encoding == Encoding.FLOAT)
+							row.putFloat((float) displacement);
+						else
+						{
+							final long quantized = Math.round(displacement / step);
+							row.putInt((int) (quantized - previous));
+							previous = quantized;
+						}
+					}
+					out.write(row.array(), 0, row.position());
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			IJ.error("IOException exception" + e);
+		}
+		catch (SecurityException e)
+		{
+			IJ.error("Security exception" + e);
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check that all displacements can be quantized with the fixed-point
+	 * encoding.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param transformation_x transformation coordinates in x-axis
+	 * @param transformation_y transformation coordinates in y-axis
+	 * @param step quantization step
+	 * @return true if all displacements are finite and small enough
+	 */
+	private static boolean fitsFixedPoint(
+			int width,
+			int height,
+			double [][] transformation_x,
+			double [][] transformation_y,
+			double step)
+	{
+		final double limit = MAX_QUANTIZED * step;
+		for (int v = 0; v < height; v++)
+			for (int u = 0; u < width; u++)
+				if (!(Math.abs(transformation_x[v][u] - u) < limit && Math.abs(transformation_y[v][u] - v) < limit))
+					return false;
+		return true;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Load a compressed raw transformation into two-dimensional arrays.
+	 *
+	 * @param filename transformation file name
+	 * @param transformation_x output x- transformation coordinates
+	 * @param transformation_y output y- transformation coordinates
+	 * @return true if the transformation was read
+	 */
+	public static boolean load(
+			String filename,
+			double [][] transformation_x,
+			double [][] transformation_y)
+	{
+		return load(filename, transformation_x, transformation_y, null, null);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Load a compressed raw transformation into row-major arrays.
+	 *
+	 * @param filename transformation file name
+	 * @param transformation_x output x- transformation coordinates
+	 * @param transformation_y output y- transformation coordinates
+	 * @return true if the transformation was read
+	 */
+	public static boolean load(
+			String filename,
+			double [] transformation_x,
+			double [] transformation_y)
+	{
+		return load(filename, null, null, transformation_x, transformation_y);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Load a compressed raw transformation into two-dimensional or
+	 * row-major arrays.
+	 *
+	 * @param filename transformation file name
+	 * @param transformation_x output x- coordinates (two-dimensional, or null)
+	 * @param transformation_y output y- coordinates (two-dimensional, or null)
+	 * @param flat_x output x- coordinates (row-major, or null)
+	 * @param flat_y output y- coordinates (row-major, or null)
+	 * @return true if the transformation was read
+	 */
+	private static boolean load(
+			String filename,
+			double [][] transformation_x,
+			double [][] transformation_y,
+			double [] flat_x,
+			double [] flat_y)
+	{
+		final Inflater inflater = new Inflater();
+		try (DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(filename))))
+		{
+			final ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			file.readFully(header.array());
+			final byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			final int version = header.getInt();
+			final int width = header.getInt();
+			final int height = header.getInt();
+			final int encoding = header.get();
+			final double step = header.getDouble();
+			if (!Arrays.equals(magic, MAGIC) || version != VERSION || width < 0 || height < 0
+					|| encoding < 0 || encoding >= Encoding.values().length)
+			{
+				IJ.log("Unsupported compressed raw transformation " + filename);
+				return false;
+			}
+			final boolean fits = flat_x != null
+					? flat_x.length >= (long) width * height && flat_y.length >= (long) width * height
+					: transformation_x.length >= height && transformation_y.length >= height
+						&& (height == 0 || (transformation_x[0].length >= width
+						&& transformation_y[0].length >= width));
+			if (!fits)
+			{
+				IJ.log("Raw transformation " + filename + " (" + width + "x" + height
+						+ ") does not fit in the output arrays");
+				return false;
+			}
+
+			final DataInputStream in = new DataInputStream(new InflaterInputStream(file, inflater));
+			final ByteBuffer row = ByteBuffer.allocate(width * 4).order(ByteOrder.LITTLE_ENDIAN);
+			long previous = 0;
+			for (int axis = 0; axis < 2; axis++)
+			{
+				final double[][] transformation = axis == 0 ? transformation_x : transformation_y;
+				final double[] flat = axis == 0 ? flat_x : flat_y;
+				for (int v = 0; v < height; v++)
+				{
+					in.readFully(row.array());
+					row.rewind();
+					final double[] output = transformation != null ? transformation[v] : flat;
+					final int offset = transformation != null ? 0 : v * width;
+					for (int u = 0; u < width; u++)
+					{
+						final double displacement;
+						if (encoding == Encoding.FLOAT.ordinal())
+							displacement = row.getFloat();
+						else
+						{
+							previous += row.getInt();
+							displacement = previous * step;
+						}
+						output[offset + u] = (axis == 0 ? u : v) + displacement;
+					}
+				}
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			IJ.error("IOException exception" + e);
+			return false;
+		}
+		finally
+		{
+			// Release the native memory of the inflater, also on failure
+			inflater.end();
+		}
+	}
+
+} // end class CompressedRawTransformation
@@ -0,0 +1,488 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.function.Supplier;
+
+/*====================================================================
+|   CoordinateMap
+\===================================================================*/
+
+/**
+ * Target-to-source coordinate map of a transformation, computed once and
+ * reused to warp any number of images (stack slices, channels) of the same
+ * size. Warping through a coordinate map only costs the interpolation of
+ * the source images: the B-spline deformation is not evaluated again.
+ * <p>
+ * The coordinates can be stored in single precision to halve the memory
+ * (the error is below 2<sup>-24</sup> times the coordinate, i.e. less
+ * than 0.001 pixels for images up to 16k pixels). For images too large to
+ * hold the whole map, use a {@link DeformationField}, which evaluates
+ * the deformation tile by tile.
+ */
+public class CoordinateMap
+{
+	/** map (target image) width */
+	private final int width;
+	/** map (target image) height */
+	private final int height;
+	/** x- source coordinates (double precision, row-major) */
+	private final double[] x;
+	/** y- source coordinates (double precision, row-major) */
+	private final double[] y;
+	/** x- source coordinates (single precision, row-major) */
+	private final float[] xf;
+	/** y- source coordinates (single precision, row-major) */
+	private final float[] yf;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create an empty coordinate map.
+	 *
+	 * @param width map width
+	 * @param height map height
+	 * @param singlePrecision store the coordinates as floats
+	 */
+	private CoordinateMap(int width, int height, boolean singlePrecision)
+	{
+		this.width = width;
+		this.height = height;
+		this.x = singlePrecision ? null : new double[width * height];
+		this.y = singlePrecision ? null : new double[width * height];
+		this.xf = singlePrecision ? new float[width * height] : null;
+		this.yf = singlePrecision ? new float[width * height] : null;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Compute the coordinate map of an elastic transformation, splitting
+	 * the rows between the available processors.
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx transformation x- B-spline coefficients
+	 * @param cy transformation y- B-spline coefficients
+	 * @param width target image width
+	 * @param height target image height
+	 * @param singlePrecision store the coordinates as floats
+	 * @return coordinate map
+	 */
+	public static CoordinateMap fromElastic(
+			final int intervals,
+			double [][] cx,
+			double [][] cy,
+			final int width,
+			final int height,
+			boolean singlePrecision)
+	{
+		return fromElastic(intervals, cx, cy, width, height, singlePrecision,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Compute the coordinate map of an elastic transformation.
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx transformation x- B-spline coefficients
+	 * @param cy transformation y- B-spline coefficients
+	 * @param width target image width
+	 * @param height target image height
+	 * @param singlePrecision store the coordinates as floats
+	 * @param numThreads maximum number of threads the rows are split between
+	 * @return coordinate map
+	 */
+	public static CoordinateMap fromElastic(
+			final int intervals,
+			double [][] cx,
+			double [][] cy,
+			final int width,
+			final int height,
+			boolean singlePrecision,
+			int numThreads)
+	{
+		final CoordinateMap map = new CoordinateMap(width, height, singlePrecision);
+
+		// Set these coefficients to an interpolator
+		final BSplineModel swx = new BSplineModel(cx);
+		final BSplineModel swy = new BSplineModel(cy);
+
+		forEachRowBlock(height, numThreads, (start, end) -> {
+			for (int v = start; v < end; v++)
+			{
+				//prevent NaN result from divide by 0
+				final double tv = (height > 1) ? ((double)(v * intervals) / (double)(height - 1) + 1.0F) : 1.0F;
+				for (int u = 0, n = v * width; u < width; u++, n++)
+				{
+					//prevent NaN result from divide by 0
+					final double tu = (width > 1) ? ((double)(u * intervals) / (double)(width - 1) + 1.0F) : 1.0F;
+					map.set(n, swx.prepareForInterpolationAndInterpolateI(tu, tv, false, false),
+							swy.prepareForInterpolationAndInterpolateI(tu, tv, false, false));
+				}
+			}
+		});
+		return map;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create the coordinate map of a raw transformation.
+	 *
+	 * @param width target image width
+	 * @param height target image height
+	 * @param transformation_x raw transformation in x- axis
+	 * @param transformation_y raw transformation in y- axis
+	 * @param singlePrecision store the coordinates as floats
+	 * @return coordinate map
+	 */
+	public static CoordinateMap fromRaw(
+			int width,
+			int height,
+			double [][] transformation_x,
+			double [][] transformation_y,
+			boolean singlePrecision)
+	{
+		final CoordinateMap map = new CoordinateMap(width, height, singlePrecision);
+		for (int v = 0, n = 0; v < height; v++)
+			for (int u = 0; u < width; u++, n++)
+				map.set(n, transformation_x[v][u], transformation_y[v][u]);
+		return map;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Store the source coordinates of a target pixel.
+	 *
+	 * @param n pixel index (row-major)
+	 * @param x x- source coordinate
+	 * @param y y- source coordinate
+	 */
+	private void set(int n, double x, double y)
+	{
+		if (this.x != null)
+		{
+			this.x[n] = x;
+			this.y[n] = y;
+		}
+		else
+		{
+			this.xf[n] = (float) x;
+			this.yf[n] = (float) y;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the map width.
+	 *
+	 * @return width
+	 */
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the map height.
+	 *
+	 * @return height
+	 */
+	public int getHeight()
+	{
+		return this.height;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check if the coordinates are stored in single precision.
+	 *
+	 * @return true if the coordinates are floats
+	 */
+	public boolean isSinglePrecision()
+	{
+		return this.x == null;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the x- source coordinate of a target pixel.
+	 *
+	 * @param v row
+	 * @param u column
+	 * @return x- source coordinate
+	 */
+	public double getX(int v, int u)
+	{
+		return this.x != null ? this.x[v * this.width + u] : this.xf[v * this.width + u];
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the y- source coordinate of a target pixel.
+	 *
+	 * @param v row
+	 * @param u column
+	 * @return y- source coordinate
+	 */
+	public double getY(int v, int u)
+	{
+		return this.y != null ? this.y[v * this.width + u] : this.yf[v * this.width + u];
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp an image through the map, splitting the rows between the
+	 * available processors. Greyscale images give a float processor,
+	 * color images a color processor.
+	 *
+	 * @param ip source image
+	 * @return warped image, of the size of the map
+	 */
+	public ImageProcessor apply(ImageProcessor ip)
+	{
+		return apply(ip, Runtime.getRuntime().availableProcessors());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp an image through the map. Greyscale images give a float
+	 * processor, color images a color processor. Callers that already
+	 * warp several images concurrently (e.g. stack slices) should pass
+	 * their share of the threads, usually 1.
+	 *
+	 * @param ip source image
+	 * @param numThreads maximum number of threads the rows are split between
+	 * @return warped image, of the size of the map
+	 */
+	public ImageProcessor apply(ImageProcessor ip, int numThreads)
+	{
+		if (!(ip instanceof ColorProcessor))
+			return apply(createModel(ip), numThreads);
+
+		final MultiChannelBSplineModel source = new MultiChannelBSplineModel((ColorProcessor) ip);
+		final FloatProcessor[] fp = new FloatProcessor[3];
+		final float[][] pixels = new float[3][];
+		for (int channel = 0; channel < 3; channel++)
+		{
+			fp[channel] = new FloatProcessor(this.width, this.height);
+			pixels[channel] = (float[]) fp[channel].getPixels();
+		}
+		final int sourceWidth = source.getWidth();
+		final int sourceHeight = source.getHeight();
+
+		final RowBlock warp = (start, end) -> {
+			final double[] rgb = new double[3];
+			for (int n = start * this.width; n < end * this.width; n++)
+			{
+				final double x = this.x != null ? this.x[n] : this.xf[n];
+				final double y = this.y != null ? this.y[n] : this.yf[n];
+				if (x>=0 && x<sourceWidth && y>=0 && y<sourceHeight)
+				{
+					source.interpolate(x, y, rgb);
+					for (int channel = 0; channel < 3; channel++)
+						pixels[channel][n] = (float) rgb[channel];
+				}
+			}
+		};
+		forEachRowBlock(this.height, numThreads, warp);
+
+		final ColorProcessor cp = new ColorProcessor(this.width, this.height);
+		for (int channel = 0; channel < 3; channel++)
+			cp.setPixels(channel, fp[channel]);
+		cp.resetMinAndMax();
+		return cp;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a source image model through the map, splitting the rows
+	 * between the available processors. The coefficients of the model
+	 * must have been computed.
+	 *
+	 * @param source source image model
+	 * @return warped image, of the size of the map
+	 */
+	public FloatProcessor apply(final BSplineModel source)
+	{
+		return apply(source, Runtime.getRuntime().availableProcessors());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a source image model through the map. The coefficients of the
+	 * model must have been computed.
+	 *
+	 * @param source source image model
+	 * @param numThreads maximum number of threads the rows are split between
+	 * @return warped image, of the size of the map
+	 */
+	public FloatProcessor apply(final BSplineModel source, int numThreads)
+	{
+		final Object event = RegistrationEvents.INSTANCE.beginTransform();
+		final FloatProcessor fp = new FloatProcessor(this.width, this.height);
+		final float[] pixels = (float[]) fp.getPixels();
+		apply(() -> (x, y) -> source.prepareForInterpolationAndInterpolateI(x, y, false, false),
+				source.getWidth(), source.getHeight(), (n, value) -> pixels[n] = (float) value, numThreads);
+		fp.resetMinAndMax();
+		RegistrationEvents.INSTANCE.endTransform(event, "precomputed", 0, this.width, this.height);
+		return fp;
+	}
+
+	/**
+	 * Interpolator of a greyscale source image.
+	 */
+	interface Sampler
+	{
+		/**
+		 * Interpolate the source image at a point inside the image.
+		 *
+		 * @param x x- point coordinate
+		 * @param y y- point coordinate
+		 * @return interpolated value
+		 */
+		double interpolate(double x, double y);
+	}
+
+	/**
+	 * Destination of the warped pixels.
+	 */
+	interface PixelSink
+	{
+		/**
+		 * Store a warped pixel.
+		 *
+		 * @param n pixel index in the map (row-major)
+		 * @param value pixel value
+		 */
+		void set(int n, double value);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warp a greyscale source image through the map. Pixels mapped
+	 * outside the source image are set to 0.
+	 *
+	 * @param samplers factory of interpolators of the source image, called
+	 *        once per row block so each block can own its scratch buffers
+	 * @param sourceWidth source image width
+	 * @param sourceHeight source image height
+	 * @param sink destination of the warped pixels
+	 * @param numThreads maximum number of threads the rows are split between
+	 */
+	void apply(
+			final Supplier<Sampler> samplers,
+			final int sourceWidth,
+			final int sourceHeight,
+			final PixelSink sink,
+			int numThreads)
+	{
+		final RowBlock warp = (start, end) -> {
+			final Sampler source = samplers.get();
+			for (int n = start * this.width; n < end * this.width; n++)
+			{
+				final double x = this.x != null ? this.x[n] : this.xf[n];
+				final double y = this.y != null ? this.y[n] : this.yf[n];
+				if (x>=0 && x<sourceWidth && y>=0 && y<sourceHeight)
+					sink.set(n, source.interpolate(x, y));
+				else
+					sink.set(n, 0);
+			}
+		};
+		forEachRowBlock(this.height, numThreads, warp);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create the full-resolution B-spline model of an image (no pyramid).
+	 *
+	 * @param ip image
+	 * @return model with its coefficients computed
+	 */
+	private static BSplineModel createModel(ImageProcessor ip)
+	{
+		final BSplineModel source = new BSplineModel(ip, false, 1);
+		source.setPyramidDepth(0);
+		source.startPyramids();
+		try {
+			source.getThread().join();
+		} catch (InterruptedException e) {
+			IJ.error("Unexpected interruption exception " + e);
+		}
+		return source;
+	}
+
+	/**
+	 * Block of rows processed by one thread.
+	 */
+	interface RowBlock
+	{
+		/**
+		 * Process a block of rows.
+		 *
+		 * @param start first row
+		 * @param end last row (excluded)
+		 */
+		void run(int start, int end);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Split the rows as evenly as possible between at most
+	 * <code>numThreads</code> threads and process each block in its own
+	 * thread. With a single block, it is processed in the calling thread.
+	 *
+	 * @param height number of rows
+	 * @param numThreads maximum number of threads
+	 * @param block task to run on each block
+	 */
+	static void forEachRowBlock(int height, int numThreads, final RowBlock block)
+	{
+		final int nThreads = Math.max(1, Math.min(numThreads, height));
+		if (nThreads == 1)
+		{
+			block.run(0, height);
+			return;
+		}
+		final Thread[] threads = new Thread[nThreads];
+		for (int i = 0; i < nThreads; i++)
+		{
+			final int start = (int) ((long) height * i / nThreads);
+			final int end = (int) ((long) height * (i + 1) / nThreads);
+			threads[i] = new Thread(() -> block.run(start, end));
+			threads[i].start();
+		}
+		for (int i = 0; i < nThreads; i++)
+		{
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				IJ.error("Unexpected interruption exception " + e);
+			}
+		}
+	}
+
+} // end class CoordinateMap
@@ -0,0 +1,316 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*====================================================================
+|   DeformationField
+\===================================================================*/
+
+/**
+ * Raw deformation field of an elastic (B-spline) transformation evaluated
+ * lazily, tile by tile, on demand. The evaluated tiles are kept in a small
+ * least-recently-used cache, so consumers can stream over huge images
+ * without allocating whole {@code double[height][width]} grids. The
+ * mapping coordinates are identical to the ones computed by
+ * {@link MiscTools#convertElasticTransformationToRaw}.
+ * <p>
+ * A deformation field is not thread-safe; create one per thread.
+ */
+public class DeformationField
+{
+	/** default tile side (pixels) */
+	public static final int DEFAULT_TILE_SIZE = 64;
+
+	/** number of intervals of the deformation */
+	private final int intervals;
+	/** field width */
+	private final int width;
+	/** field height */
+	private final int height;
+	/** tile side */
+	private final int tileSize;
+	/** number of tiles along the x- axis */
+	private final int tilesAcross;
+	/** x- deformation model */
+	private final BSplineModel swx;
+	/** y- deformation model */
+	private final BSplineModel swy;
+	/** cache of evaluated tiles (least recently used first) */
+	private final LinkedHashMap<Integer, Tile> cache;
+	/** index of the last accessed tile */
+	private int lastIndex = -1;
+	/** last accessed tile */
+	private Tile lastTile = null;
+	/** number of tile evaluations */
+	private long evaluatedTiles = 0;
+
+	/**
+	 * Tile of evaluated coordinates.
+	 */
+	private static final class Tile
+	{
+		/** first column of the tile */
+		final int u0;
+		/** first row of the tile */
+		final int v0;
+		/** tile width */
+		final int w;
+		/** x- coordinates (row-major) */
+		final double[] x;
+		/** y- coordinates (row-major) */
+		final double[] y;
+
+		/**
+		 * Create an empty tile.
+		 *
+		 * @param u0 first column
+		 * @param v0 first row
+		 * @param w width
+		 * @param h height
+		 */
+		Tile(int u0, int v0, int w, int h)
+		{
+			this.u0 = u0;
+			this.v0 = v0;
+			this.w = w;
+			this.x = new double[w * h];
+			this.y = new double[w * h];
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a deformation field with default tile size and a cache large
+	 * enough for row-by-row scans (two rows of tiles).
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx transformation x- B-spline coefficients
+	 * @param cy transformation y- B-spline coefficients
+	 * @param width field (target image) width
+	 * @param height field (target image) height
+	 */
+	public DeformationField(
+			int intervals,
+			double [][] cx,
+			double [][] cy,
+			int width,
+			int height)
+	{
+		this(intervals, cx, cy, width, height, DEFAULT_TILE_SIZE,
+				2 * ((width + DEFAULT_TILE_SIZE - 1) / DEFAULT_TILE_SIZE) + 4);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a deformation field.
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx transformation x- B-spline coefficients
+	 * @param cy transformation y- B-spline coefficients
+	 * @param width field (target image) width
+	 * @param height field (target image) height
+	 * @param tileSize tile side (pixels)
+	 * @param maxTiles maximum number of tiles in the cache
+	 */
+	public DeformationField(
+			int intervals,
+			double [][] cx,
+			double [][] cy,
+			int width,
+			int height,
+			int tileSize,
+			final int maxTiles)
+	{
+		this.intervals = intervals;
+		this.width = width;
+		this.height = height;
+		this.tileSize = Math.max(1, tileSize);
+		this.tilesAcross = (width + this.tileSize - 1) / this.tileSize;
+
+		// We pass the coefficients to a one-dimension array
+		final int cYdim = intervals + 3;
+		final int cXdim = cYdim;
+		final int Nk = cYdim * cXdim;
+		final double c[] = new double[2 * Nk];
+		for(int n = 0, i = 0; i < cYdim; i++)
+			for(int j = 0; j < cXdim; j++, n++)
+			{
+				c[n     ] = cx[i][j];
+				c[n + Nk] = cy[i][j];
+			}
+		this.swx = new BSplineModel(c, cYdim, cXdim, 0);
+		this.swy = new BSplineModel(c, cYdim, cXdim, Nk);
+
+		this.cache = new LinkedHashMap<Integer, Tile>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest)
+			{
+				return size() > Math.max(1, maxTiles);
+			}
+		};
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the field width.
+	 *
+	 * @return width
+	 */
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the field height.
+	 *
+	 * @return height
+	 */
+	public int getHeight()
+	{
+		return this.height;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the number of tile evaluations so far (tiles evicted from the
+	 * cache and accessed again are evaluated again).
+	 *
+	 * @return number of evaluated tiles
+	 */
+	public long getEvaluatedTiles()
+	{
+		return this.evaluatedTiles;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the x- coordinate a target pixel is mapped to.
+	 *
+	 * @param v row
+	 * @param u column
+	 * @return x- transformation coordinate
+	 */
+	public double getX(int v, int u)
+	{
+		final Tile tile = getTile(v, u);
+		return tile.x[(v - tile.v0) * tile.w + u - tile.u0];
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the y- coordinate a target pixel is mapped to.
+	 *
+	 * @param v row
+	 * @param u column
+	 * @return y- transformation coordinate
+	 */
+	public double getY(int v, int u)
+	{
+		final Tile tile = getTile(v, u);
+		return tile.y[(v - tile.v0) * tile.w + u - tile.u0];
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy a row of the field.
+	 *
+	 * @param v row
+	 * @param x output x- coordinates (width long)
+	 * @param y output y- coordinates (width long)
+	 */
+	public void getRow(int v, double[] x, double[] y)
+	{
+		for (int u0 = 0; u0 < this.width; u0 += this.tileSize)
+		{
+			final Tile tile = getTile(v, u0);
+			final int offset = (v - tile.v0) * tile.w;
+			System.arraycopy(tile.x, offset, x, u0, tile.w);
+			System.arraycopy(tile.y, offset, y, u0, tile.w);
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the tile containing a pixel, evaluating it if it is not cached.
+	 *
+	 * @param v row
+	 * @param u column
+	 * @return tile
+	 */
+	private Tile getTile(int v, int u)
+	{
+		final int index = (v / this.tileSize) * this.tilesAcross + u / this.tileSize;
+		if (index == this.lastIndex)
+			return this.lastTile;
+
+		Tile tile = this.cache.get(index);
+		if (tile == null)
+		{
+			tile = evaluateTile((u / this.tileSize) * this.tileSize, (v / this.tileSize) * this.tileSize);
+			this.cache.put(index, tile);
+		}
+		this.lastIndex = index;
+		this.lastTile = tile;
+		return tile;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Evaluate the B-spline deformation on a tile.
+	 *
+	 * @param u0 first column of the tile
+	 * @param v0 first row of the tile
+	 * @return evaluated tile
+	 */
+	private Tile evaluateTile(int u0, int v0)
+	{
+		final int w = Math.min(this.tileSize, this.width - u0);
+		final int h = Math.min(this.tileSize, this.height - v0);
+		final Tile tile = new Tile(u0, v0, w, h);
+		for (int v = v0, n = 0; v < v0 + h; v++)
+		{
+			//prevent NaN result from divide by 0
+			final double tv = (this.height > 1) ? ((double)(v * this.intervals) / (double)(this.height - 1) + 1.0F) : 1.0F;
+			for (int u = u0; u < u0 + w; u++, n++)
+			{
+				//prevent NaN result from divide by 0
+				final double tu = (this.width > 1) ? ((double)(u * this.intervals) / (double)(this.width - 1) + 1.0F) : 1.0F;
+
+				this.swx.prepareForInterpolation(tu, tv, false);
+				tile.x[n] = this.swx.interpolateI();
+
+				this.swy.prepareForInterpolation(tu, tv, false);
+				tile.y[n] = this.swy.interpolateI();
+			}
+		}
+		this.evaluatedTiles++;
+		return tile;
+	}
+
+} // end class DeformationField
@@ -0,0 +1,334 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+import java.util.Arrays;
+
+/*====================================================================
+|   ElasticTransformationInverter
+\===================================================================*/
+
+/**
+ * Direct inversion of elastic (B-spline) transformations. Given the
+ * coefficients of the target to source deformation, it computes the
+ * coefficients of the source to target deformation, with the same number
+ * of intervals, without running a bidirectional registration.
+ * <p>
+ * The direct deformation is evaluated on a subsampled grid of target
+ * pixels, which gives pairs (source point, target point) of the inverse.
+ * The inverse coefficients are the sparse least-squares fit of these
+ * pairs, solved with conjugate gradients on the normal equations (each
+ * sample only involves 4x4 coefficients, so the system is never stored).
+ * A small penalty on the second differences of the coefficients keeps the
+ * coefficients without data (outside the image of the deformation)
+ * linearly extrapolated, like the anti-symmetric border conditions of
+ * {@link MiscTools#convertRawTransformationToBSpline}. The solver starts
+ * from the knot-sampled inverse with those border conditions.
+ */
+public final class ElasticTransformationInverter
+{
+	/** number of samples per interval and axis */
+	private static final int SAMPLES_PER_INTERVAL = 8;
+	/** weight of the second-difference penalty, relative to one sample per coefficient */
+	private static final double SMOOTHNESS = 1e-3;
+	/** maximum number of conjugate gradient iterations */
+	private static final int MAX_ITERATIONS = 500;
+	/** relative tolerance on the residual of the normal equations */
+	private static final double TOLERANCE = 1e-12;
+
+	//------------------------------------------------------------------
+	/**
+	 * No instances: static methods only.
+	 */
+	private ElasticTransformationInverter()
+	{
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Invert an elastic transformation.
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx direct (target to source) x- B-spline coefficients
+	 * @param cy direct (target to source) y- B-spline coefficients
+	 * @param targetWidth width of the target image
+	 * @param targetHeight height of the target image
+	 * @param sourceWidth width of the source image
+	 * @param sourceHeight height of the source image
+	 * @param inv_cx inverse (source to target) x- B-spline coefficients (output)
+	 * @param inv_cy inverse (source to target) y- B-spline coefficients (output)
+	 * @return root mean square error of the fit at the samples (in target
+	 *         pixels), or -1 if the parameters are wrong
+	 */
+	public static double invert(
+			int intervals,
+			double [][] cx,
+			double [][] cy,
+			int targetWidth,
+			int targetHeight,
+			int sourceWidth,
+			int sourceHeight,
+			double [][] inv_cx,
+			double [][] inv_cy)
+	{
+		if(cx == null || cy == null || inv_cx == null || inv_cy == null)
+		{
+			IJ.error("Error in transformations parameters!");
+			return -1;
+		}
+
+		// Sample the direct deformation on a subsampled target grid
+		final int nu = Math.max(1, Math.min(targetWidth, SAMPLES_PER_INTERVAL * intervals + 1));
+		final int nv = Math.max(1, Math.min(targetHeight, SAMPLES_PER_INTERVAL * intervals + 1));
+		final double[][] sampleX = new double[nv][nu];
+		final double[][] sampleY = new double[nv][nu];
+		final double[] targetU = new double[nu];
+		final double[] targetV = new double[nv];
+		final BSplineModel swx = new BSplineModel(cx);
+		final BSplineModel swy = new BSplineModel(cy);
+		for (int a = 0; a < nu; a++)
+			targetU[a] = (nu > 1) ? a * (targetWidth - 1) / (double) (nu - 1) : 0;
+		for (int b = 0; b < nv; b++)
+		{
+			targetV[b] = (nv > 1) ? b * (targetHeight - 1) / (double) (nv - 1) : 0;
+			//prevent NaN result from divide by 0
+			final double tv = (targetHeight > 1) ? (targetV[b] * intervals / (double)(targetHeight - 1) + 1.0F) : 1.0F;
+			for (int a = 0; a < nu; a++)
+			{
+				final double tu = (targetWidth > 1) ? (targetU[a] * intervals / (double)(targetWidth - 1) + 1.0F) : 1.0F;
+				sampleX[b][a] = swx.prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+				sampleY[b][a] = swy.prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+			}
+		}
+
+		// Spline coordinates of the samples in the inverse (source) grid
+		final int nSamples = nu * nv;
+		final double[] su = new double[nSamples];
+		final double[] sv = new double[nSamples];
+		final double[] bu = new double[nSamples];
+		final double[] bv = new double[nSamples];
+		for (int b = 0, n = 0; b < nv; b++)
+			for (int a = 0; a < nu; a++, n++)
+			{
+				su[n] = (sourceWidth > 1) ? (sampleX[b][a] * intervals / (double)(sourceWidth - 1) + 1.0F) : 1.0F;
+				sv[n] = (sourceHeight > 1) ? (sampleY[b][a] * intervals / (double)(sourceHeight - 1) + 1.0F) : 1.0F;
+				bu[n] = targetU[a];
+				bv[n] = targetV[b];
+			}
+
+		// Initial guess: inverse sampled at the knots, anti-symmetric borders
+		final InverseCoordinateIndex index = new InverseCoordinateIndex(sampleX, sampleY);
+		for (int i = 1; i <= intervals + 1; i++)
+			for (int j = 1; j <= intervals + 1; j++)
+			{
+				final double x = (j - 1) * (sourceWidth - 1) / (double) intervals;
+				final double y = (i - 1) * (sourceHeight - 1) / (double) intervals;
+				final int n = index.nearestSample(x, y);
+				inv_cx[i][j] = (n < 0) ? x : targetU[n % nu];
+				inv_cy[i][j] = (n < 0) ? y : targetV[n / nu];
+			}
+		MiscTools.fillAntiSymmetricBorders(intervals, inv_cx, inv_cy);
+
+		// Least-squares fit of both coordinates
+		final int size = intervals + 3;
+		final double lambda = SMOOTHNESS * nSamples / (double) (size * size);
+		double error = 0;
+		error += fit(size, su, sv, bu, lambda, inv_cx);
+		error += fit(size, su, sv, bv, lambda, inv_cy);
+		return Math.sqrt(error / nSamples);
+	} // end invert
+
+	//------------------------------------------------------------------
+	/**
+	 * Fit the coefficients of one coordinate of the inverse with conjugate
+	 * gradients on the (regularized) normal equations.
+	 *
+	 * @param size number of coefficients per axis
+	 * @param su spline x- coordinates of the samples
+	 * @param sv spline y- coordinates of the samples
+	 * @param value value of the inverse at the samples
+	 * @param lambda weight of the second-difference penalty
+	 * @param c coefficients (initial guess in, fit out)
+	 * @return sum of the squared errors at the samples
+	 */
+	private static double fit(
+			int size,
+			double[] su,
+			double[] sv,
+			double[] value,
+			double lambda,
+			double[][] c)
+	{
+		final int n = size * size;
+		final double[] x = new double[n];
+		for (int i = 0; i < size; i++)
+			System.arraycopy(c[i], 0, x, i * size, size);
+
+		// right-hand side: A^T b
+		final double[] rhs = new double[n];
+		for (int k = 0; k < su.length; k++)
+			scatter(size, su[k], sv[k], value[k], rhs);
+
+		// r = rhs - N x, p = r
+		final double[] r = new double[n];
+		final double[] p = new double[n];
+		final double[] q = new double[n];
+		applyNormalMatrix(size, su, sv, lambda, x, r);
+		double rr = 0, rhsNorm = 0;
+		for (int k = 0; k < n; k++)
+		{
+			r[k] = rhs[k] - r[k];
+			p[k] = r[k];
+			rr += r[k] * r[k];
+			rhsNorm += rhs[k] * rhs[k];
+		}
+
+		for (int iteration = 0; iteration < MAX_ITERATIONS && rr > TOLERANCE * TOLERANCE * rhsNorm; iteration++)
+		{
+			applyNormalMatrix(size, su, sv, lambda, p, q);
+			double pq = 0;
+			for (int k = 0; k < n; k++)
+				pq += p[k] * q[k];
+			if (pq <= 0)
+				break;
+			final double alpha = rr / pq;
+			double rrNew = 0;
+			for (int k = 0; k < n; k++)
+			{
+				x[k] += alpha * p[k];
+				r[k] -= alpha * q[k];
+				rrNew += r[k] * r[k];
+			}
+			final double beta = rrNew / rr;
+			for (int k = 0; k < n; k++)
+				p[k] = r[k] + beta * p[k];
+			rr = rrNew;
+		}
+
+		for (int i = 0; i < size; i++)
+			System.arraycopy(x, i * size, c[i], 0, size);
+
+		double error = 0;
+		for (int k = 0; k < su.length; k++)
+		{
+			final double e = evaluate(size, su[k], sv[k], x) - value[k];
+			error += e * e;
+		}
+		return error;
+	} // end fit
+
+	//------------------------------------------------------------------
+	/**
+	 * Compute (A^T A + lambda D^T D) x, where A evaluates the spline at
+	 * the samples and D takes the second differences of the coefficients
+	 * along both axes.
+	 *
+	 * @param size number of coefficients per axis
+	 * @param su spline x- coordinates of the samples
+	 * @param sv spline y- coordinates of the samples
+	 * @param lambda weight of the second-difference penalty
+	 * @param x coefficients
+	 * @param out output, product
+	 */
+	private static void applyNormalMatrix(
+			int size,
+			double[] su,
+			double[] sv,
+			double lambda,
+			double[] x,
+			double[] out)
+	{
+		Arrays.fill(out, 0);
+		for (int k = 0; k < su.length; k++)
+			scatter(size, su[k], sv[k], evaluate(size, su[k], sv[k], x), out);
+
+		for (int i = 0; i < size; i++)
+			for (int j = 0; j < size; j++)
+			{
+				if (j > 0 && j < size - 1)
+				{
+					final double d = lambda * (x[i*size + j-1] - 2 * x[i*size + j] + x[i*size + j+1]);
+					out[i*size + j-1] += d;
+					out[i*size + j]   -= 2 * d;
+					out[i*size + j+1] += d;
+				}
+				if (i > 0 && i < size - 1)
+				{
+					final double d = lambda * (x[(i-1)*size + j] - 2 * x[i*size + j] + x[(i+1)*size + j]);
+					out[(i-1)*size + j] += d;
+					out[i*size + j]     -= 2 * d;
+					out[(i+1)*size + j] += d;
+				}
+			}
+	} // end applyNormalMatrix
+
+	//------------------------------------------------------------------
+	/**
+	 * Evaluate a cubic B-spline (without mirroring: coefficients outside of
+	 * the grid are zero) at a point.
+	 *
+	 * @param size number of coefficients per axis
+	 * @param tu spline x- coordinate
+	 * @param tv spline y- coordinate
+	 * @param c coefficients (row-major)
+	 * @return spline value
+	 */
+	private static double evaluate(int size, double tu, double tv, double[] c)
+	{
+		final int u0 = (int) Math.floor(tu) - 1;
+		final int v0 = (int) Math.floor(tv) - 1;
+		double value = 0;
+		for (int i = Math.max(0, v0); i <= Math.min(size - 1, v0 + 3); i++)
+		{
+			final double wv = MathTools.Bspline03(tv - i);
+			for (int j = Math.max(0, u0); j <= Math.min(size - 1, u0 + 3); j++)
+				value += wv * MathTools.Bspline03(tu - j) * c[i * size + j];
+		}
+		return value;
+	} // end evaluate
+
+	//------------------------------------------------------------------
+	/**
+	 * Add a value, weighted by the B-spline basis at a point, to the
+	 * coefficients influencing that point (transpose of {@link #evaluate}).
+	 *
+	 * @param size number of coefficients per axis
+	 * @param tu spline x- coordinate
+	 * @param tv spline y- coordinate
+	 * @param value value to distribute
+	 * @param out output, accumulated coefficients
+	 */
+	private static void scatter(int size, double tu, double tv, double value, double[] out)
+	{
+		final int u0 = (int) Math.floor(tu) - 1;
+		final int v0 = (int) Math.floor(tv) - 1;
+		for (int i = Math.max(0, v0); i <= Math.min(size - 1, v0 + 3); i++)
+		{
+			final double wv = MathTools.Bspline03(tv - i) * value;
+			for (int j = Math.max(0, u0); j <= Math.min(size - 1, u0 + 3); j++)
+				out[i * size + j] += wv * MathTools.Bspline03(tu - j);
+		}
+	} // end scatter
+
+} // end class ElasticTransformationInverter
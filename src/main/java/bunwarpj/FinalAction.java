@@ -159,6 +159,9 @@ public class FinalAction implements Runnable
     		|| source.getWidth() > BSplineModel.MAX_OUTPUT_SIZE || source.getHeight() > BSplineModel.MAX_OUTPUT_SIZE)
     		IJ.log("Starting image pyramids...");
     	
+		final RegistrationContext pyramidContext = new RegistrationContext(dialog);
+		source.setContext(pyramidContext);
+		target.setContext(pyramidContext);
 		source.startPyramids();
 		target.startPyramids();
 		
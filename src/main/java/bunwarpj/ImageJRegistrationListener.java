@@ -0,0 +1,54 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+/*====================================================================
+|   ImageJRegistrationListener
+\===================================================================*/
+
+/**
+ * Registration listener that reports through the ImageJ log window,
+ * status bar and progress bar.
+ */
+public class ImageJRegistrationListener implements RegistrationListener
+{
+	@Override
+	public void log(final String message)
+	{
+		IJ.log(message);
+	}
+
+	@Override
+	public void showStatus(final String message)
+	{
+		IJ.showStatus(message);
+	}
+
+	@Override
+	public void showProgress(final double progress)
+	{
+		IJ.showProgress(progress);
+	}
+
+} // end class ImageJRegistrationListener
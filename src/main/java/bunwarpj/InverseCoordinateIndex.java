@@ -0,0 +1,320 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+/*====================================================================
+|   InverseCoordinateIndex
+\===================================================================*/
+
+/**
+ * Spatial index (uniform grid) over the coordinates of a raw
+ * transformation, to map points backwards through it. A raw transformation
+ * stores, for each pixel (u, v) of the fixed image, the coordinates of the
+ * corresponding moving point; the index finds the fixed pixel whose moving
+ * coordinates are the closest to a query point in near-constant time,
+ * instead of scanning the whole transformation for each query.
+ * <p>
+ * The index is built once per transformation (in linear time) and can be
+ * queried concurrently. Nearest-preimage queries return the same pixel as
+ * {@link MiscTools#approximateInverseCoords}; {@link #inverse} refines it
+ * to sub-pixel precision.
+ */
+public class InverseCoordinateIndex
+{
+	/** raw transformation in x- axis */
+	private final double[][] transformation_x;
+	/** raw transformation in y- axis */
+	private final double[][] transformation_y;
+	/** width of the indexed region of the transformation */
+	private final int width;
+	/** height of the indexed region of the transformation */
+	private final int height;
+	/** lowest x- coordinate (grid origin) */
+	private final double minX;
+	/** lowest y- coordinate (grid origin) */
+	private final double minY;
+	/** size of the grid buckets */
+	private final double bucketSize;
+	/** number of buckets in x */
+	private final int gridWidth;
+	/** number of buckets in y */
+	private final int gridHeight;
+	/** start of the samples of each bucket in {@link #samples} (one more entry than buckets) */
+	private final int[] bucketStart;
+	/** sample indexes (v * width + u), grouped by bucket, increasing within a bucket */
+	private final int[] samples;
+
+	//------------------------------------------------------------------
+	/**
+	 * Build the index of a whole raw transformation.
+	 *
+	 * @param transformation_x raw transformation in x- axis
+	 * @param transformation_y raw transformation in y- axis
+	 */
+	public InverseCoordinateIndex(double [][] transformation_x, double [][] transformation_y)
+	{
+		this(transformation_x, transformation_y, transformation_x[0].length, transformation_x.length);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Build the index of the top-left region of a raw transformation.
+	 *
+	 * @param transformation_x raw transformation in x- axis
+	 * @param transformation_y raw transformation in y- axis
+	 * @param width width of the region (fixed image width)
+	 * @param height height of the region (fixed image height)
+	 */
+	public InverseCoordinateIndex(
+			double [][] transformation_x,
+			double [][] transformation_y,
+			int width,
+			int height)
+	{
+		this.transformation_x = transformation_x;
+		this.transformation_y = transformation_y;
+		this.width = width;
+		this.height = height;
+
+		// bounding box of the (finite) transformed coordinates
+		double x0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY;
+		double y0 = Double.POSITIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		int nSamples = 0;
+		for (int v = 0; v < height; v++)
+			for (int u = 0; u < width; u++)
+			{
+				final double x = transformation_x[v][u];
+				final double y = transformation_y[v][u];
+				if (!isFinite(x) || !isFinite(y))
+					continue;
+				x0 = Math.min(x0, x);
+				x1 = Math.max(x1, x);
+				y0 = Math.min(y0, y);
+				y1 = Math.max(y1, y);
+				nSamples++;
+			}
+
+		if (nSamples == 0)
+		{
+			this.minX = this.minY = 0;
+			this.bucketSize = 1;
+			this.gridWidth = this.gridHeight = 0;
+			this.bucketStart = new int[1];
+			this.samples = new int[0];
+			return;
+		}
+
+		// about one sample per bucket
+		final double extent = Math.max(x1 - x0, y1 - y0);
+		final double area = Math.max((x1 - x0) * (y1 - y0), extent);
+		this.minX = x0;
+		this.minY = y0;
+		this.bucketSize = Math.max(Math.sqrt(area / nSamples), Math.max(extent, 1) * 1e-9);
+		this.gridWidth = (int) Math.min(nSamples, (long) ((x1 - x0) / bucketSize) + 1);
+		this.gridHeight = (int) Math.min(nSamples, (long) ((y1 - y0) / bucketSize) + 1);
+
+		// counting sort of the samples by bucket
+		this.bucketStart = new int[gridWidth * gridHeight + 1];
+		for (int v = 0; v < height; v++)
+			for (int u = 0; u < width; u++)
+			{
+				final int b = bucketOf(transformation_x[v][u], transformation_y[v][u]);
+				if (b >= 0)
+					bucketStart[b + 1]++;
+			}
+		for (int b = 0; b < gridWidth * gridHeight; b++)
+			bucketStart[b + 1] += bucketStart[b];
+		this.samples = new int[nSamples];
+		final int[] fill = new int[gridWidth * gridHeight];
+		for (int v = 0; v < height; v++)
+			for (int u = 0; u < width; u++)
+			{
+				final int b = bucketOf(transformation_x[v][u], transformation_y[v][u]);
+				if (b >= 0)
+					samples[bucketStart[b] + fill[b]++] = v * width + u;
+			}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check that a coordinate is a finite number.
+	 *
+	 * @param value coordinate
+	 * @return true if the value is neither NaN nor infinite
+	 */
+	private static boolean isFinite(double value)
+	{
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the bucket of a transformed point.
+	 *
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @return bucket index, or -1 for non-finite coordinates
+	 */
+	private int bucketOf(double x, double y)
+	{
+		if (!isFinite(x) || !isFinite(y))
+			return -1;
+		return bucketRow(y) * gridWidth + bucketColumn(x);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the (clamped) bucket column of an x- coordinate.
+	 *
+	 * @param x x- coordinate
+	 * @return bucket column
+	 */
+	private int bucketColumn(double x)
+	{
+		return (int) Math.max(0, Math.min(gridWidth - 1, Math.floor((x - minX) / bucketSize)));
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the (clamped) bucket row of a y- coordinate.
+	 *
+	 * @param y y- coordinate
+	 * @return bucket row
+	 */
+	private int bucketRow(double y)
+	{
+		return (int) Math.max(0, Math.min(gridHeight - 1, Math.floor((y - minY) / bucketSize)));
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Find the pixel whose transformed coordinates are the closest to a
+	 * point (ties are resolved in favour of the first pixel in row-major
+	 * order).
+	 *
+	 * @param x x- point coordinate
+	 * @param y y- point coordinate
+	 * @return pixel index (v * width + u), or -1 if the index is empty
+	 */
+	public int nearestSample(double x, double y)
+	{
+		if (samples.length == 0)
+			return -1;
+
+		final int bx = bucketColumn(x);
+		final int by = bucketRow(y);
+		int best = -1;
+		double bestDistance = Double.POSITIVE_INFINITY;
+
+		for (int r = 0; ; r++)
+		{
+			// buckets at Chebyshev distance r from the query bucket
+			for (int gy = by - r; gy <= by + r; gy++)
+			{
+				if (gy < 0 || gy >= gridHeight)
+					continue;
+				final int step = (gy == by - r || gy == by + r) ? 1 : 2 * r;
+				for (int gx = bx - r; gx <= bx + r; gx += Math.max(step, 1))
+				{
+					if (gx < 0 || gx >= gridWidth)
+						continue;
+					final int b = gy * gridWidth + gx;
+					for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++)
+					{
+						final int n = samples[k];
+						final double dx = transformation_x[n / width][n % width] - x;
+						final double dy = transformation_y[n / width][n % width] - y;
+						final double distance = dx * dx + dy * dy;
+						if (distance < bestDistance || (distance == bestDistance && n < best))
+						{
+							bestDistance = distance;
+							best = n;
+						}
+					}
+				}
+			}
+
+			// stop when the unexplored buckets cannot hold a closer sample
+			final boolean left = bx - r <= 0, right = bx + r >= gridWidth - 1;
+			final boolean top = by - r <= 0, bottom = by + r >= gridHeight - 1;
+			if (left && right && top && bottom)
+				break;
+			double bound = Double.POSITIVE_INFINITY;
+			if (!left)
+				bound = Math.min(bound, x - (minX + (bx - r) * bucketSize));
+			if (!right)
+				bound = Math.min(bound, minX + (bx + r + 1) * bucketSize - x);
+			if (!top)
+				bound = Math.min(bound, y - (minY + (by - r) * bucketSize));
+			if (!bottom)
+				bound = Math.min(bound, minY + (by + r + 1) * bucketSize - y);
+			if (best >= 0 && bound > 0 && bestDistance < bound * bound)
+				break;
+		}
+		return best;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Approximate the inverse of a point by the pixel whose transformed
+	 * coordinates are the closest (same result as
+	 * {@link MiscTools#approximateInverseCoords}).
+	 *
+	 * @param coords point coordinates (in the transformed space)
+	 * @return pixel coordinates {u, v} ({0, 0} if the index is empty)
+	 */
+	public double[] nearest(double[] coords)
+	{
+		final int n = nearestSample(coords[0], coords[1]);
+		if (n < 0)
+			return new double[2];
+		return new double[] { n % width, n / width };
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Invert a point with sub-pixel precision: the closest pixel is refined
+	 * inside the four cells around it, with the transformation interpolated
+	 * bilinearly. When the point lies in none of these cells (e.g. outside
+	 * of the transformed image), the closest pixel is returned.
+	 *
+	 * @param coords point coordinates (in the transformed space)
+	 * @return inverse coordinates {u, v}
+	 */
+	public double[] inverse(double[] coords)
+	{
+		final int n = nearestSample(coords[0], coords[1]);
+		if (n < 0)
+			return new double[2];
+		final int u = n % width;
+		final int v = n / width;
+
+		final double[] st = new double[2];
+		for (int i = Math.max(0, v - 1); i <= Math.min(height - 2, v); i++)
+			for (int j = Math.max(0, u - 1); j <= Math.min(width - 2, u); j++)
+				if (RawTransformationInverter.solveCell(transformation_x, transformation_y,
+						i, j, coords[0], coords[1], st))
+					return new double[] { j + st[0], i + st[1] };
+		return new double[] { u, v };
+	}
+
+} // end class InverseCoordinateIndex
@@ -780,7 +780,7 @@ public class MainDialog extends GenericDialog
 		tb.restorePreviousToolbar();
 		if(null != Toolbar.getInstance())
 			Toolbar.getInstance().repaint();
-		ProgressBar.resetProgressBar();
+		IJ.showProgress(1.0);
 		Runtime.getRuntime().gc();
 	} /* end restoreAll */
 
@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*====================================================================
+|   MappedRawTransformation
+\===================================================================*/
+
+/**
+ * Raw transformation stored in binary format and accessed through
+ * memory-mapped buffers, so the mapping coordinates are read directly
+ * from the page cache instead of being parsed into {@code double[][]}
+ * arrays.
+ * <p>
+ * The binary file starts with the magic bytes "BUJR", the format version,
+ * the width and the height (little-endian ints), followed by the x- and
+ * then the y- mapping coordinates, row by row, as little-endian doubles.
+ */
+public class MappedRawTransformation
+{
+	/** magic bytes ("BUJR") at the beginning of binary raw transformation files */
+	private static final byte[] MAGIC = { 'B', 'U', 'J', 'R' };
+	/** version of the binary raw transformation format */
+	private static final int VERSION = 1;
+	/** size of the header (magic, version, width, height) */
+	private static final int HEADER = 16;
+
+	/** transformation width */
+	private final int width;
+	/** transformation height */
+	private final int height;
+	/** mapped x- transformation coordinates */
+	private final DoubleBuffer x;
+	/** mapped y- transformation coordinates */
+	private final DoubleBuffer y;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a mapped raw transformation.
+	 *
+	 * @param width transformation width
+	 * @param height transformation height
+	 * @param x mapped x- transformation coordinates
+	 * @param y mapped y- transformation coordinates
+	 */
+	private MappedRawTransformation(int width, int height, DoubleBuffer x, DoubleBuffer y)
+	{
+		this.width = width;
+		this.height = height;
+		this.x = x;
+		this.y = y;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Map a binary raw transformation file.
+	 *
+	 * @param filename transformation file name
+	 * @return mapped transformation, or null if the file cannot be mapped
+	 */
+	public static MappedRawTransformation open(String filename)
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining())
+				if (channel.read(header) < 0)
+					break;
+			final byte[] magic = new byte[MAGIC.length];
+			final boolean complete = !header.hasRemaining();
+			header.rewind();
+			header.get(magic);
+			if (!complete || !Arrays.equals(magic, MAGIC) || header.getInt(4) != VERSION)
+			{
+				IJ.log("Unsupported binary raw transformation " + filename);
+				return null;
+			}
+			final int width = header.getInt(8);
+			final int height = header.getInt(12);
+			final long size = (long) width * height * 8;
+			if (width < 1 || height < 1 || size > Integer.MAX_VALUE
+					|| channel.size() < HEADER + 2 * size)
+			{
+				IJ.log("Binary raw transformation " + filename + " is truncated or too large ("
+						+ width + "x" + height + ")");
+				return null;
+			}
+
+			// The mapping stays valid after the channel is closed
+			final DoubleBuffer x = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, size)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			final DoubleBuffer y = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + size, size)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			return new MappedRawTransformation(width, height, x, y);
+		} catch (IOException e) {
+			IJ.error("IOException exception" + e);
+			return null;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Map a binary raw transformation file that must have the size of
+	 * the target image.
+	 *
+	 * @param filename transformation file name
+	 * @param width target image width
+	 * @param height target image height
+	 * @return mapped transformation, or null if the file cannot be mapped
+	 *         or has a different size
+	 */
+	public static MappedRawTransformation open(String filename, int width, int height)
+	{
+		final MappedRawTransformation mapped = open(filename);
+		if (mapped == null || !mapped.checkSize(width, height))
+			return null;
+		return mapped;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check that the transformation has the size of the target image,
+	 * showing an error otherwise.
+	 *
+	 * @param width target image width
+	 * @param height target image height
+	 * @return true if the sizes match
+	 */
+	public boolean checkSize(int width, int height)
+	{
+		if (this.width != width || this.height != height)
+		{
+			IJ.error("Raw transformation size (" + this.width + "x" + this.height
+					+ ") does not match the target image size (" + width + "x" + height + ")");
+			return false;
+		}
+		return true;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check if a file holds a raw transformation in binary format.
+	 *
+	 * @param filename transformation file name
+	 * @return true if the file starts with the binary magic bytes
+	 */
+	public static boolean isBinary(String filename)
+	{
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+			if (file.length() < HEADER)
+				return false;
+			final byte[] magic = new byte[MAGIC.length];
+			file.readFully(magic);
+			return Arrays.equals(magic, MAGIC);
+		} catch (IOException e) {
+			// Let the text loaders report the error
+			return false;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Save a raw transformation in binary format.
+	 *
+	 * @param filename transformation file name
+	 * @param width image width
+	 * @param height image height
+	 * @param transformation_x transformation coordinates in x-axis
+	 * @param transformation_y transformation coordinates in y-axis
+	 */
+	public static void save(
+			String filename,
+			int width,
+			int height,
+			double [][] transformation_x,
+			double [][] transformation_y)
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+			header.rewind();
+			write(channel, header);
+
+			// Write row by row to keep the buffer small
+			final ByteBuffer row = ByteBuffer.allocate(width * 8).order(ByteOrder.LITTLE_ENDIAN);
+			for (double[][] transformation : new double[][][] {transformation_x, transformation_y})
+				for (int v = 0; v < height; v++)
+				{
+					row.clear();
+					row.asDoubleBuffer().put(transformation[v], 0, width);
+					write(channel, row);
+				}
+		} catch (IOException e) {
+			IJ.error("IOException exception" + e);
+		} catch (SecurityException e) {
+			IJ.error("Security exception" + e);
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Write a whole buffer to a channel.
+	 *
+	 * @param channel output channel
+	 * @param buffer buffer to write
+	 * @throws IOException if the buffer cannot be written
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the transformation width.
+	 *
+	 * @return width
+	 */
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the transformation height.
+	 *
+	 * @return height
+	 */
+	public int getHeight()
+	{
+		return this.height;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the x- coordinate a target pixel is mapped to.
+	 *
+	 * @param v row
+	 * @param u column
+	 * @return x- transformation coordinate
+	 */
+	public double getX(int v, int u)
+	{
+		return this.x.get(v * this.width + u);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the y- coordinate a target pixel is mapped to.
+	 *
+	 * @param v row
+	 * @param u column
+	 * @return y- transformation coordinate
+	 */
+	public double getY(int v, int u)
+	{
+		return this.y.get(v * this.width + u);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy a row of x- transformation coordinates.
+	 *
+	 * @param v row
+	 * @param row output array
+	 */
+	public void getRowX(int v, double[] row)
+	{
+		getRow(this.x, v, row);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy a row of y- transformation coordinates.
+	 *
+	 * @param v row
+	 * @param row output array
+	 */
+	public void getRowY(int v, double[] row)
+	{
+		getRow(this.y, v, row);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy a row of a mapped buffer. A duplicate of the buffer is used
+	 * so several threads can read rows at the same time. Only the first
+	 * {@code width} values of the output are written: use
+	 * {@link #checkSize} before reading rows for a given image.
+	 *
+	 * @param buffer mapped coordinates
+	 * @param v row
+	 * @param row output array
+	 */
+	private void getRow(DoubleBuffer buffer, int v, double[] row)
+	{
+		if (v < 0 || v >= this.height)
+			throw new IndexOutOfBoundsException("Row " + v + " is outside of the raw transformation ("
+					+ this.width + "x" + this.height + ")");
+		final DoubleBuffer view = buffer.duplicate();
+		view.position(v * this.width);
+		view.get(row, 0, Math.min(this.width, row.length));
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy the transformation coordinates into arrays.
+	 *
+	 * @param transformation_x output x- transformation coordinates
+	 * @param transformation_y output y- transformation coordinates
+	 */
+	public void toArrays(double [][] transformation_x, double [][] transformation_y)
+	{
+		final int h = Math.min(this.height, transformation_x.length);
+		for (int v = 0; v < h; v++)
+		{
+			getRowX(v, transformation_x[v]);
+			getRowY(v, transformation_y[v]);
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy the transformation coordinates into row-major arrays.
+	 *
+	 * @param transformation_x output x- transformation coordinates
+	 * @param transformation_y output y- transformation coordinates
+	 */
+	public void toArrays(double [] transformation_x, double [] transformation_y)
+	{
+		final int n = Math.min(this.width * this.height, transformation_x.length);
+		this.x.duplicate().get(transformation_x, 0, n);
+		this.y.duplicate().get(transformation_y, 0, n);
+	}
+
+} // end class MappedRawTransformation
@@ -46,8 +46,10 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
+import ij.VirtualStack;
 import ij.gui.PointRoi;
 import ij.gui.Roi;
+import ij.io.FileSaver;
 import ij.io.OpenDialog;
 import ij.plugin.filter.GaussianBlur;
 import ij.process.ByteProcessor;
@@ -66,10 +68,26 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Stack;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JFileChooser;
 
@@ -78,6 +96,32 @@ import javax.swing.JFileChooser;
  */
 public class MiscTools
 {
+	/** magic bytes ("BUJE") at the beginning of binary elastic transformation files */
+	private static final byte[] ELASTIC_BINARY_MAGIC = { 'B', 'U', 'J', 'E' };
+	/** version of the binary elastic transformation format */
+	private static final int ELASTIC_BINARY_VERSION = 1;
+	/** size of the header of binary elastic transformation files (magic, version, intervals) */
+	private static final int ELASTIC_BINARY_HEADER = 12;
+	/** file extension that selects the binary format when saving elastic transformations */
+	public static final String ELASTIC_BINARY_EXTENSION = ".bin";
+	/** file extension that selects the memory-mappable binary format when saving raw transformations */
+	public static final String RAW_BINARY_EXTENSION = ".bin";
+	/** file extension that selects the compressed (quantized) format when saving raw transformations */
+	public static final String RAW_COMPRESSED_EXTENSION = ".binz";
+
+	/**
+	 * Interpolation of the source image when warping it to the output.
+	 */
+	public enum Interpolation
+	{
+		/** value of the closest source pixel (keeps the labels of label and mask images) */
+		NEAREST_NEIGHBOR,
+		/** bilinear interpolation of the four closest source pixels */
+		BILINEAR,
+		/** cubic B-spline interpolation (requires the source coefficients) */
+		BSPLINE
+	}
+
 	/* --------------------------------------------------------------------*/
 	/**
 	 * Apply a given B-spline transformation to the source (gray-scale) image.
@@ -166,27 +210,10 @@ public class MiscTools
 		}
 		else /* COLOR IMAGES */
 		{        	
-			// red
-			BSplineModel sourceR = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(0, null), false, 1);
-			sourceR.setPyramidDepth(0);
-			sourceR.startPyramids();
-			// green
-			BSplineModel sourceG = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(1, null), false, 1);
-			sourceG.setPyramidDepth(0);
-			sourceG.startPyramids();
-			//blue
-			BSplineModel sourceB = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(2, null), false, 1);
-			sourceB.setPyramidDepth(0);
-			sourceB.startPyramids();
-
-			// Join threads
-			try {
-				sourceR.getThread().join();
-				sourceG.getThread().join();
-				sourceB.getThread().join();
-			} catch (InterruptedException e) {
-				IJ.error("Unexpected interruption exception " + e);
-			}
+			// interleaved red, green and blue model
+			final MultiChannelBSplineModel sourceRGB =
+					new MultiChannelBSplineModel( (ColorProcessor) sourceImp.getProcessor() );
+			final double[] rgb = new double[3];
 
 			// Calculate warped RGB image
 			ColorProcessor cp = new ColorProcessor(targetWidth, targetHeight);
@@ -200,15 +227,11 @@ public class MiscTools
 					final double y = transformation_y[v][u];
 
 					if (x>=0 && x<sourceWidth && y>=0 && y<sourceHeight)
-					{                	 
-						sourceR.prepareForInterpolation(x, y, ORIGINAL);
-						fpR.setf(u, v, (float) sourceR.interpolateI());
-
-						sourceG.prepareForInterpolation(x, y, ORIGINAL);
-						fpG.setf(u, v, (float) sourceG.interpolateI());
-
-						sourceB.prepareForInterpolation(x, y, ORIGINAL);
-						fpB.setf(u, v, (float) sourceB.interpolateI());                 
+					{
+						sourceRGB.interpolate(x, y, rgb);
+						fpR.setf(u, v, (float) rgb[0]);
+						fpG.setf(u, v, (float) rgb[1]);
+						fpB.setf(u, v, (float) rgb[2]);
 					}
 					else
 					{
@@ -341,6 +364,54 @@ public class MiscTools
 			BSplineModel source,
 			double [][] transformation_x,
 			double [][] transformation_y)
+	{
+		applyRawTransformationToSource(sourceImp, targetImp, source,
+				transformation_x, transformation_y, null);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Apply a given memory-mapped raw transformation to the source image.
+	 * The coordinates are read directly from the mapped file, one row at
+	 * a time. The source image is modified. The target image is used to
+	 * know the output size.
+	 *
+	 * @param sourceImp source image representation
+	 * @param targetImp target image representation
+	 * @param source source image
+	 * @param transformation mapped raw transformation
+	 */
+	static public void applyRawTransformationToSource(
+			ImagePlus sourceImp,
+			ImagePlus targetImp,
+			BSplineModel source,
+			MappedRawTransformation transformation)
+	{
+		if (transformation == null || !transformation.checkSize(targetImp.getWidth(), targetImp.getHeight()))
+			return;
+		applyRawTransformationToSource(sourceImp, targetImp, source,
+				null, null, transformation);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Apply a raw transformation given as arrays or as a mapped file to
+	 * the source image.
+	 *
+	 * @param sourceImp source image representation
+	 * @param targetImp target image representation
+	 * @param source source image
+	 * @param transformation_x x- mapping coordinates (if not mapped)
+	 * @param transformation_y y- mapping coordinates (if not mapped)
+	 * @param mapped mapped raw transformation (null to use the arrays)
+	 */
+	static private void applyRawTransformationToSource(
+			ImagePlus sourceImp,
+			ImagePlus targetImp,
+			BSplineModel source,
+			double [][] transformation_x,
+			double [][] transformation_y,
+			MappedRawTransformation mapped)
 	{
 		int targetHeight = targetImp.getProcessor().getHeight();
 		int targetWidth  = targetImp.getProcessor().getWidth ();
@@ -348,6 +419,9 @@ public class MiscTools
 		int sourceWidth  = sourceImp.getProcessor().getWidth ();
 
 		boolean ORIGINAL = false;
+		final Object event = RegistrationEvents.INSTANCE.beginTransform();
+		final double[] rowX = new double[targetWidth];
+		final double[] rowY = new double[targetWidth];
 
 		// Compute the warped image
 		/* GRAY SCALE IMAGES */
@@ -365,10 +439,13 @@ public class MiscTools
 			
 			FloatProcessor fp = new FloatProcessor(targetWidth, targetHeight);
 			for (int v=0; v<targetHeight; v++)
+			{
+				final double[] tx = rawTransformationRow(transformation_x, mapped, true, v, rowX);
+				final double[] ty = rawTransformationRow(transformation_y, mapped, false, v, rowY);
 				for (int u=0; u<targetWidth; u++)
 				{
-					final double x = transformation_x[v][u];
-					final double y = transformation_y[v][u];
+					final double x = tx[u];
+					final double y = ty[u];
 
 					if (x>=0 && x<sourceWidth && y>=0 && y<sourceHeight)
 					{
@@ -378,38 +455,17 @@ public class MiscTools
 					else
 						fp.setf(u, v, 0f);
 				}
+			}
 			fp.resetMinAndMax();
 			sourceImp.setProcessor(sourceImp.getTitle(), fp);
 			sourceImp.updateImage();
 		}
 		else /* COLOR IMAGES */
 		{        	
-			// red
-			BSplineModel sourceR = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(0, null), false, 1);
-			sourceR.setPyramidDepth(0);
-			//sourceR.getThread().start();
-			sourceR.startPyramids();
-			
-			// green
-			BSplineModel sourceG = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(1, null), false, 1);
-			sourceG.setPyramidDepth(0);
-			//sourceG.getThread().start();
-			sourceG.startPyramids();
-			
-			//blue
-			BSplineModel sourceB = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(2, null), false, 1);
-			sourceB.setPyramidDepth(0);
-			//sourceB.getThread().start();
-			sourceB.startPyramids();
-
-			// Join threads
-			try {
-				sourceR.getThread().join();
-				sourceG.getThread().join();
-				sourceB.getThread().join();
-			} catch (InterruptedException e) {
-				IJ.error("Unexpected interruption exception " + e);
-			}
+			// interleaved red, green and blue model
+			final MultiChannelBSplineModel sourceRGB =
+					new MultiChannelBSplineModel( (ColorProcessor) sourceImp.getProcessor() );
+			final double[] rgb = new double[3];
 
 			// Calculate warped RGB image
 			ColorProcessor cp = new ColorProcessor(targetWidth, targetHeight);
@@ -417,21 +473,20 @@ public class MiscTools
 			FloatProcessor fpG = new FloatProcessor(targetWidth, targetHeight);
 			FloatProcessor fpB = new FloatProcessor(targetWidth, targetHeight);
 			for (int v=0; v<targetHeight; v++)
+			{
+				final double[] tx = rawTransformationRow(transformation_x, mapped, true, v, rowX);
+				final double[] ty = rawTransformationRow(transformation_y, mapped, false, v, rowY);
 				for (int u=0; u<targetWidth; u++)
 				{
-					final double x = transformation_x[v][u];
-					final double y = transformation_y[v][u];
+					final double x = tx[u];
+					final double y = ty[u];
 
 					if (x>=0 && x<sourceWidth && y>=0 && y<sourceHeight)
-					{                	 
-						sourceR.prepareForInterpolation(x, y, ORIGINAL);
-						fpR.setf(u, v, (float) sourceR.interpolateI());
-
-						sourceG.prepareForInterpolation(x, y, ORIGINAL);
-						fpG.setf(u, v, (float) sourceG.interpolateI());
-
-						sourceB.prepareForInterpolation(x, y, ORIGINAL);
-						fpB.setf(u, v, (float) sourceB.interpolateI());                 
+					{
+						sourceRGB.interpolate(x, y, rgb);
+						fpR.setf(u, v, (float) rgb[0]);
+						fpG.setf(u, v, (float) rgb[1]);
+						fpB.setf(u, v, (float) rgb[2]);
 					}
 					else
 					{
@@ -440,6 +495,7 @@ public class MiscTools
 						fpB.setf(u, v, 0f);
 					}
 				}
+			}
 			cp.setPixels(0, fpR);
 			cp.setPixels(1, fpG);
 			cp.setPixels(2, fpB);            
@@ -449,7 +505,60 @@ public class MiscTools
 			sourceImp.updateImage();
 		} // end calculating warped color image
 
+		RegistrationEvents.INSTANCE.endTransform(event, "raw", 0, targetWidth, targetHeight);
 	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get a row of a raw transformation given as arrays or as a mapped file.
+	 *
+	 * @param transformation transformation coordinates (if not mapped)
+	 * @param mapped mapped raw transformation (null to use the array)
+	 * @param xAxis true for the x- coordinates, false for the y- coordinates
+	 * @param v row
+	 * @param buffer buffer to copy the mapped row into
+	 * @return row of transformation coordinates
+	 */
+	private static double[] rawTransformationRow(
+			double [][] transformation,
+			MappedRawTransformation mapped,
+			boolean xAxis,
+			int v,
+			double[] buffer)
+	{
+		if (mapped == null)
+			return transformation[v];
+		if (xAxis)
+			mapped.getRowX(v, buffer);
+		else
+			mapped.getRowY(v, buffer);
+		return buffer;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get a coordinate of a raw transformation given as arrays or as a
+	 * mapped file.
+	 *
+	 * @param transformation transformation coordinates (if not mapped)
+	 * @param mapped mapped raw transformation (null to use the array)
+	 * @param xAxis true for the x- coordinates, false for the y- coordinates
+	 * @param v row
+	 * @param u column
+	 * @return transformation coordinate
+	 */
+	private static double rawTransformationValue(
+			double [][] transformation,
+			MappedRawTransformation mapped,
+			boolean xAxis,
+			int v,
+			int u)
+	{
+		if (mapped == null)
+			return transformation[v][u];
+		return xAxis ? mapped.getX(v, u) : mapped.getY(v, u);
+	}
+
 	/**
 	 * Approximate the transformed coordinates of a point from the
 	 * moving image into the fixed image. Notice the raw transform
@@ -457,7 +566,9 @@ public class MiscTools
 	 * corresponding moving pixel to fill it in. Therefore the new
 	 * position of the moving (source) point in fixed (target) space
 	 * can be approximated by finding the closest point in the
-	 * transform.
+	 * transform. This scans the whole transform: to map many points
+	 * through the same transform, build an {@link InverseCoordinateIndex}
+	 * once and use {@link #approximateInverseCoords(double[], InverseCoordinateIndex)}.
 	 *
 	 * @param movingCoords point coordinates in moving space
 	 * @param fixedImp fixed (source) image
@@ -491,6 +602,24 @@ public class MiscTools
 		}
 	    return coords;
 	}
+
+	/**
+	 * Approximate the transformed coordinates of a point from the
+	 * moving image into the fixed image, using a spatial index of the
+	 * raw transform (same result as the scanning version).
+	 *
+	 * @param movingCoords point coordinates in moving space
+	 * @param index spatial index of the raw transform
+	 * @return approximated position of the point after transformation
+	 */
+	public static double[] approximateInverseCoords(
+		double[] movingCoords,
+		InverseCoordinateIndex index
+		)
+	{
+	    return index.nearest( movingCoords );
+	}
+
 	/**
 	 * Calculate the warping index between two opposite elastic deformations.
 	 * Note: the only difference between the warping index and the consistency
@@ -555,86 +684,16 @@ public class MiscTools
 			double [][]cx_inverse,
 			double [][]cy_inverse)
 	{
-		// Ask for memory for the transformation
 		int targetCurrentHeight = targetImp.getProcessor().getHeight();
 		int targetCurrentWidth  = targetImp.getProcessor().getWidth ();
 		int sourceCurrentHeight = sourceImp.getProcessor().getHeight();
 		int sourceCurrentWidth  = sourceImp.getProcessor().getWidth ();
 
-		double [][] transformation_x_direct = new double [targetCurrentHeight][targetCurrentWidth];
-		double [][] transformation_y_direct = new double [targetCurrentHeight][targetCurrentWidth];
-
-		double [][] transformation_x_inverse = new double [sourceCurrentHeight][sourceCurrentWidth];
-		double [][] transformation_y_inverse = new double [sourceCurrentHeight][sourceCurrentWidth];
-
-		int cYdim = intervals+3;
-		int cXdim = cYdim;
-		int Nk = cYdim * cXdim;
-		int twiceNk = 2 * Nk;
-
-		// We pass the coefficients to a one-dimension array
-		// Direct coefficients.
-		double c_direct[] = new double[twiceNk];
-		for(int n = 0, i = 0; i < cYdim; i++)
-			for(int j = 0; j < cYdim; j++, n++)
-			{
-				c_direct[n     ] = cx_direct[i][j];
-				c_direct[n + Nk] = cy_direct[i][j];
-			}
-
-		// Compute the deformation
-		// Set these coefficients to an interpolator
-		BSplineModel swx_direct = new BSplineModel(c_direct, cYdim, cXdim, 0);
-		BSplineModel swy_direct = new BSplineModel(c_direct, cYdim, cXdim, Nk);
-
-		// Inverse coefficients.
-		double c_inverse[] = new double[twiceNk];
-		for(int n = 0, i = 0; i < cYdim; i++)
-			for(int j = 0; j < cYdim; j++, n++)
-			{
-				c_inverse[n     ] = cx_inverse[i][j];
-				c_inverse[n + Nk] = cy_inverse[i][j];
-			}
-
-		BSplineModel swx_inverse = new BSplineModel(c_inverse, cYdim, cXdim, 0);
-		BSplineModel swy_inverse = new BSplineModel(c_inverse, cYdim, cXdim, Nk);
-
-		// Compute the direct transformation mapping
-		for (int v=0; v<targetCurrentHeight; v++)
-		{
-			//prevent NaN result from divide by 0
-			final double tv = (targetCurrentHeight > 1) ? ((double)(v * intervals) / (double)(targetCurrentHeight - 1) + 1.0F) : 1.0F;
-			for (int u = 0; u<targetCurrentWidth; u++)
-			{
-				//prevent NaN result from divide by 0
-				final double tu = (targetCurrentWidth > 1) ? ((double)(u * intervals) / (double)(targetCurrentWidth - 1) + 1.0F) : 1.0F;
-
-				swx_direct.prepareForInterpolation(tu, tv, false);
-				transformation_x_direct[v][u] = swx_direct.interpolateI();
-
-				swy_direct.prepareForInterpolation(tu, tv, false);
-				transformation_y_direct[v][u] = swy_direct.interpolateI();
-			}
-		}
-
-		// Compute the inverse transformation mapping
-		for (int v=0; v<sourceCurrentHeight; v++)
-		{
-			//prevent NaN result from divide by 0
-			final double tv = (sourceCurrentHeight > 1) ? ((double)(v * intervals) / (double)(sourceCurrentHeight - 1) + 1.0F) : 1.0F;
-			for (int u = 0; u<sourceCurrentWidth; u++)
-			{
-				//prevent NaN result from divide by 0
-				final double tu = (sourceCurrentWidth > 1) ? ((double)(u * intervals) / (double)(sourceCurrentWidth - 1) + 1.0F) : 1.0F;
-
-				swx_inverse.prepareForInterpolation(tu, tv, false);
-				transformation_x_inverse[v][u] = swx_inverse.interpolateI();
-
-				swy_inverse.prepareForInterpolation(tu, tv, false);
-				transformation_y_inverse[v][u] = swy_inverse.interpolateI();
-			}
-		}
-
+		// Both mappings are evaluated on demand, tile by tile
+		final DeformationField direct = new DeformationField(intervals,
+				cx_direct, cy_direct, targetCurrentWidth, targetCurrentHeight);
+		final DeformationField inverse = new DeformationField(intervals,
+				cx_inverse, cy_inverse, sourceCurrentWidth, sourceCurrentHeight);
 
 		// *********** Compute the geometric error ***********
 		double warpingIndex = 0;
@@ -644,13 +703,13 @@ public class MiscTools
 			{
 				// Check if this point is in the target mask
 
-				final int x = (int) Math.round(transformation_x_direct[v][u]);
-				final int y = (int) Math.round(transformation_y_direct[v][u]);
+				final int x = (int) Math.round(direct.getX(v, u));
+				final int y = (int) Math.round(direct.getY(v, u));
 
 				if (x>=0 && x<sourceCurrentWidth && y>=0 && y<sourceCurrentHeight)
 				{
-					final double x2 = transformation_x_inverse[y][x];
-					final double y2 = transformation_y_inverse[y][x];
+					final double x2 = inverse.getX(y, x);
+					final double y2 = inverse.getY(y, x);
 					double aux1 = u - x2;
 					double aux2 = v - y2;
 
@@ -761,55 +820,14 @@ public class MiscTools
 			return;
 		}
 
-		// Ask for memory for the transformation
 		int targetCurrentHeight = targetImp.getProcessor().getHeight();
 		int targetCurrentWidth  = targetImp.getProcessor().getWidth ();
 
-		int cYdim = intervals+3;
-		int cXdim = cYdim;
-		int Nk = cYdim * cXdim;
-		int twiceNk = 2 * Nk;
-
-		// We pass the coefficients to a one-dimension array
-		// Direct coefficients.
-		double c[] = new double[twiceNk];
-		for(int n = 0, i = 0; i < cYdim; i++)
-			for(int j = 0; j < cYdim; j++, n++)
-			{
-				c[n     ] = cx[i][j];
-				c[n + Nk] = cy[i][j];
-			}
-
-		// Compute the deformation
-		// Set these coefficients to an interpolator
-		BSplineModel swx = new BSplineModel(c, cYdim, cXdim, 0);
-		BSplineModel swy = new BSplineModel(c, cYdim, cXdim, Nk);
-
-
-		swx.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-		swy.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-
-
 		// Compute the direct transformation mapping
+		final DeformationField field = new DeformationField(intervals, cx, cy,
+				targetCurrentWidth, targetCurrentHeight);
 		for (int v=0; v<targetCurrentHeight; v++)
-		{
-			//prevent NaN result from divide by 0
-			final double tv = (targetCurrentHeight > 1) ? ((double)(v * intervals) / (double)(targetCurrentHeight - 1) + 1.0F) : 1.0F;
-
-			for (int u = 0; u<targetCurrentWidth; u++)
-			{
-				//prevent NaN result from divide by 0
-				final double tu = (targetCurrentWidth > 1) ? ((double)(u * intervals) / (double)(targetCurrentWidth - 1) + 1.0F) : 1.0F;
-
-				swx.prepareForInterpolation(tu, tv, false);
-				transformation_x[v][u] = swx.interpolateI();
-
-				swy.prepareForInterpolation(tu, tv, false);
-				transformation_y[v][u] = swy.interpolateI();
-			}
-		}
+			field.getRow(v, transformation_x[v], transformation_y[v]);
 	} // end convertElasticTransformationToRaw 
 
 
@@ -1059,6 +1077,25 @@ public class MiscTools
 		}
 		
 		// Fill the border values with anti-symmetric bounding conditions
+		fillAntiSymmetricBorders(intervals, cx, cy);
+
+	} // end convertRawTransformationToBSpline 	
+
+	//------------------------------------------------------------------
+	/**
+	 * Fill the border coefficients (outside of the knots 1..intervals+1)
+	 * of a pair of B-spline coefficient matrices with anti-symmetric
+	 * bounding conditions, so the deformation is linearly extrapolated.
+	 *
+	 * @param intervals intervals in the deformation
+	 * @param cx x- B-spline coefficients (modified)
+	 * @param cy y- B-spline coefficients (modified)
+	 */
+	static void fillAntiSymmetricBorders(
+			int intervals,
+			double [][] cx,
+			double [][] cy)
+	{
 		for (int i = 0; i < intervals+3; i++)
 			for (int j = 0; j < intervals+3; j++)
 			{
@@ -1098,16 +1135,17 @@ public class MiscTools
 					cy[i][j] = 2 * cy[iPivot][jPivot] - cy[iFrom][jFrom];
 				}
 			}
-		
-
-	} // end convertRawTransformationToBSpline 	
+	} // end fillAntiSymmetricBorders
 	
 	
 	
 	
 	/*------------------------------------------------------------------
 	/**
-	 * Invert the raw transformation (approximation)
+	 * Invert the raw transformation (approximation). Every pixel of the
+	 * inverse gets a value: the exact preimage under the bilinear model of
+	 * the transformation where it is covered, and a multigrid interpolation
+	 * of its neighbours elsewhere (see {@link RawTransformationInverter}).
 	 *
 	 * @param targetImp target image representation
 	 * @param transformation_x raw transformation in x- axis (input)
@@ -1122,109 +1160,7 @@ public class MiscTools
 			double [][] inv_x,
 			double [][] inv_y)
 	{
-
-		if(inv_x == null || inv_y == null || transformation_x == null || transformation_y == null)
-		{
-			IJ.error("Error in transformations parameters!");
-			return;
-		}
-
-		// Extract height and width information
-		final int targetCurrentHeight = targetImp.getProcessor().getHeight();
-		final int targetCurrentWidth  = targetImp.getProcessor().getWidth ();
-				
-				
-		// Approach inverse transform
-		for (int i = 0; i < targetCurrentHeight; i++)
-			for (int j = 0; j < targetCurrentWidth; j++)
-			{
-				final int originX =(int) Math.round(transformation_x[i][j]);
-				final int originY =(int) Math.round(transformation_y[i][j]);
-				
-				if(originX >= 0 && originX < targetCurrentWidth && originY >= 0 && originY < targetCurrentHeight)
-				{
-					inv_x[originY][originX] = j; 
-					inv_y[originY][originX] = i;
-				}
-		
-			}
-		
-		// Replace empty transformation positions
-		for (int i = 0; i < targetCurrentHeight; i++)
-			for (int j = 0; j < targetCurrentWidth; j++)
-			{
-				if(inv_x[i][j] == 0 && inv_y[i][j] == 0)
-				{
-					double val_x = 0;
-					double val_y = 0;
-					int n = 0;
-					
-					if(i > 0)
-					{
-						if(inv_x[i-1][j] != 0 && inv_y[i-1][j] != 0)
-						{
-							val_x += inv_x[i-1][j];
-							val_y += inv_y[i-1][j];
-							n++;
-						}
-						if(j > 0 && inv_x[i-1][j-1] != 0 && inv_y[i-1][j-1] != 0)
-						{
-							val_x += inv_x[i-1][j-1];
-							val_y += inv_y[i-1][j-1];
-							n++;
-						}
-						if(j < targetCurrentWidth-1 && inv_x[i-1][j+1] != 0 && inv_y[i-1][j+1] != 0)
-						{
-							val_x += inv_x[i-1][j+1];
-							val_y += inv_y[i-1][j+1];
-							n++;
-						}
-					}
-					
-					if(i < targetCurrentHeight-1)
-					{
-						if(inv_x[i+1][j] != 0 && inv_y[i+1][j] != 0)
-						{
-							val_x += inv_x[i+1][j];
-							val_y += inv_y[i+1][j];
-							n++;
-						}
-						if(j > 0 && inv_x[i+1][j-1] != 0 && inv_y[i+1][j-1] != 0)
-						{
-							val_x += inv_x[i+1][j-1];
-							val_y += inv_y[i+1][j-1];
-							n++;
-						}
-						if(j < targetCurrentWidth-1 && inv_x[i+1][j+1] != 0 && inv_y[i+1][j+1] != 0)
-						{
-							val_x += inv_x[i+1][j+1];
-							val_y += inv_y[i+1][j+1];
-							n++;
-						}
-					}
-					
-					if(j > 0 && inv_x[i][j-1] != 0 && inv_y[i][j-1] != 0)
-					{
-						val_x += inv_x[i][j-1];
-						val_y += inv_y[i][j-1];
-						n++;
-					}
-					
-					if(j < targetCurrentWidth-1 && inv_x[i][j+1] != 0 && inv_y[i][j+1] != 0)
-					{
-						val_x += inv_x[i][j+1];
-						val_y += inv_y[i][j+1];
-						n++;
-					}
-					
-					// Add mean value
-					if(n != 0)
-					{
-						inv_x[i][j] += val_x / n;
-						inv_y[i][j] += val_y / n;
-					}
-				}
-			}
+		RawTransformationInverter.invert( transformation_x, transformation_y, inv_x, inv_y );
 	} // end invertRawTransformation 	
 	/**
 	 * Approximate the inverse of a raw transform and save it to file.
@@ -1259,23 +1195,88 @@ public class MiscTools
 
 	//------------------------------------------------------------------
 	/**
-	 * Warping index for comparing elastic deformations with any kind
-	 * of deformation (both transformations having same direction).
+	 * Invert an elastic transformation directly from its B-spline
+	 * coefficients, by a least-squares fit of the inverse coefficients
+	 * (see {@link ElasticTransformationInverter}).
 	 *
-	 * @param sourceImp source image representation
-	 * @param targetImp target image representation
 	 * @param intervals intervals in the deformation
-	 * @param cx_direct direct transformation x- B-spline coefficients
-	 * @param cy_direct direct transformation y- B-spline coefficients
-	 * @param transformation_x raw direct transformation in x- axis
-	 * @param transformation_y raw direct transformation in y- axis
+	 * @param cx direct transformation x- B-spline coefficients
+	 * @param cy direct transformation y- B-spline coefficients
+	 * @param targetImp target image representation
+	 * @param sourceImp source image representation
+	 * @param inv_cx inverse transformation x- B-spline coefficients (output)
+	 * @param inv_cy inverse transformation y- B-spline coefficients (output)
+	 * @return root mean square error of the fit (in target pixels), or -1 on error
 	 */
-	public static double rawWarpingIndex(
-			ImagePlus sourceImp,
-			ImagePlus targetImp,
+	public static double invertElasticTransformation(
 			int intervals,
-			double [][] cx_direct,
-			double [][] cy_direct,
+			double [][] cx,
+			double [][] cy,
+			ImagePlus targetImp,
+			ImagePlus sourceImp,
+			double [][] inv_cx,
+			double [][] inv_cy)
+	{
+		return ElasticTransformationInverter.invert( intervals, cx, cy,
+				targetImp.getWidth(), targetImp.getHeight(),
+				sourceImp.getWidth(), sourceImp.getHeight(), inv_cx, inv_cy );
+	} // end invertElasticTransformation
+
+	/**
+	 * Invert an elastic transform file and save the inverse to file.
+	 * Nothing is saved if the input file cannot be read.
+	 * @param inputTransfPath complete path to input elastic transform file
+	 * @param outputTransfPath complete path to output elastic transform file
+	 * @param targetImp target image
+	 * @param sourceImp source image
+	 */
+	public static void invertElasticTransformation(
+			String inputTransfPath,
+			String outputTransfPath,
+			ImagePlus targetImp,
+			ImagePlus sourceImp )
+	{
+		// header and coefficients in a single read (text or binary)
+		final double[][][] c = MiscTools.loadElasticTransformation( inputTransfPath );
+		if ( c == null )
+		{
+			IJ.error( "\nError: " + inputTransfPath + " could not be read\n" );
+			return;
+		}
+		final int intervals = c[ 0 ].length - 3;
+		final double [][]cx = c[ 0 ];
+		final double [][]cy = c[ 1 ];
+
+		double [][]inv_cx = new double[ intervals + 3 ][ intervals + 3 ];
+		double [][]inv_cy = new double[ intervals + 3 ][ intervals + 3 ];
+
+		if( MiscTools.invertElasticTransformation( intervals, cx, cy,
+				targetImp, sourceImp, inv_cx, inv_cy ) < 0 )
+			return;
+
+		MiscTools.saveElasticTransformation( intervals, inv_cx, inv_cy,
+				outputTransfPath );
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warping index for comparing elastic deformations with any kind
+	 * of deformation (both transformations having same direction).
+	 *
+	 * @param sourceImp source image representation
+	 * @param targetImp target image representation
+	 * @param intervals intervals in the deformation
+	 * @param cx_direct direct transformation x- B-spline coefficients
+	 * @param cy_direct direct transformation y- B-spline coefficients
+	 * @param transformation_x raw direct transformation in x- axis
+	 * @param transformation_y raw direct transformation in y- axis
+	 */
+	public static double rawWarpingIndex(
+			ImagePlus sourceImp,
+			ImagePlus targetImp,
+			int intervals,
+			double [][] cx_direct,
+			double [][] cy_direct,
 			double [][] transformation_x,
 			double [][] transformation_y)
 	{
@@ -1286,61 +1287,14 @@ public class MiscTools
 			return -1;
 		}
 
-		// Ask for memory for the transformation
 		int targetCurrentHeight = targetImp.getProcessor().getHeight();
 		int targetCurrentWidth  = targetImp.getProcessor().getWidth ();
 		int sourceCurrentHeight = sourceImp.getProcessor().getHeight();
 		int sourceCurrentWidth  = sourceImp.getProcessor().getWidth ();
 
-		double [][] transformation_x_direct = new double [targetCurrentHeight][targetCurrentWidth];
-		double [][] transformation_y_direct = new double [targetCurrentHeight][targetCurrentWidth];
-
-		int cYdim = intervals+3;
-		int cXdim = cYdim;
-		int Nk = cYdim * cXdim;
-		int twiceNk = 2 * Nk;
-
-		// We pass the coefficients to a one-dimension array
-		// Direct coefficients.
-		double c_direct[] = new double[twiceNk];
-		for(int n = 0, i = 0; i < cYdim; i++)
-			for(int j = 0; j < cYdim; j++, n++)
-			{
-				c_direct[n     ] = cx_direct[i][j];
-				c_direct[n + Nk] = cy_direct[i][j];
-			}
-
-		// Compute the deformation
-		// Set these coefficients to an interpolator
-		BSplineModel swx_direct = new BSplineModel(c_direct, cYdim, cXdim, 0);
-		BSplineModel swy_direct = new BSplineModel(c_direct, cYdim, cXdim, Nk);
-
-
-		swx_direct.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-		swy_direct.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-
-
-		// Compute the direct transformation mapping
-		for (int v=0; v<targetCurrentHeight; v++)
-		{
-			//prevent NaN result from divide by 0
-			final double tv = (targetCurrentHeight > 1) ? ((double)(v * intervals) / (double)(targetCurrentHeight - 1) + 1.0F) : 1.0F;
-
-			for (int u = 0; u<targetCurrentWidth; u++)
-			{
-				//prevent NaN result from divide by 0
-				final double tu = (targetCurrentWidth > 1) ? ((double)(u * intervals) / (double)(targetCurrentWidth - 1) + 1.0F) : 1.0F;
-
-				swx_direct.prepareForInterpolation(tu, tv, false);
-				transformation_x_direct[v][u] = swx_direct.interpolateI();
-
-				swy_direct.prepareForInterpolation(tu, tv, false);
-				transformation_y_direct[v][u] = swy_direct.interpolateI();
-			}
-		}
-
+		// The direct transformation mapping is evaluated on demand
+		final DeformationField direct = new DeformationField(intervals,
+				cx_direct, cy_direct, targetCurrentWidth, targetCurrentHeight);
 
 		// Compute the geometric error between both transformations
 		double warpingIndex = 0;
@@ -1349,8 +1303,8 @@ public class MiscTools
 			for (int u=0; u<targetCurrentWidth; u++)
 			{
 				// Calculate the mapping through the elastic deformation
-				final double x_elastic = transformation_x_direct[v][u];
-				final double y_elastic = transformation_y_direct[v][u];
+				final double x_elastic = direct.getX(v, u);
+				final double y_elastic = direct.getY(v, u);
 
 				if (x_elastic>=0 && x_elastic<sourceCurrentWidth && y_elastic>=0 && y_elastic<sourceCurrentHeight)
 				{
@@ -1402,6 +1356,62 @@ public class MiscTools
 			IJ.error("Error in the raw warping index parameters!");
 			return -1;
 		}
+		return rawWarpingIndex(sourceImp, targetImp, transformation_x_1, transformation_y_1, null,
+				transformation_x_2, transformation_y_2, null);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warping index for comparing two memory-mapped raw deformations (both
+	 * transformations having same direction).
+	 *
+	 * @param sourceImp source image representation
+	 * @param targetImp target image representation
+	 * @param transformation_1 first mapped raw transformation
+	 * @param transformation_2 second mapped raw transformation
+	 */
+	public static double rawWarpingIndex(
+			ImagePlus sourceImp,
+			ImagePlus targetImp,
+			MappedRawTransformation transformation_1,
+			MappedRawTransformation transformation_2)
+	{
+		if(transformation_1 == null || transformation_2 == null)
+		{
+			IJ.error("Error in the raw warping index parameters!");
+			return -1;
+		}
+		if (!transformation_1.checkSize(targetImp.getWidth(), targetImp.getHeight())
+				|| !transformation_2.checkSize(targetImp.getWidth(), targetImp.getHeight()))
+			return -1;
+		return rawWarpingIndex(sourceImp, targetImp, null, null, transformation_1,
+				null, null, transformation_2);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Warping index for comparing two raw deformations given as arrays
+	 * or as mapped files.
+	 *
+	 * @param sourceImp source image representation
+	 * @param targetImp target image representation
+	 * @param transformation_x_1 raw first transformation in x- axis (if not mapped)
+	 * @param transformation_y_1 raw first transformation in y- axis (if not mapped)
+	 * @param mapped_1 first mapped raw transformation (null to use the arrays)
+	 * @param transformation_x_2 raw second transformation in x- axis (if not mapped)
+	 * @param transformation_y_2 raw second transformation in y- axis (if not mapped)
+	 * @param mapped_2 second mapped raw transformation (null to use the arrays)
+	 */
+	private static double rawWarpingIndex(
+			ImagePlus sourceImp,
+			ImagePlus targetImp,
+			double [][] transformation_x_1,
+			double [][] transformation_y_1,
+			MappedRawTransformation mapped_1,
+			double [][] transformation_x_2,
+			double [][] transformation_y_2,
+			MappedRawTransformation mapped_2)
+	{
 
 		// Ask for memory for the transformation
 		int targetCurrentHeight = targetImp.getProcessor().getHeight();
@@ -1412,17 +1422,26 @@ public class MiscTools
 		// Compute the geometrical error between both transformations
 		double warpingIndex = 0;
 		int n = 0;
+		final double[] rowX1 = new double[targetCurrentWidth];
+		final double[] rowY1 = new double[targetCurrentWidth];
+		final double[] rowX2 = new double[targetCurrentWidth];
+		final double[] rowY2 = new double[targetCurrentWidth];
 		for (int v=0; v<targetCurrentHeight; v++)
+		{
+			final double[] tx1 = rawTransformationRow(transformation_x_1, mapped_1, true, v, rowX1);
+			final double[] ty1 = rawTransformationRow(transformation_y_1, mapped_1, false, v, rowY1);
+			final double[] tx2 = rawTransformationRow(transformation_x_2, mapped_2, true, v, rowX2);
+			final double[] ty2 = rawTransformationRow(transformation_y_2, mapped_2, false, v, rowY2);
 			for (int u=0; u<targetCurrentWidth; u++)
 			{
 				// Calculate the mapping through the elastic deformation
-				final double x1 = transformation_x_1[v][u];
-				final double y1 = transformation_y_1[v][u];
+				final double x1 = tx1[u];
+				final double y1 = ty1[u];
 
 				if (x1>=0 && x1<sourceCurrentWidth && y1>=0 && y1<sourceCurrentHeight)
 				{
-					double x2 = transformation_x_2[v][u];
-					double y2 = transformation_y_2[v][u];
+					double x2 = tx2[u];
+					double y2 = ty2[u];
 
 					double aux1 = x1 - x2;
 					double aux2 = y1 - y2;
@@ -1433,6 +1452,7 @@ public class MiscTools
 				}
 
 			}
+		}
 
 		if(n != 0)
 		{
@@ -1990,82 +2010,97 @@ public class MiscTools
 	public static void loadTransformation(String filename,
 			final double [][]cx, final double [][]cy)
 	{
-		try {
-			final FileReader fr = new FileReader(filename);
-			final BufferedReader br = new BufferedReader(fr);
+		if (isBinaryElasticTransformation(filename))
+		{
+			final double[][][] c = loadElasticTransformation(filename);
+			if (c == null)
+				return;
+			for (int i = 0; i < c[0].length; i++)
+			{
+				System.arraycopy(c[0][i], 0, cx[i], 0, c[0][i].length);
+				System.arraycopy(c[1][i], 0, cy[i], 0, c[1][i].length);
+			}
+			return;
+		}
+
+		readElasticTransformationText(filename, cx, cy);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Read an elastic transformation in text format in a single pass:
+	 * the number of intervals of the header and then the coefficients.
+	 *
+	 * @param filename transformation file name
+	 * @param cx x- B-spline coefficients (null to allocate them with the size in the file)
+	 * @param cy y- B-spline coefficients (null to allocate them with the size in the file)
+	 * @return {cx, cy} deformation coefficients, or null if the file cannot be read
+	 */
+	private static double[][][] readElasticTransformationText(String filename,
+			double [][]cx, double [][]cy)
+	{
+		try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
 			String line;
 
 			// Read number of intervals
 			line = br.readLine();
 			int lineN = 1;
-			StringTokenizer st = new StringTokenizer(line,"=");
+			StringTokenizer st = new StringTokenizer(line == null ? "" : line, "=");
 			if (st.countTokens()!=2)
 			{
-				br.close();
-				fr.close();
 				IJ.log("Line "+lineN+"+: Cannot read number of intervals");
-				return;
+				return null;
 			}
 			st.nextToken();
-			int intervals=Integer.valueOf(st.nextToken()).intValue();
-
-			// Skip next 2 lines
-			line = br.readLine();
-			line = br.readLine();
-			lineN+=2;
-
-			// Read the cx coefficients
-			for (int i= 0; i<intervals+3; i++)
+			int intervals=Integer.valueOf(st.nextToken().trim()).intValue();
+			if (intervals < 1)
 			{
-				line = br.readLine(); lineN++;
-				st=new StringTokenizer(line);
-				if (st.countTokens()!=intervals+3)
-				{
-					br.close();
-					fr.close();
-					IJ.log("Line "+lineN+": Cannot read enough coefficients");
-					return;
-				}
-				for (int j=0; j<intervals+3; j++)
-					cx[i][j]=Double.valueOf(st.nextToken()).doubleValue();
+				IJ.log("Line "+lineN+"+: Wrong number of intervals (" + intervals + ")");
+				return null;
+			}
+			if (cx == null || cy == null)
+			{
+				cx = new double[intervals + 3][intervals + 3];
+				cy = new double[intervals + 3][intervals + 3];
 			}
 
-			// Skip next 2 lines
-			line = br.readLine();
-			line = br.readLine();
-			lineN+=2;
-
-			// Read the cy coefficients
-			for (int i= 0; i<intervals+3; i++)
+			for (double[][] c : new double[][][] {cx, cy})
 			{
-				line = br.readLine(); lineN++;
-				st = new StringTokenizer(line);
-				if (st.countTokens()!=intervals+3)
+				// Skip next 2 lines
+				line = br.readLine();
+				line = br.readLine();
+				lineN+=2;
+
+				// Read the coefficients
+				for (int i= 0; i<intervals+3; i++)
 				{
-					br.close();
-					fr.close();
-					IJ.log("Line "+lineN+": Cannot read enough coefficients");
-					return;
+					line = br.readLine(); lineN++;
+					st = new StringTokenizer(line == null ? "" : line);
+					if (st.countTokens()!=intervals+3)
+					{
+						IJ.log("Line "+lineN+": Cannot read enough coefficients");
+						return null;
+					}
+					for (int j=0; j<intervals+3; j++)
+						c[i][j]=Double.valueOf(st.nextToken()).doubleValue();
 				}
-				for (int j=0; j<intervals+3; j++)
-					cy[i][j]=Double.valueOf(st.nextToken()).doubleValue();
 			}
-			fr.close();
+			return new double[][][] {cx, cy};
 		} catch (FileNotFoundException e) {
 			IJ.error("File not found exception" + e);
-			return;
+			return null;
 		} catch (IOException e) {
 			IJ.error("IOException exception" + e);
-			return;
+			return null;
 		} catch (NumberFormatException e) {
 			IJ.error("Number format exception" + e);
-			return;
+			return null;
 		}
 	}
 
 	//------------------------------------------------------------------
 	/**
-	 * Load a raw transformation from a file.
+	 * Load a raw transformation from a file (text, binary or compressed format).
 	 *
 	 * @param filename transformation file name
 	 * @param transformation_x output x- transformation coordinates
@@ -2073,6 +2108,70 @@ public class MiscTools
 	 */
 	static public void loadRawTransformation(String filename,
 			double [][]transformation_x, double [][]transformation_y)
+	{
+		if (MappedRawTransformation.isBinary(filename))
+		{
+			final MappedRawTransformation mapped = (transformation_x.length > 0)
+					? MappedRawTransformation.open(filename, transformation_x[0].length, transformation_x.length)
+					: MappedRawTransformation.open(filename);
+			if (mapped != null)
+				mapped.toArrays(transformation_x, transformation_y);
+			return;
+		}
+		if (CompressedRawTransformation.isCompressed(filename))
+		{
+			CompressedRawTransformation.load(filename, transformation_x, transformation_y);
+			return;
+		}
+
+		// Text format
+		RawTransformationParser.parse(filename, transformation_x, transformation_y, true);
+	} // end method loadRawTransformation
+	
+	//------------------------------------------------------------------
+	/**
+	 * Load a raw transformation from a file (text, binary or compressed format).
+	 *
+	 * @param filename transformation file name
+	 * @param transformation_x output x- transformation coordinates
+	 * @param transformation_y output y- transformation coordinates
+	 */
+	static public void loadRawTransformation(String filename,
+			double []transformation_x, double []transformation_y)
+	{
+		if (MappedRawTransformation.isBinary(filename))
+		{
+			final MappedRawTransformation mapped = MappedRawTransformation.open(filename);
+			if (mapped == null)
+				return;
+			if ((long) mapped.getWidth() * mapped.getHeight() != transformation_x.length)
+			{
+				IJ.error("Raw transformation size (" + mapped.getWidth() + "x" + mapped.getHeight()
+						+ ") does not match the output arrays (" + transformation_x.length + " values)");
+				return;
+			}
+			mapped.toArrays(transformation_x, transformation_y);
+			return;
+		}
+		if (CompressedRawTransformation.isCompressed(filename))
+		{
+			CompressedRawTransformation.load(filename, transformation_x, transformation_y);
+			return;
+		}
+
+		// Text format
+		RawTransformationParser.parse(filename, transformation_x, transformation_y, true);
+	} // end method loadRawTransformation
+
+	//------------------------------------------------------------------
+	/**
+	 * Load an affine matrix from a file.
+	 *
+	 * @param filename matrix file name
+	 * @param affineMatrix output affine matrix
+	 */
+	static public void loadAffineMatrix(String filename,
+			double [][]affineMatrix)
 	{
 		try
 		{
@@ -2082,71 +2181,21 @@ public class MiscTools
 
 			// Read width
 			line = br.readLine();
-			int lineN = 1;
-			StringTokenizer st = new StringTokenizer(line,"=");
-			if (st.countTokens() != 2)
-			{
-				fr.close();
-				IJ.log("Line "+lineN+"+: Cannot read transformation width");
-				return;
-			}
-			st.nextToken();
-			int width = Integer.valueOf(st.nextToken()).intValue();
-
-			// Read height
-			line = br.readLine();
-			lineN ++;
-			st = new StringTokenizer(line,"=");
-			if (st.countTokens() != 2)
+			StringTokenizer st = new StringTokenizer(line," ");
+			if (st.countTokens() != 6)
 			{
 				fr.close();
-				IJ.log("Line " + lineN + "+: Cannot read transformation height");
+				IJ.log("Cannot read affine transformation matrix");
 				return;
 			}
-			st.nextToken();
-			int height = Integer.valueOf(st.nextToken()).intValue();
-
-			// Skip next 2 lines
-			line = br.readLine();
-			line = br.readLine();
-			lineN+=2;
-
-			// Read the X transformation coordinates
-			for (int i= 0; i < height; i++)
-			{
-				line = br.readLine(); lineN++;
-				st = new StringTokenizer(line);
-				if (st.countTokens() != width)
-				{
-					br.close();
-					fr.close();
-					IJ.log("Line "+lineN+": Cannot read enough coordinates");
-					return;
-				}
-				for (int j = 0; j < width; j++)
-					transformation_x[i][j]  = Double.valueOf(st.nextToken()).doubleValue();
-			}
 
-			// Skip next 2 lines
-			line = br.readLine();
-			line = br.readLine();
-			lineN+=2;
+			affineMatrix[0][0] = Double.valueOf(st.nextToken()).doubleValue();
+			affineMatrix[0][1] = Double.valueOf(st.nextToken()).doubleValue();
+			affineMatrix[1][0] = Double.valueOf(st.nextToken()).doubleValue();
+			affineMatrix[1][1] = Double.valueOf(st.nextToken()).doubleValue();
+			affineMatrix[0][2] = Double.valueOf(st.nextToken()).doubleValue();
+			affineMatrix[1][2] = Double.valueOf(st.nextToken()).doubleValue();
 
-			// Read the Y transformation coordinates
-			for (int i= 0; i < height; i++)
-			{
-				line = br.readLine(); lineN++;
-				st = new StringTokenizer(line);
-				if (st.countTokens() != width)
-				{
-					br.close();
-					fr.close();
-					IJ.log("Line "+lineN+": Cannot read enough coordinates");
-					return;
-				}
-				for (int j = 0; j < width; j++)
-					transformation_y[i][j]  = Double.valueOf(st.nextToken()).doubleValue();
-			}
 			fr.close();
 		}
 		catch (FileNotFoundException e)
@@ -2164,167 +2213,12 @@ public class MiscTools
 			IJ.error("Number format exception" + e);
 			return;
 		}
-	} // end method loadRawTransformation
-	
+	}    /* end loadAffineMatrix */
+
+
 	//------------------------------------------------------------------
 	/**
-	 * Load a raw transformation from a file.
-	 *
-	 * @param filename transformation file name
-	 * @param transformation_x output x- transformation coordinates
-	 * @param transformation_y output y- transformation coordinates
-	 */
-	static public void loadRawTransformation(String filename,
-			double []transformation_x, double []transformation_y)
-	{
-		try
-		{
-			final FileReader fr = new FileReader(filename);
-			final BufferedReader br = new BufferedReader(fr);
-			String line;
-
-			// Read width
-			line = br.readLine();
-			int lineN = 1;
-			StringTokenizer st = new StringTokenizer(line,"=");
-			if (st.countTokens() != 2)
-			{
-				fr.close();
-				IJ.log("Line "+lineN+"+: Cannot read transformation width");
-				return;
-			}
-			st.nextToken();
-			int width = Integer.valueOf(st.nextToken()).intValue();
-
-			// Read height
-			line = br.readLine();
-			lineN ++;
-			st = new StringTokenizer(line,"=");
-			if (st.countTokens() != 2)
-			{
-				fr.close();
-				IJ.log("Line " + lineN + "+: Cannot read transformation height");
-				return;
-			}
-			st.nextToken();
-			int height = Integer.valueOf(st.nextToken()).intValue();
-
-			// Skip next 2 lines
-			line = br.readLine();
-			line = br.readLine();
-			lineN+=2;
-
-			// Read the X transformation coordinates
-			for (int i= 0; i < height; i++)
-			{
-				line = br.readLine(); lineN++;
-				st = new StringTokenizer(line);
-				if (st.countTokens() != width)
-				{
-					br.close();
-					fr.close();
-					IJ.log("Line "+lineN+": Cannot read enough coordinates");
-					return;
-				}
-				for (int j = 0; j < width; j++)
-					transformation_x[j + i * width]  = Double.valueOf(st.nextToken()).doubleValue();
-			}
-
-			// Skip next 2 lines
-			line = br.readLine();
-			line = br.readLine();
-			lineN+=2;
-
-			// Read the Y transformation coordinates
-			for (int i= 0; i < height; i++)
-			{
-				line = br.readLine(); lineN++;
-				st = new StringTokenizer(line);
-				if (st.countTokens() != width)
-				{
-					br.close();
-					fr.close();
-					IJ.log("Line "+lineN+": Cannot read enough coordinates");
-					return;
-				}
-				for (int j = 0; j < width; j++)
-					transformation_y[j + i * width] = Double.valueOf(st.nextToken()).doubleValue();
-			}
-			fr.close();
-		}
-		catch (FileNotFoundException e)
-		{
-			IJ.error("File not found exception" + e);
-			return;
-		}
-		catch (IOException e)
-		{
-			IJ.error("IOException exception" + e);
-			return;
-		}
-		catch (NumberFormatException e)
-		{
-			IJ.error("Number format exception" + e);
-			return;
-		}
-	} // end method loadRawTransformation
-
-	//------------------------------------------------------------------
-	/**
-	 * Load an affine matrix from a file.
-	 *
-	 * @param filename matrix file name
-	 * @param affineMatrix output affine matrix
-	 */
-	static public void loadAffineMatrix(String filename,
-			double [][]affineMatrix)
-	{
-		try
-		{
-			final FileReader fr = new FileReader(filename);
-			final BufferedReader br = new BufferedReader(fr);
-			String line;
-
-			// Read width
-			line = br.readLine();
-			StringTokenizer st = new StringTokenizer(line," ");
-			if (st.countTokens() != 6)
-			{
-				fr.close();
-				IJ.log("Cannot read affine transformation matrix");
-				return;
-			}
-
-			affineMatrix[0][0] = Double.valueOf(st.nextToken()).doubleValue();
-			affineMatrix[0][1] = Double.valueOf(st.nextToken()).doubleValue();
-			affineMatrix[1][0] = Double.valueOf(st.nextToken()).doubleValue();
-			affineMatrix[1][1] = Double.valueOf(st.nextToken()).doubleValue();
-			affineMatrix[0][2] = Double.valueOf(st.nextToken()).doubleValue();
-			affineMatrix[1][2] = Double.valueOf(st.nextToken()).doubleValue();
-
-			fr.close();
-		}
-		catch (FileNotFoundException e)
-		{
-			IJ.error("File not found exception" + e);
-			return;
-		}
-		catch (IOException e)
-		{
-			IJ.error("IOException exception" + e);
-			return;
-		}
-		catch (NumberFormatException e)
-		{
-			IJ.error("Number format exception" + e);
-			return;
-		}
-	}    /* end loadAffineMatrix */
-
-
-	//------------------------------------------------------------------
-	/**
-	 * Compose two elastic deformations into a raw deformation.
+	 * Compose two elastic deformations into a raw deformation.
 	 *
 	 * @param targetImp target image representation
 	 * @param intervals intervals in the deformation
@@ -2564,99 +2458,59 @@ public class MiscTools
 			double [][] outputTransformation_x,
 			double [][] outputTransformation_y)
 	{
-		// Ask for memory for the transformation
 		int targetCurrentHeight = targetImp.getProcessor().getHeight();
 		int targetCurrentWidth  = targetImp.getProcessor().getWidth ();
 
-		double [][] transformation_x_1 = new double [targetCurrentHeight][targetCurrentWidth];
-		double [][] transformation_y_1 = new double [targetCurrentHeight][targetCurrentWidth];
+		// Both mappings are evaluated on demand, tile by tile
+		final DeformationField field1 = new DeformationField(intervals, cx1, cy1,
+				targetCurrentWidth, targetCurrentHeight);
+		final DeformationField field2 = new DeformationField(intervals, cx2, cy2,
+				targetCurrentWidth, targetCurrentHeight);
 
-		double [][] transformation_x_2 = new double [targetCurrentHeight][targetCurrentWidth];
-		double [][] transformation_y_2 = new double [targetCurrentHeight][targetCurrentWidth];
-
-		int cYdim = intervals+3;
-		int cXdim = cYdim;
-		int Nk = cYdim * cXdim;
-		int twiceNk = 2 * Nk;
-
-		// We pass the coefficients to a one-dimension array
-		// Direct coefficients.
-		double c1[] = new double[twiceNk];
-		for(int n = 0, i = 0; i < cYdim; i++)
-			for(int j = 0; j < cYdim; j++, n++)
-			{
-				c1[n     ] = cx1[i][j];
-				c1[n + Nk] = cy1[i][j];
-			}
-
-		// Compute the deformation
-		// Set these coefficients to an interpolator
-		BSplineModel swx1 = new BSplineModel(c1, cYdim, cXdim, 0);
-		BSplineModel swy1 = new BSplineModel(c1, cYdim, cXdim, Nk);
-
-		// Inverse coefficients.
-		double c2[] = new double[twiceNk];
-		for(int n = 0, i = 0; i < cYdim; i++)
-			for(int j = 0; j < cYdim; j++, n++)
+		// Compose them (bilinear interpolation). Notice here that we apply
+		// first the second transformation since we are actually filling
+		// the target image with pixels of the source image.
+		for (int i = 0; i < targetCurrentHeight; i++)
+		{
+			// Second transformation.
+			field2.getRow(i, outputTransformation_x[i], outputTransformation_y[i]);
+			for (int j = 0; j < targetCurrentWidth; j++)
 			{
-				c2[n     ] = cx2[i][j];
-				c2[n + Nk] = cy2[i][j];
-			}
-
-		BSplineModel swx2 = new BSplineModel(c2, cYdim, cXdim, 0);
-		BSplineModel swy2 = new BSplineModel(c2, cYdim, cXdim, Nk);
-
+				final double dX = outputTransformation_x[i][j];
+				final double dY = outputTransformation_y[i][j];
+				final int xbase = (int) dX;
+				final int ybase = (int) dY;
+				final double xFraction = dX - xbase;
+				final double yFraction = dY - ybase;
 
-		swx1.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-		swy1.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-
-		swx2.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-		swy2.precomputed_prepareForInterpolation(
-				targetCurrentHeight, targetCurrentWidth, intervals);
-
-		// Compute the first transformation mapping
-		for (int v=0; v<targetCurrentHeight; v++)
-		{
-			//prevent NaN result from divide by 0
-			final double tv = (targetCurrentHeight > 1) ? ((double)(v * intervals) / (double)(targetCurrentHeight - 1) + 1.0F) : 1.0F;
+				// First transformation.
+				if(dX >= 0 && dX < targetCurrentWidth && dY >= 0 && dY < targetCurrentHeight)
+				{
+					final int xp1 = (xbase < (targetCurrentWidth -1)) ? xbase+1 : xbase;
+					final int yp1 = (ybase < (targetCurrentHeight-1)) ? ybase+1 : ybase;
 
-			for (int u = 0; u<targetCurrentWidth; u++)
-			{
-				//prevent NaN result from divide by 0
-				final double tu = (targetCurrentWidth > 1) ? ((double)(u * intervals) / (double)(targetCurrentWidth - 1) + 1.0F) : 1.0F;
+					final double lowerLeftX = field1.getX(ybase, xbase);
+					final double lowerLeftY = field1.getY(ybase, xbase);
 
-				swx1.prepareForInterpolation(tu, tv, false);
-				transformation_x_1[v][u] = swx1.interpolateI();
+					final double lowerRightX = field1.getX(ybase, xp1);
+					final double lowerRightY = field1.getY(ybase, xp1);
 
-				swy1.prepareForInterpolation(tu, tv, false);
-				transformation_y_1[v][u] = swy1.interpolateI();
-			}
-		}
+					final double upperRightX = field1.getX(yp1, xp1);
+					final double upperRightY = field1.getY(yp1, xp1);
 
-		// Compute the second transformation mapping
-		for (int v=0; v<targetCurrentHeight; v++)
-		{
-			//prevent NaN result from divide by 0
-			final double tv = (targetCurrentHeight > 1) ? ((double)(v * intervals) / (double)(targetCurrentHeight - 1) + 1.0F) : 1.0F;
-			for (int u = 0; u<targetCurrentWidth; u++)
-			{
-				//prevent NaN result from divide by 0
-				final double tu = (targetCurrentWidth > 1) ? ((double)(u * intervals) / (double)(targetCurrentWidth - 1) + 1.0F) : 1.0F;
+					final double upperLeftX = field1.getX(yp1, xbase);
+					final double upperLeftY = field1.getY(yp1, xbase);
 
-				swx2.prepareForInterpolation(tu, tv, false);
-				transformation_x_2[v][u] = swx2.interpolateI();
+					final double upperAverageX = upperLeftX + xFraction * (upperRightX - upperLeftX);
+					final double upperAverageY = upperLeftY + xFraction * (upperRightY - upperLeftY);
+					final double lowerAverageX = lowerLeftX + xFraction * (lowerRightX - lowerLeftX);
+					final double lowerAverageY = lowerLeftY + xFraction * (lowerRightY - lowerLeftY);
 
-				swy2.prepareForInterpolation(tu, tv, false);
-				transformation_y_2[v][u] = swy2.interpolateI();
+					outputTransformation_x[i][j] = lowerAverageX + yFraction * (upperAverageX - lowerAverageX);
+					outputTransformation_y[i][j] = lowerAverageY + yFraction * (upperAverageY - lowerAverageY);
+				}
 			}
 		}
-
-		MiscTools.composeRawTransformations(targetCurrentWidth, targetCurrentHeight,
-				transformation_x_1, transformation_y_1, transformation_x_2, transformation_y_2,
-				outputTransformation_x, outputTransformation_y);
 	}
 	/**
 	 * Compose raw transforms into another raw transform and save to file.
@@ -2671,6 +2525,29 @@ public class MiscTools
 			String outputTransfPath,
 			ImagePlus targetImp )
 	{
+		double [][] outputTransformation_x =
+				new double[ targetImp.getHeight()][ targetImp.getWidth() ];
+		double [][] outputTransformation_y =
+				new double[ targetImp.getHeight()][ targetImp.getWidth() ];
+
+		// Binary transformations are composed directly from the mapped files
+		if (MappedRawTransformation.isBinary(transfPath1) && MappedRawTransformation.isBinary(transfPath2))
+		{
+			final MappedRawTransformation mapped1 = MappedRawTransformation.open(transfPath1,
+					targetImp.getWidth(), targetImp.getHeight());
+			final MappedRawTransformation mapped2 = MappedRawTransformation.open(transfPath2,
+					targetImp.getWidth(), targetImp.getHeight());
+			if (mapped1 == null || mapped2 == null)
+				return;
+			MiscTools.composeRawTransformations( targetImp.getWidth(),
+					targetImp.getHeight(), mapped1, mapped2, outputTransformation_x,
+					outputTransformation_y );
+			MiscTools.saveRawTransformation(outputTransfPath, targetImp.getWidth(),
+					targetImp.getHeight(), outputTransformation_x,
+					outputTransformation_y );
+			return;
+		}
+
 		// We load the first transformation raw file.
 		double[][] transformation_x_1 =
 				new double[ targetImp.getHeight() ][ targetImp.getWidth() ];
@@ -2687,11 +2564,6 @@ public class MiscTools
 		MiscTools.loadRawTransformation( transfPath2, transformation_x_2,
 				transformation_y_2 );
 
-		double [][] outputTransformation_x =
-				new double[ targetImp.getHeight()][ targetImp.getWidth() ];
-		double [][] outputTransformation_y =
-				new double[ targetImp.getHeight()][ targetImp.getWidth() ];
-
 		// Now we compose them and get as result a raw transformation mapping.
 		MiscTools.composeRawTransformations( targetImp.getWidth(),
 				targetImp.getHeight(), transformation_x_1, transformation_y_1,
@@ -2767,15 +2639,79 @@ public class MiscTools
 			double [][]  outputTransformation_x,
 			double [][]  outputTransformation_y)
 	{
+		composeRawTransformations(width, height, transformation_x_1, transformation_y_1, null,
+				transformation_x_2, transformation_y_2, null, outputTransformation_x, outputTransformation_y);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Compose two memory-mapped raw transformations (Bilinear interpolation)
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param transformation_1 first mapped raw transformation
+	 * @param transformation_2 second mapped raw transformation
+	 * @param outputTransformation_x output transformation coordinates in y-axis
+	 * @param outputTransformation_y output transformation coordinates in y-axis
+	 */
+	public static void composeRawTransformations(
+			int          width,
+			int          height,
+			MappedRawTransformation transformation_1,
+			MappedRawTransformation transformation_2,
+			double [][]  outputTransformation_x,
+			double [][]  outputTransformation_y)
+	{
+		if (transformation_1 == null || transformation_2 == null
+				|| !transformation_1.checkSize(width, height) || !transformation_2.checkSize(width, height))
+			return;
+		composeRawTransformations(width, height, null, null, transformation_1,
+				null, null, transformation_2, outputTransformation_x, outputTransformation_y);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Compose two raw transformations given as arrays or as mapped files
+	 * (Bilinear interpolation)
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param transformation_x_1 first transformation coordinates in x-axis (if not mapped)
+	 * @param transformation_y_1 first transformation coordinates in y-axis (if not mapped)
+	 * @param mapped_1 first mapped raw transformation (null to use the arrays)
+	 * @param transformation_x_2 second transformation coordinates in x-axis (if not mapped)
+	 * @param transformation_y_2 second transformation coordinates in y-axis (if not mapped)
+	 * @param mapped_2 second mapped raw transformation (null to use the arrays)
+	 * @param outputTransformation_x output transformation coordinates in y-axis
+	 * @param outputTransformation_y output transformation coordinates in y-axis
+	 */
+	private static void composeRawTransformations(
+			int          width,
+			int          height,
+			double [][]  transformation_x_1,
+			double [][]  transformation_y_1,
+			MappedRawTransformation mapped_1,
+			double [][]  transformation_x_2,
+			double [][]  transformation_y_2,
+			MappedRawTransformation mapped_2,
+			double [][]  outputTransformation_x,
+			double [][]  outputTransformation_y)
+	{
+		final double[] rowX2 = new double[width];
+		final double[] rowY2 = new double[width];
+
 		// Notice here that we apply first the second transformation
 		// since we are actually filling the target image with
 		// pixels of the source image.
 		for (int i= 0; i < height; i++)
+		{
+			final double[] tx2 = rawTransformationRow(transformation_x_2, mapped_2, true, i, rowX2);
+			final double[] ty2 = rawTransformationRow(transformation_y_2, mapped_2, false, i, rowY2);
 			for (int j = 0; j < width; j++)
 			{
 				// Second transformation.
-				double dX = transformation_x_2[i][j];
-				double dY = transformation_y_2[i][j];
+				double dX = tx2[j];
+				double dY = ty2[j];
 				int xbase = (int) dX;
 				int ybase = (int) dY;
 				double xFraction = dX - xbase;
@@ -2784,20 +2720,20 @@ public class MiscTools
 				// First transformation.
 				if(dX >= 0 && dX < width && dY >= 0 && dY < height)
 				{
-					double lowerLeftX = transformation_x_1[ybase][xbase];
-					double lowerLeftY = transformation_y_1[ybase][xbase];
+					double lowerLeftX = rawTransformationValue(transformation_x_1, mapped_1, true, ybase, xbase);
+					double lowerLeftY = rawTransformationValue(transformation_y_1, mapped_1, false, ybase, xbase);
 
 					int xp1 = (xbase < (width -1)) ? xbase+1 : xbase;
 					int yp1 = (ybase < (height-1)) ? ybase+1 : ybase;
 
-					double lowerRightX = transformation_x_1[ybase][xp1];
-					double lowerRightY = transformation_y_1[ybase][xp1];
+					double lowerRightX = rawTransformationValue(transformation_x_1, mapped_1, true, ybase, xp1);
+					double lowerRightY = rawTransformationValue(transformation_y_1, mapped_1, false, ybase, xp1);
 
-					double upperRightX = transformation_x_1[yp1][xp1];
-					double upperRightY = transformation_y_1[yp1][xp1];
+					double upperRightX = rawTransformationValue(transformation_x_1, mapped_1, true, yp1, xp1);
+					double upperRightY = rawTransformationValue(transformation_y_1, mapped_1, false, yp1, xp1);
 
-					double upperLeftX = transformation_x_1[yp1][xbase];
-					double upperLeftY = transformation_y_1[yp1][xbase];
+					double upperLeftX = rawTransformationValue(transformation_x_1, mapped_1, true, yp1, xbase);
+					double upperLeftY = rawTransformationValue(transformation_y_1, mapped_1, false, yp1, xbase);
 
 					double upperAverageX = upperLeftX + xFraction * (upperRightX - upperLeftX);
 					double upperAverageY = upperLeftY + xFraction * (upperRightY - upperLeftY);
@@ -2813,11 +2749,13 @@ public class MiscTools
 					outputTransformation_y[i][j] = dY;
 				}
 			}
+		}
 	}
 
 	//------------------------------------------------------------------
 	/**
-	 * Save the elastic transformation.
+	 * Save the elastic transformation (in binary format if the file name
+	 * ends with {@link #ELASTIC_BINARY_EXTENSION}, in text format otherwise).
 	 *
 	 * @param intervals number of intervals in the deformation
 	 * @param cx x- deformation coefficients
@@ -2830,6 +2768,12 @@ public class MiscTools
 			double [][]cy,
 			String filename)
 	{
+		// Files with binary extension are saved in binary format
+		if (filename.toLowerCase(Locale.ROOT).endsWith(ELASTIC_BINARY_EXTENSION))
+		{
+			saveElasticTransformationBinary(intervals, cx, cy, filename);
+			return;
+		}
 
 		// Save the file
 		try {
@@ -2871,7 +2815,150 @@ public class MiscTools
 
 	//------------------------------------------------------------------
 	/**
-	 * Save a raw transformation
+	 * Save the elastic transformation in binary format: the magic bytes
+	 * "BUJE", the format version and the number of intervals (little-endian
+	 * ints), followed by the x- and then the y- coefficients, row by row, as
+	 * little-endian doubles. The loaders of elastic transformations detect
+	 * this format automatically.
+	 *
+	 * @param intervals number of intervals in the deformation
+	 * @param cx x- deformation coefficients
+	 * @param cy y- deformation coefficients
+	 * @param filename transformation file name
+	 */
+	public static void saveElasticTransformationBinary(
+			int intervals,
+			double [][]cx,
+			double [][]cy,
+			String filename)
+	{
+		final int n = intervals + 3;
+		final ByteBuffer buffer = ByteBuffer.allocate(ELASTIC_BINARY_HEADER + 2 * n * n * 8)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(ELASTIC_BINARY_MAGIC).putInt(ELASTIC_BINARY_VERSION).putInt(intervals);
+		final DoubleBuffer coefficients = buffer.asDoubleBuffer();
+		for (int i = 0; i < n; i++)
+			coefficients.put(cx[i], 0, n);
+		for (int i = 0; i < n; i++)
+			coefficients.put(cy[i], 0, n);
+		buffer.rewind();
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} catch (IOException e) {
+			IJ.error("IOException exception" + e);
+		} catch (SecurityException e) {
+			IJ.error("Security exception" + e);
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Load an elastic transformation in text or binary format, allocating
+	 * the coefficient arrays with the size stored in the file.
+	 *
+	 * @param filename transformation file name
+	 * @return {cx, cy} deformation coefficients, each (intervals+3)x(intervals+3),
+	 *         or null if the file cannot be read
+	 */
+	public static double[][][] loadElasticTransformation(String filename)
+	{
+		// Text format: header and coefficients are parsed with the same reader
+		if (!isBinaryElasticTransformation(filename))
+			return readElasticTransformationText(filename, null, null);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			final ByteBuffer header = readElasticBinaryHeader(channel, filename);
+			if (header == null)
+				return null;
+			final int n = header.getInt(8) + 3;
+
+			// The header was checked against the file size before allocating
+			final ByteBuffer buffer = ByteBuffer.allocate(2 * n * n * 8).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) < 0)
+				{
+					IJ.log("Binary elastic transformation " + filename + " is truncated");
+					return null;
+				}
+			buffer.rewind();
+
+			final DoubleBuffer coefficients = buffer.asDoubleBuffer();
+			final double[][] cx = new double[n][n];
+			final double[][] cy = new double[n][n];
+			for (int i = 0; i < n; i++)
+				coefficients.get(cx[i]);
+			for (int i = 0; i < n; i++)
+				coefficients.get(cy[i]);
+			return new double[][][] {cx, cy};
+		} catch (IOException e) {
+			IJ.error("IOException exception" + e);
+			return null;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check if a file holds an elastic transformation in binary format.
+	 *
+	 * @param filename transformation file name
+	 * @return true if the file starts with the binary magic bytes
+	 */
+	public static boolean isBinaryElasticTransformation(String filename)
+	{
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+			if (file.length() < ELASTIC_BINARY_HEADER)
+				return false;
+			final byte[] magic = new byte[ELASTIC_BINARY_MAGIC.length];
+			file.readFully(magic);
+			return Arrays.equals(magic, ELASTIC_BINARY_MAGIC);
+		} catch (IOException e) {
+			// Let the text loaders report the error
+			return false;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Read and check the header of a binary elastic transformation.
+	 *
+	 * @param channel channel positioned at the beginning of the file
+	 * @param filename transformation file name (for the error messages)
+	 * @return header (little-endian), or null if the header is not valid
+	 * @throws IOException if the file cannot be read
+	 */
+	private static ByteBuffer readElasticBinaryHeader(FileChannel channel, String filename) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate(ELASTIC_BINARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining())
+			if (channel.read(header) < 0)
+				break;
+		if (header.hasRemaining() || header.getInt(4) != ELASTIC_BINARY_VERSION || header.getInt(8) < 0)
+		{
+			IJ.log("Unsupported binary elastic transformation " + filename);
+			return null;
+		}
+		// Check the number of intervals against the file size (a corrupt header
+		// would otherwise overflow the size of the coefficient buffer)
+		final long n = header.getInt(8) + 3L;
+		if (2 * n * n * 8 > Math.min(channel.size() - ELASTIC_BINARY_HEADER, Integer.MAX_VALUE))
+		{
+			IJ.log("Binary elastic transformation " + filename + " is truncated or has a wrong number of intervals ("
+					+ header.getInt(8) + ")");
+			return null;
+		}
+		return header;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Save a raw transformation (in memory-mappable binary format if the
+	 * file name ends with {@link #RAW_BINARY_EXTENSION}, in compressed
+	 * fixed-point format with {@link CompressedRawTransformation#DEFAULT_STEP}
+	 * if it ends with {@link #RAW_COMPRESSED_EXTENSION}, in text format
+	 * otherwise)
 	 *
 	 * @param filename raw transformation file name
 	 * @param width image width
@@ -2898,6 +2985,19 @@ public class MiscTools
 
 		}
 
+		// Files with binary extension are saved in binary format
+		if (filename.toLowerCase(Locale.ROOT).endsWith(RAW_BINARY_EXTENSION))
+		{
+			MappedRawTransformation.save(filename, width, height, transformation_x, transformation_y);
+			return;
+		}
+		if (filename.toLowerCase(Locale.ROOT).endsWith(RAW_COMPRESSED_EXTENSION))
+		{
+			CompressedRawTransformation.save(filename, width, height, transformation_x, transformation_y,
+					CompressedRawTransformation.Encoding.FIXED_POINT, CompressedRawTransformation.DEFAULT_STEP);
+			return;
+		}
+
 		// Save the file
 		try
 		{
@@ -2949,6 +3049,17 @@ public class MiscTools
 	 */
 	static public int numberOfIntervalsOfTransformation(String filename)
 	{
+		if (isBinaryElasticTransformation(filename))
+		{
+			try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+				final ByteBuffer header = readElasticBinaryHeader(channel, filename);
+				return header == null ? -1 : header.getInt(8);
+			} catch (IOException e) {
+				IJ.error("IOException exception" + e);
+				return -1;
+			}
+		}
+
 		try {
 			final FileReader fr = new FileReader(filename);
 			final BufferedReader br = new BufferedReader(fr);
@@ -3240,17 +3351,152 @@ public class MiscTools
 		final int targetHeight = targetImp.getProcessor().getHeight();
 		final int targetWidth  = targetImp.getProcessor().getWidth();
 
-		// Compute the warped image
-		/* GRAY SCALE IMAGES */
-		if(!(sourceImp.getProcessor() instanceof ColorProcessor))
+		// Compute the warped image
+		/* GRAY SCALE IMAGES */
+		if(!(sourceImp.getProcessor() instanceof ColorProcessor))
+		{
+			return applyTransformationCoefficientsGreyscale(source, intervals, cx, cy, targetWidth, targetHeight);
+		}
+		else /* COLOR IMAGES */
+		{        	
+			return applyTransformationCoefficientsColor(sourceImp, intervals, cx, cy, targetWidth, targetHeight);
+		}
+	} // end applyTransformationMT
+
+	/* --------------------------------------------------------------------*/
+	/**
+	 * Apply a given B-spline transformation's coefficients to the source image
+	 * with the given interpolation of the source. The result image is returned.
+	 * The target image is used to know the output size (Multi-thread version).
+	 * <p>
+	 * Nearest neighbor and bilinear interpolation read the source pixels
+	 * directly: the source B-spline coefficients are not computed and the
+	 * source model is not used (it can be null). They are meant for previews
+	 * and for label or mask images.
+	 *
+	 * @param sourceImp source image representation
+	 * @param targetImp target image representation
+	 * @param source source image model (only used for B-spline interpolation)
+	 * @param intervals intervals in the deformation
+	 * @param cx x- B-spline coefficients
+	 * @param cy y- B-spline coefficients
+	 * @param interpolation interpolation of the source image
+	 * 
+	 * @return result transformed image
+	 */
+	public static ImageProcessor applyTransformationMT(
+			ImagePlus sourceImp,
+			ImagePlus targetImp,
+			BSplineModel source,
+			int intervals,
+			double [][]cx,
+			double [][]cy,
+			Interpolation interpolation)
+	{
+		if (interpolation == Interpolation.BSPLINE)
+			return applyTransformationMT(sourceImp, targetImp, source, intervals, cx, cy);
+
+		return applyTransformationCoefficientsLowOrder(sourceImp.getProcessor(), intervals, cx, cy,
+				targetImp.getProcessor().getWidth(), targetImp.getProcessor().getHeight(), interpolation);
+	} // end applyTransformationMT
+
+	/* --------------------------------------------------------------------*/
+	/**
+	 * Apply a given B-spline transformation's coefficients to the input image
+	 * with nearest neighbor or bilinear interpolation of its pixels. Greyscale
+	 * images give a float processor, color images a color processor.
+	 * (Multi-thread version).
+	 *
+	 * @param ip source image
+	 * @param intervals intervals in the deformation
+	 * @param cx x- B-spline coefficients
+	 * @param cy y- B-spline coefficients
+	 * @param targetWidth width of the target image for which the transform was calculated
+	 * @param targetHeight height of the target image for which the transform was calculated
+	 * @param interpolation NEAREST_NEIGHBOR or BILINEAR
+	 *
+	 * @return result transformed image
+	 */
+	public static ImageProcessor applyTransformationCoefficientsLowOrder(ImageProcessor ip,
+																		 int intervals,
+																		 double [][]cx,
+																		 double [][]cy,
+																		 int targetWidth,
+																		 int targetHeight,
+																		 Interpolation interpolation) {
+
+		final Object event = RegistrationEvents.INSTANCE.beginTransform();
+
+		// Source pixels of each channel
+		final int nChannels = (ip instanceof ColorProcessor) ? 3 : 1;
+		final float[][] source = new float[nChannels][];
+		if (nChannels == 1)
+			source[0] = (float[]) ip.convertToFloatProcessor().getPixels();
+		else
+			for (int c = 0; c < nChannels; c++)
+				source[c] = (float[]) ((ColorProcessor) ip).toFloat(c, null).getPixels();
+
+		// Set these coefficients to an interpolator
+		BSplineModel swx = new BSplineModel(cx);
+		BSplineModel swy = new BSplineModel(cy);
+
+		final FloatProcessor[] fp = new FloatProcessor[nChannels];
+		for (int c = 0; c < nChannels; c++)
+			fp[c] = new FloatProcessor(targetWidth, targetHeight);
+
+		// Check the number of processors in the computer
+		final int nproc = Runtime.getRuntime().availableProcessors();
+
+		//split rows as evenly as possible between available threads - smallest possible block height is 1
+		int block_height = Math.max(targetHeight / nproc, 1);
+
+		// Use one thread for each block
+		final int nThreads = Math.min(nproc, targetHeight/block_height);
+
+		Thread[] threads  = new Thread[nThreads];
+
+		for (int i=0; i<nThreads; i++)
+		{
+			// last block size is the rest of the window
+			int y_start = i*block_height;
+
+			if (nThreads-1 == i)
+				block_height = targetHeight - i*block_height;
+
+			threads[i] = new Thread(new LowOrderApplyTransformTile(swx, swy, source,
+					ip.getWidth(), ip.getHeight(), targetWidth, targetHeight, intervals,
+					new Rectangle(0, y_start, targetWidth, block_height), fp,
+					interpolation == Interpolation.NEAREST_NEIGHBOR));
+			threads[i].start();
+		}
+
+		for (int i=0; i<nThreads; i++)
 		{
-			return applyTransformationCoefficientsGreyscale(source, intervals, cx, cy, targetWidth, targetHeight);
+			try {
+				threads[i].join();
+				threads[i] = null;
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
-		else /* COLOR IMAGES */
-		{        	
-			return applyTransformationCoefficientsColor(sourceImp, intervals, cx, cy, targetWidth, targetHeight);
+
+		final ImageProcessor result;
+		if (nChannels == 1)
+			result = fp[0];
+		else
+		{
+			ColorProcessor cp = new ColorProcessor(targetWidth, targetHeight);
+			for (int c = 0; c < nChannels; c++)
+				cp.setPixels(c, fp[c]);
+			result = cp;
 		}
-	} // end applyTransformationMT
+		result.resetMinAndMax();
+
+		RegistrationEvents.INSTANCE.endTransform(event,
+				interpolation == Interpolation.NEAREST_NEIGHBOR ? "elastic nearest" : "elastic bilinear",
+				intervals, targetWidth, targetHeight);
+		return result;
+	}
 
 	/* --------------------------------------------------------------------*/
 	/**
@@ -3273,6 +3519,8 @@ public class MiscTools
 																		  int targetWidth,
 																		  int targetHeight) {
 
+		final Object event = RegistrationEvents.INSTANCE.beginTransform();
+
 		// Set these coefficients to an interpolator
 		BSplineModel swx = new BSplineModel(cx);
 		BSplineModel swy = new BSplineModel(cy);
@@ -3336,6 +3584,7 @@ public class MiscTools
 			rects[i] = null;
 		}
 		fp.resetMinAndMax();
+		RegistrationEvents.INSTANCE.endTransform(event, "elastic greyscale", intervals, targetWidth, targetHeight);
 		return fp;
 
 	}
@@ -3361,31 +3610,15 @@ public class MiscTools
 																	  int targetWidth,
 																	  int targetHeight) {
 
+		final Object event = RegistrationEvents.INSTANCE.beginTransform();
+
 		// Set these coefficients to an interpolator
 		BSplineModel swx = new BSplineModel(cx);
 		BSplineModel swy = new BSplineModel(cy);
 
-		// red
-		BSplineModel sourceR = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(0, null), false, 1);
-		sourceR.setPyramidDepth(0);
-		sourceR.startPyramids();
-		// green
-		BSplineModel sourceG = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(1, null), false, 1);
-		sourceG.setPyramidDepth(0);
-		sourceG.startPyramids();
-		//blue
-		BSplineModel sourceB = new BSplineModel( ((ColorProcessor) (sourceImp.getProcessor())).toFloat(2, null), false, 1);
-		sourceB.setPyramidDepth(0);
-		sourceB.startPyramids();
-
-		// Join threads
-		try {
-			sourceR.getThread().join();
-			sourceG.getThread().join();
-			sourceB.getThread().join();
-		} catch (InterruptedException e) {
-			IJ.error("Unexpected interruption exception " + e);
-		}
+		// interleaved red, green and blue model
+		MultiChannelBSplineModel sourceRGB =
+				new MultiChannelBSplineModel( (ColorProcessor) sourceImp.getProcessor() );
 
 		// Calculate warped RGB image
 		ColorProcessor cp = new ColorProcessor(targetWidth, targetHeight);
@@ -3426,7 +3659,7 @@ public class MiscTools
 			fpG_tile[i] = new FloatProcessor(rects[i].width, rects[i].height);
 			fpB_tile[i] = new FloatProcessor(rects[i].width, rects[i].height);
 
-			threads[i] = new Thread(new ColorApplyTransformTile(swx, swy, sourceR, sourceG, sourceB, targetWidth,
+			threads[i] = new Thread(new ColorApplyTransformTile(swx, swy, sourceRGB, targetWidth,
 					targetHeight, intervals, rects[i], fpR_tile[i],
 					fpG_tile[i], fpB_tile[i]));
 			threads[i].start();
@@ -3460,6 +3693,7 @@ public class MiscTools
 		cp.setPixels(2, fpB);
 		cp.resetMinAndMax();
 
+		RegistrationEvents.INSTANCE.endTransform(event, "elastic color", intervals, targetWidth, targetHeight);
 		return cp;
 	}
 
@@ -3472,6 +3706,61 @@ public class MiscTools
 	 * @return result transformed image as a matrix
 	 */
 	public static int[][] applyTransformationToGreyscaleImageMtx(Transformation aTransform, int[][] imageMtx) {
+		return applyTransformationToGreyscaleImageMtx(aTransform, imageMtx, Interpolation.BSPLINE);
+	}
+
+	/**
+	 * Apply a given B-spline Transformation object to a gray-scale image with
+	 * the given interpolation of the image. Nearest neighbor and bilinear
+	 * interpolation do not compute the image B-spline coefficients.
+	 *
+	 * @param aTransform the Transformation to apply
+	 * @param imageMtx the image as a 2D array of int values, should be scaled 0-255
+	 * @param interpolation interpolation of the image
+	 *
+	 * @return result transformed image as a matrix
+	 */
+	public static int[][] applyTransformationToGreyscaleImageMtx(Transformation aTransform, int[][] imageMtx,
+																   Interpolation interpolation) {
+
+		final int targetHeight = imageMtx.length;
+		final int targetWidth  = imageMtx[0].length;
+
+		ImageProcessor ip;
+		if (interpolation != Interpolation.BSPLINE)
+		{
+			FloatProcessor fp = new FloatProcessor(targetWidth, targetHeight);
+			for (int v = 0; v < targetHeight; v++)
+				for (int u = 0; u < targetWidth; u++)
+					fp.setf(u, v, imageMtx[v][u]);
+			ip = applyTransformationCoefficientsLowOrder(fp, aTransform.getIntervals(),
+					aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
+					targetWidth, targetHeight, interpolation);
+		}
+		else
+			ip = applyTransformationToGreyscaleImageMtxBSpline(aTransform, imageMtx);
+
+		ByteProcessor bp = new ByteProcessor(ip,false);
+		//scale input argument above doesn't work very well, so we will do it manually
+		bp.setMinAndMax(0, 255);
+
+		int[][] result = new int[ip.getHeight()][ip.getWidth()];
+		extractImage(bp, result);
+		return result;
+
+	}
+
+	/**
+	 * Apply a given B-spline Transformation object to a gray-scale image with
+	 * cubic B-spline interpolation of the image.
+	 *
+	 * @param aTransform the Transformation to apply
+	 * @param imageMtx the image as a 2D array of int values, should be scaled 0-255
+	 *
+	 * @return result transformed image
+	 */
+	private static ImageProcessor applyTransformationToGreyscaleImageMtxBSpline(Transformation aTransform,
+																				 int[][] imageMtx) {
 
 		BSplineModel source = new BSplineModel(imageMtx, false);
 //		source.setPyramidDepth(0);
@@ -3485,18 +3774,9 @@ public class MiscTools
 		final int targetHeight = imageMtx.length;
 		final int targetWidth  = imageMtx[0].length;
 
-		ImageProcessor ip = applyTransformationCoefficientsGreyscale(source, aTransform.getIntervals(),
+		return applyTransformationCoefficientsGreyscale(source, aTransform.getIntervals(),
 				aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
 				targetWidth, targetHeight);
-
-		ByteProcessor bp = new ByteProcessor(ip,false);
-		//scale input argument above doesn't work very well, so we will do it manually
-		bp.setMinAndMax(0, 255);
-
-		int[][] result = new int[ip.getHeight()][ip.getWidth()];
-		extractImage(bp, result);
-		return result;
-
 	}
 
 	/**
@@ -3509,22 +3789,53 @@ public class MiscTools
 	 */
 	public static int[] applyTransformationToGreyscaleImageMtx(Transformation aTransform, int[] imageMtx,
 																 int imgWidth, int imgHeight) {
+		return applyTransformationToGreyscaleImageMtx(aTransform, imageMtx, imgWidth, imgHeight,
+				Interpolation.BSPLINE);
+	}
 
-		BSplineModel source = new BSplineModel(imageMtx, imgWidth, imgHeight, false);
-		source.setPyramidDepth(0);
-		source.startPyramids();
-		try {
-			source.getThread().join();
-		} catch (InterruptedException var8) {
-			IJ.error("Unexpected interruption exception " + var8);
-		}
+	/**
+	 * Apply a given B-spline Transformation object to a gray-scale image with
+	 * the given interpolation of the image. Nearest neighbor and bilinear
+	 * interpolation do not compute the image B-spline coefficients.
+	 *
+	 * @param aTransform the Transformation to apply
+	 * @param imageMtx the 2D image as a 1D array of int values, concatenated by row, should be scaled 0-255
+	 * @param imgWidth image width
+	 * @param imgHeight image height
+	 * @param interpolation interpolation of the image
+	 *
+	 * @return result transformed image as a matrix concatenated by row into a 1D array
+	 */
+	public static int[] applyTransformationToGreyscaleImageMtx(Transformation aTransform, int[] imageMtx,
+																 int imgWidth, int imgHeight,
+																 Interpolation interpolation) {
 
 		final int targetHeight = imgHeight;
 		final int targetWidth  = imgWidth;
 
-		ImageProcessor ip = applyTransformationCoefficientsGreyscale(source, aTransform.getIntervals(),
-				aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
-				targetWidth, targetHeight);
+		ImageProcessor ip;
+		if (interpolation != Interpolation.BSPLINE)
+		{
+			FloatProcessor fp = new FloatProcessor(imgWidth, imgHeight, imageMtx);
+			ip = applyTransformationCoefficientsLowOrder(fp, aTransform.getIntervals(),
+					aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
+					targetWidth, targetHeight, interpolation);
+		}
+		else
+		{
+			BSplineModel source = new BSplineModel(imageMtx, imgWidth, imgHeight, false);
+			source.setPyramidDepth(0);
+			source.startPyramids();
+			try {
+				source.getThread().join();
+			} catch (InterruptedException var8) {
+				IJ.error("Unexpected interruption exception " + var8);
+			}
+
+			ip = applyTransformationCoefficientsGreyscale(source, aTransform.getIntervals(),
+					aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
+					targetWidth, targetHeight);
+		}
 
 		ByteProcessor bp = new ByteProcessor(ip,false);
 		//scale input argument above doesn't work very well, so we will do it manually
@@ -3537,22 +3848,52 @@ public class MiscTools
 	}
 
 	public static double[][] applyTransformationToGreyscaleImageMtx(Transformation aTransform, float[][] imageMtx) {
+		return applyTransformationToGreyscaleImageMtx(aTransform, imageMtx, Interpolation.BSPLINE);
+	}
 
-		BSplineModel source = new BSplineModel(imageMtx, false);
-		source.setPyramidDepth(0);
-		source.startPyramids();
-		try {
-			source.getThread().join();
-		} catch (InterruptedException var8) {
-			IJ.error("Unexpected interruption exception " + var8);
-		}
+	/**
+	 * Apply a given B-spline Transformation object to a gray-scale image with
+	 * the given interpolation of the image. Nearest neighbor and bilinear
+	 * interpolation do not compute the image B-spline coefficients.
+	 *
+	 * @param aTransform the Transformation to apply
+	 * @param imageMtx the image as a 2D array of float values
+	 * @param interpolation interpolation of the image
+	 *
+	 * @return result transformed image as a matrix
+	 */
+	public static double[][] applyTransformationToGreyscaleImageMtx(Transformation aTransform, float[][] imageMtx,
+																	  Interpolation interpolation) {
 
 		final int targetHeight = imageMtx.length;
 		final int targetWidth  = imageMtx[0].length;
 
-		ImageProcessor ip = applyTransformationCoefficientsGreyscale(source, aTransform.getIntervals(),
-				aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
-				targetWidth, targetHeight);
+		ImageProcessor ip;
+		if (interpolation != Interpolation.BSPLINE)
+		{
+			FloatProcessor fp = new FloatProcessor(targetWidth, targetHeight);
+			for (int v = 0; v < targetHeight; v++)
+				for (int u = 0; u < targetWidth; u++)
+					fp.setf(u, v, imageMtx[v][u]);
+			ip = applyTransformationCoefficientsLowOrder(fp, aTransform.getIntervals(),
+					aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
+					targetWidth, targetHeight, interpolation);
+		}
+		else
+		{
+			BSplineModel source = new BSplineModel(imageMtx, false);
+			source.setPyramidDepth(0);
+			source.startPyramids();
+			try {
+				source.getThread().join();
+			} catch (InterruptedException var8) {
+				IJ.error("Unexpected interruption exception " + var8);
+			}
+
+			ip = applyTransformationCoefficientsGreyscale(source, aTransform.getIntervals(),
+					aTransform.getDirectDeformationCoefficientsX(), aTransform.getDirectDeformationCoefficientsY(),
+					targetWidth, targetHeight);
+		}
 
 		double[][] result = new double[ip.getHeight()][ip.getWidth()];
 		extractImage(ip, result);
@@ -3666,6 +4007,135 @@ public class MiscTools
 		
 	} // end GrayscaleApplyTransformTile class
 	
+	/* ------------------------------------------------------------------------ */
+	/**
+	 *  Class to apply transformation with nearest neighbor or bilinear
+	 *  interpolation of the source pixels in a concurrent way
+	 * 	 
+	 */	
+	private static class LowOrderApplyTransformTile implements Runnable 
+	{
+		/** B-spline deformation in x */
+		final BSplineModel swx;
+		/** B-spline deformation in y */
+		final BSplineModel swy;
+		/** source pixels of each channel */
+		final float[][] source;
+		/** source width */
+		final int sourceWidth;
+		/** source height */
+		final int sourceHeight;
+		/** target current width */
+		final int targetCurrentWidth;
+		/** target current height */
+		final int targetCurrentHeight;
+		/** number of intervals between B-spline coefficients */
+		final int intervals;
+		/** area of the image to be transformed in this thread */
+		final Rectangle rect;
+		/** resulting float processors of each channel (whole image) */
+		final private FloatProcessor[] fp;
+		/** nearest neighbor (true) or bilinear (false) interpolation */
+		final boolean nearest;
+
+		/**
+		 * Constructor for low order image transform 
+		 * @param swx B-spline deformation in x
+		 * @param swy B-spline deformation in y
+		 * @param source source pixels of each channel
+		 * @param sourceWidth source width
+		 * @param sourceHeight source height
+		 * @param targetCurrentWidth target current width 
+		 * @param targetCurrentHeight target current height
+		 * @param intervals number of intervals between B-spline coefficients
+		 * @param rect rectangle containing the area of the image to be transformed
+		 * @param fp resulting float processors of each channel (output)
+		 * @param nearest nearest neighbor (true) or bilinear (false) interpolation
+		 */
+		LowOrderApplyTransformTile(BSplineModel swx, 
+		 		  BSplineModel swy, 
+		 		  float[][] source,
+		 		  int sourceWidth,
+		 		  int sourceHeight,
+		 		  int targetCurrentWidth,
+		 		  int targetCurrentHeight,
+		 		  int intervals,
+				  Rectangle rect, 
+				  FloatProcessor[] fp,
+				  boolean nearest)
+		{
+			this.swx = swx;
+			this.swy = swy;
+			this.source = source;
+			this.sourceWidth = sourceWidth;
+			this.sourceHeight = sourceHeight;
+			this.targetCurrentWidth = targetCurrentWidth;
+			this.targetCurrentHeight = targetCurrentHeight;
+			this.intervals = intervals;
+			this.rect = rect;
+			this.fp = fp;
+			this.nearest = nearest;
+		}
+	
+		//------------------------------------------------------------------
+		/**
+		 * Run method to update the intermediate window. Only the part defined by
+		 * the rectangle will be updated (in this thread).
+		 */
+		public void run()
+		{
+			final int nChannels = source.length;
+			final float[][] fp_array = new float[nChannels][];
+			for (int c = 0; c < nChannels; c++)
+				fp_array[c] = (float[]) fp[c].getPixels();
+
+			for (int v=rect.y; v<rect.y + rect.height; v++)
+			{
+				final int v_offset = v * targetCurrentWidth;
+				//prevent NaN result from divide by 0
+				final double tv = (targetCurrentHeight > 1) ? ((double)(v * intervals) / (double)(targetCurrentHeight - 1) + 1.0F) : 1.0F;
+				
+				for (int u=rect.x; u<rect.x + rect.width; u++) 
+				{
+					//prevent NaN result from divide by 0
+					final double tu = (targetCurrentWidth > 1) ? ((double)(u * intervals) / (double)(targetCurrentWidth - 1) + 1.0F) : 1.0F;
+					final double x = swx.prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+					final double y = swy.prepareForInterpolationAndInterpolateI(tu, tv, false, false);
+
+					if (!(x>=0 && x<sourceWidth && y>=0 && y<sourceHeight))
+						continue;
+
+					if (nearest)
+					{
+						final int k = Math.min((int) (y + 0.5), sourceHeight - 1) * sourceWidth
+								+ Math.min((int) (x + 0.5), sourceWidth - 1);
+						for (int c = 0; c < nChannels; c++)
+							fp_array[c][u + v_offset] = source[c][k];
+					}
+					else
+					{
+						final int x0 = (int) x;
+						final int y0 = (int) y;
+						final double dx = x - x0;
+						final double dy = y - y0;
+						final int k00 = y0 * sourceWidth + x0;
+						final int k01 = (x0 + 1 < sourceWidth) ? k00 + 1 : k00;
+						final int k10 = (y0 + 1 < sourceHeight) ? k00 + sourceWidth : k00;
+						final int k11 = (x0 + 1 < sourceWidth) ? k10 + 1 : k10;
+						for (int c = 0; c < nChannels; c++)
+						{
+							final float[] s = source[c];
+							final double top = s[k00] + dx * (s[k01] - s[k00]);
+							final double bottom = s[k10] + dx * (s[k11] - s[k10]);
+							fp_array[c][u + v_offset] = (float) (top + dy * (bottom - top));
+						}
+					}
+				}
+			}
+		} // end run method 
+		
+	} // end LowOrderApplyTransformTile class
+
 	/* ------------------------------------------------------------------------ */
 	/**
 	 *  Class to apply transformation to color images in a concurrent way
@@ -3677,12 +4147,8 @@ public class MiscTools
 		final BSplineModel swx;
 		/** B-spline deformation in y */
 		final BSplineModel swy;	
-		/** red channel of the source image */
-		final BSplineModel sourceR;
-		/** green channel of the source image */
-		final BSplineModel sourceG;
-		/** blue channel of the source image */
-		final BSplineModel sourceB;
+		/** red, green and blue channels of the source image */
+		final MultiChannelBSplineModel sourceRGB;
 		/** target current width */
 		final int targetCurrentWidth;
 		/** target current height */
@@ -3703,9 +4169,7 @@ public class MiscTools
 		 * 
 		 * @param swx B-spline deformation in x
 		 * @param swy B-spline deformation in y
-		 * @param sourceR red source image
-		 * @param sourceG green source image
-		 * @param sourceB blue source image
+		 * @param sourceRGB red, green and blue source image
 		 * @param targetCurrentWidth target current width
 		 * @param targetCurrentHeight target current height
 		 * @param intervals number of intervals between B-spline coefficients
@@ -3716,9 +4180,7 @@ public class MiscTools
 		 */
 		ColorApplyTransformTile(BSplineModel swx, 
 		 		  BSplineModel swy, 
-		 		  BSplineModel sourceR,
-		 		  BSplineModel sourceG,
-		 		  BSplineModel sourceB,
+		 		  MultiChannelBSplineModel sourceRGB,
 		 		  int targetCurrentWidth,
 		 		  int targetCurrentHeight,
 		 		  int intervals,
@@ -3729,9 +4191,7 @@ public class MiscTools
 		{
 			this.swx = swx;
 			this.swy = swy;
-			this.sourceR = sourceR;
-			this.sourceG = sourceG;
-			this.sourceB = sourceB;
+			this.sourceRGB = sourceRGB;
 			this.targetCurrentWidth = targetCurrentWidth;
 			this.targetCurrentHeight = targetCurrentHeight;
 			this.intervals = intervals;
@@ -3758,8 +4218,9 @@ public class MiscTools
 			float [] fpB_array = (float[]) fpB.getPixels();
 			
 			
-			final int sourceWidth = sourceR.getWidth();
-			final int sourceHeight = sourceR.getHeight();
+			final int sourceWidth = sourceRGB.getWidth();
+			final int sourceHeight = sourceRGB.getHeight();
+			final double[] rgb = new double[3];
 			
 			
 			for (int v_rect = 0, v=rect.y; v<auxTargetHeight; v++, v_rect++)
@@ -3778,9 +4239,10 @@ public class MiscTools
 					
 					if (x>=0 && x<sourceWidth && y>=0 && y<sourceHeight)
 					{
-						fpR_array[u_rect + v_offset] = (float) (sourceR.prepareForInterpolationAndInterpolateI(x, y, false, false));						
-						fpG_array[u_rect + v_offset] = (float) (sourceG.prepareForInterpolationAndInterpolateI(x, y, false, false));						
-						fpB_array[u_rect + v_offset] = (float) (sourceB.prepareForInterpolationAndInterpolateI(x, y, false, false));						
+						sourceRGB.interpolate(x, y, rgb);
+						fpR_array[u_rect + v_offset] = (float) rgb[0];
+						fpG_array[u_rect + v_offset] = (float) rgb[1];
+						fpB_array[u_rect + v_offset] = (float) rgb[2];
 					}
 					else
 					{
@@ -3868,43 +4330,155 @@ public class MiscTools
 	 * @param transformationFile elastic transform file
 	 * @param fixedImage fixed image
 	 * @param movingStack stack containing all the moving images
-	 * @return stack containing the deformed slices
+	 * @return stack containing the deformed slices (null if the transformation
+	 *         cannot be read)
 	 */
 	public static ImagePlus applyTransformToStack(
 			String transformationFile,
 			ImagePlus fixedImage,
 			ImagePlus movingStack )
 	{
+		return applyTransformToStack( transformationFile, fixedImage, movingStack, null );
+	}
 
-		// read number of intervals from transformation file
-		final int intervals = 
-			MiscTools.numberOfIntervalsOfTransformation( transformationFile );
-
-		// declare arrays of coefficients
-		final double[][] cx = new double[ intervals + 3 ][ intervals + 3 ];
-		final double[][] cy = new double[ intervals + 3 ][ intervals + 3 ];
+	/**
+	 * Apply transform saved on a file to all slices of moving image.
+	 * <p>
+	 * The slices are warped concurrently, one slice per thread: each worker
+	 * reads its next slice (the moving stack can be virtual), builds its
+	 * B-spline coefficients, warps it and emits the result. At most one
+	 * slice per processor is in flight at any time. When an output
+	 * directory is given, every deformed slice is written there as a TIFF
+	 * file and the result is a virtual stack, so the memory used does not
+	 * depend on the stack depth.
+	 * 
+	 * @param transformationFile elastic transform file
+	 * @param fixedImage fixed image
+	 * @param movingStack stack containing all the moving images (possibly virtual)
+	 * @param outputDirectory directory to write the deformed slices to, or
+	 *        null to keep them in memory
+	 * @return stack containing the deformed slices (null if the transformation
+	 *         cannot be read or a slice cannot be deformed or written)
+	 */
+	public static ImagePlus applyTransformToStack(
+			String transformationFile,
+			ImagePlus fixedImage,
+			ImagePlus movingStack,
+			String outputDirectory )
+	{
 
 		// read coefficients
-		MiscTools.loadTransformation( transformationFile, cx, cy );
+		final double[][][] c = MiscTools.loadElasticTransformation( transformationFile );
+		if ( c == null )
+			return null;
+		final int intervals = c[ 0 ].length - 3;
 
-		ImageStack outputStack = 
-			new ImageStack( movingStack.getWidth(), movingStack.getHeight() );
+		final File directory = outputDirectory == null ? null : new File( outputDirectory );
+		if ( directory != null && !directory.isDirectory() && !directory.mkdirs() )
+		{
+			IJ.error( "Could not create directory " + outputDirectory );
+			return null;
+		}
 
-		// apply transform to each slice of the stack
+		// compute the target to source coordinates once for all slices
+		final CoordinateMap map = CoordinateMap.fromElastic( intervals, c[ 0 ], c[ 1 ],
+				fixedImage.getWidth(), fixedImage.getHeight(), false );
+
+		final ImageStack inputStack = movingStack.getImageStack();
+		final int nSlices = inputStack.getSize();
+		final int nproc = Runtime.getRuntime().availableProcessors();
+
+		// with fewer slices than processors, parallelize inside each slice instead
+		final boolean sliceParallel = nSlices >= nproc;
+		final int nThreads = sliceParallel ? nproc : 1;
+
+		final ImageProcessor[] deformed = directory == null ? new ImageProcessor[ nSlices ] : null;
+		final String[] fileNames = directory == null ? null : new String[ nSlices ];
+		final AtomicInteger nextSlice = new AtomicInteger( 1 );
+		final AtomicBoolean failed = new AtomicBoolean( false );
 
-		for( int i=1; i<=movingStack.getImageStackSize(); i++ )
+		// apply transform to each slice of the stack
+		final ExecutorService executor = Executors.newFixedThreadPool( nThreads );
+		final List< Future< ? > > workers = new ArrayList< Future< ? > >( nThreads );
+		for( int t = 0; t < nThreads; t++ )
 		{
-			ImageProcessor ip = movingStack.getImageStack().getProcessor( i );
+			workers.add( executor.submit( () -> {
+				try
+				{
+					int i;
+					while ( !failed.get() && ( i = nextSlice.getAndIncrement() ) <= nSlices )
+					{
+						// virtual stacks are not safe for concurrent reads
+						final ImageProcessor ip;
+						synchronized ( inputStack )
+						{
+							ip = inputStack.getProcessor( i );
+						}
 
-			BSplineModel source = new BSplineModel( ip, false, 1 );
+						final ImageProcessor result = map.apply( ip, sliceParallel ? 1 : nproc );
 
-			ImagePlus movingImage = new ImagePlus("", ip );			
-				
-			ImageProcessor result = 
-					MiscTools.applyTransformationMT( 
-						movingImage, fixedImage, source, intervals, cx, cy );
+						if ( directory == null )
+							deformed[ i - 1 ] = result;
+						else
+						{
+							final String name = String.format( "slice%05d.tif", i );
+							if ( !new FileSaver( new ImagePlus( name, result ) ).saveAsTiff(
+									new File( directory, name ).getPath() ) )
+								failed.set( true );
+							fileNames[ i - 1 ] = name;
+						}
+					}
+				}
+				catch ( RuntimeException | Error e )
+				{
+					// stop the other workers
+					failed.set( true );
+					throw e;
+				}
+			} ) );
+		}
+		executor.shutdown();
+
+		// collect the failures of the workers
+		Throwable workerFailure = null;
+		for( Future< ? > worker : workers )
+		{
+			try {
+				worker.get();
+			} catch ( ExecutionException e ) {
+				if ( workerFailure == null )
+					workerFailure = e.getCause();
+			} catch ( InterruptedException e ) {
+				executor.shutdownNow();
+				IJ.error( "Unexpected interruption exception " + e );
+				return null;
+			}
+		}
+		if ( workerFailure != null )
+		{
+			IJ.error( "Could not deform the slices of " + movingStack.getTitle() + ": " + workerFailure );
+			return null;
+		}
+		if ( failed.get() )
+		{
+			IJ.error( "Could not write the deformed slices to " + outputDirectory );
+			return null;
+		}
 
-			outputStack.addSlice( "", result );
+		final ImageStack outputStack;
+		if ( directory == null )
+		{
+			outputStack = new ImageStack( fixedImage.getWidth(), fixedImage.getHeight() );
+			for( int i = 0; i < nSlices; i++ )
+				outputStack.addSlice( "", deformed[ i ] );
+		}
+		else
+		{
+			final VirtualStack virtualStack = new VirtualStack( fixedImage.getWidth(),
+					fixedImage.getHeight(), null, directory.getPath() );
+			for( int i = 0; i < nSlices; i++ )
+				virtualStack.addSlice( fileNames[ i ] );
+			outputStack = virtualStack;
 		}
 
 		// return results
@@ -4243,6 +4817,18 @@ public class MiscTools
 			ImagePlus targetImp,
 			ImagePlus sourceImp )
 	{
+		// Binary transformations are compared directly on the mapped files
+		if (MappedRawTransformation.isBinary(rawTransfPath1) && MappedRawTransformation.isBinary(rawTransfPath2))
+		{
+			final MappedRawTransformation mapped1 = MappedRawTransformation.open( rawTransfPath1,
+					targetImp.getWidth(), targetImp.getHeight() );
+			final MappedRawTransformation mapped2 = MappedRawTransformation.open( rawTransfPath2,
+					targetImp.getWidth(), targetImp.getHeight() );
+			if (mapped1 == null || mapped2 == null)
+				return -1;
+			return MiscTools.rawWarpingIndex( sourceImp, targetImp, mapped1, mapped2 );
+		}
+
 		final double [][]transformation_x1 =
 				new double[ targetImp.getHeight()][ targetImp.getWidth() ];
 		final double [][]transformation_y1 =
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+import ij.process.ColorProcessor;
+
+/*====================================================================
+|   MultiChannelBSplineModel
+\===================================================================*/
+
+/**
+ * Cubic B-spline model of a multi-channel image (typically RGB) with the
+ * coefficients of all channels interleaved per pixel. Interpolating at a
+ * point computes the coefficient indexes and weights once and applies them
+ * to every channel, instead of repeating the work in one
+ * {@link BSplineModel} per channel. Only the coefficients are kept (no
+ * pyramid, no copy of the image), so the model of an RGB image needs
+ * roughly a third of the memory of three single-channel models.
+ * <p>
+ * Interpolated values are the same as the ones of a {@link BSplineModel}
+ * of each channel interpolated from the original image.
+ */
+public class MultiChannelBSplineModel
+{
+	/** model width */
+	private final int width;
+	/** model height */
+	private final int height;
+	/** number of channels */
+	private final int channels;
+	/** B-spline coefficients, channels interleaved: ((y * width) + x) * channels + c */
+	private final double[] coefficient;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create the model of a color image (red, green and blue channels).
+	 *
+	 * @param cp color image
+	 */
+	public MultiChannelBSplineModel(ColorProcessor cp)
+	{
+		this(splitChannels(cp), cp.getWidth(), cp.getHeight());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create the model of a multi-channel image. The coefficients of the
+	 * channels are computed concurrently.
+	 *
+	 * @param samples image samples of each channel (row-major)
+	 * @param width image width
+	 * @param height image height
+	 */
+	public MultiChannelBSplineModel(final double[][] samples, int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		this.channels = samples.length;
+		this.coefficient = new double[width * height * channels];
+
+		final Thread[] threads = new Thread[channels];
+		for (int c = 0; c < channels; c++)
+		{
+			final int channel = c;
+			threads[c] = new Thread(() -> {
+				final double[] basic = BSplineModel.samplesToCoefficients2D(samples[channel], this.width, this.height);
+				for (int n = 0, k = channel; n < basic.length; n++, k += this.channels)
+					this.coefficient[k] = basic[n];
+			});
+			threads[c].start();
+		}
+		for (int c = 0; c < channels; c++)
+		{
+			try {
+				threads[c].join();
+			} catch (InterruptedException e) {
+				IJ.error("Unexpected interruption exception " + e);
+			}
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a single-channel model on existing B-spline coefficients.
+	 * The array is not copied: the model follows its changes, so it can
+	 * be reused for several images of the same size.
+	 *
+	 * @param coefficient B-spline coefficients (row-major)
+	 * @param width image width
+	 * @param height image height
+	 */
+	MultiChannelBSplineModel(double[] coefficient, int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		this.channels = 1;
+		this.coefficient = coefficient;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Extract the red, green and blue samples of a color image.
+	 *
+	 * @param cp color image
+	 * @return samples of each channel
+	 */
+	private static double[][] splitChannels(ColorProcessor cp)
+	{
+		final int[] pixels = (int[]) cp.getPixels();
+		final double[][] samples = new double[3][pixels.length];
+		for (int n = 0; n < pixels.length; n++)
+		{
+			final int c = pixels[n];
+			samples[0][n] = (c & 0xff0000) >> 16;
+			samples[1][n] = (c & 0x00ff00) >> 8;
+			samples[2][n] =  c & 0x0000ff;
+		}
+		return samples;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the model width.
+	 *
+	 * @return width
+	 */
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the model height.
+	 *
+	 * @return height
+	 */
+	public int getHeight()
+	{
+		return this.height;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the number of channels.
+	 *
+	 * @return number of channels
+	 */
+	public int getChannels()
+	{
+		return this.channels;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Interpolate all channels at a point (thread-safe).
+	 *
+	 * @param x x- point coordinate
+	 * @param y y- point coordinate
+	 * @param values output, interpolated value of each channel (its length
+	 *        must be at least the number of channels)
+	 */
+	public void interpolate(double x, double y, double[] values)
+	{
+		final int[] xIndex = new int[4];
+		final int[] yIndex = new int[4];
+		final double[] xWeight = new double[4];
+		final double[] yWeight = new double[4];
+		final double[] s = new double[this.channels];
+
+		int ix = (int) x;
+		int iy = (int) y;
+
+		final int twiceWidth = 2 * this.width;
+		final int twiceHeight = 2 * this.height;
+
+		// Set X indexes (mirror boundary conditions)
+		// p is the index of the rightmost influencing spline
+		int p = (0.0 <= x) ? (ix + 2) : (ix + 1);
+		for (int k = 0; k < 4; p--, k++)
+		{
+			int q = (p < 0) ? (-1 - p) : (p);
+			if (twiceWidth <= q) q -= twiceWidth * (q / twiceWidth);
+			xIndex[k] = (this.width <= q) ? (twiceWidth - 1 - q) : (q);
+		}
+
+		// Set Y indexes
+		p = (0.0 <= y) ? (iy + 2) : (iy + 1);
+		for (int k = 0; k < 4; p--, k++)
+		{
+			int q = (p < 0) ? (-1 - p) : (p);
+			if (twiceHeight <= q) q -= twiceHeight * (q / twiceHeight);
+			yIndex[k] = (this.height <= q) ? (twiceHeight - 1 - q) : (q);
+		}
+
+		// Compute how much the sample depart from an integer position
+		final double ex = x - ((0.0 <= x) ? (ix) : (ix - 1));
+		final double ey = y - ((0.0 <= y) ? (iy) : (iy - 1));
+
+		// Set X weights (same expressions as BSplineModel)
+		final double sx = 1.0F - ex;
+		final double dx0 = 0.5F * ex * ex;
+		final double dx3 = -0.5F * sx * sx;
+		xWeight[0] = ex * dx0 / 3.0F;
+		xWeight[3] = sx * dx3 / -3.0F;
+		xWeight[1] = MathTools.Bspline03(x - ix - 1);
+		xWeight[2] = 2.0F / 3.0F - (2.0F - ex) * dx0;
+
+		// Set Y weights
+		final double t = 1.0F - ey;
+		final double dy0 = 0.5F * ey * ey;
+		final double dy3 = -0.5F * t * t;
+		yWeight[0] = ey * dy0 / 3.0F;
+		yWeight[3] = t * dy3 / -3.0F;
+		yWeight[1] = 2.0F / 3.0F + (1.0F + ey) * dy3;
+		yWeight[2] = 2.0F / 3.0F - (2.0F - ey) * dy0;
+
+		// Only SplineDegree=3 is implemented
+		for (int c = 0; c < this.channels; c++)
+			values[c] = 0.0F;
+		for (int j = 0; j < 4; j++)
+		{
+			for (int c = 0; c < this.channels; c++)
+				s[c] = 0.0F;
+			final int row = yIndex[j] * this.width;
+			for (int i = 0; i < 4; i++)
+			{
+				final double w = xWeight[i];
+				final int k = (row + xIndex[i]) * this.channels;
+				for (int c = 0; c < this.channels; c++)
+					s[c] += w * this.coefficient[k + c];
+			}
+			for (int c = 0; c < this.channels; c++)
+				values[c] += yWeight[j] * s[c];
+		}
+	}
+
+} // end class MultiChannelBSplineModel
@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+/*====================================================================
+|   OptimizationTrace
+\===================================================================*/
+
+/**
+ * Sink receiving one record per iteration of the optimizer of a
+ * {@link Transformation} (see {@link Transformation#setOptimizationTrace}).
+ * {@link OptimizationTraceWriter} streams the records to a CSV or binary
+ * file. Records are sent from the registration thread.
+ */
+public interface OptimizationTrace
+{
+	/**
+	 * Record one energy evaluation of the optimizer.
+	 *
+	 * @param intervals number of intervals of the deformation at this level
+	 * @param depth depth of the image in the pyramid (0 is full size)
+	 * @param iteration iteration of the optimizer at this level (1 is the initial evaluation)
+	 * @param lambda Marquardt-Levenberg damping factor of the step
+	 * @param energy value of the energy function
+	 * @param similarity image similarity term (direct + inverse)
+	 * @param regularization regularization term (direct + inverse)
+	 * @param landmark landmark term (direct + inverse)
+	 * @param consistency consistency term (direct + inverse)
+	 * @param stepNorm Euclidean norm of the change of the coefficients (0 for the initial evaluation)
+	 * @param accepted true if the step decreased the energy (always true for the initial evaluation)
+	 * @param elapsed time since the beginning of the registration in nanoseconds
+	 */
+	void iteration(
+			int intervals,
+			int depth,
+			int iteration,
+			double lambda,
+			double energy,
+			double similarity,
+			double regularization,
+			double landmark,
+			double consistency,
+			double stepNorm,
+			boolean accepted,
+			long elapsed);
+
+} // end interface OptimizationTrace
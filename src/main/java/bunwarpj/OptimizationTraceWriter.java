@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*====================================================================
+|   OptimizationTraceWriter
+\===================================================================*/
+
+/**
+ * Optimization trace that streams its records to a file, either as CSV
+ * text (one header line and one line per record) or in a compact binary
+ * format. The binary file starts with the magic number {@code 0x42554A54}
+ * ("BUJT") and the format version (int), followed by fixed-size big-endian
+ * records: intervals, depth, iteration (ints), lambda, energy, similarity,
+ * regularization, landmark, consistency, step norm (doubles), accepted
+ * (byte) and elapsed nanoseconds (long). Use {@link #readBinary(String)}
+ * to read them back.
+ */
+public class OptimizationTraceWriter implements OptimizationTrace, Closeable
+{
+	/** magic number of the binary format ("BUJT") */
+	public static final int MAGIC = 0x42554A54;
+	/** version of the binary format */
+	public static final int VERSION = 1;
+	/** CSV header, also the order of the values returned by {@link #readBinary(String)} */
+	public static final String CSV_HEADER = "intervals,depth,iteration,lambda,energy,similarity,"
+			+ "regularization,landmark,consistency,stepNorm,accepted,elapsedNanos";
+
+	/** binary output (null in CSV mode) */
+	private final DataOutputStream binaryOutput;
+	/** text output (null in binary mode) */
+	private final BufferedWriter csvOutput;
+	/** output file name */
+	private final String fileName;
+	/** flag set after the first write error, to stop writing */
+	private boolean failed = false;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a trace writer. The format is CSV if the file name ends
+	 * with ".csv" and binary otherwise.
+	 *
+	 * @param fileName output file name (overwritten)
+	 * @throws IOException if the file cannot be created
+	 */
+	public OptimizationTraceWriter(final String fileName) throws IOException
+	{
+		this(fileName, !fileName.toLowerCase().endsWith(".csv"));
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a trace writer.
+	 *
+	 * @param fileName output file name (overwritten)
+	 * @param binary true for the binary format, false for CSV
+	 * @throws IOException if the file cannot be created
+	 */
+	public OptimizationTraceWriter(final String fileName, final boolean binary) throws IOException
+	{
+		this.fileName = fileName;
+		if (binary)
+		{
+			this.binaryOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+			this.csvOutput = null;
+			this.binaryOutput.writeInt(MAGIC);
+			this.binaryOutput.writeInt(VERSION);
+		}
+		else
+		{
+			this.binaryOutput = null;
+			this.csvOutput = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+			this.csvOutput.write(CSV_HEADER);
+			this.csvOutput.newLine();
+		}
+	}
+
+	//------------------------------------------------------------------
+	@Override
+	public synchronized void iteration(
+			final int intervals,
+			final int depth,
+			final int iteration,
+			final double lambda,
+			final double energy,
+			final double similarity,
+			final double regularization,
+			final double landmark,
+			final double consistency,
+			final double stepNorm,
+			final boolean accepted,
+			final long elapsed)
+	{
+		if (this.failed)
+			return;
+		try
+		{
+			if (this.binaryOutput != null)
+			{
+				final DataOutputStream out = this.binaryOutput;
+				out.writeInt(intervals);
+				out.writeInt(depth);
+				out.writeInt(iteration);
+				out.writeDouble(lambda);
+				out.writeDouble(energy);
+				out.writeDouble(similarity);
+				out.writeDouble(regularization);
+				out.writeDouble(landmark);
+				out.writeDouble(consistency);
+				out.writeDouble(stepNorm);
+				out.writeByte(accepted ? 1 : 0);
+				out.writeLong(elapsed);
+			}
+			else
+			{
+				final StringBuilder sb = new StringBuilder(160);
+				sb.append(intervals).append(',').append(depth).append(',').append(iteration).append(',')
+				  .append(lambda).append(',').append(energy).append(',').append(similarity).append(',')
+				  .append(regularization).append(',').append(landmark).append(',').append(consistency).append(',')
+				  .append(stepNorm).append(',').append(accepted ? 1 : 0).append(',').append(elapsed);
+				this.csvOutput.write(sb.toString());
+				this.csvOutput.newLine();
+			}
+		}
+		catch (IOException e)
+		{
+			// Tracing must never stop the registration: report it once and stop writing
+			this.failed = true;
+			IJ.log("Could not write optimization trace file " + this.fileName + ": " + e);
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Flush and close the output file.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (this.binaryOutput != null)
+			this.binaryOutput.close();
+		else
+			this.csvOutput.close();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the name of the trace file of one of several registrations
+	 * sharing a trace file name, by inserting a label and an index before
+	 * the extension (e.g. "trace.csv" becomes "trace_job00003.csv"), so
+	 * that every registration writes its own file.
+	 *
+	 * @param fileName shared trace file name
+	 * @param label kind of registration (e.g. "job" or "slice")
+	 * @param index index of the registration
+	 * @return trace file name of the registration
+	 */
+	public static String getIndexedFileName(final String fileName, final String label, final int index)
+	{
+		final int separator = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf(File.separatorChar));
+		int dot = fileName.lastIndexOf('.');
+		if (dot <= separator + 1)
+			dot = fileName.length();
+		return fileName.substring(0, dot) + String.format("_%s%05d", label, index) + fileName.substring(dot);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Read a binary optimization trace.
+	 *
+	 * @param fileName binary trace file name
+	 * @return one array per record, with the values in the order of {@link #CSV_HEADER}
+	 * @throws IOException if the file cannot be read or is not a binary trace
+	 */
+	public static List<double[]> readBinary(final String fileName) throws IOException
+	{
+		final List<double[]> records = new ArrayList<double[]>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16)))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(fileName + " is not a bUnwarpJ optimization trace (version " + VERSION + ")");
+			while (true)
+			{
+				final double[] record = new double[12];
+				try
+				{
+					record[0] = in.readInt();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				record[1] = in.readInt();
+				record[2] = in.readInt();
+				for (int i = 3; i < 10; i++)
+					record[i] = in.readDouble();
+				record[10] = in.readByte();
+				record[11] = in.readLong();
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+} // end class OptimizationTraceWriter
@@ -106,6 +106,23 @@ public class Param {
 	 * which makes it appear that the error is going down.
 	 */
 	private double optimizationImageDecreaseThresh = DEFAULT_OPTIM_IMG_THRESH;
+
+	/**
+	 * maximum number of threads used by each registration (0 to use all available processors)
+	 */
+	private int numThreads = 0;
+
+	/**
+	 * file receiving the per-iteration optimizer records of each registration
+	 * (null for no trace, CSV if the name ends with ".csv", binary otherwise)
+	 */
+	private String optimizationTraceFile = null;
+
+	/**
+	 * listener receiving the progress and diagnostic messages of the batch
+	 * registrations run with these parameters (none by default)
+	 */
+	private RegistrationListener registrationListener = RegistrationListener.NONE;
 	
 	/**
 	 * Empty constructor
@@ -119,6 +136,12 @@ public class Param {
 		this(otherParam.mode, otherParam.img_subsamp_fact, otherParam.min_scale_deformation, otherParam.max_scale_deformation,
 				otherParam.divWeight, otherParam.curlWeight, otherParam.landmarkWeight, otherParam.imageWeight,
 				otherParam.consistencyWeight, otherParam.stopThreshold, otherParam.optimizationImageDecreaseThresh);
+		this.shearCorrection = otherParam.shearCorrection;
+		this.scaleCorrection = otherParam.scaleCorrection;
+		this.anisotropyCorrection = otherParam.anisotropyCorrection;
+		this.numThreads = otherParam.numThreads;
+		this.registrationListener = otherParam.registrationListener;
+		// the trace file is not copied: each registration needs its own file
 	}
 
 	/**
@@ -266,4 +289,65 @@ public class Param {
 	public void setOptimizationImageDecreaseThresh(double optimizationImageDecreaseThresh) {
 		this.optimizationImageDecreaseThresh = optimizationImageDecreaseThresh;
 	}
+
+	public int getNumberOfThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Set the maximum number of threads used by each registration.
+	 *
+	 * @param numThreads number of threads (0 to use all available processors)
+	 */
+	public void setNumberOfThreads(int numThreads) {
+		this.numThreads = Math.max(numThreads, 0);
+	}
+
+	public String getOptimizationTraceFile() {
+		return optimizationTraceFile;
+	}
+
+	/**
+	 * Set the file receiving the per-iteration optimizer records of the
+	 * batch registration run with these parameters (see
+	 * {@link OptimizationTraceWriter}). Each registration overwrites it, so
+	 * it is not copied by {@link #Param(Param)}: {@link BatchRegistration}
+	 * and {@link StackRegistration} write one file per job or slice instead
+	 * (see {@link OptimizationTraceWriter#getIndexedFileName}).
+	 *
+	 * @param optimizationTraceFile trace file name (null for no trace, CSV if it ends with ".csv", binary otherwise)
+	 */
+	public void setOptimizationTraceFile(String optimizationTraceFile) {
+		this.optimizationTraceFile = optimizationTraceFile;
+	}
+
+	public RegistrationListener getRegistrationListener() {
+		return registrationListener;
+	}
+
+	/**
+	 * Set the listener receiving the progress and diagnostic messages of
+	 * the batch registrations run with these parameters (pyramid
+	 * construction, optimization and final errors). The listener is shared
+	 * by the copies of these parameters.
+	 *
+	 * @param registrationListener registration listener (null for {@link RegistrationListener#NONE})
+	 */
+	public void setRegistrationListener(RegistrationListener registrationListener) {
+		this.registrationListener = (registrationListener != null) ? registrationListener : RegistrationListener.NONE;
+	}
+
+	/**
+	 * Estimate the peak heap memory needed to register a pair of images
+	 * with these parameters (see {@link Transformation#estimatePeakMemory}).
+	 *
+	 * @param targetWidth target image width
+	 * @param targetHeight target image height
+	 * @param sourceWidth source image width
+	 * @param sourceHeight source image height
+	 * @return estimated peak memory in bytes
+	 */
+	public long estimatePeakMemory(int targetWidth, int targetHeight, int sourceWidth, int sourceHeight) {
+		return Transformation.estimatePeakMemory(targetWidth, targetHeight, sourceWidth, sourceHeight, this);
+	}
 } // end class Param
@@ -51,7 +51,9 @@ import ij.IJ;
 
 /**
  * This class implements the interactions when dealing with ImageJ's
- * progress bar.
+ * progress bar (or any other {@link RegistrationListener}). Each registration owns its own instance (see
+ * {@link RegistrationContext}), so concurrent registrations do not
+ * share their workload counters.
  */
 public class ProgressBar
 { /* begin class ProgressBar */
@@ -65,28 +67,57 @@ public class ProgressBar
      */
     private static final long TIME_QUANTUM = 50L;
 
-    private static volatile long lastTime = System.currentTimeMillis();
-    private static volatile int completed = 0;
-    private static volatile int workload = 0;
+    /**
+     * Instance used by the deprecated static methods.
+     */
+    private static final ProgressBar sharedInstance = new ProgressBar(new ImageJRegistrationListener());
+
+    /**
+     * Listener the progress is reported to.
+     */
+    private final RegistrationListener listener;
+
+    private long lastTime = System.currentTimeMillis();
+    private int completed = 0;
+    private int workload = 0;
 
     /*....................................................................
        Public methods
     ....................................................................*/
 
+    /**
+     * Create a progress bar with no workload that reports nowhere
+     * (see {@link RegistrationListener#NONE}).
+     */
+    public ProgressBar()
+    {
+       this(RegistrationListener.NONE);
+    }
+
+    /**
+     * Create a progress bar with no workload.
+     *
+     * @param listener listener the progress is reported to
+     */
+    public ProgressBar(final RegistrationListener listener)
+    {
+       this.listener = listener;
+    }
+
     /**
      * Extend the amount of work to perform by <code>batch</code>.
      *
      * @param batch Additional amount of work that need be performed.
      */
-    public static synchronized void addWorkload (final int batch)
+    public synchronized void addWork (final int batch)
     {
        workload += batch;
-    } /* end addWorkload */
+    } /* end addWork */
 
     /**
      * Erase the progress bar and cancel pending operations.
      */
-    public static synchronized void resetProgressBar ()
+    public synchronized void reset ()
     {
        final long timeStamp = System.currentTimeMillis();
        if ((timeStamp - lastTime) < TIME_QUANTUM) {
@@ -99,43 +130,104 @@ public class ProgressBar
        lastTime = timeStamp;
        completed = 0;
        workload = 0;
-       IJ.showProgress(1.0);
-    } /* end resetProgressBar */
+       listener.showProgress(1.0);
+    } /* end reset */
 
     /**
      * Perform <code>stride</code> operations at once.
      *
      * @param stride Amount of work that is skipped.
      */
-    public static synchronized void skipProgressBar (final int stride)
+    public synchronized void skip (final int stride)
     {
        completed += stride - 1;
-       stepProgressBar();
-    } /* end skipProgressBar */
+       step();
+    } /* end skip */
 
     /**
      * Perform <code>1</code> operation unit.
      */
-    public static synchronized void stepProgressBar ()
+    public synchronized void step ()
     {
        final long timeStamp = System.currentTimeMillis();
        completed = completed + 1;
        if ((TIME_QUANTUM <= (timeStamp - lastTime)) | (completed == workload)) {
           lastTime = timeStamp;
-          IJ.showProgress((double)completed / (double)workload);
+          listener.showProgress((double)completed / (double)workload);
        }
-    } /* end stepProgressBar */
+    } /* end step */
 
     /**
      * Acknowledge that <code>batch</code> work has been performed.
      *
      * @param batch Completed amount of work.
      */
-    public static synchronized void workloadDone (final int batch)
+    public synchronized void done (final int batch)
     {
        workload -= batch;
        completed -= batch;
+    } /* end done */
+
+    /*....................................................................
+       Deprecated static methods (shared by every caller)
+    ....................................................................*/
+
+    /**
+     * Extend the amount of work to perform by <code>batch</code>.
+     *
+     * @param batch Additional amount of work that need be performed.
+     * @deprecated use {@link #addWork(int)} on the registration progress bar
+     */
+    @Deprecated
+    public static void addWorkload (final int batch)
+    {
+       sharedInstance.addWork(batch);
+    } /* end addWorkload */
+
+    /**
+     * Erase the progress bar and cancel pending operations.
+     *
+     * @deprecated use {@link #reset()} on the registration progress bar
+     */
+    @Deprecated
+    public static void resetProgressBar ()
+    {
+       sharedInstance.reset();
+    } /* end resetProgressBar */
+
+    /**
+     * Perform <code>stride</code> operations at once.
+     *
+     * @param stride Amount of work that is skipped.
+     * @deprecated use {@link #skip(int)} on the registration progress bar
+     */
+    @Deprecated
+    public static void skipProgressBar (final int stride)
+    {
+       sharedInstance.skip(stride);
+    } /* end skipProgressBar */
+
+    /**
+     * Perform <code>1</code> operation unit.
+     *
+     * @deprecated use {@link #step()} on the registration progress bar
+     */
+    @Deprecated
+    public static void stepProgressBar ()
+    {
+       sharedInstance.step();
+    } /* end stepProgressBar */
+
+    /**
+     * Acknowledge that <code>batch</code> work has been performed.
+     *
+     * @param batch Completed amount of work.
+     * @deprecated use {@link #done(int)} on the registration progress bar
+     */
+    @Deprecated
+    public static void workloadDone (final int batch)
+    {
+       sharedInstance.done(batch);
     } /* end workloadDone */
 
 } /* end class ProgressBar */
-
@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*====================================================================
+|   RawTransformationInverter
+\===================================================================*/
+
+/**
+ * Inversion of raw transformations. A raw transformation gives, for every
+ * pixel of a grid, the coordinates of the corresponding point in the other
+ * image; the inverse gives, for every pixel of that other image, the
+ * coordinates of its preimage.
+ * <p>
+ * The transformation is considered bilinear inside every cell of four
+ * neighbouring samples. The inversion runs in three steps:
+ * <ol>
+ * <li>scatter: the cells are binned by the bands of inverse grid rows their
+ * image overlaps (spatial index), and each band is processed by its own
+ * thread, so the inverse pixels are written without synchronization;</li>
+ * <li>refinement: each inverse pixel covered by the image of a cell gets the
+ * exact preimage inside that cell, found with a few Newton iterations on
+ * the bilinear cell model;</li>
+ * <li>hole filling: the pixels covered by no cell (outside the image of the
+ * transformation, or in folded regions) are filled by a multigrid
+ * pyramid of the known values, so the inverse is always complete.</li>
+ * </ol>
+ */
+public final class RawTransformationInverter
+{
+	/** maximum number of Newton iterations per pixel */
+	private static final int MAX_ITERATIONS = 8;
+	/** convergence tolerance of the Newton iterations (in cell units) */
+	private static final double TOLERANCE = 1e-10;
+	/** tolerance on the cell borders, so pixels on shared edges are not lost */
+	private static final double BORDER_TOLERANCE = 1e-9;
+	/** number of row bands per thread (load balancing) */
+	private static final int BANDS_PER_THREAD = 4;
+
+	//------------------------------------------------------------------
+	/**
+	 * No instances: static methods only.
+	 */
+	private RawTransformationInverter()
+	{
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Invert a raw transformation. The size of the inverse grid is given by
+	 * the output arrays.
+	 *
+	 * @param transformation_x raw transformation in x- axis (input)
+	 * @param transformation_y raw transformation in y- axis (input)
+	 * @param inv_x inverse raw transformation in x- axis (output)
+	 * @param inv_y inverse raw transformation in y- axis (output)
+	 * @return number of inverse pixels filled by interpolation (not covered
+	 *         by the transformation), or -1 if the parameters are wrong
+	 */
+	public static int invert(
+			double [][] transformation_x,
+			double [][] transformation_y,
+			double [][] inv_x,
+			double [][] inv_y)
+	{
+		if(inv_x == null || inv_y == null || transformation_x == null || transformation_y == null)
+		{
+			IJ.error("Error in transformations parameters!");
+			return -1;
+		}
+
+		final int width = transformation_x[0].length;
+		final int height = transformation_x.length;
+		final int invWidth = inv_x[0].length;
+		final int invHeight = inv_x.length;
+
+		final double[] ix = new double[invWidth * invHeight];
+		final double[] iy = new double[invWidth * invHeight];
+		final boolean[] known = new boolean[invWidth * invHeight];
+
+		if (width > 1 && height > 1)
+			scatterCells(transformation_x, transformation_y, ix, iy, known, invWidth, invHeight);
+		else
+			scatterSamples(transformation_x, transformation_y, ix, iy, known, invWidth, invHeight);
+
+		final int holes = fillHoles(ix, iy, known, invWidth, invHeight);
+
+		for (int v = 0; v < invHeight; v++)
+		{
+			System.arraycopy(ix, v * invWidth, inv_x[v], 0, invWidth);
+			System.arraycopy(iy, v * invWidth, inv_y[v], 0, invWidth);
+		}
+		return holes;
+	} // end invert
+
+	//------------------------------------------------------------------
+	/**
+	 * Scatter the cells of the transformation into the inverse grid (in
+	 * parallel, one band of inverse rows per task).
+	 *
+	 * @param tx raw transformation in x- axis
+	 * @param ty raw transformation in y- axis
+	 * @param ix output, inverse x- coordinates (row-major)
+	 * @param iy output, inverse y- coordinates (row-major)
+	 * @param known output, inverse pixels that got a preimage
+	 * @param invWidth inverse grid width
+	 * @param invHeight inverse grid height
+	 */
+	private static void scatterCells(
+			final double [][] tx,
+			final double [][] ty,
+			final double[] ix,
+			final double[] iy,
+			final boolean[] known,
+			final int invWidth,
+			final int invHeight)
+	{
+		final int cellsWidth = tx[0].length - 1;
+		final int cellsHeight = tx.length - 1;
+		final int nCells = cellsWidth * cellsHeight;
+
+		final int nproc = Runtime.getRuntime().availableProcessors();
+		final int nBands = Math.max(1, Math.min(invHeight, nproc * BANDS_PER_THREAD));
+		final int bandHeight = (invHeight + nBands - 1) / nBands;
+
+		// spatial index: cells overlapping each band of inverse rows
+		final int[] firstRow = new int[nCells];
+		final int[] lastRow = new int[nCells];
+		final int[] bandStart = new int[nBands + 1];
+		for (int c = 0; c < nCells; c++)
+		{
+			final int i = c / cellsWidth;
+			final int j = c % cellsWidth;
+			final double minY = Math.min(Math.min(ty[i][j], ty[i][j+1]), Math.min(ty[i+1][j], ty[i+1][j+1]));
+			final double maxY = Math.max(Math.max(ty[i][j], ty[i][j+1]), Math.max(ty[i+1][j], ty[i+1][j+1]));
+			firstRow[c] = (int) Math.max(0, Math.ceil(minY));
+			lastRow[c] = (int) Math.min(invHeight - 1, Math.floor(maxY));
+			// NaN coordinates and cells outside the grid are skipped
+			if (!(firstRow[c] <= lastRow[c]))
+			{
+				firstRow[c] = 1;
+				lastRow[c] = 0;
+				continue;
+			}
+			for (int b = firstRow[c] / bandHeight; b <= lastRow[c] / bandHeight; b++)
+				bandStart[b + 1]++;
+		}
+		for (int b = 0; b < nBands; b++)
+			bandStart[b + 1] += bandStart[b];
+		final int[] cells = new int[bandStart[nBands]];
+		final int[] fill = new int[nBands];
+		for (int c = 0; c < nCells; c++)
+			if (firstRow[c] <= lastRow[c])
+				for (int b = firstRow[c] / bandHeight; b <= lastRow[c] / bandHeight; b++)
+					cells[bandStart[b] + fill[b]++] = c;
+
+		// process the bands, one thread per processor
+		final AtomicInteger nextBand = new AtomicInteger(0);
+		final int nThreads = Math.min(nproc, nBands);
+		final Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++)
+		{
+			threads[t] = new Thread(() -> {
+				final double[] st = new double[2];
+				int b;
+				while ((b = nextBand.getAndIncrement()) < nBands)
+				{
+					final int rowStart = b * bandHeight;
+					final int rowEnd = Math.min(invHeight, rowStart + bandHeight);
+					for (int k = bandStart[b]; k < bandStart[b + 1]; k++)
+					{
+						final int c = cells[k];
+						final int i = c / cellsWidth;
+						final int j = c % cellsWidth;
+						final double minX = Math.min(Math.min(tx[i][j], tx[i][j+1]), Math.min(tx[i+1][j], tx[i+1][j+1]));
+						final double maxX = Math.max(Math.max(tx[i][j], tx[i][j+1]), Math.max(tx[i+1][j], tx[i+1][j+1]));
+						final int firstColumn = (int) Math.max(0, Math.ceil(minX));
+						final int lastColumn = (int) Math.min(invWidth - 1, Math.floor(maxX));
+						for (int q = Math.max(rowStart, firstRow[c]); q <= Math.min(rowEnd - 1, lastRow[c]); q++)
+							for (int p = firstColumn; p <= lastColumn; p++)
+							{
+								final int n = q * invWidth + p;
+								// first preimage wins in folded regions
+								if (known[n] || !solveCell(tx, ty, i, j, p, q, st))
+									continue;
+								ix[n] = j + st[0];
+								iy[n] = i + st[1];
+								known[n] = true;
+							}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (int t = 0; t < nThreads; t++)
+		{
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.error("Unexpected interruption exception " + e);
+			}
+		}
+	} // end scatterCells
+
+	//------------------------------------------------------------------
+	/**
+	 * Find the local coordinates of a point inside the bilinear model of a
+	 * cell with Newton iterations.
+	 *
+	 * @param tx raw transformation in x- axis
+	 * @param ty raw transformation in y- axis
+	 * @param i cell row (top sample)
+	 * @param j cell column (left sample)
+	 * @param x x- point coordinate
+	 * @param y y- point coordinate
+	 * @param st output, local coordinates (s, t) in [0, 1]
+	 * @return true if the point is inside the cell
+	 */
+	static boolean solveCell(
+			double [][] tx,
+			double [][] ty,
+			int i,
+			int j,
+			double x,
+			double y,
+			double[] st)
+	{
+		final double ax = tx[i][j],   ay = ty[i][j];
+		final double bx = tx[i][j+1], by = ty[i][j+1];
+		final double cx = tx[i+1][j], cy = ty[i+1][j];
+		final double dx = tx[i+1][j+1], dy = ty[i+1][j+1];
+
+		double s = 0.5, t = 0.5;
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++)
+		{
+			// residual of the bilinear model
+			final double fx = (1-s)*(1-t)*ax + s*(1-t)*bx + (1-s)*t*cx + s*t*dx - x;
+			final double fy = (1-s)*(1-t)*ay + s*(1-t)*by + (1-s)*t*cy + s*t*dy - y;
+			// Jacobian
+			final double xs = (1-t)*(bx-ax) + t*(dx-cx);
+			final double ys = (1-t)*(by-ay) + t*(dy-cy);
+			final double xt = (1-s)*(cx-ax) + s*(dx-bx);
+			final double yt = (1-s)*(cy-ay) + s*(dy-by);
+			final double det = xs*yt - xt*ys;
+			if (det == 0 || Double.isNaN(det))
+				return false;
+			final double ds = ( yt*fx - xt*fy) / det;
+			final double dt = (-ys*fx + xs*fy) / det;
+			s -= ds;
+			t -= dt;
+			if (Math.abs(ds) + Math.abs(dt) < TOLERANCE)
+				break;
+		}
+		if (s < -BORDER_TOLERANCE || s > 1 + BORDER_TOLERANCE
+				|| t < -BORDER_TOLERANCE || t > 1 + BORDER_TOLERANCE)
+			return false;
+		st[0] = Math.min(1, Math.max(0, s));
+		st[1] = Math.min(1, Math.max(0, t));
+		return true;
+	} // end solveCell
+
+	//------------------------------------------------------------------
+	/**
+	 * Scatter the samples of a transformation without cells (single row or
+	 * column) to the closest inverse pixels.
+	 *
+	 * @param tx raw transformation in x- axis
+	 * @param ty raw transformation in y- axis
+	 * @param ix output, inverse x- coordinates (row-major)
+	 * @param iy output, inverse y- coordinates (row-major)
+	 * @param known output, inverse pixels that got a preimage
+	 * @param invWidth inverse grid width
+	 * @param invHeight inverse grid height
+	 */
+	private static void scatterSamples(
+			double [][] tx,
+			double [][] ty,
+			double[] ix,
+			double[] iy,
+			boolean[] known,
+			int invWidth,
+			int invHeight)
+	{
+		for (int i = 0; i < tx.length; i++)
+			for (int j = 0; j < tx[0].length; j++)
+			{
+				final long p = Math.round(tx[i][j]);
+				final long q = Math.round(ty[i][j]);
+				if (p >= 0 && p < invWidth && q >= 0 && q < invHeight)
+				{
+					final int n = (int) q * invWidth + (int) p;
+					ix[n] = j;
+					iy[n] = i;
+					known[n] = true;
+				}
+			}
+	} // end scatterSamples
+
+	//------------------------------------------------------------------
+	/**
+	 * Fill the unknown pixels of the inverse by multigrid: the known values
+	 * are averaged into a pyramid of half-size grids until a level has no
+	 * unknown pixel, then every unknown pixel is interpolated (bilinearly)
+	 * from the completed coarser level. If no pixel is known at all, the
+	 * identity is used.
+	 *
+	 * @param ix inverse x- coordinates (row-major), completed in place
+	 * @param iy inverse y- coordinates (row-major), completed in place
+	 * @param known pixels with a value
+	 * @param width grid width
+	 * @param height grid height
+	 * @return number of filled pixels
+	 */
+	private static int fillHoles(
+			double[] ix,
+			double[] iy,
+			boolean[] known,
+			int width,
+			int height)
+	{
+		int holes = 0;
+		for (int n = 0; n < known.length; n++)
+			if (!known[n])
+				holes++;
+		if (holes == 0)
+			return 0;
+		if (holes == known.length)
+		{
+			for (int n = 0; n < known.length; n++)
+			{
+				ix[n] = n % width;
+				iy[n] = n / width;
+			}
+			return holes;
+		}
+
+		// restriction: average of the known children
+		final int coarseWidth = (width + 1) / 2;
+		final int coarseHeight = (height + 1) / 2;
+		final double[] cx = new double[coarseWidth * coarseHeight];
+		final double[] cy = new double[coarseWidth * coarseHeight];
+		final boolean[] coarseKnown = new boolean[coarseWidth * coarseHeight];
+		for (int v = 0; v < coarseHeight; v++)
+			for (int u = 0; u < coarseWidth; u++)
+			{
+				double sx = 0, sy = 0;
+				int k = 0;
+				for (int dv = 0; dv < 2; dv++)
+					for (int du = 0; du < 2; du++)
+					{
+						final int y = 2 * v + dv, x = 2 * u + du;
+						if (y < height && x < width && known[y * width + x])
+						{
+							sx += ix[y * width + x];
+							sy += iy[y * width + x];
+							k++;
+						}
+					}
+				if (k > 0)
+				{
+					cx[v * coarseWidth + u] = sx / k;
+					cy[v * coarseWidth + u] = sy / k;
+					coarseKnown[v * coarseWidth + u] = true;
+				}
+			}
+
+		// complete the coarser level (recursively)
+		fillHoles(cx, cy, coarseKnown, coarseWidth, coarseHeight);
+
+		// prolongation: bilinear interpolation of the coarser level
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+			{
+				final int n = y * width + x;
+				if (known[n])
+					continue;
+				final double u = Math.min(coarseWidth - 1, Math.max(0, (x + 0.5) / 2 - 0.5));
+				final double v = Math.min(coarseHeight - 1, Math.max(0, (y + 0.5) / 2 - 0.5));
+				final int u0 = (int) u, v0 = (int) v;
+				final int u1 = Math.min(coarseWidth - 1, u0 + 1), v1 = Math.min(coarseHeight - 1, v0 + 1);
+				final double a = u - u0, b = v - v0;
+				ix[n] = (1-b) * ((1-a) * cx[v0 * coarseWidth + u0] + a * cx[v0 * coarseWidth + u1])
+						+ b * ((1-a) * cx[v1 * coarseWidth + u0] + a * cx[v1 * coarseWidth + u1]);
+				iy[n] = (1-b) * ((1-a) * cy[v0 * coarseWidth + u0] + a * cy[v0 * coarseWidth + u1])
+						+ b * ((1-a) * cy[v1 * coarseWidth + u0] + a * cy[v1 * coarseWidth + u1]);
+			}
+		return holes;
+	} // end fillHoles
+
+} // end class RawTransformationInverter
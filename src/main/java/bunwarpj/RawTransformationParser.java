@@ -0,0 +1,694 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/*====================================================================
+|   RawTransformationParser
+\===================================================================*/
+
+/**
+ * Streaming parser for raw transformations in text format (as written by
+ * {@link MiscTools#saveRawTransformation}). The file is read through large
+ * NIO buffers and the coordinates are scanned byte by byte, without
+ * creating a string per line or per token. Numbers with up to 15-16
+ * significant digits and small exponents are converted exactly with a
+ * single floating-point operation; longer ones fall back on
+ * {@link Double#parseDouble}, so the values are always identical to the
+ * ones written.
+ * <p>
+ * Large files are parsed with one thread per block (x- and y-
+ * coordinates); a failure of the y- block thread is rethrown in the
+ * calling thread. Malformed lines do not stop the parsing: their missing or
+ * unreadable coordinates are set to NaN (which maps the target pixel
+ * outside the source image) and the first lines are reported in the log.
+ */
+final class RawTransformationParser
+{
+	/** size of the read buffer */
+	private static final int BUFFER_SIZE = 1 << 20;
+	/** minimum file size to parse the x- and y- blocks in parallel */
+	private static final long PARALLEL_THRESHOLD = 4 << 20;
+	/** maximum number of malformed lines reported per block */
+	private static final int MAX_REPORTED_LINES = 10;
+	/** length of the tokens written by saveRawTransformation (padding and separator included) */
+	private static final int TOKEN_WIDTH = 22;
+	/** largest integer exactly representable as a double */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	/** powers of ten exactly representable as doubles */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/** transformation file name */
+	private final String filename;
+	/** output x- transformation coordinates (two-dimensional version) */
+	private final double[][] transformation_x;
+	/** output y- transformation coordinates (two-dimensional version) */
+	private final double[][] transformation_y;
+	/** output x- transformation coordinates (row-major version) */
+	private final double[] flat_x;
+	/** output y- transformation coordinates (row-major version) */
+	private final double[] flat_y;
+	/** transformation width read from the header */
+	private int width;
+	/** transformation height read from the header */
+	private int height;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a parser.
+	 *
+	 * @param filename transformation file name
+	 * @param transformation_x output x- coordinates (two-dimensional, or null)
+	 * @param transformation_y output y- coordinates (two-dimensional, or null)
+	 * @param flat_x output x- coordinates (row-major, or null)
+	 * @param flat_y output y- coordinates (row-major, or null)
+	 */
+	private RawTransformationParser(
+			String filename,
+			double[][] transformation_x,
+			double[][] transformation_y,
+			double[] flat_x,
+			double[] flat_y)
+	{
+		this.filename = filename;
+		this.transformation_x = transformation_x;
+		this.transformation_y = transformation_y;
+		this.flat_x = flat_x;
+		this.flat_y = flat_y;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Parse a raw transformation file into two-dimensional arrays.
+	 *
+	 * @param filename transformation file name
+	 * @param transformation_x output x- transformation coordinates
+	 * @param transformation_y output y- transformation coordinates
+	 * @param parallel allow parsing the x- and y- blocks in parallel
+	 * @return true if the whole file was read without malformed lines
+	 */
+	static boolean parse(
+			String filename,
+			double[][] transformation_x,
+			double[][] transformation_y,
+			boolean parallel)
+	{
+		return new RawTransformationParser(filename, transformation_x,
+				transformation_y, null, null).parse(parallel);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Parse a raw transformation file into row-major arrays.
+	 *
+	 * @param filename transformation file name
+	 * @param transformation_x output x- transformation coordinates
+	 * @param transformation_y output y- transformation coordinates
+	 * @param parallel allow parsing the x- and y- blocks in parallel
+	 * @return true if the whole file was read without malformed lines
+	 */
+	static boolean parse(
+			String filename,
+			double[] transformation_x,
+			double[] transformation_y,
+			boolean parallel)
+	{
+		return new RawTransformationParser(filename, null, null,
+				transformation_x, transformation_y).parse(parallel);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Parse the file.
+	 *
+	 * @param parallel allow parsing the x- and y- blocks in parallel
+	 * @return true if the whole file was read without malformed lines
+	 */
+	private boolean parse(boolean parallel)
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(this.filename), StandardOpenOption.READ))
+		{
+			final Scanner scanner = new Scanner(channel, 0);
+			if (!readHeader(scanner))
+				return false;
+
+			// Skip next 2 lines
+			scanner.skipLine();
+			scanner.skipLine();
+			final long xStart = scanner.position();
+			final int firstXLine = 5;
+			final int firstYLine = firstXLine + this.height + 2;
+
+			final Block xBlock = new Block(true, firstXLine);
+			final Block yBlock = new Block(false, firstYLine);
+
+			if (parallel && channel.size() >= PARALLEL_THRESHOLD
+					&& Runtime.getRuntime().availableProcessors() > 1)
+			{
+				// Parse the y- block in another thread, from its own channel
+				final Throwable[] yFailure = new Throwable[1];
+				final Thread yThread = new Thread(() -> {
+					try (FileChannel yChannel = FileChannel.open(Paths.get(this.filename), StandardOpenOption.READ))
+					{
+						final long yHeader = findYHeader(yChannel, xStart);
+						if (yHeader < 0)
+							yBlock.missing();
+						else
+						{
+							final Scanner yScanner = new Scanner(yChannel, yHeader);
+							yScanner.skipLine();
+							yBlock.parse(yScanner);
+						}
+					}
+					catch (Throwable t)
+					{
+						yFailure[0] = t;
+					}
+				}, "bUnwarpJ raw transformation parser");
+				yThread.start();
+				xBlock.parse(scanner);
+				try {
+					yThread.join();
+				} catch (InterruptedException e) {
+					IJ.error("Unexpected interruption exception " + e);
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				// Rethrow the failure of the y- block in the calling thread
+				if (yFailure[0] instanceof IOException)
+					throw (IOException) yFailure[0];
+				if (yFailure[0] instanceof RuntimeException)
+					throw (RuntimeException) yFailure[0];
+				if (yFailure[0] instanceof Error)
+					throw (Error) yFailure[0];
+			}
+			else
+			{
+				xBlock.parse(scanner);
+				// Skip next 2 lines
+				scanner.skipLine();
+				scanner.skipLine();
+				yBlock.parse(scanner);
+			}
+
+			xBlock.report();
+			yBlock.report();
+			return xBlock.malformedLines == 0 && yBlock.malformedLines == 0;
+		}
+		catch (NoSuchFileException e)
+		{
+			IJ.error("File not found exception" + e);
+			return false;
+		}
+		catch (IOException e)
+		{
+			IJ.error("IOException exception" + e);
+			return false;
+		}
+		catch (NumberFormatException e)
+		{
+			IJ.error("Number format exception" + e);
+			return false;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Read the width and height of the transformation and check that
+	 * they are valid and fit in the output arrays.
+	 *
+	 * @param scanner scanner positioned at the beginning of the file
+	 * @return true if the header is valid
+	 * @throws IOException if the file cannot be read
+	 */
+	private boolean readHeader(Scanner scanner) throws IOException
+	{
+		// Read width
+		String line = scanner.readLine();
+		StringTokenizer st = new StringTokenizer(line == null ? "" : line, "=");
+		if (st.countTokens() != 2)
+		{
+			IJ.log("Line 1+: Cannot read transformation width");
+			return false;
+		}
+		st.nextToken();
+		this.width = Integer.parseInt(st.nextToken().trim());
+
+		// Read height
+		line = scanner.readLine();
+		st = new StringTokenizer(line == null ? "" : line, "=");
+		if (st.countTokens() != 2)
+		{
+			IJ.log("Line 2+: Cannot read transformation height");
+			return false;
+		}
+		st.nextToken();
+		this.height = Integer.parseInt(st.nextToken().trim());
+
+		if (this.width < 0 || this.height < 0)
+		{
+			IJ.error("Invalid raw transformation size (" + this.width + "x" + this.height
+					+ ") in " + this.filename);
+			return false;
+		}
+
+		final boolean fits = this.flat_x != null
+				? this.flat_x.length >= (long) this.width * this.height
+					&& this.flat_y.length >= (long) this.width * this.height
+				: this.transformation_x.length >= this.height
+					&& this.transformation_y.length >= this.height
+					&& (this.height == 0 || (this.transformation_x[0].length >= this.width
+					&& this.transformation_y[0].length >= this.width));
+		if (!fits)
+		{
+			IJ.error("Raw transformation " + this.filename + " (" + this.width + "x" + this.height
+					+ ") does not fit in the output arrays");
+			return false;
+		}
+		return true;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Find the header line of the y- block. The files written by
+	 * saveRawTransformation have fixed-width tokens, so its position is
+	 * checked first; otherwise the file is scanned for the first line
+	 * starting with 'Y' (coordinates never contain it).
+	 *
+	 * @param channel channel of the file
+	 * @param xStart position of the first line of the x- block
+	 * @return position of the y- block header, or -1 if not found
+	 * @throws IOException if the file cannot be read
+	 */
+	private long findYHeader(FileChannel channel, long xStart) throws IOException
+	{
+		final long predicted = xStart + (long) this.height * (TOKEN_WIDTH * (long) this.width + 1) + 1;
+		final ByteBuffer probe = ByteBuffer.allocate(2);
+		if (predicted < channel.size())
+		{
+			while (probe.hasRemaining() && channel.read(probe, predicted - 1 + probe.position()) > 0);
+			if (probe.get(0) == '\n' && probe.get(1) == 'Y')
+				return predicted;
+		}
+
+		final Scanner scanner = new Scanner(channel, xStart);
+		int previous = '\n';
+		for (int c = scanner.read(); c >= 0; c = scanner.read())
+		{
+			if (c == 'Y' && previous == '\n')
+				return scanner.position() - 1;
+			previous = c;
+		}
+		return -1;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy a parsed row into the output arrays.
+	 *
+	 * @param xAxis true for the x- block, false for the y- block
+	 * @param i row
+	 * @param row parsed coordinates
+	 */
+	private void storeRow(boolean xAxis, int i, double[] row)
+	{
+		if (this.flat_x != null)
+			System.arraycopy(row, 0, xAxis ? this.flat_x : this.flat_y, i * this.width, this.width);
+		else
+			System.arraycopy(row, 0, xAxis ? this.transformation_x[i] : this.transformation_y[i], 0, this.width);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Convert a token into a double.
+	 *
+	 * @param token token characters
+	 * @param length token length
+	 * @return value of the token
+	 * @throws NumberFormatException if the token is not a number
+	 */
+	static double parseDouble(byte[] token, int length)
+	{
+		int i = 0;
+		boolean negative = false;
+		if (length > 0 && (token[0] == '-' || token[0] == '+'))
+		{
+			negative = token[0] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean digits = false;
+		boolean exact = true;
+		for (; i < length && token[i] >= '0' && token[i] <= '9'; i++, digits = true)
+		{
+			if (mantissa < MAX_EXACT_MANTISSA)
+				mantissa = mantissa * 10 + (token[i] - '0');
+			else
+			{
+				exact = false;
+				exponent++;
+			}
+		}
+		if (i < length && token[i] == '.')
+			for (i++; i < length && token[i] >= '0' && token[i] <= '9'; i++, digits = true)
+			{
+				if (mantissa < MAX_EXACT_MANTISSA)
+				{
+					mantissa = mantissa * 10 + (token[i] - '0');
+					exponent--;
+				}
+				else
+					exact = false;
+			}
+		if (digits && i < length && (token[i] == 'E' || token[i] == 'e'))
+		{
+			i++;
+			boolean negativeExponent = false;
+			if (i < length && (token[i] == '-' || token[i] == '+'))
+			{
+				negativeExponent = token[i] == '-';
+				i++;
+			}
+			int e = 0;
+			final int start = i;
+			for (; i < length && token[i] >= '0' && token[i] <= '9'; i++)
+				if (e < 100000)
+					e = e * 10 + (token[i] - '0');
+			if (i == start)
+				digits = false;
+			exponent += negativeExponent ? -e : e;
+		}
+
+		// Exact conversion: both the mantissa and the power of ten are
+		// representable, so a single (correctly rounded) operation is needed
+		if (digits && i == length && exact && mantissa <= MAX_EXACT_MANTISSA
+				&& exponent >= -22 && exponent <= 22)
+		{
+			final double value = exponent < 0
+					? mantissa / POWERS_OF_TEN[-exponent]
+					: mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+		return Double.parseDouble(new String(token, 0, length, StandardCharsets.ISO_8859_1));
+	}
+
+	/*....................................................................
+		Block
+	....................................................................*/
+
+	/**
+	 * Block of coordinates (x- or y-) of the file.
+	 */
+	private final class Block
+	{
+		/** true for the x- block, false for the y- block */
+		private final boolean xAxis;
+		/** line number of the first row of the block */
+		private final int firstLine;
+		/** number of malformed lines */
+		private int malformedLines = 0;
+		/** messages of the first malformed lines */
+		private final List<String> messages = new ArrayList<String>();
+
+		/**
+		 * Create a block.
+		 *
+		 * @param xAxis true for the x- block, false for the y- block
+		 * @param firstLine line number of the first row of the block
+		 */
+		Block(boolean xAxis, int firstLine)
+		{
+			this.xAxis = xAxis;
+			this.firstLine = firstLine;
+		}
+
+		/**
+		 * Parse the rows of the block.
+		 *
+		 * @param scanner scanner positioned at the first row of the block
+		 * @throws IOException if the file cannot be read
+		 */
+		void parse(Scanner scanner) throws IOException
+		{
+			final int w = RawTransformationParser.this.width;
+			final double[] row = new double[w];
+			for (int i = 0; i < RawTransformationParser.this.height; i++)
+			{
+				final int line = this.firstLine + i;
+				final int count = scanner.parseRow(row);
+				if (count < 0)
+				{
+					malformed("Line " + line + ": unexpected end of file");
+					for (int k = i; k < RawTransformationParser.this.height; k++)
+					{
+						Arrays.fill(row, Double.NaN);
+						storeRow(this.xAxis, k, row);
+					}
+					return;
+				}
+				if (count != w)
+					malformed("Line " + line + ": expected " + w + " coordinates, found " + count);
+				else if (scanner.malformedTokens > 0)
+					malformed("Line " + line + ": " + scanner.malformedTokens + " malformed coordinates");
+				for (int j = count; j < w; j++)
+					row[j] = Double.NaN;
+				storeRow(this.xAxis, i, row);
+			}
+		}
+
+		/**
+		 * Mark the whole block as missing.
+		 */
+		void missing()
+		{
+			malformed("Cannot find the " + (this.xAxis ? "X" : "Y") + " transformation block");
+			final double[] row = new double[RawTransformationParser.this.width];
+			Arrays.fill(row, Double.NaN);
+			for (int i = 0; i < RawTransformationParser.this.height; i++)
+				storeRow(this.xAxis, i, row);
+		}
+
+		/**
+		 * Record a malformed line.
+		 *
+		 * @param message description of the problem
+		 */
+		private void malformed(String message)
+		{
+			if (this.malformedLines++ < MAX_REPORTED_LINES)
+				this.messages.add(message);
+		}
+
+		/**
+		 * Report the malformed lines in the log window.
+		 */
+		void report()
+		{
+			for (String message : this.messages)
+				IJ.log(message);
+			if (this.malformedLines > this.messages.size())
+				IJ.log((this.malformedLines - this.messages.size()) + " more malformed lines in the "
+						+ (this.xAxis ? "X" : "Y") + " block of " + RawTransformationParser.this.filename);
+			if (this.malformedLines > 0)
+				IJ.log("Missing or malformed coordinates of " + RawTransformationParser.this.filename
+						+ " were set to NaN");
+		}
+	} // end class Block
+
+	/*....................................................................
+		Scanner
+	....................................................................*/
+
+	/**
+	 * Byte scanner over a file channel.
+	 */
+	private static final class Scanner
+	{
+		/** channel of the file */
+		private final FileChannel channel;
+		/** read buffer */
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		/** content of the read buffer */
+		private final byte[] data = this.buffer.array();
+		/** current token */
+		private final byte[] token = new byte[64];
+		/** position in the file of the beginning of the buffer */
+		private long offset;
+		/** next position in the buffer */
+		private int position = 0;
+		/** number of valid bytes in the buffer */
+		private int limit = 0;
+		/** number of malformed tokens in the last parsed row */
+		int malformedTokens = 0;
+
+		/**
+		 * Create a scanner.
+		 *
+		 * @param channel channel of the file
+		 * @param start position in the file to start reading from
+		 */
+		Scanner(FileChannel channel, long start)
+		{
+			this.channel = channel;
+			this.offset = start;
+		}
+
+		/**
+		 * Get the position in the file of the next byte.
+		 *
+		 * @return position
+		 */
+		long position()
+		{
+			return this.offset + this.position;
+		}
+
+		/**
+		 * Read the next byte.
+		 *
+		 * @return next byte, or -1 at the end of the file
+		 * @throws IOException if the file cannot be read
+		 */
+		int read() throws IOException
+		{
+			if (this.position == this.limit && !fill())
+				return -1;
+			return this.data[this.position++] & 0xff;
+		}
+
+		/**
+		 * Refill the buffer.
+		 *
+		 * @return false at the end of the file
+		 * @throws IOException if the file cannot be read
+		 */
+		private boolean fill() throws IOException
+		{
+			this.offset += this.limit;
+			this.position = 0;
+			this.limit = 0;
+			this.buffer.clear();
+			int read;
+			do
+				read = this.channel.read(this.buffer, this.offset);
+			while (read == 0);
+			if (read < 0)
+				return false;
+			this.limit = read;
+			return true;
+		}
+
+		/**
+		 * Read a line of text.
+		 *
+		 * @return line without the end of line, or null at the end of the file
+		 * @throws IOException if the file cannot be read
+		 */
+		String readLine() throws IOException
+		{
+			int c = read();
+			if (c < 0)
+				return null;
+			final StringBuilder line = new StringBuilder();
+			for (; c >= 0 && c != '\n'; c = read())
+				if (c != '\r')
+					line.append((char) c);
+			return line.toString();
+		}
+
+		/**
+		 * Skip a line.
+		 *
+		 * @throws IOException if the file cannot be read
+		 */
+		void skipLine() throws IOException
+		{
+			for (int c = read(); c >= 0 && c != '\n'; c = read());
+		}
+
+		/**
+		 * Parse a row of coordinates.
+		 *
+		 * @param row output coordinates (extra coordinates are discarded,
+		 *        malformed ones are set to NaN)
+		 * @return number of coordinates in the line, or -1 at the end of the file
+		 * @throws IOException if the file cannot be read
+		 */
+		int parseRow(double[] row) throws IOException
+		{
+			this.malformedTokens = 0;
+			int c = read();
+			if (c < 0)
+				return -1;
+			int count = 0;
+			while (true)
+			{
+				while (c == ' ' || c == '\t' || c == '\r')
+					c = read();
+				if (c == '\n' || c < 0)
+					break;
+
+				int length = 0;
+				boolean overflow = false;
+				for (; c > ' '; c = read())
+					if (length < this.token.length)
+						this.token[length++] = (byte) c;
+					else
+						overflow = true;
+
+				double value = Double.NaN;
+				if (overflow)
+					this.malformedTokens++;
+				else
+				{
+					try {
+						value = parseDouble(this.token, length);
+					} catch (NumberFormatException e) {
+						this.malformedTokens++;
+					}
+				}
+				if (count < row.length)
+					row[count] = value;
+				count++;
+			}
+			return count;
+		}
+	} // end class Scanner
+
+} // end class RawTransformationParser
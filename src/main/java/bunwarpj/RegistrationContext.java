@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+/*====================================================================
+|   RegistrationContext
+\===================================================================*/
+
+/**
+ * Per-registration state: progress bar, dialog (if any) and the
+ * listener that receives the status and diagnostic messages. Each
+ * {@link Transformation} and each {@link BSplineModel} owns its context
+ * instead of sharing static state, so several registrations can run
+ * concurrently in the same JVM.
+ */
+public class RegistrationContext
+{
+	/** listener receiving the progress and diagnostic messages */
+	private final RegistrationListener listener;
+	/** progress bar of this registration */
+	private final ProgressBar progressBar;
+	/** pointer to the dialog of the bUnwarpJ interface (null in batch mode) */
+	private final MainDialog dialog;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a headless context with no dialog that ignores every
+	 * message (batch mode).
+	 */
+	public RegistrationContext()
+	{
+		this(null, RegistrationListener.NONE);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a context attached to the dialog of the bUnwarpJ interface,
+	 * reporting through the ImageJ UI.
+	 *
+	 * @param dialog pointer to the dialog of the bUnwarpJ interface (can be null)
+	 */
+	public RegistrationContext(final MainDialog dialog)
+	{
+		this(dialog, new ImageJRegistrationListener());
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a context.
+	 *
+	 * @param dialog pointer to the dialog of the bUnwarpJ interface (can be null)
+	 * @param listener listener receiving the progress and diagnostic messages
+	 */
+	public RegistrationContext(final MainDialog dialog, final RegistrationListener listener)
+	{
+		this.dialog = dialog;
+		this.listener = (listener != null) ? listener : RegistrationListener.NONE;
+		this.progressBar = new ProgressBar(this.listener);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the listener receiving the messages of this registration.
+	 *
+	 * @return registration listener
+	 */
+	public RegistrationListener getListener()
+	{
+		return this.listener;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the progress bar of this registration.
+	 *
+	 * @return progress bar
+	 */
+	public ProgressBar getProgressBar()
+	{
+		return this.progressBar;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the dialog of the bUnwarpJ interface.
+	 *
+	 * @return dialog or null in batch mode
+	 */
+	public MainDialog getDialog()
+	{
+		return this.dialog;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Check if the user asked to stop the registration.
+	 *
+	 * @return true if the registration must stop
+	 */
+	public boolean isStopRequested()
+	{
+		return this.dialog != null && this.dialog.isStopRegistrationSet();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Write a diagnostic message.
+	 *
+	 * @param message message to write
+	 */
+	public void log(final String message)
+	{
+		this.listener.log(message);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Show a status message.
+	 *
+	 * @param message status message
+	 */
+	public void showStatus(final String message)
+	{
+		this.listener.showStatus(message);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Show the progress of a task.
+	 *
+	 * @param progress progress between 0 and 1
+	 */
+	public void showProgress(final double progress)
+	{
+		this.listener.showProgress(progress);
+	}
+
+} // end class RegistrationContext
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+/*====================================================================
+|   RegistrationEvents
+\===================================================================*/
+
+/**
+ * Recorder of Java Flight Recorder events for the registration stages:
+ * pyramid construction, optimization levels, energy evaluations and
+ * transform applications. The JFR implementation is compiled for Java 11
+ * into the multi-release overlay of the jar (src/main/java11); when the JVM
+ * has no JFR support or does not see that overlay (Java 8 runtimes), a
+ * no-op recorder is used, so the event classes are never loaded.
+ * Every {@code begin*} method returns an opaque handle (null when the
+ * event is disabled) that must be passed to the matching {@code end*}
+ * method.
+ */
+abstract class RegistrationEvents
+{
+	/** recorder shared by all registrations */
+	static final RegistrationEvents INSTANCE = create();
+
+	//------------------------------------------------------------------
+	/**
+	 * Create the JFR recorder if the runtime supports it, or a no-op
+	 * recorder otherwise.
+	 *
+	 * @return event recorder
+	 */
+	private static RegistrationEvents create()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event");
+			return (RegistrationEvents) Class.forName("bunwarpj.JfrRegistrationEvents")
+					.getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable e)
+		{
+			return new RegistrationEvents() {};
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Start the construction of the pyramids of an image.
+	 *
+	 * @return event handle (null if disabled)
+	 */
+	Object beginPyramid() { return null; }
+
+	/**
+	 * Finish the construction of the pyramids of an image.
+	 *
+	 * @param event handle returned by {@link #beginPyramid()}
+	 * @param width image width (after sub-sampling)
+	 * @param height image height (after sub-sampling)
+	 * @param depth pyramid depth
+	 * @param isTarget true for the target image
+	 */
+	void endPyramid(Object event, int width, int height, int depth, boolean isTarget) {}
+
+	//------------------------------------------------------------------
+	/**
+	 * Start the optimization at one deformation scale and image depth.
+	 *
+	 * @return event handle (null if disabled)
+	 */
+	Object beginOptimizationLevel() { return null; }
+
+	/**
+	 * Finish the optimization at one deformation scale and image depth.
+	 *
+	 * @param event handle returned by {@link #beginOptimizationLevel()}
+	 * @param stage timings and counters of the level
+	 * @param iterations optimizer iterations
+	 * @param bidirectional true for the bidirectional optimizer
+	 */
+	void endOptimizationLevel(Object event, RegistrationMetrics.Stage stage, int iterations, boolean bidirectional) {}
+
+	//------------------------------------------------------------------
+	/**
+	 * Start an evaluation of the energy function.
+	 *
+	 * @return event handle (null if disabled)
+	 */
+	Object beginEnergyEvaluation() { return null; }
+
+	/**
+	 * Finish an evaluation of the energy function.
+	 *
+	 * @param event handle returned by {@link #beginEnergyEvaluation()}
+	 * @param intervals number of intervals of the deformation
+	 * @param width image width at the current depth
+	 * @param height image height at the current depth
+	 * @param iteration optimizer iteration
+	 * @param energy value of the energy function
+	 */
+	void endEnergyEvaluation(Object event, int intervals, int width, int height, int iteration, double energy) {}
+
+	//------------------------------------------------------------------
+	/**
+	 * Start the application of a transformation to an image.
+	 *
+	 * @return event handle (null if disabled)
+	 */
+	Object beginTransform() { return null; }
+
+	/**
+	 * Finish the application of a transformation to an image.
+	 *
+	 * @param event handle returned by {@link #beginTransform()}
+	 * @param kind kind of transformation and image
+	 * @param intervals number of intervals of the deformation (0 for raw transformations)
+	 * @param width output width
+	 * @param height output height
+	 */
+	void endTransform(Object event, String kind, int intervals, int width, int height) {}
+
+} // end class RegistrationEvents
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+/*====================================================================
+|   RegistrationListener
+\===================================================================*/
+
+/**
+ * Sink for the progress and diagnostic messages of a registration.
+ * Use {@link #NONE} for headless batch runs and
+ * {@link ImageJRegistrationListener} to report through the ImageJ UI.
+ */
+public interface RegistrationListener
+{
+	/** listener that ignores every message (headless batch runs) */
+	RegistrationListener NONE = new RegistrationListener()
+	{
+		@Override
+		public void log(String message) {}
+
+		@Override
+		public void showStatus(String message) {}
+
+		@Override
+		public void showProgress(double progress) {}
+	};
+
+	/**
+	 * Diagnostic message of the registration.
+	 *
+	 * @param message message to write
+	 */
+	void log(String message);
+
+	/**
+	 * Status message describing the current task.
+	 *
+	 * @param message status message
+	 */
+	void showStatus(String message);
+
+	/**
+	 * Progress of the current task.
+	 *
+	 * @param progress progress between 0 and 1
+	 */
+	void showProgress(double progress);
+
+	/**
+	 * Called when an optimization stage (deformation scale and image
+	 * depth) is finished. Does nothing by default.
+	 *
+	 * @param stage timings and counters of the finished stage
+	 */
+	default void stageFinished(RegistrationMetrics.Stage stage) {}
+
+	/**
+	 * Called when a registration is finished. Does nothing by default.
+	 *
+	 * @param metrics timings and counters of the registration
+	 */
+	default void registrationFinished(RegistrationMetrics metrics) {}
+
+} // end interface RegistrationListener
@@ -0,0 +1,262 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*====================================================================
+|   RegistrationMetrics
+\===================================================================*/
+
+/**
+ * Timings and counters of one registration: pyramid construction,
+ * optimization stages (one per deformation scale and image depth),
+ * energy evaluations, accepted and rejected Marquardt steps and the time
+ * spent in each term of the energy function and in the Hessian updates.
+ * All times are in nanoseconds. A new instance is created by every call
+ * to the registration methods of {@link Transformation}.
+ */
+public class RegistrationMetrics
+{
+	/** time spent building the source and target pyramids */
+	private long pyramidTime;
+	/** total time of the registration (optimization stages included) */
+	private long registrationTime;
+	/** number of energy function evaluations */
+	private int energyEvaluations;
+	/** number of accepted Marquardt steps */
+	private int acceptedSteps;
+	/** number of rejected Marquardt steps */
+	private int rejectedSteps;
+	/** time spent in the image similarity term */
+	private long similarityTime;
+	/** time spent in the regularization term */
+	private long regularizationTime;
+	/** time spent in the landmark term */
+	private long landmarkTime;
+	/** time spent in the consistency term */
+	private long consistencyTime;
+	/** time spent updating the Hessian (BFGS) */
+	private long hessianUpdateTime;
+	/** finished optimization stages */
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	/** start time of the registration */
+	private long registrationStart;
+	/** stage being optimized (null if none) */
+	private Stage currentStage;
+
+	/*....................................................................
+		Stage
+	....................................................................*/
+	/**
+	 * Timings and counters of the optimization at one deformation scale
+	 * and image depth.
+	 */
+	public static class Stage
+	{
+		/** number of intervals of the deformation */
+		private final int intervals;
+		/** depth of the image in the pyramid (0 is full size) */
+		private final int depth;
+		/** image width at this depth */
+		private final int width;
+		/** image height at this depth */
+		private final int height;
+		/** duration of the stage */
+		private long time;
+		/** energy evaluations of the stage */
+		private int energyEvaluations;
+		/** accepted Marquardt steps of the stage */
+		private int acceptedSteps;
+		/** rejected Marquardt steps of the stage */
+		private int rejectedSteps;
+
+		Stage(final int intervals, final int depth, final int width, final int height)
+		{
+			this.intervals = intervals;
+			this.depth = depth;
+			this.width = width;
+			this.height = height;
+		}
+
+		/** @return number of intervals of the deformation */
+		public int getIntervals() { return this.intervals; }
+		/** @return depth of the image in the pyramid (0 is full size) */
+		public int getDepth() { return this.depth; }
+		/** @return image width at this depth */
+		public int getWidth() { return this.width; }
+		/** @return image height at this depth */
+		public int getHeight() { return this.height; }
+		/** @return duration of the stage in nanoseconds */
+		public long getTime() { return this.time; }
+		/** @return energy evaluations of the stage */
+		public int getEnergyEvaluations() { return this.energyEvaluations; }
+		/** @return accepted Marquardt steps of the stage */
+		public int getAcceptedSteps() { return this.acceptedSteps; }
+		/** @return rejected Marquardt steps of the stage */
+		public int getRejectedSteps() { return this.rejectedSteps; }
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT,
+					"intervals=%d depth=%d size=%dx%d time=%.1fms evaluations=%d accepted=%d rejected=%d",
+					this.intervals, this.depth, this.width, this.height, this.time / 1e6,
+					this.energyEvaluations, this.acceptedSteps, this.rejectedSteps);
+		}
+	} // end class Stage
+
+	//------------------------------------------------------------------
+	/**
+	 * Start the registration clock.
+	 *
+	 * @param pyramidTime time spent building the source and target pyramids
+	 */
+	void start(final long pyramidTime)
+	{
+		this.pyramidTime = pyramidTime;
+		this.registrationStart = System.nanoTime();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Stop the registration clock.
+	 */
+	void finish()
+	{
+		this.registrationTime = System.nanoTime() - this.registrationStart;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Start an optimization stage.
+	 *
+	 * @param intervals number of intervals of the deformation
+	 * @param depth depth of the image in the pyramid
+	 * @param width image width at this depth
+	 * @param height image height at this depth
+	 */
+	void beginStage(final int intervals, final int depth, final int width, final int height)
+	{
+		this.currentStage = new Stage(intervals, depth, width, height);
+		this.currentStage.time = System.nanoTime();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Finish the current optimization stage.
+	 *
+	 * @return the finished stage (null if no stage was started)
+	 */
+	Stage endStage()
+	{
+		final Stage stage = this.currentStage;
+		if (stage == null)
+			return null;
+		stage.time = System.nanoTime() - stage.time;
+		this.stages.add(stage);
+		this.currentStage = null;
+		return stage;
+	}
+
+	//------------------------------------------------------------------
+	/** Count one evaluation of the energy function. */
+	void addEnergyEvaluation()
+	{
+		this.energyEvaluations++;
+		if (this.currentStage != null)
+			this.currentStage.energyEvaluations++;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Count one Marquardt step.
+	 *
+	 * @param accepted true if the step decreased the energy
+	 */
+	void addStep(final boolean accepted)
+	{
+		if (accepted)
+		{
+			this.acceptedSteps++;
+			if (this.currentStage != null)
+				this.currentStage.acceptedSteps++;
+		}
+		else
+		{
+			this.rejectedSteps++;
+			if (this.currentStage != null)
+				this.currentStage.rejectedSteps++;
+		}
+	}
+
+	//------------------------------------------------------------------
+	void addSimilarityTime(final long time) { this.similarityTime += time; }
+	void addRegularizationTime(final long time) { this.regularizationTime += time; }
+	void addLandmarkTime(final long time) { this.landmarkTime += time; }
+	void addConsistencyTime(final long time) { this.consistencyTime += time; }
+	void addHessianUpdateTime(final long time) { this.hessianUpdateTime += time; }
+
+	//------------------------------------------------------------------
+	/** @return time spent building the source and target pyramids (ns) */
+	public long getPyramidTime() { return this.pyramidTime; }
+	/** @return total time of the registration (ns), pyramid construction excluded */
+	public long getRegistrationTime() { return this.registrationTime; }
+	/** @return number of energy function evaluations */
+	public int getEnergyEvaluations() { return this.energyEvaluations; }
+	/** @return number of accepted Marquardt steps */
+	public int getAcceptedSteps() { return this.acceptedSteps; }
+	/** @return number of rejected Marquardt steps */
+	public int getRejectedSteps() { return this.rejectedSteps; }
+	/** @return time spent in the image similarity term (ns) */
+	public long getSimilarityTime() { return this.similarityTime; }
+	/** @return time spent in the regularization term (ns) */
+	public long getRegularizationTime() { return this.regularizationTime; }
+	/** @return time spent in the landmark term (ns) */
+	public long getLandmarkTime() { return this.landmarkTime; }
+	/** @return time spent in the consistency term (ns) */
+	public long getConsistencyTime() { return this.consistencyTime; }
+	/** @return time spent updating the Hessian (ns) */
+	public long getHessianUpdateTime() { return this.hessianUpdateTime; }
+	/** @return finished optimization stages, in execution order */
+	public List<Stage> getStages() { return Collections.unmodifiableList(this.stages); }
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+				"pyramids=%.1fms registration=%.1fms evaluations=%d accepted=%d rejected=%d"
+				+ " similarity=%.1fms regularization=%.1fms landmarks=%.1fms consistency=%.1fms hessian=%.1fms",
+				this.pyramidTime / 1e6, this.registrationTime / 1e6, this.energyEvaluations,
+				this.acceptedSteps, this.rejectedSteps, this.similarityTime / 1e6,
+				this.regularizationTime / 1e6, this.landmarkTime / 1e6, this.consistencyTime / 1e6,
+				this.hessianUpdateTime / 1e6));
+		for (Stage stage : this.stages)
+			sb.append("\n  ").append(stage);
+		return sb.toString();
+	}
+
+} // end class RegistrationMetrics
@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+
+/*====================================================================
+|   StackRegistration
+\===================================================================*/
+
+/**
+ * Serial-section registration of an image stack: every slice is registered
+ * (as source) to the previous slice (as target) and the resulting elastic
+ * transformations are written to disk as the stack is processed.
+ * <p>
+ * The image model of each slice is built only once: the pyramids of the
+ * next slice are computed in the background while the current pair is
+ * being registered, and the source model of a pair is reused as the
+ * target model of the following pair. Each registration is initialized
+ * with the deformation of the previous pair (warm start), since
+ * consecutive sections usually have very similar deformations.
+ */
+public class StackRegistration
+{
+	/** stack of serial sections */
+	private final ImageStack stack;
+	/** registration parameters */
+	private final Param parameter;
+	/** directory to write the transformations to (null to not write them) */
+	private final String outputDirectory;
+	/** flag to initialize each registration with the previous deformation */
+	private boolean warmStart = true;
+	/** transformation of the last registered pair */
+	private Transformation lastTransformation = null;
+
+	//------------------------------------------------------------------
+	/**
+	 * Create a stack registration.
+	 *
+	 * @param stack stack of serial sections
+	 * @param parameter registration parameters
+	 * @param outputDirectory directory to write the transformations to (null to not write them)
+	 */
+	public StackRegistration(
+			final ImageStack stack,
+			final Param parameter,
+			final String outputDirectory)
+	{
+		this.stack = stack;
+		this.parameter = parameter;
+		this.outputDirectory = outputDirectory;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Enable or disable the initialization of each registration with
+	 * the deformation of the previous pair of slices.
+	 *
+	 * @param warmStart true to initialize from the previous deformation
+	 */
+	public void setWarmStart(boolean warmStart)
+	{
+		this.warmStart = warmStart;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the transformation of the last registered pair of slices.
+	 *
+	 * @return last transformation (null if nothing was registered)
+	 */
+	public Transformation getLastTransformation()
+	{
+		return this.lastTransformation;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the name of the file where the transformation of a slice is written.
+	 *
+	 * @param outputDirectory output directory
+	 * @param slice slice number (1-based, the source of the pair)
+	 * @param inverse true for the inverse (target to source) transformation
+	 * @return transformation file name
+	 */
+	public static String getTransformationFileName(
+			final String outputDirectory,
+			final int slice,
+			final boolean inverse)
+	{
+		return outputDirectory + File.separator
+				+ String.format("slice_%05d_%s_transf.txt", slice, inverse ? "inverse" : "direct");
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Register every slice of the stack to the previous one.
+	 *
+	 * @return number of registered pairs of slices or -1 if error
+	 */
+	public int run()
+	{
+		if (this.stack == null || this.stack.getSize() < 2 || this.parameter == null)
+		{
+			IJ.error("Missing parameters to register the stack!");
+			return -1;
+		}
+		if (this.outputDirectory != null && !new File(this.outputDirectory).isDirectory())
+		{
+			IJ.error("Output directory " + this.outputDirectory + " does not exist!");
+			return -1;
+		}
+
+		final int nSlices = this.stack.getSize();
+		final int imagePyramidDepth = this.parameter.max_scale_deformation
+				- this.parameter.min_scale_deformation + 1;
+
+		long start = System.currentTimeMillis(); // start timing
+
+		SliceModel target = new SliceModel(1, imagePyramidDepth);
+		SliceModel source = new SliceModel(2, imagePyramidDepth);
+		Transformation previous = null;
+		int registered = 0;
+
+		for (int slice = 2; slice <= nSlices; slice++)
+		{
+			// Build the pyramids of the next slice while the current pair is registered
+			final SliceModel next = (slice < nSlices) ? new SliceModel(slice + 1, imagePyramidDepth) : null;
+
+			if (!target.join() || !source.join())
+				break;
+
+			IJ.log("Registering slice " + slice + " to slice " + (slice - 1) + " (" + (slice - 1)
+					+ "/" + (nSlices - 1) + ")...");
+
+			// Each pair writes its own optimization trace (if any)
+			Param pairParameter = this.parameter;
+			if (this.parameter.getOptimizationTraceFile() != null)
+			{
+				pairParameter = new Param(this.parameter);
+				pairParameter.setOptimizationTraceFile(OptimizationTraceWriter.getIndexedFileName(
+						this.parameter.getOptimizationTraceFile(), "slice", slice));
+			}
+
+			final Transformation warp = bUnwarpJ_.computeTransformationFromPyramids(
+					target.model, source.model, pairParameter, target.imp, source.imp,
+					target.mask, source.mask, target.ph, source.ph, null, null,
+					this.warmStart ? previous : null, null, null);
+
+			if (this.outputDirectory != null)
+				saveTransformation(warp, slice);
+
+			previous = warp;
+			registered++;
+
+			// The current source becomes the target of the next pair
+			source.model.resetPyramid();
+			target = source;
+			source = next;
+		}
+
+		long stop = System.currentTimeMillis(); // stop timing
+		IJ.log("Stack registration done! " + registered + " pairs registered in " + (stop - start) + "ms");
+
+		this.lastTransformation = previous;
+		return registered;
+	} // end run
+
+	//------------------------------------------------------------------
+	/**
+	 * Write the transformation of a pair of slices into the output directory.
+	 *
+	 * @param warp transformation of the pair
+	 * @param slice source slice of the pair
+	 */
+	private void saveTransformation(final Transformation warp, final int slice)
+	{
+		final int intervals = warp.getIntervals();
+		MiscTools.saveElasticTransformation(intervals,
+				warp.getDirectDeformationCoefficientsX(),
+				warp.getDirectDeformationCoefficientsY(),
+				getTransformationFileName(this.outputDirectory, slice, false));
+
+		if (this.parameter.mode != MainDialog.MONO_MODE)
+			MiscTools.saveElasticTransformation(intervals,
+					warp.getInverseDeformationCoefficientsX(),
+					warp.getInverseDeformationCoefficientsY(),
+					getTransformationFileName(this.outputDirectory, slice, true));
+	}
+
+	/*====================================================================
+	|   SliceModel
+	\===================================================================*/
+
+	/**
+	 * Image model, mask and landmarks of one slice of the stack. The
+	 * pyramids are built in a separate thread as soon as it is created.
+	 */
+	private class SliceModel
+	{
+		/** slice image */
+		final ImagePlus imp;
+		/** slice image model */
+		final BSplineModel model;
+		/** slice mask (the whole image) */
+		final Mask mask;
+		/** slice landmarks (none) */
+		final PointHandler ph;
+
+		/**
+		 * Create the model of a slice and start building its pyramids.
+		 *
+		 * @param slice slice number (1-based)
+		 * @param imagePyramidDepth depth of the image pyramid
+		 */
+		SliceModel(final int slice, final int imagePyramidDepth)
+		{
+			this.imp = new ImagePlus(stack.getSliceLabel(slice) == null ? "slice " + slice
+					: stack.getSliceLabel(slice), stack.getProcessor(slice));
+			this.model = new BSplineModel(this.imp.getProcessor(), true,
+					(int) Math.pow(2, parameter.img_subsamp_fact));
+			this.mask = new Mask(this.imp.getProcessor(), false);
+			this.ph = new PointHandler(this.imp);
+			this.model.setContext(new RegistrationContext(null, parameter.getRegistrationListener()));
+
+			this.model.setPyramidDepth(imagePyramidDepth);
+			this.model.startPyramids();
+		}
+
+		/**
+		 * Wait until the pyramids of the slice are built.
+		 *
+		 * @return false if the thread was interrupted
+		 */
+		boolean join()
+		{
+			try
+			{
+				this.model.getThread().join();
+			}
+			catch (InterruptedException e)
+			{
+				IJ.log("Unexpected interruption exception " + e);
+				return false;
+			}
+			return true;
+		}
+	} // end class SliceModel
+
+} // end class StackRegistration
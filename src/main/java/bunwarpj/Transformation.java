@@ -100,6 +100,13 @@ public class Transformation
 	 */
 	public static final double AUTOTUNE_DEFAULT_THRESH = 0.5;
 
+	/**
+	 * minimum number of points per thread in the batched
+	 * {@link #transform(double[], double[], double[], double[], boolean)}:
+	 * smaller batches are transformed in the calling thread
+	 */
+	private static final int MIN_POINTS_PER_THREAD = 4096;
+
 	/**
 	 * input param used in doUnidirectionalRegistration_AutoTune_Resolution to specify which parameter
 	 * of the resolution (min or max) to autotune
@@ -120,6 +127,8 @@ public class Transformation
 	private ImagePlus output_ip_2;
 	/** pointer to the dialog of the bUnwarpJ interface */
 	private MainDialog dialog;
+	/** per-registration state (progress bar, stop requests, status messages) */
+	private RegistrationContext context;
 
 	// Images
 	/** pointer to the source image representation */
@@ -273,6 +282,9 @@ public class Transformation
 	 */
 	private double imageSumDecreaseThreshold = 0.7;
 
+	/** maximum number of threads used to compute the similarity and the outputs */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
 	// Transformation estimate
 	/** number of intervals to place B-spline coefficients */
 	private int     intervals;
@@ -311,6 +323,24 @@ public class Transformation
 
 	/** the error value at each iteration of optimization */
 	private List<Double> optimizationErrorValues = new ArrayList<>();
+	/** timings and counters of the last registration */
+	private RegistrationMetrics metrics = new RegistrationMetrics();
+	/** sink of the per-iteration optimizer records (null if not traced) */
+	private OptimizationTrace optimizationTrace = null;
+	/** start time of the last registration, for the optimization trace */
+	private long traceStart;
+
+	// Warm start (initial deformation coefficients instead of the initial affine matrix)
+	/** number of intervals of the initial deformation coefficients (-1 if there are none) */
+	private int     initialIntervals = -1;
+	/** initial x- B-spline coefficients from target to source (full-resolution coordinates) */
+	private double  [][]initialCxTargetToSource = null;
+	/** initial y- B-spline coefficients from target to source (full-resolution coordinates) */
+	private double  [][]initialCyTargetToSource = null;
+	/** initial x- B-spline coefficients from source to target (full-resolution coordinates) */
+	private double  [][]initialCxSourceToTarget = null;
+	/** initial y- B-spline coefficients from source to target (full-resolution coordinates) */
+	private double  [][]initialCySourceToTarget = null;
 
 	/*....................................................................
        Public methods
@@ -404,6 +434,7 @@ public class Transformation
 		this.output_ip_1           		= output_ip_1;
 		this.output_ip_2           		= output_ip_2;
 		this.dialog                		= dialog;
+		this.context               		= new RegistrationContext(dialog);
 
 		this.originalSourceIP	  = this.dialog.getOriginalSourceIP();
 		this.originalTargetIP	  = this.dialog.getOriginalTargetIP();
@@ -505,6 +536,7 @@ public class Transformation
 		this.output_ip_1           		= output_ip_1;
 		this.output_ip_2           		= output_ip_2;
 		this.dialog                		= dialog;
+		this.context               		= new RegistrationContext(dialog);
 
 		this.originalSourceIP	  = originalSourceIP;
 		this.originalTargetIP	  = originalTargetIP;
@@ -580,6 +612,8 @@ public class Transformation
 		this.consistencyWeight     = parameters.consistencyWeight;
 		this.stopThreshold         = parameters.stopThreshold;
 		this.imageSumDecreaseThreshold = parameters.getOptimizationImageDecreaseThresh();
+		if (parameters.getNumberOfThreads() > 0)
+			this.numThreads = parameters.getNumberOfThreads();
 		this.outputLevel           = outputLevel;
 		this.showMarquardtOptim    = showMarquardtOptim;
 		this.accurate_mode         		= parameters.mode;
@@ -587,6 +621,7 @@ public class Transformation
 		this.fn_tnf_2              		= fn_tnf_2;
 		this.output_ip_1           		= output_ip_1;
 		this.output_ip_2           		= output_ip_2;
+		this.context               		= new RegistrationContext(null, parameters.getRegistrationListener());
 
 		this.originalSourceIP	  = originalSourceIP;
 		this.originalTargetIP	  = originalTargetIP;
@@ -606,6 +641,9 @@ public class Transformation
 	{
 
 		optimizationErrorValues = new ArrayList<>();
+		metrics = new RegistrationMetrics();
+		metrics.start(source.getPyramidBuildTime() + target.getPyramidBuildTime());
+		traceStart = System.nanoTime();
 
 		// This function can only be applied with splines of an odd order
 
@@ -613,6 +651,15 @@ public class Transformation
 		source.popFromPyramid();
 		target.popFromPyramid();
 
+		// When warm starting from finer coefficients, skip the coarser
+		// deformation scales and their corresponding image levels
+		final int startScale = getWarmStartScale(min_scale_deformation, max_scale_deformation);
+		while (target.getCurrentDepth() > (max_scale_deformation - startScale + 1))
+		{
+			source.popFromPyramid();
+			target.popFromPyramid();
+		}
+
 		// size correction factor
 		int sizeCorrectionFactor = 0; // this.targetHeight / (1024  * (int) Math.pow(2, this.maxImageSubsamplingFactor));
 		//System.out.println("Size correction factor = " + sizeCorrectionFactor);
@@ -630,7 +677,7 @@ public class Transformation
 		sourceFactorWidth   = source.getFactorWidth();
 
 		// Ask memory for the transformation coefficients
-		intervals = (int)Math.pow(2, min_scale_deformation + sizeCorrectionFactor);
+		intervals = (int)Math.pow(2, startScale + sizeCorrectionFactor);
 		
 		cxTargetToSource = new double[intervals+3][intervals+3];
 		cyTargetToSource = new double[intervals+3][intervals+3];
@@ -723,16 +770,30 @@ public class Transformation
 			}
 		}
 
+		// Warm start: replace the affine initialization by the initial coefficients
+		if (applyInitialCoefficients(initialCxTargetToSource, initialCyTargetToSource,
+				cxTargetToSource, cyTargetToSource, targetCurrentWidth, targetCurrentHeight, target))
+		{
+			Arrays.fill(dxTargetToSource, 0);
+			Arrays.fill(dyTargetToSource, 0);
+		}
+		if (applyInitialCoefficients(initialCxSourceToTarget, initialCySourceToTarget,
+				cxSourceToTarget, cySourceToTarget, sourceCurrentWidth, sourceCurrentHeight, source))
+		{
+			Arrays.fill(dxSourceToTarget, 0);
+			Arrays.fill(dySourceToTarget, 0);
+		}
+
 		// Now refine with the different scales
 		int state;   // state=-1 --> Finish
 		// state= 0 --> Increase deformation detail
 		// state= 1 --> Increase image detail
 		// state= 2 --> Do nothing until the finest image scale
-		if (min_scale_deformation==max_scale_deformation) state=1;
-		else                                              state=0;
-		int s = min_scale_deformation;
+		if (startScale==max_scale_deformation) state=1;
+		else                                   state=0;
+		int s = startScale;
 		int step = 0;
-		computeTotalWorkload();
+		computeTotalWorkload(startScale);
 
 		while (state != -1)
 		{
@@ -894,7 +955,7 @@ public class Transformation
 		if(source.getOriginalImageWidth() > this.sourceCurrentWidth)
 		{
 			if(source.isSubOutput() || target.isSubOutput())
-				IJ.log("Adapting coefficients from " + this.sourceCurrentWidth + " to " + source.getOriginalImageWidth() +"...");
+				context.log("Adapting coefficients from " + this.sourceCurrentWidth + " to " + source.getOriginalImageWidth() +"...");
 			// Adapt the transformation to the new image size
 			double targetFactorY = (target.getOriginalImageHeight() - 1) / Math.max((targetCurrentHeight-1), 1.0);
 			double targetFactorX = (target.getOriginalImageWidth()  - 1) / Math.max((targetCurrentWidth -1), 1.0);
@@ -920,26 +981,27 @@ public class Transformation
 		{
 			if(this.imageWeight != 0)
 			{
-				IJ.log(" Optimal direct similarity error = " + this.finalDirectSimilarityError);
-				IJ.log(" Optimal inverse similarity error = " + this.finalInverseSimilarityError);
+				context.log(" Optimal direct similarity error = " + this.finalDirectSimilarityError);
+				context.log(" Optimal inverse similarity error = " + this.finalInverseSimilarityError);
 			}
 			if(this.curlWeight != 0 || this.divWeight != 0)
 			{
-				IJ.log(" Optimal direct regularization error = " + this.finalDirectRegularizationError);
-				IJ.log(" Optimal inverse regularization error = " + this.finalInverseRegularizationError);
+				context.log(" Optimal direct regularization error = " + this.finalDirectRegularizationError);
+				context.log(" Optimal inverse regularization error = " + this.finalInverseRegularizationError);
 			}
 			if(this.landmarkWeight != 0)
 			{
-				IJ.log(" Optimal direct landmark error = " + this.finalDirectLandmarkError);
-				IJ.log(" Optimal inverse landmark error = " + this.finalInverseLandmarkError);
+				context.log(" Optimal direct landmark error = " + this.finalDirectLandmarkError);
+				context.log(" Optimal inverse landmark error = " + this.finalInverseLandmarkError);
 			}
 			if(this.consistencyWeight != 0)
 			{
-				IJ.log(" Optimal direct consistency error = " + this.finalDirectConsistencyError);
-				IJ.log(" Optimal inverse consistency error = " + this.finalInverseConsistencyError);
+				context.log(" Optimal direct consistency error = " + this.finalDirectConsistencyError);
+				context.log(" Optimal inverse consistency error = " + this.finalInverseConsistencyError);
 			}
 		}
-		
+
+		finishMetrics();
 	} // end doBidirectionalRegistration
 
 	/**
@@ -971,6 +1033,13 @@ public class Transformation
 		startingDeformationDetail = Math.max(startingDeformationDetail, this.min_scale_deformation);
 		endingDeformationDetail = Math.min(endingDeformationDetail, this.max_scale_deformation);
 
+		//when warm starting from finer coefficients, start directly at their scale
+		startingDeformationDetail = getWarmStartScale(startingDeformationDetail, endingDeformationDetail);
+
+		metrics = new RegistrationMetrics();
+		metrics.start(source.getPyramidBuildTime() + target.getPyramidBuildTime());
+		traceStart = System.nanoTime();
+
 		// Bring into consideration the image/coefficients at the smallest scale
 		source.popFromPyramid();
 		target.popFromPyramid();
@@ -1018,6 +1087,15 @@ public class Transformation
 		double [] dyTargetToSource = new double[K];
 		computeInitialResidues(dxTargetToSource,dyTargetToSource, false);
 
+		// Warm start: replace the affine initialization by the initial coefficients
+		// (the landmark residues refer to the affine initialization, so they are discarded)
+		if (applyInitialCoefficients(initialCxTargetToSource, initialCyTargetToSource,
+				cxTargetToSource, cyTargetToSource, targetCurrentWidth, targetCurrentHeight, target))
+		{
+			Arrays.fill(dxTargetToSource, 0);
+			Arrays.fill(dyTargetToSource, 0);
+		}
+
 		//curDeformationDetail will iterate from min_scale_deformation to max_scale_deformation
 		//imageDepth will iterate from target.getCurrentDepth() down to 0
 		//The process is:
@@ -1037,7 +1115,7 @@ public class Transformation
 		//start with the smallest set of coefficients, which is lowest number, and increment
 		int curDeformationDetail = startingDeformationDetail;
 		int step = 0;
-		computeTotalWorkload();
+		computeTotalWorkload(startingDeformationDetail);
 
 		//optimization error - we want to track how it changes when we change deformation detail
 //		double prevOptimError = Double.MAX_VALUE;
@@ -1211,7 +1289,7 @@ public class Transformation
 		if(source.getOriginalImageWidth() > this.targetCurrentWidth)
 		{
 			if(source.isSubOutput() || target.isSubOutput())
-				IJ.log("Adapting coefficients from " + this.sourceCurrentWidth + " to " + this.originalSourceIP.getWidth() + "...");
+				context.log("Adapting coefficients from " + this.sourceCurrentWidth + " to " + this.originalSourceIP.getWidth() + "...");
 			// Adapt the transformation to the new image size
 			double targetFactorY = (target.getOriginalImageHeight() - 1) / (targetCurrentHeight-1);
 			double targetFactorX = (target.getOriginalImageWidth()  - 1) / (targetCurrentWidth -1);
@@ -1233,24 +1311,37 @@ public class Transformation
 		{
 			if(this.imageWeight != 0)
 			{
-				IJ.log(" Optimal direct similarity error = " + this.finalDirectSimilarityError);
+				context.log(" Optimal direct similarity error = " + this.finalDirectSimilarityError);
 			}
 			if(this.curlWeight != 0 || this.divWeight != 0)
 			{
-				IJ.log(" Optimal direct regularization error = " + this.finalDirectRegularizationError);
+				context.log(" Optimal direct regularization error = " + this.finalDirectRegularizationError);
 			}
 			if(this.landmarkWeight != 0)
 			{
-				IJ.log(" Optimal direct landmark error = " + this.finalDirectLandmarkError);
+				context.log(" Optimal direct landmark error = " + this.finalDirectLandmarkError);
 			}
 			if(this.consistencyWeight != 0)
 			{
-				IJ.log(" Optimal direct consistency error = " + this.finalDirectConsistencyError);
+				context.log(" Optimal direct consistency error = " + this.finalDirectConsistencyError);
 			}
 		}
 
+		finishMetrics();
 	} /* end doUnidirectionalRegistration */
 
+	/**
+	 * Stop the registration clock, report the metrics to the listener
+	 * and log them when the verbose output is selected.
+	 */
+	private void finishMetrics()
+	{
+		metrics.finish();
+		if(this.outputLevel == 2)
+			context.log(" Registration metrics: " + metrics);
+		context.getListener().registrationFinished(metrics);
+	}
+
 	/**
 	 * This automatically finds the best minimum and maximum resolution to use, based on the error function value.
 	 * At the end the min and max resolution of the transformation object will be updated to the auto-tuned choices.
@@ -1513,6 +1604,127 @@ public class Transformation
 
 	}
 
+	/**
+	 * Get the deformation scale at which the registration starts. If initial
+	 * (warm start) coefficients are set at a finer scale than the requested one,
+	 * the registration starts directly at the scale of the initial coefficients.
+	 *
+	 * @param startingDeformationDetail requested starting deformation scale
+	 * @param endingDeformationDetail ending deformation scale
+	 * @return starting deformation scale
+	 */
+	private int getWarmStartScale(int startingDeformationDetail, int endingDeformationDetail) {
+		if (this.initialIntervals == -1)
+			return startingDeformationDetail;
+
+		int initialScale = 0;
+		while ((1 << initialScale) < this.initialIntervals)
+			initialScale++;
+
+		return Math.min(Math.max(startingDeformationDetail, initialScale), endingDeformationDetail);
+	}
+
+	/**
+	 * Overwrite the coefficients of the current scale with the initial (warm start)
+	 * coefficients, propagated to the current number of intervals and adapted from
+	 * the full-resolution image to the current image size.
+	 *
+	 * @param initialCx initial x- B-spline coefficients (full-resolution coordinates)
+	 * @param initialCy initial y- B-spline coefficients (full-resolution coordinates)
+	 * @param cx x- B-spline coefficients to overwrite
+	 * @param cy y- B-spline coefficients to overwrite
+	 * @param currentWidth current width of the image the coefficients are defined on
+	 * @param currentHeight current height of the image the coefficients are defined on
+	 * @param model image model the coefficients are defined on
+	 * @return true if the coefficients were overwritten, false if there are no initial coefficients
+	 */
+	private boolean applyInitialCoefficients(
+			final double[][] initialCx,
+			final double[][] initialCy,
+			double[][] cx,
+			double[][] cy,
+			int currentWidth,
+			int currentHeight,
+			BSplineModel model) {
+		if (initialCx == null || initialCy == null)
+			return false;
+		if (this.initialIntervals > intervals)
+		{
+			IJ.log("Initial coefficients (" + this.initialIntervals + " intervals) are finer than the deformation ("
+					+ intervals + " intervals), using the affine initialization instead");
+			return false;
+		}
+
+		// Propagate the coefficients up to the current number of intervals
+		double[][] auxCx = initialCx;
+		double[][] auxCy = initialCy;
+		for (int auxIntervals = this.initialIntervals; auxIntervals < intervals; auxIntervals *= 2)
+		{
+			auxCx = propagateCoeffsToNextLevel(auxIntervals, auxCx, 1);
+			auxCy = propagateCoeffsToNextLevel(auxIntervals, auxCy, 1);
+		}
+
+		// Adapt the transformation from the full-resolution image to the current image size
+		final double factorX = (model.getOriginalImageWidth() > 1)
+				? (currentWidth - 1) / (double) (model.getOriginalImageWidth() - 1) : 1.0;
+		final double factorY = (model.getOriginalImageHeight() > 1)
+				? (currentHeight - 1) / (double) (model.getOriginalImageHeight() - 1) : 1.0;
+
+		for (int i = 0; i < intervals + 3; i++)
+			for (int j = 0; j < intervals + 3; j++)
+			{
+				cx[i][j] = auxCx[i][j] * factorX;
+				cy[i][j] = auxCy[i][j] * factorY;
+			}
+		return true;
+	}
+
+	/**
+	 * Check that a set of B-spline coefficients can be used to initialize the registration.
+	 *
+	 * @param intervals number of intervals of the coefficients
+	 * @param cx x- B-spline coefficients
+	 * @param cy y- B-spline coefficients
+	 * @return true if the coefficients are valid
+	 */
+	private boolean isValidInitialTransformation(int intervals, double[][] cx, double[][] cy) {
+		if (cx == null || cy == null || intervals < 1 || Integer.bitCount(intervals) != 1)
+		{
+			IJ.log("Initial transformation must have a power of 2 number of intervals");
+			return false;
+		}
+		if (cx.length != intervals + 3 || cx[0].length != intervals + 3
+				|| cy.length != intervals + 3 || cy[0].length != intervals + 3)
+		{
+			IJ.log("Initial transformation coefficients do not match " + intervals + " intervals");
+			return false;
+		}
+		if (intervals > (int) Math.pow(2, this.max_scale_deformation))
+		{
+			IJ.log("Initial transformation (" + intervals + " intervals) is finer than the maximum scale deformation");
+			return false;
+		}
+		if (this.initialIntervals != -1 && this.initialIntervals != intervals)
+		{
+			IJ.log("Direct and inverse initial transformations must have the same number of intervals");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a set of B-spline coefficients.
+	 *
+	 * @param c B-spline coefficients
+	 * @return copy of the coefficients
+	 */
+	private static double[][] copyCoefficients(final double[][] c) {
+		final double[][] copy = new double[c.length][];
+		for (int i = 0; i < c.length; i++)
+			copy[i] = c[i].clone();
+		return copy;
+	}
+
 	private void getNextImageInPyramid() {
 		oldTargetCurrentHeight = targetCurrentHeight;
 		oldTargetCurrentWidth = targetCurrentWidth;
@@ -1761,6 +1973,307 @@ public class Transformation
 		
 	} // end getIntervals
 
+	//------------------------------------------------------------------
+	/**
+	 * Set the per-registration context (progress bar, stop requests and
+	 * status messages) of this transformation.
+	 *
+	 * @param context registration context
+	 */
+	public void setContext(RegistrationContext context)
+	{
+		if (context != null)
+			this.context = context;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the per-registration context of this transformation.
+	 *
+	 * @return registration context
+	 */
+	public RegistrationContext getContext()
+	{
+		return this.context;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the timings and counters of the last registration (pyramid
+	 * construction, optimization stages, energy evaluations, Marquardt
+	 * steps and time spent in each energy term).
+	 *
+	 * @return registration metrics
+	 */
+	public RegistrationMetrics getMetrics()
+	{
+		return this.metrics;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the sink receiving one record per iteration of the optimizer
+	 * (level, iteration, lambda, energy terms, step norm, accepted flag
+	 * and elapsed time), e.g. an {@link OptimizationTraceWriter}.
+	 *
+	 * @param optimizationTrace optimization trace (null to disable tracing)
+	 */
+	public void setOptimizationTrace(OptimizationTrace optimizationTrace)
+	{
+		this.optimizationTrace = optimizationTrace;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Send the current iteration of the optimizer to the optimization trace.
+	 *
+	 * @param intervals number of intervals of the deformation
+	 * @param iteration iteration of the optimizer at this level
+	 * @param lambda damping factor of the step
+	 * @param energy value of the energy function
+	 * @param stepNorm norm of the change of the coefficients
+	 * @param accepted true if the step decreased the energy
+	 */
+	private void traceIteration(int intervals, int iteration, double lambda, double energy,
+			double stepNorm, boolean accepted)
+	{
+		this.optimizationTrace.iteration(intervals, target.getCurrentDepth(), iteration, lambda, energy,
+				this.partialDirectSimilarityError + this.partialInverseSimilarityError,
+				this.partialDirectRegularizationError + this.partialInverseRegularizationError,
+				this.partialDirectLandmarkError + this.partialInverseLandmarkError,
+				this.partialDirectConsitencyError + this.partialInverseConsitencyError,
+				stepNorm, accepted, System.nanoTime() - this.traceStart);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Estimate the peak heap memory needed to register a pair of images
+	 * (input images not included). The estimate adds the buffers that live
+	 * for the whole registration:
+	 * <ul>
+	 * <li>the image models: original and sub-sampled images, B-spline
+	 * coefficients and their image and coefficient pyramids;</li>
+	 * <li>the masks and the precomputed interpolation weights;</li>
+	 * <li>the regularization matrices of each direction at the finest
+	 * deformation scale;</li>
+	 * <li>the dense matrices of the optimizer at the finest scale (Hessians,
+	 * Marquardt system and its decomposition), which dominate the memory of
+	 * fine deformations, and its per-thread gradients.</li>
+	 * </ul>
+	 * Half of that sum is added on top. The margin covers the short-lived
+	 * arrays that are not counted (pyramid reductions, transformed images,
+	 * error images) and the headroom the garbage collector needs to run
+	 * without exhausting the heap, so the result is meant as an upper bound
+	 * to compare with a memory budget, not as a prediction of the heap
+	 * actually used.
+	 *
+	 * @param targetWidth target image width
+	 * @param targetHeight target image height
+	 * @param sourceWidth source image width
+	 * @param sourceHeight source image height
+	 * @param parameter registration parameters
+	 * @return estimated peak memory in bytes
+	 */
+	public static long estimatePeakMemory(
+			final int targetWidth,
+			final int targetHeight,
+			final int sourceWidth,
+			final int sourceHeight,
+			final Param parameter)
+	{
+		final int subsampling = (int) Math.pow(2, parameter.img_subsamp_fact);
+		final int pyramidDepth = parameter.max_scale_deformation - parameter.min_scale_deformation + 1;
+		final boolean bidirectional = parameter.mode != MainDialog.MONO_MODE;
+		final int directions = bidirectional ? 2 : 1;
+		final int nThreads = parameter.getNumberOfThreads() > 0 ?
+				parameter.getNumberOfThreads() : Runtime.getRuntime().availableProcessors();
+
+		// Image models, masks and precomputed interpolation weights
+		long bytes = estimateModelMemory(targetWidth, targetHeight, subsampling, pyramidDepth)
+				+ estimateModelMemory(sourceWidth, sourceHeight, subsampling, pyramidDepth)
+				+ (long) targetWidth * targetHeight + (long) sourceWidth * sourceHeight
+				+ 2L * directions * (targetWidth + targetHeight) / subsampling * 4 * (6 * 8 + 2 * 4);
+
+		// Deformation at the finest scale
+		final long intervals = (long) Math.pow(2, parameter.max_scale_deformation);
+		final long Nk = (intervals + 3) * (intervals + 3);
+		final long M = 2 * directions * Nk;
+
+		// Regularization matrices P11, P12, P22 for each direction
+		bytes += 8L * 3 * Nk * Nk * directions;
+		// Optimizer: current, rescued and proposed Hessians, the
+		// Marquardt system and its QR decomposition (Q and R)
+		bytes += 8L * 6 * M * M + 8L * 12 * M;
+		// Per-thread gradients of the similarity and consistency terms
+		bytes += 8L * nThreads * M * (bidirectional ? 3 : 1);
+
+		// Temporary arrays (pyramid reductions, transformed images) and
+		// garbage collector headroom
+		return bytes + bytes / 2;
+	} // end estimatePeakMemory
+
+	//------------------------------------------------------------------
+	/**
+	 * Estimate the memory of a B-spline image model after computing its
+	 * coefficient and image pyramids.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param subsampling image sub-sampling factor
+	 * @param pyramidDepth pyramid depth
+	 * @return estimated memory in bytes
+	 */
+	private static long estimateModelMemory(
+			final int width,
+			final int height,
+			final int subsampling,
+			final int pyramidDepth)
+	{
+		final long full = (long) width * height;
+		final long sub = (long) Math.ceil((double) width / subsampling) * (long) Math.ceil((double) height / subsampling);
+
+		// Pyramid levels are 4 times smaller each time
+		long levels = 0;
+		for (int depth = 1, factor = 4; depth <= pyramidDepth; depth++, factor *= 4)
+			levels += sub / factor;
+
+		// original image, working image, coefficients and their temporary copy
+		long bytes = 8 * full + 8 * 3 * sub + 8 * 2 * levels;
+		// sub-sampled float copy of the image
+		if (subsampling > 1)
+			bytes += 4 * sub;
+		return bytes;
+	} // end estimateModelMemory
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the maximum number of threads used by this transformation.
+	 *
+	 * @param numThreads number of threads (at least 1)
+	 */
+	public void setNumberOfThreads(int numThreads)
+	{
+		this.numThreads = Math.max(numThreads, 1);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the maximum number of threads used by this transformation.
+	 *
+	 * @return number of threads
+	 */
+	public int getNumberOfThreads()
+	{
+		return this.numThreads;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the target to source B-spline coefficients used to initialize the
+	 * registration instead of the initial affine transformation (warm start).
+	 * The coefficients must be expressed in full-resolution image coordinates,
+	 * as returned by {@link #getDirectDeformationCoefficientsX()} or loaded
+	 * with {@link MiscTools#loadTransformation(String, double[][], double[][])}.
+	 * Coefficients coarser than the minimum scale deformation are propagated to
+	 * it, finer coefficients make the registration start directly at their scale.
+	 *
+	 * @param intervals number of intervals of the coefficients (power of 2)
+	 * @param cx x- B-spline coefficients
+	 * @param cy y- B-spline coefficients
+	 */
+	public void setInitialDirectTransformation(int intervals, double[][] cx, double[][] cy)
+	{
+		if (!isValidInitialTransformation(intervals, cx, cy))
+			return;
+		this.initialIntervals = intervals;
+		this.initialCxTargetToSource = copyCoefficients(cx);
+		this.initialCyTargetToSource = copyCoefficients(cy);
+	} // end setInitialDirectTransformation
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the source to target B-spline coefficients used to initialize the
+	 * bidirectional registration instead of the initial affine transformation
+	 * (warm start). See {@link #setInitialDirectTransformation(int, double[][], double[][])}.
+	 *
+	 * @param intervals number of intervals of the coefficients (power of 2)
+	 * @param cx x- B-spline coefficients
+	 * @param cy y- B-spline coefficients
+	 */
+	public void setInitialInverseTransformation(int intervals, double[][] cx, double[][] cy)
+	{
+		if (!isValidInitialTransformation(intervals, cx, cy))
+			return;
+		this.initialIntervals = intervals;
+		this.initialCxSourceToTarget = copyCoefficients(cx);
+		this.initialCySourceToTarget = copyCoefficients(cy);
+	} // end setInitialInverseTransformation
+
+	//------------------------------------------------------------------
+	/**
+	 * Initialize the registration with the result of a previous registration
+	 * (warm start), typically the one of the previous pair of a time-lapse or
+	 * serial-section sequence. Both directions are used if available.
+	 *
+	 * @param previous previously computed transformation
+	 */
+	public void setInitialTransformation(Transformation previous)
+	{
+		clearInitialTransformation();
+		if (previous == null || previous.getDirectDeformationCoefficientsX() == null)
+			return;
+
+		setInitialDirectTransformation(previous.getIntervals(),
+				previous.getDirectDeformationCoefficientsX(), previous.getDirectDeformationCoefficientsY());
+		if (previous.getInverseDeformationCoefficientsX() != null)
+			setInitialInverseTransformation(previous.getIntervals(),
+					previous.getInverseDeformationCoefficientsX(), previous.getInverseDeformationCoefficientsY());
+	} // end setInitialTransformation
+
+	//------------------------------------------------------------------
+	/**
+	 * Load the target to source B-spline coefficients used to initialize the
+	 * registration (warm start) from an elastic transformation file.
+	 *
+	 * @param fileName elastic transformation file name
+	 */
+	public void loadInitialDirectTransformation(String fileName)
+	{
+		final double[][][] c = MiscTools.loadElasticTransformation(fileName);
+		if (c == null)
+			return;
+		setInitialDirectTransformation(c[0].length - 3, c[0], c[1]);
+	} // end loadInitialDirectTransformation
+
+	//------------------------------------------------------------------
+	/**
+	 * Load the source to target B-spline coefficients used to initialize the
+	 * bidirectional registration (warm start) from an elastic transformation file.
+	 *
+	 * @param fileName elastic transformation file name
+	 */
+	public void loadInitialInverseTransformation(String fileName)
+	{
+		final double[][][] c = MiscTools.loadElasticTransformation(fileName);
+		if (c == null)
+			return;
+		setInitialInverseTransformation(c[0].length - 3, c[0], c[1]);
+	} // end loadInitialInverseTransformation
+
+	//------------------------------------------------------------------
+	/**
+	 * Remove the initial (warm start) coefficients, so the registration is
+	 * initialized again with the affine transformation.
+	 */
+	public void clearInitialTransformation()
+	{
+		this.initialIntervals = -1;
+		this.initialCxTargetToSource = null;
+		this.initialCyTargetToSource = null;
+		this.initialCxSourceToTarget = null;
+		this.initialCySourceToTarget = null;
+	} // end clearInitialTransformation
+
 	//------------------------------------------------------------------
 	/**
 	 * Apply the current transformation to a given point. Point coordinates must
@@ -1802,6 +2315,262 @@ public class Transformation
 		xyF[1] = swy.interpolateI() * samplingFactor;
 	}
 
+	//------------------------------------------------------------------
+	/**
+	 * Apply the current transformation to a set of points. Point coordinates
+	 * must be in real space (highest resolution). The results are the same
+	 * as calling {@link #transform(double, double, double[], boolean)} on
+	 * every point.
+	 *
+	 * @param u input, x- point coordinates
+	 * @param v input, y- point coordinates
+	 * @param bIsReverse flag to decide the transformation direction (direct-inverse)
+	 *                   (source-target=TRUE or target-source=FALSE)
+	 * @return transformed points: x- coordinates in [0], y- coordinates in [1]
+	 */
+	public double[][] transform(double[] u, double[] v, boolean bIsReverse)
+	{
+		final double[][] xy = new double[2][u.length];
+		transform(u, v, xy[0], xy[1], bIsReverse);
+		return xy;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Apply the current transformation to a set of points (in parallel).
+	 * Point coordinates must be in real space (highest resolution). The
+	 * results are the same as calling
+	 * {@link #transform(double, double, double[], boolean)} on every point.
+	 * <p>
+	 * The points are binned by the knot span they fall in, so consecutive
+	 * points share the 4x4 B-spline coefficients of the deformation and only
+	 * the interpolation weights are computed per point, once for both
+	 * coordinates. Large batches are split among at most
+	 * {@link #getNumberOfThreads()} threads; small ones are transformed in
+	 * the calling thread.
+	 *
+	 * @param u input, x- point coordinates
+	 * @param v input, y- point coordinates
+	 * @param x output, transformed x- coordinates (can be u)
+	 * @param y output, transformed y- coordinates (can be v)
+	 * @param bIsReverse flag to decide the transformation direction (direct-inverse)
+	 *                   (source-target=TRUE or target-source=FALSE)
+	 */
+	public void transform(
+			final double[] u,
+			final double[] v,
+			final double[] x,
+			final double[] y,
+			boolean bIsReverse)
+	{
+		// Variables to allow registering in both directions.
+		final BSplineModel auxTarget = bIsReverse ? source : target;
+		final BSplineModel swx = bIsReverse ? swxSourceToTarget : swxTargetToSource;
+		final BSplineModel swy = bIsReverse ? swySourceToTarget : swyTargetToSource;
+
+		// read subsampling factor
+		final double samplingFactor = source.getSubsamplingFactor();
+
+		final int nPoints = u.length;
+		final int width = swx.getWidth();
+		final int height = swx.getHeight();
+
+		// spline coordinates and knot span (rightmost influencing spline) of each point
+		final double[] tu = new double[nPoints];
+		final double[] tv = new double[nPoints];
+		final int[] bin = new int[nPoints];
+		final int binsPerRow = width + 5;
+		final int[] count = new int[binsPerRow * (height + 5) + 1];
+		for (int n = 0; n < nPoints; n++)
+		{
+			tu[n] = (u[n] / samplingFactor * intervals) / (double)(auxTarget.getCurrentWidth()  - 1) + 1.0F;
+			tv[n] = (v[n] / samplingFactor * intervals) / (double)(auxTarget.getCurrentHeight() - 1) + 1.0F;
+			bin[n] = knotSpan(tv[n], height) * binsPerRow + knotSpan(tu[n], width);
+			count[bin[n] + 1]++;
+		}
+
+		// counting sort of the points by knot span
+		for (int b = 1; b < count.length; b++)
+			count[b] += count[b - 1];
+		final int[] order = new int[nPoints];
+		for (int n = 0; n < nPoints; n++)
+			order[count[bin[n]]++] = n;
+
+		final double[] cx = swx.getCoefficients();
+		final double[] cy = swy.getCoefficients();
+
+		final int nThreads = Math.max(1, Math.min(this.numThreads, nPoints / MIN_POINTS_PER_THREAD));
+		if (nThreads == 1)
+		{
+			transformSorted(order, 0, nPoints, bin, tu, tv, cx, cy, width, height, samplingFactor, x, y);
+			return;
+		}
+		final Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++)
+		{
+			final int start = (int) ((long) nPoints * t / nThreads);
+			final int end = (int) ((long) nPoints * (t + 1) / nThreads);
+			threads[t] = new Thread(() ->
+				transformSorted(order, start, end, bin, tu, tv, cx, cy, width, height, samplingFactor, x, y));
+			threads[t].start();
+		}
+		for (int t = 0; t < nThreads; t++)
+		{
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.error("Unexpected interruption exception " + e);
+			}
+		}
+	} // end transform
+
+	//------------------------------------------------------------------
+	/**
+	 * Transform a range of the points sorted by knot span, reloading the
+	 * 4x4 coefficient patches only when the span changes.
+	 *
+	 * @param order point indexes sorted by knot span
+	 * @param start first position in order (inclusive)
+	 * @param end last position in order (exclusive)
+	 * @param bin knot span of each point
+	 * @param tu x- spline coordinate of each point
+	 * @param tv y- spline coordinate of each point
+	 * @param cx x- B-spline coefficients of the deformation
+	 * @param cy y- B-spline coefficients of the deformation
+	 * @param width number of coefficients in the x- direction
+	 * @param height number of coefficients in the y- direction
+	 * @param samplingFactor image subsampling factor
+	 * @param x output, transformed x- coordinates
+	 * @param y output, transformed y- coordinates
+	 */
+	private static void transformSorted(
+			final int[] order,
+			final int start,
+			final int end,
+			final int[] bin,
+			final double[] tu,
+			final double[] tv,
+			final double[] cx,
+			final double[] cy,
+			final int width,
+			final int height,
+			final double samplingFactor,
+			final double[] x,
+			final double[] y)
+	{
+		final double[] patchX = new double[16];
+		final double[] patchY = new double[16];
+		final double[] xWeight = new double[4];
+		final double[] yWeight = new double[4];
+		int currentBin = -1;
+		for (int k = start; k < end; k++)
+		{
+			final int n = order[k];
+			if (bin[n] != currentBin)
+			{
+				currentBin = bin[n];
+				loadCoefficientPatch(cx, cy, width, height, tu[n], tv[n], patchX, patchY);
+			}
+			splineWeights(tu[n], xWeight, true);
+			splineWeights(tv[n], yWeight, false);
+
+			// Only SplineDegree=3 is implemented
+			double ix = 0.0F, iy = 0.0F;
+			for (int j = 0; j < 4; j++)
+			{
+				double sx = 0.0F, sy = 0.0F;
+				for (int i = 0; i < 4; i++)
+				{
+					sx += xWeight[i] * patchX[4 * j + i];
+					sy += xWeight[i] * patchY[4 * j + i];
+				}
+				ix += yWeight[j] * sx;
+				iy += yWeight[j] * sy;
+			}
+			x[n] = ix * samplingFactor;
+			y[n] = iy * samplingFactor;
+		}
+	} // end transformSorted
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the knot span of a spline coordinate, shifted and clamped to
+	 * [0, size + 4] so it can be used as a bin index. The first and last
+	 * bins gather the points influenced by no coefficient at all.
+	 *
+	 * @param t spline coordinate
+	 * @param size number of coefficients in that direction
+	 * @return bin index in that direction
+	 */
+	private static int knotSpan(double t, int size)
+	{
+		// p is the index of the rightmost influencing spline
+		final int p = (0.0 <= t) ? ((int) t + 2) : ((int) t + 1);
+		return Math.max(0, Math.min(size + 4, p + 1));
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Copy the 4x4 deformation coefficients influencing a point (zero
+	 * outside of the coefficient grid), in the order used by
+	 * {@link BSplineModel#interpolateI()}.
+	 *
+	 * @param cx x- deformation coefficients
+	 * @param cy y- deformation coefficients
+	 * @param width coefficient grid width
+	 * @param height coefficient grid height
+	 * @param tu x- spline coordinate
+	 * @param tv y- spline coordinate
+	 * @param patchX output, x- coefficients (row j, column i at 4 * j + i)
+	 * @param patchY output, y- coefficients
+	 */
+	private static void loadCoefficientPatch(
+			double[] cx,
+			double[] cy,
+			int width,
+			int height,
+			double tu,
+			double tv,
+			double[] patchX,
+			double[] patchY)
+	{
+		final int px = (0.0 <= tu) ? ((int) tu + 2) : ((int) tu + 1);
+		final int py = (0.0 <= tv) ? ((int) tv + 2) : ((int) tv + 1);
+		for (int j = 0; j < 4; j++)
+		{
+			final int row = py - j;
+			for (int i = 0; i < 4; i++)
+			{
+				final int col = px - i;
+				final boolean inside = row >= 0 && row < height && col >= 0 && col < width;
+				patchX[4 * j + i] = inside ? cx[row * width + col] : 0.0;
+				patchY[4 * j + i] = inside ? cy[row * width + col] : 0.0;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Compute the cubic B-spline interpolation weights of a coordinate, with
+	 * the same expressions as {@link BSplineModel#prepareForInterpolation}.
+	 *
+	 * @param t spline coordinate
+	 * @param weight output, weights of the four influencing splines
+	 * @param xAxis x- (true) or y- (false) weights (computed slightly differently)
+	 */
+	private static void splineWeights(double t, double[] weight, boolean xAxis)
+	{
+		final int it = (int) t;
+		final double e = t - ((0.0 <= t) ? (it) : (it - 1));
+		final double s = 1.0F - e;
+		final double d0 = 0.5F * e * e;
+		final double d3 = -0.5F * s * s;
+		weight[0] = e * d0 / 3.0F;
+		weight[3] = s * d3 / -3.0F;
+		weight[1] = xAxis ? MathTools.Bspline03(t - it - 1) : 2.0F / 3.0F + (1.0F + e) * d3;
+		weight[2] = 2.0F / 3.0F - (2.0F - e) * d0;
+	}
+
 	/*....................................................................
        Private methods
     ....................................................................*/
@@ -2407,7 +3176,7 @@ public class Transformation
 		a.translate(centerX, centerY);
 
 		/*
-			IJ.log(" A: " + a.getScaleX() + " " + a.getShearY() + " " + a.getShearX()
+			context.log(" A: " + a.getScaleX() + " " + a.getShearY() + " " + a.getShearX()
 					+ " " + a.getScaleY() + " " + a.getTranslateX() + " " + 
 					+ a.getTranslateY() );
 		 */
@@ -3150,8 +3919,10 @@ public class Transformation
 	/**
 	 * This code is an excerpt from doBidirectionalRegistration() to compute the exact
 	 * number of steps.
+	 *
+	 * @param startScale deformation scale at which the registration starts
 	 */
-	private void computeTotalWorkload()
+	private void computeTotalWorkload(int startScale)
 	{
 		// This code is an excerpt from doBidirectionalRegistration() to compute the exact
 		// number of steps
@@ -3161,9 +3932,9 @@ public class Transformation
 		// state= 0 --> Increase deformation detail
 		// state= 1 --> Increase image detail
 		// state= 2 --> Do nothing until the finest image scale
-		if (min_scale_deformation==max_scale_deformation) state=1;
-		else                                              state=0;
-		int s=min_scale_deformation;
+		if (startScale==max_scale_deformation) state=1;
+		else                                   state=0;
+		int s=startScale;
 		int currentDepth = target.getCurrentDepth();
 		int workload=0;
 		while (state!=-1) {
@@ -3203,8 +3974,8 @@ public class Transformation
 				break;
 			}
 		}
-		ProgressBar.resetProgressBar();
-		ProgressBar.addWorkload(workload);
+		context.getProgressBar().reset();
+		context.getProgressBar().addWork(workload);
 	}
 
 	/*--------------------------------------------------------------------------*/
@@ -3436,8 +4207,8 @@ public class Transformation
 
 		if (showMarquardtOptim)
 		{
-			IJ.log("    Consistency Error (s-t): " + consistencyDirectError);
-			IJ.log("    Consistency Error (t-s): " + consistencyInverseError);
+			context.log("    Consistency Error (s-t): " + consistencyDirectError);
+			context.log("    Consistency Error (t-s): " + consistencyInverseError);
 		}
 
 
@@ -3687,8 +4458,8 @@ public class Transformation
 
 		if (showMarquardtOptim)
 		{
-			IJ.log("    Consistency Error (s-t): " + consistencyDirectError);
-			IJ.log("    Consistency Error (t-s): " + consistencyInverseError);
+			context.log("    Consistency Error (s-t): " + consistencyDirectError);
+			context.log("    Consistency Error (t-s): " + consistencyInverseError);
 		}
 
 
@@ -3761,7 +4532,9 @@ public class Transformation
 			double []vgradcons = new double[grad.length];
 
 			//f_consistency = evaluateConsistency(intervals, vgradcons);
+			final long start = System.nanoTime();
 			f_consistency = evaluateConsistencyMultiThread(intervals, vgradcons);
+			metrics.addConsistencyTime(System.nanoTime() - start);
 
 			// Update gradient.
 			for(int i = 0; i < grad.length; i++)
@@ -4127,7 +4900,7 @@ public class Transformation
 			String s = bIsReverse ? new String("(t-s)") : new String("(s-t)");
 			if (imageWeight != 0) 
 			{
-				IJ.log("    Image          error " + s + ": " + imageSimilarity);
+				context.log("    Image          error " + s + ": " + imageSimilarity);
 				if(bIsReverse)
 					this.partialInverseSimilarityError = imageSimilarity;
 				else
@@ -4136,7 +4909,7 @@ public class Transformation
 			}
 			if (landmarkWeight != 0)               
 			{
-				IJ.log("    Landmark       error " + s + ": " + landmarkError);
+				context.log("    Landmark       error " + s + ": " + landmarkError);
 				if(bIsReverse)
 					this.partialInverseLandmarkError = landmarkError;
 				else
@@ -4144,7 +4917,7 @@ public class Transformation
 			}
 			if (divWeight != 0 || curlWeight != 0)
 			{
-				IJ.log("    Regularization error " + s + ": " + regularization);
+				context.log("    Regularization error " + s + ": " + regularization);
 				if(bIsReverse)
 					this.partialInverseRegularizationError = regularization;
 				else
@@ -4607,7 +5380,7 @@ public class Transformation
 			String s = bIsReverse ? new String("(t-s)") : new String("(s-t)");
 			if (imageWeight != 0) 
 			{
-				IJ.log("    Image          error " + s + ": " + imageSimilarity);
+				context.log("    Image          error " + s + ": " + imageSimilarity);
 				if(bIsReverse)
 					this.partialInverseSimilarityError = imageSimilarity;
 				else
@@ -4616,7 +5389,7 @@ public class Transformation
 			}
 			if (consistencyWeight != 0) 
 			{
-				IJ.log("    Consistency          error " + s + ": " + consistencyError);
+				context.log("    Consistency          error " + s + ": " + consistencyError);
 				if(bIsReverse)
 					this.partialInverseConsitencyError = consistencyError;
 				else
@@ -4625,7 +5398,7 @@ public class Transformation
 			}
 			if (landmarkWeight != 0)               
 			{
-				IJ.log("    Landmark       error " + s + ": " + landmarkError);
+				context.log("    Landmark       error " + s + ": " + landmarkError);
 				if(bIsReverse)
 					this.partialInverseLandmarkError = landmarkError;
 				else
@@ -4633,7 +5406,7 @@ public class Transformation
 			}
 			if (divWeight != 0 || curlWeight != 0)
 			{
-				IJ.log("    Regularization error " + s + ": " + regularization);
+				context.log("    Regularization error " + s + ": " + regularization);
 				if(bIsReverse)
 					this.partialInverseRegularizationError = regularization;
 				else
@@ -4735,7 +5508,7 @@ public class Transformation
 		update = MathTools.linearLeastSquares(u,g);
 		if(update == null)
 		{
-			IJ.log("Error when calculating linear least square solution...");
+			context.log("Error when calculating linear least square solution...");
 			return;
 		}
 
@@ -4768,14 +5541,17 @@ public class Transformation
 			boolean optimizeX,
 			boolean optimizeY)
 	{
-		if (dialog!=null && dialog.isStopRegistrationSet())
+		if (context.isStopRequested())
 			return 0.0;
 
 		if(source.isSubOutput())
 		{
-			IJ.log(" -----\n Intervals = " + intervals + "x" + intervals);
-		    IJ.log(" Source Image Size = " + this.sourceCurrentWidth + "x" + this.sourceCurrentHeight);
+			context.log(" -----\n Intervals = " + intervals + "x" + intervals);
+		    context.log(" Source Image Size = " + this.sourceCurrentWidth + "x" + this.sourceCurrentHeight);
 		}
+
+		metrics.beginStage(intervals, target.getCurrentDepth(), target.getCurrentWidth(), target.getCurrentHeight());
+		final Object levelEvent = RegistrationEvents.INSTANCE.beginOptimizationLevel();
 		
 		final double TINY               = FLT_EPSILON;
 		final double EPS                = 3.0e-8F;
@@ -4847,9 +5623,15 @@ public class Transformation
 
 
 		/* First computation of the energy */
+		Object energyEvent = RegistrationEvents.INSTANCE.beginEnergyEvaluation();
 		f = energyFunction(x, intervals, grad, false, false);
+		RegistrationEvents.INSTANCE.endEnergyEvaluation(energyEvent, intervals,
+				target.getCurrentWidth(), target.getCurrentHeight(), iter, f);
+		metrics.addEnergyEvaluation();
+		if (optimizationTrace != null)
+			traceIteration(intervals, iter, lambda, f, 0, true);
 
-		if (showMarquardtOptim) IJ.log("f(1)="+f);
+		if (showMarquardtOptim) context.log("f(1)="+f);
 
 		/* Initially the hessian is the identity matrix multiplied by
           the first function value */
@@ -4869,11 +5651,11 @@ public class Transformation
 		// Maximum iteration number
 		int maxiter = MAXITER_OPTIMCOEFF * (source.getCurrentDepth() + 1);
 
-		ProgressBar.stepProgressBar();
+		context.getProgressBar().step();
 
 		int last_successful_iter=0;
 
-		boolean stop = dialog != null && dialog.isStopRegistrationSet();
+		boolean stop = context.isStopRequested();
 
 		while (iter < maxiter && !stop)
 		{
@@ -4891,6 +5673,7 @@ public class Transformation
 				aux = Math.abs(rescuedx[i]) < Math.abs(x[i]) ? x[i] : rescuedx[i];
 				max_normx += aux*aux;
 			}
+			final double stepNorm = Math.sqrt(improvementx);
 
 			if (TINY < max_normx) 
 				improvementx = improvementx/max_normx;
@@ -4902,13 +5685,20 @@ public class Transformation
 			if (improvementx < Math.sqrt(TINY)) break;
 
 			/* Estimate the new function value -------------------------------- */
+			energyEvent = RegistrationEvents.INSTANCE.beginEnergyEvaluation();
 			f = energyFunction(x, intervals, grad, false, false);
+			metrics.addEnergyEvaluation();
 			iter++;
+			RegistrationEvents.INSTANCE.endEnergyEvaluation(energyEvent, intervals,
+					target.getCurrentWidth(), target.getCurrentHeight(), iter, f);
 			if (showMarquardtOptim) 
-				IJ.log("f("+iter+")="+f+" lambda="+lambda);
-			ProgressBar.stepProgressBar();
+				context.log("f("+iter+")="+f+" lambda="+lambda);
+			context.getProgressBar().step();
 
 			/* Update lambda -------------------------------------------------- */
+			metrics.addStep(rescuedf > f);
+			if (optimizationTrace != null)
+				traceIteration(intervals, iter, lambda, f, stepNorm, rescuedf > f);
 			if (rescuedf > f)
 			{
 				// We save the last energy terms values in order to be displayed.
@@ -4931,11 +5721,12 @@ public class Transformation
                  update the geometry, and decrease the lambda */
 				/* Estimate the hessian ....................................... */
 				if (showMarquardtOptim) 
-					IJ.log("  Accepted");
+					context.log("  Accepted");
 				if ((last_successful_iter++%10)==0 && outputLevel>-1)
 					update_outputs(x, intervals);
 
 				/* Estimate the difference between gradients */
+				final long hessianStart = System.nanoTime();
 				for (i=0; i<M; i++) 
 					diffgrad[i] = grad[i]-rescuedgrad[i];
 
@@ -4988,11 +5779,12 @@ public class Transformation
 					} 
 					else
 						if (showMarquardtOptim)
-							IJ.log("Hessian cannot be safely updated, ill-conditioned");
+							context.log("Hessian cannot be safely updated, ill-conditioned");
 
 				} else
 					if (showMarquardtOptim)
-						IJ.log("Hessian cannot be safely updated");
+						context.log("Hessian cannot be safely updated");
+				metrics.addHessianUpdateTime(System.nanoTime() - hessianStart);
 
 				/* Update geometry and lambda ................................. */
 				rescuedf = f;
@@ -5025,7 +5817,7 @@ public class Transformation
 					lambda = FIRSTLAMBDA;
 			}
 
-			stop = dialog!=null && dialog.isStopRegistrationSet();
+			stop = context.isStopRequested();
 		}
 
 		// Copy the values back to the input arrays
@@ -5039,7 +5831,10 @@ public class Transformation
 				cySourceToTarget[i][j] = x[threeQuarterM+p];
 			}
 
-		ProgressBar.skipProgressBar(maxiter-iter);
+		context.getProgressBar().skip(maxiter-iter);
+		final RegistrationMetrics.Stage stage = metrics.endStage();
+		RegistrationEvents.INSTANCE.endOptimizationLevel(levelEvent, stage, iter, true);
+		context.getListener().stageFinished(stage);
 		return f;
 	}
 
@@ -5064,13 +5859,16 @@ public class Transformation
 	{
 		if(source.isSubOutput())
 		{
-			IJ.log(" -----\n Intervals = " + intervals + "x" + intervals);
-			IJ.log(" Source Image Size = " + this.sourceCurrentWidth + "x" + this.sourceCurrentHeight);
+			context.log(" -----\n Intervals = " + intervals + "x" + intervals);
+			context.log(" Source Image Size = " + this.sourceCurrentWidth + "x" + this.sourceCurrentHeight);
 		}
 		
-		if (dialog!=null && dialog.isStopRegistrationSet())
+		if (context.isStopRequested())
 			return new ArrayList<>();
 
+		metrics.beginStage(intervals, target.getCurrentDepth(), target.getCurrentWidth(), target.getCurrentHeight());
+		final Object levelEvent = RegistrationEvents.INSTANCE.beginOptimizationLevel();
+
 		final double TINY               = FLT_EPSILON;
 		final double EPS                = 3.0e-8F;
 		final double FIRSTLAMBDA        = 1;
@@ -5131,12 +5929,18 @@ public class Transformation
 
 		// First computation of the energy (similarity + landmarks + regularization)
 		//f = evaluateSimilarity(x, intervals, grad, false, false, false);
+		Object energyEvent = RegistrationEvents.INSTANCE.beginEnergyEvaluation();
 		f = evaluateSimilarityMultiThread(x, intervals, grad, false, false, imagesSumPixels_initial);
+		RegistrationEvents.INSTANCE.endEnergyEvaluation(energyEvent, intervals,
+				target.getCurrentWidth(), target.getCurrentHeight(), iter, f);
+		metrics.addEnergyEvaluation();
+		if (optimizationTrace != null)
+			traceIteration(intervals, iter, lambda, f, 0, true);
 
 		//save the value of the error function at each iteration of optimization
 		List<Double> resultOptimizationErrorValues = new ArrayList<>();
 		resultOptimizationErrorValues.add(f);
-		if (showMarquardtOptim) IJ.log("f(1)="+f);
+		if (showMarquardtOptim) context.log("f(1)="+f);
 
 		/* Initially the hessian is the identity matrix multiplied by
           the first function value */
@@ -5156,11 +5960,11 @@ public class Transformation
 		// Maximum iteration number
 		int maxiter = MAXITER_OPTIMCOEFF * (source.getCurrentDepth() + 1);
 
-		ProgressBar.stepProgressBar();
+		context.getProgressBar().step();
 
 		int last_successful_iter = 0;
 
-		boolean stop = dialog != null && dialog.isStopRegistrationSet();
+		boolean stop = context.isStopRequested();
 
 		while (iter < maxiter && !stop)
 		{
@@ -5178,6 +5982,7 @@ public class Transformation
 				aux = Math.abs(rescuedx[i]) < Math.abs(x[i]) ? x[i] : rescuedx[i];
 				max_normx += aux*aux;
 			}
+			final double stepNorm = Math.sqrt(improvementx);
 
 			if (TINY < max_normx) 
 				improvementx = improvementx/max_normx;
@@ -5191,7 +5996,11 @@ public class Transformation
 			/* Estimate the new function value -------------------------------- */
 			//f = evaluateSimilarity(x, intervals, grad, false, false, false);
 			double[] imagesSumPixels_current = new double[2];
+			energyEvent = RegistrationEvents.INSTANCE.beginEnergyEvaluation();
 			f = evaluateSimilarityMultiThread(x, intervals, grad, false, false, imagesSumPixels_current);
+			RegistrationEvents.INSTANCE.endEnergyEvaluation(energyEvent, intervals,
+					target.getCurrentWidth(), target.getCurrentHeight(), iter + 1, f);
+			metrics.addEnergyEvaluation();
 
 			//check for large decrease in pixels sum, for the case where the transformation zeros out the image
 			double sourcePixelSumDiff = imagesSumPixels_initial[0] - imagesSumPixels_current[0];
@@ -5201,10 +6010,13 @@ public class Transformation
 
 			iter++;
 			if (showMarquardtOptim) 
-				IJ.log("f("+iter+")="+f+" lambda="+lambda);
-			ProgressBar.stepProgressBar();
+				context.log("f("+iter+")="+f+" lambda="+lambda);
+			context.getProgressBar().step();
 
 			/* Update lambda -------------------------------------------------- */
+			metrics.addStep(rescuedf > f);
+			if (optimizationTrace != null)
+				traceIteration(intervals, iter, lambda, f, stepNorm, rescuedf > f);
 			if (rescuedf > f)
 			{
 				resultOptimizationErrorValues.add(f);
@@ -5224,11 +6036,12 @@ public class Transformation
                  update the geometry, and decrease the lambda */
 				/* Estimate the hessian ....................................... */
 				if (showMarquardtOptim) 
-					IJ.log("  Accepted");
+					context.log("  Accepted");
 				if ((last_successful_iter++%10)==0 && outputLevel>-1)
 					update_current_output(x,intervals, false);
 
 				/* Estimate the difference between gradients */
+				final long hessianStart = System.nanoTime();
 				for (i=0; i<M; i++) 
 					diffgrad[i] = grad[i]-rescuedgrad[i];
 
@@ -5281,11 +6094,12 @@ public class Transformation
 					} 
 					else
 						if (showMarquardtOptim)
-							IJ.log("Hessian cannot be safely updated, ill-conditioned");
+							context.log("Hessian cannot be safely updated, ill-conditioned");
 
 				} else
 					if (showMarquardtOptim)
-						IJ.log("Hessian cannot be safely updated");
+						context.log("Hessian cannot be safely updated");
+				metrics.addHessianUpdateTime(System.nanoTime() - hessianStart);
 
 				/* Update geometry and lambda ................................. */
 				rescuedf = f;
@@ -5318,7 +6132,7 @@ public class Transformation
 					lambda = FIRSTLAMBDA;
 			}
 
-			stop = dialog!=null && dialog.isStopRegistrationSet();
+			stop = context.isStopRequested();
 		}
 
 		// Copy the values back to the input arrays
@@ -5330,7 +6144,10 @@ public class Transformation
 				cyTargetToSource[i][j] = x[halfM+p];
 			}
 
-		ProgressBar.skipProgressBar(maxiter-iter);
+		context.getProgressBar().skip(maxiter-iter);
+		final RegistrationMetrics.Stage stage = metrics.endStage();
+		RegistrationEvents.INSTANCE.endOptimizationLevel(levelEvent, stage, iter, false);
+		context.getListener().stageFinished(stage);
 		return resultOptimizationErrorValues;
 	}
 	
@@ -5766,7 +6583,7 @@ public class Transformation
 		ImagePlus output_ip = (!bIsReverse) ? this.output_ip_1 : this.output_ip_2;
 		
 		// Calculate tranformation results 
-		IJ.showStatus("Calculating result window...");
+		context.showStatus("Calculating result window...");
 		ImagePlus result_imp = applyTransformationMultiThread(intervals, cx, cy, bIsReverse);
 		
 		output_ip.close();
@@ -5842,6 +6659,8 @@ public class Transformation
 		final ImageStack is = new ImageStack(auxTargetWidth, auxTargetHeight);
 		final String s = bIsReverse ? new String("Target") : new String("Source");
 		
+		final Object transformEvent = RegistrationEvents.INSTANCE.beginTransform();
+
 		// Create transformation B-spline models
 		BSplineModel swx = new BSplineModel(cx);
 		BSplineModel swy = new BSplineModel(cy);
@@ -5871,8 +6690,8 @@ public class Transformation
 				}
 			}
 
-			// Check the number of processors in the computer 
-			int nproc = Runtime.getRuntime().availableProcessors();
+			// Number of threads available to this transformation
+			int nproc = this.numThreads;
 
 			// We will use threads to display parts of the output image
 			//split rows as evenly as possible between available threads - smallest possible block height is 1
@@ -5967,8 +6786,8 @@ public class Transformation
 			FloatProcessor fpB 		= new FloatProcessor(auxTargetWidth, auxTargetHeight);
 			ColorProcessor cp_mask	= new ColorProcessor(auxTargetWidth, auxTargetHeight);			
 			
-			// Check the number of processors in the computer 
-			int nproc = Runtime.getRuntime().availableProcessors();
+			// Number of threads available to this transformation
+			int nproc = this.numThreads;
 
 			// We will use threads to display parts of the output image
 			//split rows as evenly as possible between available threads - smallest possible block height is 1
@@ -6061,6 +6880,8 @@ public class Transformation
 		output_ip.setSlice(1);
 		output_ip.getProcessor().resetMinAndMax();	
 		
+		RegistrationEvents.INSTANCE.endTransform(transformEvent, "elastic results", intervals,
+				auxTargetWidth, auxTargetHeight);
 		return output_ip;
 	} /* end applyTransformationMultiThread */
 
@@ -6687,8 +7508,8 @@ public class Transformation
 		
 		int uv = 0;
 
-		// Check the number of processors in the computer 
-		int nproc = Runtime.getRuntime().availableProcessors();
+		// Number of threads available to this transformation
+		int nproc = this.numThreads;
 
 		// We will use threads to display parts of the output image
 
@@ -6708,9 +7529,9 @@ public class Transformation
 			if (nThreads-1 == i) 
 				block_height = auxTargetHeight / (int)subFactorWidth - i*block_height;
 			/*
-			IJ.log("block height " + block_height);
-			IJ.log("Update : 0 " + " "+ x_start  +" " + (auxTargetWidth / (int)subFactorWidth) + " " + block_height);
-			IJ.log("auxFactorWidth = " + auxFactorWidth + " auxFactorHeight = " + auxFactorHeight);
+			context.log("block height " + block_height);
+			context.log("Update : 0 " + " "+ x_start  +" " + (auxTargetWidth / (int)subFactorWidth) + " " + block_height);
+			context.log("auxFactorWidth = " + auxFactorWidth + " auxFactorHeight = " + auxFactorHeight);
 			*/
 			rects[i] = new Rectangle(0, x_start, auxTargetWidth / (int)subFactorWidth, block_height);
 			
@@ -7130,10 +7951,11 @@ public class Transformation
 
 
 		// Image similarity calculated in a concurrent way
+		long start = System.nanoTime();
 		if(imageWeight != 0)
 		{
-			// Check the number of processors in the computer 
-			final int nproc = Runtime.getRuntime().availableProcessors();
+			// Number of threads available to this transformation
+			final int nproc = this.numThreads;
 
 			// We will use threads to calculate the similarity of the different parts of the target and source image
 
@@ -7216,10 +8038,12 @@ public class Transformation
 			imagesSumPixels[1] = targetSumPixels;
 			
 		}
+		metrics.addSimilarityTime(System.nanoTime() - start);
 		
 		
 
 		// Compute regularization term ..............................................
+		start = System.nanoTime();
 		double regularization = 0.0;
 		if (!only_image)
 		{
@@ -7237,9 +8061,11 @@ public class Transformation
 			for (int k=0; k<twiceNk; k++) 
 				vgradreg [k]*=1.0/(auxTargetCurrentHeight * auxTargetCurrentWidth);
 		}
+		metrics.addRegularizationTime(System.nanoTime() - start);
 
 		// Compute landmark error and derivative ...............................
 		// Get the list of landmarks
+		start = System.nanoTime();
 		double landmarkError = 0.0;
 		int K = 0;
 		if (auxTargetPh!=null) 
@@ -7306,6 +8132,7 @@ public class Transformation
 				vgradland[k] *= aux;
 		}
 		if (only_image) landmarkError = 0;
+		metrics.addLandmarkTime(System.nanoTime() - start);
 		
 
 		// Finish computations .............................................................
@@ -7317,7 +8144,7 @@ public class Transformation
 		String s = bIsReverse ? "(t-s)" : "(s-t)";
 		if (imageWeight != 0)
 		{
-			if (showMarquardtOptim) IJ.log("    Image          error " + s + ": " + imageSimilarity);
+			if (showMarquardtOptim) context.log("    Image          error " + s + ": " + imageSimilarity);
 
 			if(bIsReverse)
 				this.partialInverseSimilarityError = imageSimilarity;
@@ -7327,7 +8154,7 @@ public class Transformation
 		}
 		if (landmarkWeight != 0)
 		{
-			if (showMarquardtOptim) IJ.log("    Landmark       error " + s + ": " + landmarkError);
+			if (showMarquardtOptim) context.log("    Landmark       error " + s + ": " + landmarkError);
 
 			if(bIsReverse)
 				this.partialInverseLandmarkError = landmarkError;
@@ -7336,7 +8163,7 @@ public class Transformation
 		}
 		if (divWeight != 0 || curlWeight != 0)
 		{
-			if (showMarquardtOptim) IJ.log("    Regularization error " + s + ": " + regularization);
+			if (showMarquardtOptim) context.log("    Regularization error " + s + ": " + regularization);
 			if(bIsReverse)
 				this.partialInverseRegularizationError = regularization;
 			else
@@ -7567,8 +8394,8 @@ public class Transformation
 		double f_inverse = 0.0;
 		
 		
-		// Check the number of processors in the computer 
-		final int nproc = Runtime.getRuntime().availableProcessors();
+		// Number of threads available to this transformation
+		final int nproc = this.numThreads;
 
 		// We will use threads to calculate the similarity of the different parts of the target and source image
 
@@ -7662,8 +8489,8 @@ public class Transformation
 
 		if (showMarquardtOptim)
 		{
-			IJ.log("    Consistency Error (s-t): " + consistencyDirectError);
-			IJ.log("    Consistency Error (t-s): " + consistencyInverseError);
+			context.log("    Consistency Error (s-t): " + consistencyDirectError);
+			context.log("    Consistency Error (t-s): " + consistencyInverseError);
 		}
 
 
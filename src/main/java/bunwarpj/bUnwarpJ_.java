@@ -54,6 +54,7 @@ import java.awt.Dialog;
 import java.awt.Point;
 import java.awt.Window;
 import java.awt.geom.AffineTransform;
+import java.io.IOException;
 import java.util.Stack;
 
 /*====================================================================
@@ -308,6 +309,118 @@ public class bUnwarpJ_ implements PlugIn
         return computeTransformationBatch(targetImp, sourceImp, targetMskIP, sourceMskIP,
                 null, null, parameter);
     } // end computeTransformationBatch    
+
+    //------------------------------------------------------------------
+    /**
+     * Method for images alignment with no graphical interface, reporting
+     * the progress and diagnostic messages of the registration to a
+     * listener.
+     *
+     * @param targetImp input target image 
+     * @param sourceImp input source image
+     * @param targetMskIP target mask 
+     * @param sourceMskIP source mask
+     * @param parameter registration parameters
+     * @param listener listener receiving the messages of the registration
+     * 
+     * @return results transformation object
+     */
+    public static Transformation computeTransformationBatchWithListener(ImagePlus targetImp,
+    									 			   ImagePlus sourceImp,
+    									 			   ImageProcessor targetMskIP,
+    									 			   ImageProcessor sourceMskIP,
+    									 			   Param parameter,
+    									 			   RegistrationListener listener) 
+    {
+        return computeTransformationBatch(targetImp, sourceImp, targetMskIP, sourceMskIP,
+                withListener(parameter, listener));
+    } // end computeTransformationBatchWithListener
+
+    //------------------------------------------------------------------
+    /**
+     * Copy the registration parameters with a different listener.
+     *
+     * @param parameter registration parameters (can be null)
+     * @param listener listener receiving the messages of the registration
+     * @return parameters reporting to the listener (null if parameter is null)
+     */
+    private static Param withListener(Param parameter, RegistrationListener listener)
+    {
+        if (parameter == null)
+            return null;
+        final Param copy = new Param(parameter);
+        copy.setOptimizationTraceFile(parameter.getOptimizationTraceFile());
+        copy.setRegistrationListener(listener);
+        return copy;
+    }
+
+    //------------------------------------------------------------------
+    /**
+     * Method for images alignment with no graphical interface, initialized
+     * with the result of a previous registration (warm start) instead of
+     * the initial affine transformation. This is useful to register
+     * consecutive pairs of time-lapse or serial-section sequences, whose
+     * deformations are nearly identical.
+     *
+     * @param targetImp input target image 
+     * @param sourceImp input source image
+     * @param targetMskIP target mask 
+     * @param sourceMskIP source mask
+     * @param parameter registration parameters
+     * @param initialTransformation previous transformation used as initialization (null for affine initialization)
+     * 
+     * @return results transformation object
+     */
+    public static Transformation computeTransformationBatch(ImagePlus targetImp,
+    									 ImagePlus sourceImp,
+    									 ImageProcessor targetMskIP,
+    									 ImageProcessor sourceMskIP,
+    									 Param parameter,
+    									 Transformation initialTransformation) 
+    {
+       if(targetImp == null || sourceImp == null || parameter == null)
+       {
+    	   IJ.error("Missing parameters to compute transformation!");
+    	   return null;
+       }
+
+        return computeTransformationBatch(targetImp, sourceImp, targetMskIP, sourceMskIP,
+                null, null, parameter, initialTransformation, null, null);
+    } // end computeTransformationBatch
+
+    //------------------------------------------------------------------
+    /**
+     * Method for images alignment with no graphical interface, initialized
+     * with elastic transformation files (warm start) instead of the initial
+     * affine transformation.
+     *
+     * @param targetImp input target image 
+     * @param sourceImp input source image
+     * @param targetMskIP target mask 
+     * @param sourceMskIP source mask
+     * @param parameter registration parameters
+     * @param initialDirectTransfPath elastic transformation file used to initialize the direct deformation
+     * @param initialInverseTransfPath elastic transformation file used to initialize the inverse deformation (can be null)
+     * 
+     * @return results transformation object
+     */
+    public static Transformation computeTransformationBatch(ImagePlus targetImp,
+    									 ImagePlus sourceImp,
+    									 ImageProcessor targetMskIP,
+    									 ImageProcessor sourceMskIP,
+    									 Param parameter,
+    									 String initialDirectTransfPath,
+    									 String initialInverseTransfPath) 
+    {
+       if(targetImp == null || sourceImp == null || parameter == null)
+       {
+    	   IJ.error("Missing parameters to compute transformation!");
+    	   return null;
+       }
+
+        return computeTransformationBatch(targetImp, sourceImp, targetMskIP, sourceMskIP,
+                null, null, parameter, null, initialDirectTransfPath, initialInverseTransfPath);
+    } // end computeTransformationBatch
     
 
     //------------------------------------------------------------------
@@ -333,6 +446,40 @@ public class bUnwarpJ_ implements PlugIn
     									 AffineTransform targetAffineTransf,
     									 AffineTransform sourceAffineTransf,
     									 Param parameter) 
+    {    	
+        return computeTransformationBatch(targetImp, sourceImp, targetMskIP, sourceMskIP,
+                targetAffineTransf, sourceAffineTransf, parameter, null, null, null);
+    } // end computeTransformationBatch
+
+    //------------------------------------------------------------------
+    /**
+     * Method for images alignment with no graphical interface, optionally
+     * initialized with a previous transformation or with elastic
+     * transformation files (warm start).
+     *
+     * @param targetImp input target image 
+     * @param sourceImp input source image
+     * @param targetMskIP target mask 
+     * @param sourceMskIP source mask
+     * @param targetAffineTransf initial target affine transform
+     * @param sourceAffineTransf initial source affine transform
+     * @param parameter registration parameters
+     * @param initialTransformation previous transformation used as initialization (can be null)
+     * @param initialDirectTransfPath elastic transformation file to initialize the direct deformation (can be null)
+     * @param initialInverseTransfPath elastic transformation file to initialize the inverse deformation (can be null)
+     * 
+     * @return results transformation object
+     */
+    private static Transformation computeTransformationBatch(ImagePlus targetImp,
+    									 ImagePlus sourceImp,
+    									 ImageProcessor targetMskIP,
+    									 ImageProcessor sourceMskIP,
+    									 AffineTransform targetAffineTransf,
+    									 AffineTransform sourceAffineTransf,
+    									 Param parameter,
+    									 Transformation initialTransformation,
+    									 String initialDirectTransfPath,
+    									 String initialInverseTransfPath) 
     {    	
        if(targetImp == null || sourceImp == null || parameter == null)
        {
@@ -389,7 +536,8 @@ public class bUnwarpJ_ implements PlugIn
         }
 
         final Transformation warp =  computeTransformation(target, source, parameter, targetImp, sourceImp, targetMsk,
-                sourceMsk, targetPh, sourcePh, targetAffineMatrix, sourceAffineMatrix);
+                sourceMsk, targetPh, sourcePh, targetAffineMatrix, sourceAffineMatrix,
+                initialTransformation, initialDirectTransfPath, initialInverseTransfPath);
 
         return warp;
     } // end computeTransformationBatch   
@@ -500,14 +648,73 @@ public class bUnwarpJ_ implements PlugIn
         return warp;
     } // end computeTransformationBatch
 
+    //------------------------------------------------------------------
+    /**
+     * Method for images alignment with no graphical interface, reporting
+     * the progress and diagnostic messages of the registration to a
+     * listener.
+     *
+     * @param targetImageMtx input target image as a matrix of values between 0-255
+     * @param sourceImageMtx input source image as a matrix of values between 0-255
+     * @param parameter registration parameters
+     * @param listener listener receiving the messages of the registration
+     *
+     * @return results transformation object
+     */
+    public static Transformation computeTransformationBatchWithListener(int[][] targetImageMtx,
+                                                                        int[][] sourceImageMtx,
+                                                                        Param parameter,
+                                                                        RegistrationListener listener)
+    {
+        return computeTransformationBatch(targetImageMtx, sourceImageMtx, withListener(parameter, listener));
+    } // end computeTransformationBatchWithListener
+
     public static Transformation computeTransformation(BSplineModel target, BSplineModel source, Param parameter,
                                                        ImagePlus targetImp, ImagePlus sourceImp,
                                                        Mask targetMsk, Mask sourceMsk,
                                                        PointHandler targetPh, PointHandler sourcePh,
                                                        double[][] targetAffineMatrix, double[][] sourceAffineMatrix) {
+        return computeTransformation(target, source, parameter, targetImp, sourceImp, targetMsk, sourceMsk,
+                targetPh, sourcePh, targetAffineMatrix, sourceAffineMatrix, null, null, null);
+    }
+
+    /**
+     * Compute the transformation between the target and source image models,
+     * optionally initialized with a previous transformation or with elastic
+     * transformation files (warm start) instead of the initial affine transformation.
+     *
+     * @param target target image model
+     * @param source source image model
+     * @param parameter registration parameters
+     * @param targetImp target image
+     * @param sourceImp source image
+     * @param targetMsk target mask
+     * @param sourceMsk source mask
+     * @param targetPh target landmarks
+     * @param sourcePh source landmarks
+     * @param targetAffineMatrix initial target affine matrix
+     * @param sourceAffineMatrix initial source affine matrix
+     * @param initialTransformation previous transformation used as initialization (can be null)
+     * @param initialDirectTransfPath elastic transformation file to initialize the direct deformation (can be null)
+     * @param initialInverseTransfPath elastic transformation file to initialize the inverse deformation (can be null)
+     * @return results transformation object
+     */
+    public static Transformation computeTransformation(BSplineModel target, BSplineModel source, Param parameter,
+                                                       ImagePlus targetImp, ImagePlus sourceImp,
+                                                       Mask targetMsk, Mask sourceMsk,
+                                                       PointHandler targetPh, PointHandler sourcePh,
+                                                       double[][] targetAffineMatrix, double[][] sourceAffineMatrix,
+                                                       Transformation initialTransformation,
+                                                       String initialDirectTransfPath,
+                                                       String initialInverseTransfPath) {
         // Produce side information
         final int imagePyramidDepth = parameter.max_scale_deformation - parameter.min_scale_deformation + 1;
 
+        // batch registrations report to the listener of the parameters (none by default)
+        final RegistrationContext pyramidContext = new RegistrationContext(null, parameter.getRegistrationListener());
+        target.setContext(pyramidContext);
+        source.setContext(pyramidContext);
+
         //calculate the BSpline model coefficients for source and target
         target.setPyramidDepth(imagePyramidDepth);
         target.startPyramids();
@@ -526,6 +733,40 @@ public class bUnwarpJ_ implements PlugIn
             IJ.log("Unexpected interruption exception " + e);
         }
 
+        return computeTransformationFromPyramids(target, source, parameter, targetImp, sourceImp,
+                targetMsk, sourceMsk, targetPh, sourcePh, targetAffineMatrix, sourceAffineMatrix,
+                initialTransformation, initialDirectTransfPath, initialInverseTransfPath);
+    }
+
+    /**
+     * Compute the transformation between the target and source image models
+     * whose pyramids have already been built (see {@link BSplineModel#startPyramids()}).
+     * This allows reusing image models between consecutive registrations.
+     *
+     * @param target target image model (with built pyramids)
+     * @param source source image model (with built pyramids)
+     * @param parameter registration parameters
+     * @param targetImp target image
+     * @param sourceImp source image
+     * @param targetMsk target mask
+     * @param sourceMsk source mask
+     * @param targetPh target landmarks
+     * @param sourcePh source landmarks
+     * @param targetAffineMatrix initial target affine matrix
+     * @param sourceAffineMatrix initial source affine matrix
+     * @param initialTransformation previous transformation used as initialization (can be null)
+     * @param initialDirectTransfPath elastic transformation file to initialize the direct deformation (can be null)
+     * @param initialInverseTransfPath elastic transformation file to initialize the inverse deformation (can be null)
+     * @return results transformation object
+     */
+    static Transformation computeTransformationFromPyramids(BSplineModel target, BSplineModel source, Param parameter,
+                                                       ImagePlus targetImp, ImagePlus sourceImp,
+                                                       Mask targetMsk, Mask sourceMsk,
+                                                       PointHandler targetPh, PointHandler sourcePh,
+                                                       double[][] targetAffineMatrix, double[][] sourceAffineMatrix,
+                                                       Transformation initialTransformation,
+                                                       String initialDirectTransfPath,
+                                                       String initialInverseTransfPath) {
         // Output images
         ImagePlus[] output_ip = new ImagePlus[2];
 
@@ -548,18 +789,54 @@ public class bUnwarpJ_ implements PlugIn
             warp.setShearCorrection(parameter.getShearCorrection());
         }
 
-        IJ.log("\nRegistering...\n");
+        // Initial deformation coefficients (warm start)
+        if (initialTransformation != null)
+            warp.setInitialTransformation(initialTransformation);
+        if (initialDirectTransfPath != null)
+            warp.loadInitialDirectTransformation(initialDirectTransfPath);
+        if (initialInverseTransfPath != null)
+            warp.loadInitialInverseTransformation(initialInverseTransfPath);
+
+        // Optional per-iteration trace of the optimizer
+        OptimizationTraceWriter trace = null;
+        if (parameter.getOptimizationTraceFile() != null)
+        {
+            try {
+                trace = new OptimizationTraceWriter(parameter.getOptimizationTraceFile());
+                warp.setOptimizationTrace(trace);
+            } catch (IOException e) {
+                IJ.log("Could not create optimization trace file " + parameter.getOptimizationTraceFile() + ": " + e);
+            }
+        }
 
-        long start = System.currentTimeMillis(); // start timing
+        try
+        {
+            warp.getContext().log("\nRegistering...\n");
 
-        if(parameter.mode == MainDialog.MONO_MODE) {
-            warp.doUnidirectionalRegistration();
-        }
-        else
-            warp.doBidirectionalRegistration();
+            long start = System.currentTimeMillis(); // start timing
 
-        long stop = System.currentTimeMillis(); // stop timing
-        IJ.log("bUnwarpJ is done! Registration time: " + (stop - start) + "ms"); // print execution time
+            if(parameter.mode == MainDialog.MONO_MODE) {
+                warp.doUnidirectionalRegistration();
+            }
+            else
+                warp.doBidirectionalRegistration();
+
+            long stop = System.currentTimeMillis(); // stop timing
+            warp.getContext().log("bUnwarpJ is done! Registration time: " + (stop - start) + "ms"); // print execution time
+        }
+        finally
+        {
+            // close the trace even if the registration fails
+            if (trace != null)
+            {
+                warp.setOptimizationTrace(null);
+                try {
+                    trace.close();
+                } catch (IOException e) {
+                    IJ.log("Could not write optimization trace file " + parameter.getOptimizationTraceFile() + ": " + e);
+                }
+            }
+        }
 
         return warp;
     }
@@ -637,6 +914,11 @@ public class bUnwarpJ_ implements PlugIn
         parameter.max_scale_deformation = 4;
         final int imagePyramidDepth = parameter.max_scale_deformation - parameter.min_scale_deformation + 1;
 
+        // batch registrations report to the listener of the parameters (none by default)
+        final RegistrationContext pyramidContext = new RegistrationContext(null, parameter.getRegistrationListener());
+        target.setContext(pyramidContext);
+        source.setContext(pyramidContext);
+
         //calculate the BSpline model coefficients for source and target
         target.setPyramidDepth(imagePyramidDepth);
         target.startPyramids();
@@ -677,7 +959,7 @@ public class bUnwarpJ_ implements PlugIn
             warp.setShearCorrection(parameter.getShearCorrection());
         }
 
-        IJ.log("\nRegistering...\n");
+        warp.getContext().log("\nRegistering...\n");
 
         long start = System.currentTimeMillis(); // start timing
 
@@ -688,7 +970,7 @@ public class bUnwarpJ_ implements PlugIn
         }
 
         long stop = System.currentTimeMillis(); // stop timing
-        IJ.log("bUnwarpJ is done! Registration time: " + (stop - start) + "ms"); // print execution time
+        warp.getContext().log("bUnwarpJ is done! Registration time: " + (stop - start) + "ms"); // print execution time
 
         return warp;
     }
@@ -851,11 +1133,15 @@ public class bUnwarpJ_ implements PlugIn
 
     	final boolean showMarquardtOptim = false;       
 
+    	// Pyramid construction is reported through the ImageJ UI
+    	final RegistrationContext pyramidContext = new RegistrationContext(null, new ImageJRegistrationListener());
+
     	// Create target image model
     	final BSplineModel target = new BSplineModel(scaledTargetIP, true, 
     			(int) Math.pow(2, img_subsamp_fact));
 
     	target.setPyramidDepth(imagePyramidDepth+min_scale_image);
+    	target.setContext(pyramidContext);
     	target.startPyramids();
 
     	// Create target mask
@@ -871,6 +1157,7 @@ public class bUnwarpJ_ implements PlugIn
     			(int) Math.pow(2, img_subsamp_fact));
 
     	source.setPyramidDepth(imagePyramidDepth + min_scale_image);
+    	source.setContext(pyramidContext);
     	source.startPyramids();
 
     	// Create source mask
@@ -984,6 +1271,31 @@ public class bUnwarpJ_ implements PlugIn
     	return output_ip;       
 
     } // end alignImagesBatch
+
+    //------------------------------------------------------------------
+    /**
+     * Method for serial-section stack alignment with no graphical interface.
+     * Every slice is registered to the previous one, initialized with the
+     * deformation of the previous pair, and the elastic transformations are
+     * written to the output directory as the stack is processed.
+     *
+     * @param stackImp input stack of serial sections
+     * @param parameter registration parameters
+     * @param outputDirectory directory to write the transformations to
+     * 
+     * @return number of registered pairs of slices or -1 if error
+     */
+    public static int registerStackBatch(ImagePlus stackImp,
+    									 Param parameter,
+    									 String outputDirectory)
+    {
+    	if(stackImp == null)
+    	{
+    		IJ.error("Missing parameters to register the stack!");
+    		return -1;
+    	}
+    	return new StackRegistration(stackImp.getStack(), parameter, outputDirectory).run();
+    } // end registerStackBatch
     
     //------------------------------------------------------------------
     /**
@@ -1161,10 +1473,14 @@ public class bUnwarpJ_ implements PlugIn
        ImagePlus targetImp;
        targetImp = opener.openImage(fn_target);
        
+       // Pyramid construction is reported through the ImageJ UI
+       final RegistrationContext pyramidContext = new RegistrationContext(null, new ImageJRegistrationListener());
+
        BSplineModel target = new BSplineModel(targetImp.getProcessor(), true, 
     		   												(int) Math.pow(2, max_subsamp_fact));
        
        target.setPyramidDepth(imagePyramidDepth + min_scale_image);
+       target.setContext(pyramidContext);
        target.startPyramids();
   
   
@@ -1185,6 +1501,7 @@ public class bUnwarpJ_ implements PlugIn
     		   												(int) Math.pow(2, max_subsamp_fact));
 
        source.setPyramidDepth(imagePyramidDepth + min_scale_image);
+       source.setContext(pyramidContext);
        source.startPyramids();
 
        Mask sourceMsk = new Mask(sourceImp.getProcessor(), false);
@@ -1648,13 +1965,24 @@ public class bUnwarpJ_ implements PlugIn
        //source.getThread().start();
        source.startPyramids();
 
-       double [][]transformation_x = new double[targetImp.getHeight()][targetImp.getWidth()];
-       double [][]transformation_y = new double[targetImp.getHeight()][targetImp.getWidth()];
+       // Apply transformation (binary transformations directly from the mapped file)
+       if (MappedRawTransformation.isBinary(fn_tnf))
+       {
+           final MappedRawTransformation mapped = MappedRawTransformation.open(fn_tnf,
+                   targetImp.getWidth(), targetImp.getHeight());
+           if (mapped == null)
+               return;
+           MiscTools.applyRawTransformationToSource(sourceImp, targetImp, source, mapped);
+       }
+       else
+       {
+           double [][]transformation_x = new double[targetImp.getHeight()][targetImp.getWidth()];
+           double [][]transformation_y = new double[targetImp.getHeight()][targetImp.getWidth()];
 
-       MiscTools.loadRawTransformation(fn_tnf, transformation_x, transformation_y);
+           MiscTools.loadRawTransformation(fn_tnf, transformation_x, transformation_y);
 
-       // Apply transformation
-       MiscTools.applyRawTransformationToSource(sourceImp, targetImp, source, transformation_x, transformation_y);
+           MiscTools.applyRawTransformationToSource(sourceImp, targetImp, source, transformation_x, transformation_y);
+       }
 
        // Save results
        FileSaver fs = new FileSaver(sourceImp);
@@ -1801,18 +2129,8 @@ public class bUnwarpJ_ implements PlugIn
        if(sourceImp == null)
            IJ.error("\nError: " + fn_source + " could not be opened\n");
        
-       // We load the transformation raw file.
-       double[][] transformation_x_1 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       double[][] transformation_y_1 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       MiscTools.loadRawTransformation(fn_tnf_1, transformation_x_1, transformation_y_1);
-       
-       // We load the transformation raw file.
-       double[][] transformation_x_2 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       double[][] transformation_y_2 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       MiscTools.loadRawTransformation(fn_tnf_2, transformation_x_2, transformation_y_2);
-       
-       double warpingIndex = MiscTools.rawWarpingIndex(sourceImp, targetImp, 
-               transformation_x_1, transformation_y_1, transformation_x_2, transformation_y_2);
+       // We load the transformation raw files (and compare them).
+       double warpingIndex = MiscTools.rawWarpingIndex(fn_tnf_1, fn_tnf_2, targetImp, sourceImp);
 
        if(warpingIndex != -1)
            IJ.log(" Warping index = " + warpingIndex);             
@@ -1909,26 +2227,9 @@ public class bUnwarpJ_ implements PlugIn
        if(sourceImp == null)
            IJ.error("\nError: " + fn_source + " could not be opened\n");
        
-       // We load the first transformation raw file.
-       double[][] transformation_x_1 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       double[][] transformation_y_1 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       MiscTools.loadRawTransformation(fn_tnf_raw_1, transformation_x_1, transformation_y_1);
-              
-       // We load the second transformation raw file.
-       double[][] transformation_x_2 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       double[][] transformation_y_2 = new double[targetImp.getHeight()][targetImp.getWidth()];
-       MiscTools.loadRawTransformation(fn_tnf_raw_2, transformation_x_2, transformation_y_2);
-       
-       double [][] outputTransformation_x = new double[targetImp.getHeight()][targetImp.getWidth()];
-       double [][] outputTransformation_y = new double[targetImp.getHeight()][targetImp.getWidth()];
-             
-       // Now we compose them and get as result a raw transformation mapping.
-       MiscTools.composeRawTransformations(targetImp.getWidth(), targetImp.getHeight(), 
-               transformation_x_1, transformation_y_1, transformation_x_2, transformation_y_2, 
-               outputTransformation_x, outputTransformation_y);
-              
-       MiscTools.saveRawTransformation(fn_tnf_raw_out, targetImp.getWidth(), 
-               targetImp.getHeight(), outputTransformation_x, outputTransformation_y);
+       // We load both transformation raw files, compose them and get as
+       // result a raw transformation mapping.
+       MiscTools.composeRawTransforms(fn_tnf_raw_1, fn_tnf_raw_2, fn_tnf_raw_out, targetImp);
        
     } /* end method composeRawTransformationsCommandLine */     
     
@@ -2531,14 +2832,6 @@ public class bUnwarpJ_ implements PlugIn
 			final ImagePlus targetImp,
 			final ImagePlus sourceImp )
 	{
-		final double [][]transformation_x =
-    		new double[ targetImp.getHeight()][ targetImp.getWidth() ];
-		final double [][]transformation_y =
-			new double[ targetImp.getHeight()][ targetImp.getWidth() ];
-
-		MiscTools.loadRawTransformation( transfPath,
-				transformation_x, transformation_y );
-		
 		BSplineModel source = new BSplineModel( sourceImp.getProcessor(), false, 1 );
 		source.setPyramidDepth(0);
 		source.startPyramids();
@@ -2551,6 +2844,24 @@ public class bUnwarpJ_ implements PlugIn
 			return;
 		}
 
+		// Binary transformations are applied directly from the mapped file
+		if (MappedRawTransformation.isBinary(transfPath))
+		{
+			final MappedRawTransformation mapped = MappedRawTransformation.open(transfPath,
+					targetImp.getWidth(), targetImp.getHeight());
+			if (mapped != null)
+				MiscTools.applyRawTransformationToSource( sourceImp, targetImp, source, mapped );
+			return;
+		}
+
+		final double [][]transformation_x =
+    		new double[ targetImp.getHeight()][ targetImp.getWidth() ];
+		final double [][]transformation_y =
+			new double[ targetImp.getHeight()][ targetImp.getWidth() ];
+
+		MiscTools.loadRawTransformation( transfPath,
+				transformation_x, transformation_y );
+
 		// Apply transformation to source
 		MiscTools.applyRawTransformationToSource( sourceImp, targetImp, source,
 				transformation_x, transformation_y );
@@ -2854,6 +3165,37 @@ public class bUnwarpJ_ implements PlugIn
     	MiscTools.invertRawTransformation( inputTransfPath, outputTransfPath,
     			targetImp );
     }
+
+    /**
+     * Invert an elastic transform directly from its coefficients and save
+     * the inverse to file.
+     *
+     * @param inputTransfPath complete path to input elastic transform file
+     * @param outputTransfPath complete path to output elastic transform file
+     * @param targetTitle target image title
+     * @param sourceTitle source image title
+     */
+    public static void invertElasticTransform(
+    		final String inputTransfPath,
+    		final String outputTransfPath,
+    		final String targetTitle,
+    		final String sourceTitle )
+    {
+    	final ImagePlus targetImp = WindowManager.getImage( targetTitle );
+    	if( null == targetImp )
+    	{
+    		IJ.error( "Error: " + targetTitle + " image not found!" );
+    		return;
+    	}
+    	final ImagePlus sourceImp = WindowManager.getImage( sourceTitle );
+    	if( null == sourceImp )
+    	{
+    		IJ.error( "Error: " + sourceTitle + " image not found!" );
+    		return;
+    	}
+    	MiscTools.invertElasticTransformation( inputTransfPath, outputTransfPath,
+    			targetImp, sourceImp );
+    }
     /**
 	 * Get bUnwarpJ main dialog (if exists)
 	 * @return bUnwarpJ main dialog or null if it does not exist
@@ -0,0 +1,239 @@
+/*-
+ * #%L
+ * bUnwarpJ plugin for Fiji.
+ * %%
+ * Copyright (C) 2005 - 2020 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bunwarpj;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*====================================================================
+|   JfrRegistrationEvents
+\===================================================================*/
+
+/**
+ * Java Flight Recorder implementation of {@link RegistrationEvents}.
+ * Compiled for Java 11 into the multi-release overlay of the jar and only
+ * loaded when the runtime provides the {@code jdk.jfr} module.
+ */
+class JfrRegistrationEvents extends RegistrationEvents
+{
+	/*....................................................................
+		Event types
+	....................................................................*/
+
+	@Name("bunwarpj.Pyramid")
+	@Label("Pyramid Construction")
+	@Category("bUnwarpJ")
+	@Description("Computation of the B-spline coefficients and pyramids of an image")
+	static class PyramidEvent extends Event
+	{
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+		@Label("Pyramid Depth")
+		int depth;
+		@Label("Target")
+		boolean target;
+	}
+
+	@Name("bunwarpj.OptimizationLevel")
+	@Label("Optimization Level")
+	@Category("bUnwarpJ")
+	@Description("Optimization of the deformation coefficients at one deformation scale and image depth")
+	static class OptimizationLevelEvent extends Event
+	{
+		@Label("Intervals")
+		int intervals;
+		@Label("Image Depth")
+		int depth;
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+		@Label("Iterations")
+		int iterations;
+		@Label("Energy Evaluations")
+		int energyEvaluations;
+		@Label("Accepted Steps")
+		int acceptedSteps;
+		@Label("Rejected Steps")
+		int rejectedSteps;
+		@Label("Bidirectional")
+		boolean bidirectional;
+	}
+
+	@Name("bunwarpj.EnergyEvaluation")
+	@Label("Energy Evaluation")
+	@Category("bUnwarpJ")
+	@Description("Evaluation of the energy function and its gradient")
+	static class EnergyEvaluationEvent extends Event
+	{
+		@Label("Intervals")
+		int intervals;
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+		@Label("Iteration")
+		int iteration;
+		@Label("Energy")
+		double energy;
+	}
+
+	@Name("bunwarpj.Transform")
+	@Label("Transform Application")
+	@Category("bUnwarpJ")
+	@Description("Application of a transformation to an image")
+	static class TransformEvent extends Event
+	{
+		@Label("Kind")
+		String kind;
+		@Label("Intervals")
+		int intervals;
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+	}
+
+	//------------------------------------------------------------------
+	@Override
+	Object beginPyramid()
+	{
+		final PyramidEvent event = new PyramidEvent();
+		if (!event.isEnabled())
+			return null;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endPyramid(Object handle, int width, int height, int depth, boolean isTarget)
+	{
+		if (handle == null)
+			return;
+		final PyramidEvent event = (PyramidEvent) handle;
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.width = width;
+			event.height = height;
+			event.depth = depth;
+			event.target = isTarget;
+			event.commit();
+		}
+	}
+
+	//------------------------------------------------------------------
+	@Override
+	Object beginOptimizationLevel()
+	{
+		final OptimizationLevelEvent event = new OptimizationLevelEvent();
+		if (!event.isEnabled())
+			return null;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endOptimizationLevel(Object handle, RegistrationMetrics.Stage stage, int iterations, boolean bidirectional)
+	{
+		if (handle == null || stage == null)
+			return;
+		final OptimizationLevelEvent event = (OptimizationLevelEvent) handle;
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.intervals = stage.getIntervals();
+			event.depth = stage.getDepth();
+			event.width = stage.getWidth();
+			event.height = stage.getHeight();
+			event.iterations = iterations;
+			event.energyEvaluations = stage.getEnergyEvaluations();
+			event.acceptedSteps = stage.getAcceptedSteps();
+			event.rejectedSteps = stage.getRejectedSteps();
+			event.bidirectional = bidirectional;
+			event.commit();
+		}
+	}
+
+	//------------------------------------------------------------------
+	@Override
+	Object beginEnergyEvaluation()
+	{
+		final EnergyEvaluationEvent event = new EnergyEvaluationEvent();
+		if (!event.isEnabled())
+			return null;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endEnergyEvaluation(Object handle, int intervals, int width, int height, int iteration, double energy)
+	{
+		if (handle == null)
+			return;
+		final EnergyEvaluationEvent event = (EnergyEvaluationEvent) handle;
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.intervals = intervals;
+			event.width = width;
+			event.height = height;
+			event.iteration = iteration;
+			event.energy = energy;
+			event.commit();
+		}
+	}
+
+	//------------------------------------------------------------------
+	@Override
+	Object beginTransform()
+	{
+		final TransformEvent event = new TransformEvent();
+		if (!event.isEnabled())
+			return null;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endTransform(Object handle, String kind, int intervals, int width, int height)
+	{
+		if (handle == null)
+			return;
+		final TransformEvent event = (TransformEvent) handle;
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.kind = kind;
+			event.intervals = intervals;
+			event.width = width;
+			event.height = height;
+			event.commit();
+		}
+	}
+
+} // end class JfrRegistrationEvents
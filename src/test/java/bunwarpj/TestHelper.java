@@ -505,6 +505,25 @@ public class TestHelper {
         }
     }
 
+    /**
+     * random elastic deformation: the B-spline coefficients of the identity
+     * for an image of the given size, moved by gaussian noise
+     *
+     * @return x- and y- coefficients
+     */
+    public static double[][][] randomElasticCoefficients(int intervals, int width, int height,
+                                                         double sigma, long seed) {
+        Random random = new Random(seed);
+        double[][] cx = new double[intervals + 3][intervals + 3];
+        double[][] cy = new double[intervals + 3][intervals + 3];
+        for (int i = 0; i < intervals + 3; i++)
+            for (int j = 0; j < intervals + 3; j++) {
+                cx[i][j] = (j - 1) * (width - 1) / (double) intervals + sigma * random.nextGaussian();
+                cy[i][j] = (i - 1) * (height - 1) / (double) intervals + sigma * random.nextGaussian();
+            }
+        return new double[][][] {cx, cy};
+    }
+
     private static String mtxToString(double[][] aMtx) {
         String result = "";
         for (int i=0; i < aMtx.length; i++) {
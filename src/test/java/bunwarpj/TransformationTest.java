@@ -9,8 +9,11 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class TransformationTest {
@@ -983,6 +986,138 @@ class TransformationTest {
                 "transform", OVERWRITE_RESULTS_FILES);
     }
 
+    /**
+     * doUnidirectionalRegistration initialized with the result of a previous registration
+     * (warm start) must produce coefficients at the final scale and converge faster
+     * @throws Exception
+     */
+    @Test
+    void doUnidirectionalRegistration_warmStart_2d_int() throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer coldContainer = new TestContainer(inputFolder.toString());
+        coldContainer.options.max_scale_deformation = 2;
+        coldContainer.initializeTransformationInputs_Int();
+        coldContainer.buildBSplineModels();
+        coldContainer.initializeTransformationObject();
+        coldContainer.warp.doUnidirectionalRegistration();
+
+        TestContainer warmContainer = new TestContainer(inputFolder.toString());
+        warmContainer.options.max_scale_deformation = 2;
+        warmContainer.initializeTransformationInputs_Int();
+        warmContainer.buildBSplineModels();
+        warmContainer.initializeTransformationObject();
+        warmContainer.warp.setInitialTransformation(coldContainer.warp);
+        warmContainer.warp.doUnidirectionalRegistration();
+
+        assertEquals(coldContainer.warp.getIntervals(), warmContainer.warp.getIntervals());
+
+        assertEquals(coldContainer.warp.getDirectDeformationCoefficientsX().length,
+                warmContainer.warp.getDirectDeformationCoefficientsX().length);
+
+        // starting from the previous solution must reach a similar error in fewer iterations
+        double coldError = coldContainer.warp.getFinalDirectSimilarityError();
+        double warmError = warmContainer.warp.getFinalDirectSimilarityError();
+        assertTrue(warmError <= coldError * 1.05,
+                "warm-started error " + warmError + " is larger than cold error " + coldError);
+        assertTrue(warmContainer.warp.getOptimizationErrorValues().size()
+                < coldContainer.warp.getOptimizationErrorValues().size());
+    }
+
+    /**
+     * the progress of a registration must be reported to the listener of its context
+     * @throws Exception
+     */
+    @Test
+    void doUnidirectionalRegistration_listener_2d_int() throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.max_scale_deformation = 1;
+        testContainer.initializeTransformationInputs_Int();
+        testContainer.buildBSplineModels();
+        testContainer.initializeTransformationObject();
+
+        final List<Double> progress = new ArrayList<>();
+        testContainer.warp.setContext(new RegistrationContext(null, new RegistrationListener() {
+            @Override
+            public void log(String message) {}
+
+            @Override
+            public void showStatus(String message) {}
+
+            @Override
+            public void showProgress(double value) {
+                progress.add(value);
+            }
+        }));
+        testContainer.warp.doUnidirectionalRegistration();
 
+        assertFalse(progress.isEmpty());
+        for (double value : progress)
+            assertTrue(value >= 0 && value <= 1.0);
+    }
+
+
+    /**
+     * The metrics of a registration are consistent and reported to the listener
+     * @throws Exception
+     */
+    @Test
+    void doUnidirectionalRegistration_metrics_2d_int() throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.max_scale_deformation = 1;
+        testContainer.initializeTransformationInputs_Int();
+        testContainer.buildBSplineModels();
+        testContainer.initializeTransformationObject();
+
+        final List<RegistrationMetrics.Stage> stages = new ArrayList<>();
+        final List<RegistrationMetrics> finished = new ArrayList<>();
+        testContainer.warp.setContext(new RegistrationContext(null, new RegistrationListener() {
+            @Override
+            public void log(String message) {}
+
+            @Override
+            public void showStatus(String message) {}
+
+            @Override
+            public void showProgress(double value) {}
+
+            @Override
+            public void stageFinished(RegistrationMetrics.Stage stage) {
+                stages.add(stage);
+            }
+
+            @Override
+            public void registrationFinished(RegistrationMetrics metrics) {
+                finished.add(metrics);
+            }
+        }));
+        testContainer.warp.doUnidirectionalRegistration();
+
+        RegistrationMetrics metrics = testContainer.warp.getMetrics();
+        assertEquals(1, finished.size());
+        assertSame(metrics, finished.get(0));
+        assertEquals(metrics.getStages(), stages);
+        assertFalse(stages.isEmpty());
+
+        // every stage evaluates the energy once before its first step and once per step
+        assertTrue(metrics.getAcceptedSteps() > 0);
+        assertEquals(metrics.getAcceptedSteps() + metrics.getRejectedSteps() + stages.size(),
+                metrics.getEnergyEvaluations());
+        int evaluations = 0;
+        long stagesTime = 0;
+        for (RegistrationMetrics.Stage stage : stages) {
+            evaluations += stage.getEnergyEvaluations();
+            stagesTime += stage.getTime();
+        }
+        assertEquals(metrics.getEnergyEvaluations(), evaluations);
+        assertTrue(stagesTime <= metrics.getRegistrationTime());
+        assertTrue(metrics.getSimilarityTime() > 0);
+        assertTrue(metrics.getPyramidTime() > 0);
+        assertEquals(testContainer.warp.getOptimizationErrorValues().size(), metrics.getAcceptedSteps() + stages.size());
+    }
 
-}
\ No newline at end of file
+}
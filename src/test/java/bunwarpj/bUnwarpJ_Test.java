@@ -1,13 +1,35 @@
 package bunwarpj;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class bUnwarpJ_Test {
@@ -287,4 +309,1079 @@ class bUnwarpJ_Test {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * (2D data input) Test the serial-section stack registration: the second pair reuses
+     * the model of the second slice as target and must give the same transformation as
+     * registering that pair from scratch
+     */
+    @Test
+    void registerStack_2D(@TempDir Path outputFolder) throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.min_scale_deformation = 0;
+        testContainer.options.max_scale_deformation = 2;
+
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+
+        ImageStack stack = new ImageStack(targetImp.getWidth(), targetImp.getHeight());
+        stack.addSlice("slice 1", targetImp.getProcessor().duplicate());
+        stack.addSlice("slice 2", sourceImp.getProcessor().duplicate());
+        stack.addSlice("slice 3", targetImp.getProcessor().duplicate());
+
+        StackRegistration registration = new StackRegistration(stack, testContainer.options,
+                outputFolder.toString());
+        registration.setWarmStart(false);
+        assertEquals(2, registration.run());
+
+        String secondPairFile = StackRegistration.getTransformationFileName(outputFolder.toString(), 3, false);
+        assertTrue(new File(StackRegistration.getTransformationFileName(outputFolder.toString(), 2, false)).exists());
+        assertTrue(new File(secondPairFile).exists());
+
+        Transformation expected = bUnwarpJ_.computeTransformationBatch(sourceImp, targetImp,
+                null, null, testContainer.options);
+
+        int intervals = MiscTools.numberOfIntervalsOfTransformation(secondPairFile);
+        assertEquals(expected.getIntervals(), intervals);
+        double[][] cx = new double[intervals + 3][intervals + 3];
+        double[][] cy = new double[intervals + 3][intervals + 3];
+        MiscTools.loadTransformation(secondPairFile, cx, cy);
+
+        double[][] expectedCx = expected.getDirectDeformationCoefficientsX();
+        double[][] expectedCy = expected.getDirectDeformationCoefficientsY();
+        for (int i = 0; i < intervals + 3; i++)
+            for (int j = 0; j < intervals + 3; j++) {
+                assertEquals(expectedCx[i][j], cx[i][j], 1e-6);
+                assertEquals(expectedCy[i][j], cy[i][j], 1e-6);
+            }
+    }
+
+    /**
+     * (2D data input) Test the concurrent batch registration engine: every job must give
+     * the same transformation as registering the pair alone with the same thread budget
+     */
+    @Test
+    void batchRegistration_2D() throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.min_scale_deformation = 0;
+        testContainer.options.max_scale_deformation = 1;
+
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+
+        BatchRegistration engine = new BatchRegistration(2, 2);
+        assertEquals(1, engine.getThreadsPerJob());
+
+        List<BatchRegistration.Job> jobs = new ArrayList<>();
+        jobs.add(new BatchRegistration.Job(targetImp, sourceImp, testContainer.options));
+        jobs.add(new BatchRegistration.Job(sourceImp, targetImp, testContainer.options));
+        List<Future<Transformation>> results = engine.submitAll(jobs);
+        engine.shutdown();
+
+        Param serialParam = new Param(testContainer.options);
+        serialParam.setNumberOfThreads(1);
+        Transformation[] expected = {
+                bUnwarpJ_.computeTransformationBatch(targetImp, sourceImp, null, null, serialParam),
+                bUnwarpJ_.computeTransformationBatch(sourceImp, targetImp, null, null, serialParam)};
+
+        for (int k = 0; k < expected.length; k++) {
+            Transformation warp = results.get(k).get();
+            assertEquals(expected[k].getIntervals(), warp.getIntervals());
+            assertTrue(Arrays.deepEquals(expected[k].getDirectDeformationCoefficientsX(),
+                    warp.getDirectDeformationCoefficientsX()));
+            assertTrue(Arrays.deepEquals(expected[k].getDirectDeformationCoefficientsY(),
+                    warp.getDirectDeformationCoefficientsY()));
+        }
+    }
+
+    /**
+     * (2D data input) Test that batch registrations report their messages to a listener
+     * given to the batch entry point or to a batch job
+     */
+    @Test
+    void computeTransformationBatch_listener_2D() throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.max_scale_deformation = 1;
+
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+
+        final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        final List<Double> progress = Collections.synchronizedList(new ArrayList<>());
+        RegistrationListener listener = new RegistrationListener() {
+            @Override
+            public void log(String message) {
+                messages.add(message);
+            }
+
+            @Override
+            public void showStatus(String message) {}
+
+            @Override
+            public void showProgress(double value) {
+                progress.add(value);
+            }
+        };
+
+        bUnwarpJ_.computeTransformationBatchWithListener(targetImp, sourceImp, null, null, testContainer.options, listener);
+        assertTrue(messages.contains("\nRegistering...\n"));
+        assertTrue(messages.stream().anyMatch(m -> m.startsWith("bUnwarpJ is done!")));
+        assertTrue(!progress.isEmpty());
+        assertEquals(RegistrationListener.NONE, testContainer.options.getRegistrationListener());
+
+        messages.clear();
+        BatchRegistration engine = new BatchRegistration(1, 1);
+        BatchRegistration.Job job = new BatchRegistration.Job(targetImp, sourceImp, testContainer.options);
+        job.setRegistrationListener(listener);
+        engine.submit(job).get();
+        engine.shutdown();
+        assertTrue(messages.stream().anyMatch(m -> m.startsWith("bUnwarpJ is done!")));
+    }
+
+    /**
+     * (2D data input) Test the memory admission control of the batch engine: jobs that
+     * do not fit the budget are refused or downgraded to a coarser deformation
+     */
+    @Test
+    void batchRegistration_memoryPolicy_2D() throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.min_scale_deformation = 0;
+        testContainer.options.max_scale_deformation = 3;
+        testContainer.options.setNumberOfThreads(1);
+
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+        final int width = targetImp.getWidth();
+        final int height = targetImp.getHeight();
+
+        // Finer deformations, bidirectional registration and larger images need more memory
+        Param coarse = new Param(testContainer.options);
+        coarse.max_scale_deformation = 0;
+        Param accurate = new Param(testContainer.options);
+        accurate.mode = MainDialog.ACCURATE_MODE;
+        long fine = testContainer.options.estimatePeakMemory(width, height, width, height);
+        assertTrue(coarse.estimatePeakMemory(width, height, width, height) < fine);
+        assertTrue(accurate.estimatePeakMemory(width, height, width, height) > fine);
+        assertTrue(testContainer.options.estimatePeakMemory(2 * width, 2 * height, 2 * width, 2 * height) > fine);
+
+        BatchRegistration engine = new BatchRegistration(1, 1);
+        BatchRegistration.Job job = new BatchRegistration.Job(targetImp, sourceImp, testContainer.options);
+
+        // Refused: the job needs more memory than the budget
+        engine.setMemoryPolicy(BatchRegistration.MemoryPolicy.REFUSE);
+        engine.setMemoryBudget(fine - 1);
+        ExecutionException refused = assertThrows(ExecutionException.class, () -> engine.submit(job).get());
+        assertTrue(refused.getCause() instanceof RejectedExecutionException);
+        assertTrue(refused.getCause().getMessage().contains(String.valueOf(fine - 1)), refused.getCause().getMessage());
+
+        // Downgraded to the coarsest deformation that fits the budget
+        engine.setMemoryPolicy(BatchRegistration.MemoryPolicy.DOWNGRADE);
+        Param fitting = new Param(testContainer.options);
+        fitting.max_scale_deformation = 1;
+        engine.setMemoryBudget(fitting.estimatePeakMemory(width, height, width, height));
+        Transformation warp = engine.submit(job).get();
+        engine.shutdown();
+        assertEquals(2, warp.getIntervals());
+        assertEquals(3, testContainer.options.max_scale_deformation);
+    }
+
+    /**
+     * Test that the memory estimate covers the buffers a registration allocates:
+     * the image models with their pyramids and the masks, measured on the built
+     * objects, plus the regularization and optimizer matrices of the finest scale
+     */
+    @Test
+    void estimatePeakMemory_coversBuffers() throws Exception {
+        int targetWidth = 256, targetHeight = 200, sourceWidth = 230, sourceHeight = 190, scale = 3, threads = 2;
+        for (int mode : new int[]{MainDialog.MONO_MODE, MainDialog.ACCURATE_MODE})
+            for (int subsampling = 0; subsampling <= 1; subsampling++) {
+                Param parameter = new Param();
+                parameter.mode = mode;
+                parameter.img_subsamp_fact = subsampling;
+                parameter.min_scale_deformation = 0;
+                parameter.max_scale_deformation = scale;
+                parameter.setNumberOfThreads(threads);
+                long estimate = parameter.estimatePeakMemory(targetWidth, targetHeight, sourceWidth, sourceHeight);
+
+                // image models and masks as computeTransformationBatch builds them
+                FloatProcessor target = new FloatProcessor(targetWidth, targetHeight);
+                FloatProcessor source = new FloatProcessor(sourceWidth, sourceHeight);
+                long buffers = 0;
+                for (FloatProcessor fp : new FloatProcessor[]{target, source}) {
+                    BSplineModel model = new BSplineModel(fp, true, 1 << subsampling);
+                    model.setPyramidDepth(scale + 1);
+                    model.startPyramids();
+                    model.getThread().join();
+                    buffers += arrayBytes(model) + arrayBytes(new Mask(fp, false));
+                }
+
+                // regularization matrices and optimizer at the finest scale
+                int directions = mode == MainDialog.MONO_MODE ? 1 : 2;
+                long Nk = ((1 << scale) + 3) * ((1 << scale) + 3);
+                long M = 2 * directions * Nk;
+                buffers += 8L * 3 * Nk * Nk * directions;
+                // hessian, rescued and proposed Hessians and the Marquardt system
+                buffers += 8L * 4 * M * M;
+                // optimizer vectors and per-thread gradients
+                buffers += 8L * 7 * M + 8L * threads * M;
+
+                assertTrue(estimate >= buffers, "estimate " + estimate + " < buffers " + buffers
+                        + " (mode " + mode + ", subsampling " + subsampling + ")");
+            }
+    }
+
+    /**
+     * Bytes of the primitive arrays held by the fields of an object, including
+     * the rows of 2D arrays and the arrays stored in collections (pyramids)
+     */
+    private static long arrayBytes(Object object) throws IllegalAccessException {
+        long bytes = 0;
+        for (Class<?> type = object.getClass(); type != Object.class; type = type.getSuperclass())
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()))
+                    continue;
+                field.setAccessible(true);
+                Object value = field.get(object);
+                if (value instanceof Collection)
+                    for (Object element : (Collection<?>) value)
+                        bytes += primitiveArrayBytes(element);
+                else
+                    bytes += primitiveArrayBytes(value);
+            }
+        return bytes;
+    }
+
+    private static long primitiveArrayBytes(Object value) {
+        if (value == null || !value.getClass().isArray())
+            return 0;
+        Class<?> component = value.getClass().getComponentType();
+        int length = Array.getLength(value);
+        if (!component.isPrimitive()) {
+            long bytes = 0;
+            for (int i = 0; i < length; i++)
+                bytes += primitiveArrayBytes(Array.get(value, i));
+            return bytes;
+        }
+        if (component == double.class || component == long.class)
+            return 8L * length;
+        if (component == float.class || component == int.class)
+            return 4L * length;
+        if (component == short.class || component == char.class)
+            return 2L * length;
+        return length;
+    }
+
+    /**
+     * (2D data input) Test the optimization trace export: one record per energy
+     * evaluation in both the binary and the CSV formats
+     */
+    @Test
+    void optimizationTrace_2D(@TempDir Path tempDir) throws Exception {
+
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.min_scale_deformation = 0;
+        testContainer.options.max_scale_deformation = 1;
+
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+
+        String binaryFile = tempDir.resolve("trace.bin").toString();
+        testContainer.options.setOptimizationTraceFile(binaryFile);
+        Transformation warp = bUnwarpJ_.computeTransformationBatch(targetImp, sourceImp, null, null, testContainer.options);
+
+        RegistrationMetrics metrics = warp.getMetrics();
+        List<double[]> records = OptimizationTraceWriter.readBinary(binaryFile);
+        assertEquals(metrics.getEnergyEvaluations(), records.size());
+        int accepted = 0;
+        long elapsed = 0;
+        for (double[] record : records) {
+            accepted += (int) record[10];
+            assertTrue(record[11] >= elapsed);
+            elapsed = (long) record[11];
+        }
+        assertEquals(metrics.getAcceptedSteps() + metrics.getStages().size(), accepted);
+        // the energy of the last accepted step is the final similarity error
+        double lastAccepted = 0;
+        for (double[] record : records)
+            if (record[10] == 1)
+                lastAccepted = record[5];
+        assertEquals(warp.getFinalDirectSimilarityError(), lastAccepted, 1e-12);
+
+        String csvFile = tempDir.resolve("trace.csv").toString();
+        testContainer.options.setOptimizationTraceFile(csvFile);
+        bUnwarpJ_.computeTransformationBatch(targetImp, sourceImp, null, null, testContainer.options);
+        List<String> lines = Files.readAllLines(Paths.get(csvFile));
+        assertEquals(OptimizationTraceWriter.CSV_HEADER, lines.get(0));
+        assertEquals(records.size() + 1, lines.size());
+
+        // concurrent batch jobs write one trace file each
+        assertEquals(null, new Param(testContainer.options).getOptimizationTraceFile());
+        BatchRegistration engine = new BatchRegistration(2, 2);
+        List<Future<Transformation>> results = engine.submitAll(Arrays.asList(
+                new BatchRegistration.Job(targetImp, sourceImp, testContainer.options),
+                new BatchRegistration.Job(targetImp, sourceImp, testContainer.options)));
+        engine.shutdown();
+        for (int k = 1; k <= results.size(); k++) {
+            results.get(k - 1).get();
+            String jobFile = OptimizationTraceWriter.getIndexedFileName(csvFile, "job", k);
+            assertEquals(tempDir.resolve(String.format("trace_job%05d.csv", k)).toString(), jobFile);
+            List<String> jobLines = Files.readAllLines(Paths.get(jobFile));
+            assertEquals(OptimizationTraceWriter.CSV_HEADER, jobLines.get(0));
+            assertEquals(lines.size(), jobLines.size());
+        }
+    }
+
+    @Test
+    void elasticTransformation_binaryFormat(@TempDir Path tempDir) throws Exception {
+        int intervals = 4;
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, 400, 300, 100, 7);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+
+        String textFile = tempDir.resolve("elastic.txt").toString();
+        String binaryFile = tempDir.resolve("elastic" + MiscTools.ELASTIC_BINARY_EXTENSION).toString();
+        MiscTools.saveElasticTransformation(intervals, cx, cy, textFile);
+        MiscTools.saveElasticTransformation(intervals, cx, cy, binaryFile);
+        assertTrue(!MiscTools.isBinaryElasticTransformation(textFile));
+        assertTrue(MiscTools.isBinaryElasticTransformation(binaryFile));
+        assertEquals(intervals, MiscTools.numberOfIntervalsOfTransformation(textFile));
+        assertEquals(intervals, MiscTools.numberOfIntervalsOfTransformation(binaryFile));
+
+        // both formats hold exactly the same coefficients
+        for (String file : new String[] {textFile, binaryFile}) {
+            double[][][] c = MiscTools.loadElasticTransformation(file);
+            double[][] lx = new double[intervals + 3][intervals + 3];
+            double[][] ly = new double[intervals + 3][intervals + 3];
+            MiscTools.loadTransformation(file, lx, ly);
+            for (int i = 0; i < intervals + 3; i++) {
+                assertTrue(Arrays.equals(cx[i], c[0][i]));
+                assertTrue(Arrays.equals(cy[i], c[1][i]));
+                assertTrue(Arrays.equals(cx[i], lx[i]));
+                assertTrue(Arrays.equals(cy[i], ly[i]));
+            }
+        }
+
+        // binary -> text conversion
+        String convertedFile = tempDir.resolve("converted.txt").toString();
+        double[][][] c = MiscTools.loadElasticTransformation(binaryFile);
+        MiscTools.saveElasticTransformation(c[0].length - 3, c[0], c[1], convertedFile);
+        double[][][] converted = MiscTools.loadElasticTransformation(convertedFile);
+        for (int i = 0; i < intervals + 3; i++)
+            assertTrue(Arrays.equals(cx[i], converted[0][i]));
+
+        // corrupt headers and truncated files are rejected before allocating the coefficients
+        byte[] bytes = Files.readAllBytes(Paths.get(binaryFile));
+        for (int corruptIntervals : new int[] {Integer.MAX_VALUE, 1 << 20, intervals + 1}) {
+            java.nio.ByteBuffer.wrap(bytes).order(java.nio.ByteOrder.LITTLE_ENDIAN).putInt(8, corruptIntervals);
+            Path corruptFile = tempDir.resolve("corrupt" + MiscTools.ELASTIC_BINARY_EXTENSION);
+            Files.write(corruptFile, bytes);
+            assertEquals(null, MiscTools.loadElasticTransformation(corruptFile.toString()));
+            assertEquals(-1, MiscTools.numberOfIntervalsOfTransformation(corruptFile.toString()));
+        }
+        List<String> lines = Files.readAllLines(Paths.get(textFile));
+        Path truncatedFile = tempDir.resolve("truncated.txt");
+        Files.write(truncatedFile, lines.subList(0, lines.size() / 2));
+        assertEquals(null, MiscTools.loadElasticTransformation(truncatedFile.toString()));
+    }
+
+    @Test
+    void rawTransformation_mappedBinaryFormat(@TempDir Path tempDir) {
+        int width = 64, height = 48;
+        double[][] tx1 = new double[height][width], ty1 = new double[height][width];
+        double[][] tx2 = new double[height][width], ty2 = new double[height][width];
+        int[][] image = new int[height][width];
+        for (int v = 0; v < height; v++)
+            for (int u = 0; u < width; u++) {
+                tx1[v][u] = u + 2.5 * Math.sin(v / 7.0);
+                ty1[v][u] = v + 1.5 * Math.cos(u / 5.0);
+                tx2[v][u] = 0.9 * u + 3.25;
+                ty2[v][u] = v - 0.75;
+                image[v][u] = (u * 7 + v * 3) % 256;
+            }
+        ImagePlus targetImp = MiscTools.createImagePlusByte(image, "target");
+
+        String textFile = tempDir.resolve("raw1.txt").toString();
+        String binaryFile1 = tempDir.resolve("raw1" + MiscTools.RAW_BINARY_EXTENSION).toString();
+        String binaryFile2 = tempDir.resolve("raw2" + MiscTools.RAW_BINARY_EXTENSION).toString();
+        MiscTools.saveRawTransformation(textFile, width, height, tx1, ty1);
+        MiscTools.saveRawTransformation(binaryFile1, width, height, tx1, ty1);
+        MiscTools.saveRawTransformation(binaryFile2, width, height, tx2, ty2);
+        assertTrue(!MappedRawTransformation.isBinary(textFile));
+        assertTrue(MappedRawTransformation.isBinary(binaryFile1));
+
+        // the loaders read both formats with the same values
+        double[][] lx = new double[height][width], ly = new double[height][width];
+        double[] flatX = new double[width * height], flatY = new double[width * height];
+        MiscTools.loadRawTransformation(binaryFile1, lx, ly);
+        MiscTools.loadRawTransformation(binaryFile1, flatX, flatY);
+        for (int v = 0; v < height; v++) {
+            assertTrue(Arrays.equals(tx1[v], lx[v]));
+            assertTrue(Arrays.equals(ty1[v], ly[v]));
+            assertTrue(Arrays.equals(tx1[v], Arrays.copyOfRange(flatX, v * width, (v + 1) * width)));
+        }
+        MiscTools.loadRawTransformation(textFile, lx, ly);
+        for (int v = 0; v < height; v++)
+            assertTrue(Arrays.equals(ty1[v], ly[v]));
+
+        MappedRawTransformation mapped1 = MappedRawTransformation.open(binaryFile1);
+        MappedRawTransformation mapped2 = MappedRawTransformation.open(binaryFile2);
+        assertEquals(width, mapped1.getWidth());
+        assertEquals(height, mapped1.getHeight());
+        assertEquals(tx1[5][7], mapped1.getX(5, 7));
+
+        // compare and compose work on the mapped data with the same results
+        assertEquals(MiscTools.rawWarpingIndex(targetImp, targetImp, tx1, ty1, tx2, ty2),
+                MiscTools.rawWarpingIndex(targetImp, targetImp, mapped1, mapped2));
+        double[][] ox = new double[height][width], oy = new double[height][width];
+        double[][] mx = new double[height][width], my = new double[height][width];
+        MiscTools.composeRawTransformations(width, height, tx1, ty1, tx2, ty2, ox, oy);
+        MiscTools.composeRawTransformations(width, height, mapped1, mapped2, mx, my);
+        for (int v = 0; v < height; v++) {
+            assertTrue(Arrays.equals(ox[v], mx[v]));
+            assertTrue(Arrays.equals(oy[v], my[v]));
+        }
+
+        // apply
+        ImagePlus fromArrays = MiscTools.createImagePlusByte(image, "source");
+        ImagePlus fromMapped = MiscTools.createImagePlusByte(image, "source");
+        MiscTools.applyRawTransformationToSource(fromArrays, targetImp,
+                new BSplineModel(fromArrays.getProcessor(), false, 1), tx1, ty1);
+        MiscTools.applyRawTransformationToSource(fromMapped, targetImp,
+                new BSplineModel(fromMapped.getProcessor(), false, 1), mapped1);
+        assertTrue(Arrays.equals((float[]) fromArrays.getProcessor().getPixels(),
+                (float[]) fromMapped.getProcessor().getPixels()));
+
+        // mapped files with a different size than the target image are rejected
+        ImagePlus taller = new ImagePlus("taller", new FloatProcessor(width, height + 1));
+        ImagePlus wider = new ImagePlus("wider", new FloatProcessor(width + 1, height));
+        assertEquals(null, MappedRawTransformation.open(binaryFile1, width, height + 1));
+        assertEquals(null, MappedRawTransformation.open(binaryFile1, width + 1, height));
+        assertEquals(-1, MiscTools.rawWarpingIndex(binaryFile1, binaryFile2, taller, taller));
+        assertEquals(-1, MiscTools.rawWarpingIndex(wider, wider, mapped1, mapped2));
+        ImageProcessor unchanged = fromMapped.getProcessor().duplicate();
+        MiscTools.applyRawTransformationToSource(fromMapped, wider,
+                new BSplineModel(fromMapped.getProcessor(), false, 1), mapped1);
+        assertTrue(Arrays.equals((float[]) unchanged.getPixels(), (float[]) fromMapped.getProcessor().getPixels()));
+    }
+
+    @Test
+    void rawTransformation_textParser(@TempDir Path tempDir) throws Exception {
+        // every double written by Double.toString is read back exactly
+        Random random = new Random(11);
+        byte[] token = new byte[64];
+        double[] special = {0.0, -0.0, 1e-300, 4.9e-324, Double.MAX_VALUE, 1e23, 0.1, 123456.789,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int k = 0; k < 100000 + special.length; k++) {
+            double value = k < special.length ? special[k]
+                    : k % 3 == 0 ? Math.round(random.nextDouble() * 1e6) / 1e3
+                    : (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(40) - 20);
+            byte[] text = Double.toString(value).getBytes("ISO-8859-1");
+            System.arraycopy(text, 0, token, 0, text.length);
+            assertEquals(Double.doubleToRawLongBits(value),
+                    Double.doubleToRawLongBits(RawTransformationParser.parseDouble(token, text.length)));
+        }
+
+        // large files are parsed in parallel with the same result
+        int width = 512, height = 512;
+        double[][] tx = new double[height][width], ty = new double[height][width];
+        for (int v = 0; v < height; v++)
+            for (int u = 0; u < width; u++) {
+                tx[v][u] = u + 3 * Math.sin(v / 17.0) + random.nextDouble();
+                ty[v][u] = v - 2 * Math.cos(u / 13.0);
+            }
+        String textFile = tempDir.resolve("raw.txt").toString();
+        MiscTools.saveRawTransformation(textFile, width, height, tx, ty);
+        assertTrue(Files.size(Paths.get(textFile)) > (4 << 20));
+        for (boolean parallel : new boolean[] {false, true}) {
+            double[][] lx = new double[height][width], ly = new double[height][width];
+            double[] fx = new double[width * height], fy = new double[width * height];
+            assertTrue(RawTransformationParser.parse(textFile, lx, ly, parallel));
+            assertTrue(RawTransformationParser.parse(textFile, fx, fy, parallel));
+            for (int v = 0; v < height; v++) {
+                assertTrue(Arrays.equals(tx[v], lx[v]));
+                assertTrue(Arrays.equals(ty[v], ly[v]));
+                assertTrue(Arrays.equals(ty[v], Arrays.copyOfRange(fy, v * width, (v + 1) * width)));
+            }
+
+            // a failure while storing the y- block reaches the caller
+            double[][] shortY = new double[height][width - 1];
+            shortY[0] = new double[width];
+            assertThrows(IndexOutOfBoundsException.class, () ->
+                    RawTransformationParser.parse(textFile, new double[height][width], shortY, parallel));
+        }
+
+        // malformed lines are reported and set to NaN without aborting
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "Width=3", "Height=2", "", "X Trans -----------------------------------",
+                "0.0 1.0 2.0", "0.5 abc", "", "Y Trans -----------------------------------",
+                "1.0 1.0 1.0", "2.0 2.0 2.0"));
+        String malformedFile = tempDir.resolve("malformed.txt").toString();
+        Files.write(Paths.get(malformedFile), lines);
+        double[][] mx = new double[2][3], my = new double[2][3];
+        assertTrue(!RawTransformationParser.parse(malformedFile, mx, my, false));
+        assertTrue(Arrays.equals(new double[] {0.0, 1.0, 2.0}, mx[0]));
+        assertEquals(0.5, mx[1][0]);
+        assertTrue(Double.isNaN(mx[1][1]) && Double.isNaN(mx[1][2]));
+        assertTrue(Arrays.equals(new double[] {2.0, 2.0, 2.0}, my[1]));
+
+        // negative sizes in the header are rejected
+        lines.set(1, "Height=-2");
+        Files.write(Paths.get(malformedFile), lines);
+        assertTrue(!RawTransformationParser.parse(malformedFile, mx, my, false));
+        assertTrue(!RawTransformationParser.parse(malformedFile, new double[6], new double[6], false));
+    }
+
+    @Test
+    void rawTransformation_compressedFormat(@TempDir Path tempDir) throws Exception {
+        int width = 200, height = 150;
+        double[][] tx = new double[height][width], ty = new double[height][width];
+        int[][] image = new int[height][width];
+        for (int v = 0; v < height; v++)
+            for (int u = 0; u < width; u++) {
+                tx[v][u] = u + 4.3 * Math.sin(v / 23.0) + 0.01 * u;
+                ty[v][u] = v - 2.7 * Math.cos(u / 31.0);
+            }
+        ImagePlus targetImp = MiscTools.createImagePlusByte(image, "target");
+
+        String textFile = tempDir.resolve("raw.txt").toString();
+        String fixedFile = tempDir.resolve("raw" + MiscTools.RAW_COMPRESSED_EXTENSION).toString();
+        String floatFile = tempDir.resolve("raw-float.binz").toString();
+        MiscTools.saveRawTransformation(textFile, width, height, tx, ty);
+        MiscTools.saveRawTransformation(fixedFile, width, height, tx, ty);
+        CompressedRawTransformation.save(floatFile, width, height, tx, ty,
+                CompressedRawTransformation.Encoding.FLOAT, 0);
+        assertTrue(CompressedRawTransformation.isCompressed(fixedFile));
+        assertTrue(!CompressedRawTransformation.isCompressed(textFile));
+        assertTrue(Files.size(Paths.get(fixedFile)) * 10 < Files.size(Paths.get(textFile)));
+
+        // decoded coordinates are within the documented error bounds
+        double[][] fx = new double[height][width], fy = new double[height][width];
+        double[] lx = new double[width * height], ly = new double[width * height];
+        MiscTools.loadRawTransformation(fixedFile, fx, fy);
+        MiscTools.loadRawTransformation(floatFile, lx, ly);
+        for (int v = 0; v < height; v++)
+            for (int u = 0; u < width; u++) {
+                assertEquals(tx[v][u], fx[v][u], CompressedRawTransformation.DEFAULT_STEP / 2 + 1e-12);
+                assertEquals(ty[v][u], fy[v][u], CompressedRawTransformation.DEFAULT_STEP / 2 + 1e-12);
+                assertEquals(tx[v][u], lx[u + v * width], Math.abs(tx[v][u] - u) * 0x1p-24);
+                assertEquals(ty[v][u], ly[u + v * width], Math.abs(ty[v][u] - v) * 0x1p-24);
+            }
+
+        // compare and compose commands decode the files transparently
+        assertEquals(MiscTools.rawWarpingIndex(targetImp, targetImp, tx, ty, fx, fy),
+                MiscTools.rawWarpingIndex(textFile, fixedFile, targetImp, targetImp));
+        String composedFile = tempDir.resolve("composed" + MiscTools.RAW_COMPRESSED_EXTENSION).toString();
+        MiscTools.composeRawTransforms(fixedFile, floatFile, composedFile, targetImp);
+        double[][] cx = new double[height][width], cy = new double[height][width];
+        MiscTools.loadRawTransformation(composedFile, cx, cy);
+        double[][] ox = new double[height][width], oy = new double[height][width];
+        MiscTools.composeRawTransformations(width, height, tx, ty, tx, ty, ox, oy);
+        for (int v = 0; v < height; v++)
+            for (int u = 0; u < width; u++) {
+                assertEquals(ox[v][u], cx[v][u], 0.01);
+                assertEquals(oy[v][u], cy[v][u], 0.01);
+            }
+    }
+
+    @Test
+    void deformationField_lazyTiles() {
+        int width = 300, height = 200, intervals = 4;
+        double[][][] c1 = TestHelper.randomElasticCoefficients(intervals, width, height, 5, 5);
+        double[][][] c2 = TestHelper.randomElasticCoefficients(intervals, width, height, 5, 6);
+        double[][] cx1 = c1[0], cy1 = c1[1], cx2 = c2[0], cy2 = c2[1];
+        ImagePlus targetImp = MiscTools.createImagePlusByte(new int[height][width], "target");
+
+        // on-demand evaluation gives the same coordinates as a direct evaluation
+        double[] c = new double[2 * (intervals + 3) * (intervals + 3)];
+        int nk = (intervals + 3) * (intervals + 3);
+        for (int n = 0, i = 0; i < intervals + 3; i++)
+            for (int j = 0; j < intervals + 3; j++, n++) {
+                c[n] = cx1[i][j];
+                c[n + nk] = cy1[i][j];
+            }
+        BSplineModel swx = new BSplineModel(c, intervals + 3, intervals + 3, 0);
+        BSplineModel swy = new BSplineModel(c, intervals + 3, intervals + 3, nk);
+        DeformationField field = new DeformationField(intervals, cx1, cy1, width, height);
+        for (int v = 0; v < height; v++)
+            for (int u = 0; u < width; u++) {
+                double tu = (double) (u * intervals) / (width - 1) + 1.0;
+                double tv = (double) (v * intervals) / (height - 1) + 1.0;
+                swx.prepareForInterpolation(tu, tv, false);
+                swy.prepareForInterpolation(tu, tv, false);
+                assertEquals(swx.interpolateI(), field.getX(v, u));
+                assertEquals(swy.interpolateI(), field.getY(v, u));
+            }
+        // row-major scans evaluate every tile only once (5 x 4 tiles of 64 pixels)
+        assertEquals(20, field.getEvaluatedTiles());
+
+        // a one-tile cache still gives the right values, evaluating tiles again
+        DeformationField small = new DeformationField(intervals, cx1, cy1, width, height, 32, 1);
+        assertEquals(field.getX(150, 10), small.getX(150, 10));
+        assertEquals(field.getY(10, 290), small.getY(10, 290));
+        assertEquals(field.getY(150, 10), small.getY(150, 10));
+        assertEquals(3, small.getEvaluatedTiles());
+
+        // composition at pixel level matches the composition of the raw grids
+        double[][] tx1 = new double[height][width], ty1 = new double[height][width];
+        double[][] tx2 = new double[height][width], ty2 = new double[height][width];
+        MiscTools.convertElasticTransformationToRaw(targetImp, intervals, cx1, cy1, tx1, ty1);
+        MiscTools.convertElasticTransformationToRaw(targetImp, intervals, cx2, cy2, tx2, ty2);
+        double[][] ox = new double[height][width], oy = new double[height][width];
+        double[][] px = new double[height][width], py = new double[height][width];
+        MiscTools.composeRawTransformations(width, height, tx1, ty1, tx2, ty2, ox, oy);
+        MiscTools.composeElasticTransformationsAtPixelLevel(targetImp, intervals, cx1, cy1, cx2, cy2, px, py);
+        for (int v = 0; v < height; v++) {
+            assertTrue(Arrays.equals(ox[v], px[v]));
+            assertTrue(Arrays.equals(oy[v], py[v]));
+        }
+        assertEquals(MiscTools.rawWarpingIndex(targetImp, targetImp, tx1, ty1, tx2, ty2),
+                MiscTools.rawWarpingIndex(targetImp, targetImp, intervals, cx1, cy1, tx2, ty2));
+    }
+
+    @Test
+    void applyTransformToStack_precomputedMap(@TempDir Path tempDir) throws Exception {
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+        int width = targetImp.getWidth(), height = targetImp.getHeight(), intervals = 4;
+
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 8, 3);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        String transformationFile = tempDir.resolve("elastic.txt").toString();
+        MiscTools.saveElasticTransformation(intervals, cx, cy, transformationFile);
+
+        ImageStack stack = new ImageStack(width, height);
+        stack.addSlice("slice 1", sourceImp.getProcessor().duplicate());
+        stack.addSlice("slice 2", targetImp.getProcessor().duplicate());
+        ImageStack result = MiscTools.applyTransformToStack(transformationFile, targetImp,
+                new ImagePlus("moving", stack)).getImageStack();
+        assertEquals(2, result.getSize());
+
+        // same pixels as warping every slice on its own
+        CoordinateMap singleMap = CoordinateMap.fromElastic(intervals, cx, cy, width, height, true);
+        for (int i = 1; i <= stack.getSize(); i++) {
+            ImagePlus slice = new ImagePlus("", stack.getProcessor(i));
+            float[] expected = (float[]) MiscTools.applyTransformationMT(slice, targetImp,
+                    new BSplineModel(stack.getProcessor(i), false, 1), intervals, cx, cy).getPixels();
+            assertTrue(Arrays.equals(expected, (float[]) result.getProcessor(i).getPixels()));
+
+            // single precision coordinates give nearly the same image
+            float[] single = (float[]) singleMap.apply(stack.getProcessor(i)).getPixels();
+            for (int n = 0; n < expected.length; n++)
+                assertEquals(expected[n], single[n], 0.5);
+        }
+    }
+
+    @Test
+    void applyTransformToStack_parallelSlices(@TempDir Path tempDir) throws Exception {
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+        int width = targetImp.getWidth(), height = targetImp.getHeight(), intervals = 2;
+
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 5, 5);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        String transformationFile = tempDir.resolve("elastic.txt").toString();
+        MiscTools.saveElasticTransformation(intervals, cx, cy, transformationFile);
+
+        // deeper than the number of processors, so that slices are warped concurrently
+        int depth = Runtime.getRuntime().availableProcessors() + 3;
+        ImageStack stack = new ImageStack(width, height);
+        for (int i = 0; i < depth; i++) {
+            ImageProcessor ip = (i % 2 == 0 ? sourceImp : targetImp).getProcessor().duplicate();
+            ip.add(i);
+            stack.addSlice("slice " + i, ip);
+        }
+        ImagePlus moving = new ImagePlus("moving", stack);
+
+        ImageStack inMemory = MiscTools.applyTransformToStack(transformationFile, targetImp, moving).getImageStack();
+        String outputDirectory = tempDir.resolve("deformed").toString();
+        ImageStack onDisk = MiscTools.applyTransformToStack(transformationFile, targetImp, moving,
+                outputDirectory).getImageStack();
+        assertTrue(onDisk.isVirtual());
+        assertEquals(depth, inMemory.getSize());
+        assertEquals(depth, onDisk.getSize());
+
+        CoordinateMap map = CoordinateMap.fromElastic(intervals, cx, cy, width, height, false);
+        for (int i = 1; i <= depth; i++) {
+            float[] expected = (float[]) map.apply(stack.getProcessor(i)).getPixels();
+            assertTrue(Arrays.equals(expected, (float[]) inMemory.getProcessor(i).getPixels()));
+            assertTrue(Arrays.equals(expected, (float[]) onDisk.getProcessor(i).getPixels()));
+        }
+
+        // a slice that cannot be read fails the whole stack
+        ImageStack broken = new ImageStack(width, height) {
+            @Override
+            public ImageProcessor getProcessor(int n) {
+                if (n == 2)
+                    throw new IllegalStateException("unreadable slice");
+                return super.getProcessor(n);
+            }
+        };
+        for (int i = 1; i <= depth; i++)
+            broken.addSlice(stack.getSliceLabel(i), stack.getProcessor(i));
+        assertTrue(MiscTools.applyTransformToStack(transformationFile, targetImp,
+                new ImagePlus("broken", broken)) == null);
+    }
+
+    @Test
+    void multiChannelBSplineModel_colorWarping() throws Exception {
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+        int width = sourceImp.getWidth(), height = sourceImp.getHeight(), intervals = 2;
+
+        // red, green and blue channels from different images
+        ImageProcessor[] channels = {sourceImp.getProcessor(), targetImp.getProcessor(),
+                sourceImp.getProcessor().duplicate()};
+        channels[2].invert();
+        ColorProcessor color = new ColorProcessor(width, height);
+        for (int c = 0; c < 3; c++)
+            color.setPixels(c, channels[c].convertToFloatProcessor());
+
+        // interleaved model interpolates exactly like one model per channel
+        MultiChannelBSplineModel model = new MultiChannelBSplineModel(color);
+        BSplineModel[] single = new BSplineModel[3];
+        for (int c = 0; c < 3; c++) {
+            single[c] = new BSplineModel(color.toFloat(c, null), false, 1);
+            single[c].setPyramidDepth(0);
+            single[c].startPyramids();
+            single[c].getThread().join();
+        }
+        Random random = new Random(11);
+        double[] rgb = new double[3];
+        for (int n = 0; n < 1000; n++) {
+            double x = -2 + (width + 4) * random.nextDouble(), y = -2 + (height + 4) * random.nextDouble();
+            model.interpolate(x, y, rgb);
+            for (int c = 0; c < 3; c++)
+                assertEquals(single[c].prepareForInterpolationAndInterpolateI(x, y, false, false), rgb[c], 0.0);
+        }
+
+        // warping the color image gives the channels warped one by one
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 4, 11);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        ImagePlus colorImp = new ImagePlus("color", color);
+        ImageProcessor warped = MiscTools.applyTransformationMT(colorImp, targetImp, null, intervals, cx, cy);
+        ColorProcessor expected = new ColorProcessor(targetImp.getWidth(), targetImp.getHeight());
+        for (int c = 0; c < 3; c++)
+            expected.setPixels(c, (FloatProcessor) MiscTools.applyTransformationMT(
+                    new ImagePlus("", color.toFloat(c, null)), targetImp, single[c], intervals, cx, cy));
+        assertTrue(Arrays.equals((int[]) expected.getPixels(), (int[]) warped.getPixels()));
+    }
+
+    @Test
+    void applyTransformationMT_lowOrderInterpolation() throws Exception {
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+        int width = sourceImp.getWidth(), height = sourceImp.getHeight(), intervals = 2;
+
+        // identity: nearest neighbor gives back the source, bilinear nearly so
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 0, 13);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        float[] original = (float[]) sourceImp.getProcessor().convertToFloatProcessor().getPixels();
+        float[] nearest = (float[]) MiscTools.applyTransformationMT(sourceImp, sourceImp, null, intervals, cx, cy,
+                MiscTools.Interpolation.NEAREST_NEIGHBOR).getPixels();
+        float[] bilinear = (float[]) MiscTools.applyTransformationMT(sourceImp, sourceImp, null, intervals, cx, cy,
+                MiscTools.Interpolation.BILINEAR).getPixels();
+        assertTrue(Arrays.equals(original, nearest));
+        for (int n = 0; n < original.length; n++)
+            assertEquals(original[n], bilinear[n], 0.5);
+
+        // random deformation: nearest neighbor only outputs source values (or 0
+        // outside), bilinear stays close to the cubic B-spline warping
+        coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 3, 13);
+        cx = coefficients[0];
+        cy = coefficients[1];
+        Set<Float> labels = new HashSet<>();
+        for (float value : original)
+            labels.add(value);
+        labels.add(0f);
+        for (float value : (float[]) MiscTools.applyTransformationMT(sourceImp, targetImp, null, intervals, cx, cy,
+                MiscTools.Interpolation.NEAREST_NEIGHBOR).getPixels())
+            assertTrue(labels.contains(value));
+
+        ColorProcessor color = new ColorProcessor(width, height);
+        for (int c = 0; c < 3; c++)
+            color.setPixels(c, sourceImp.getProcessor().convertToFloatProcessor());
+        float[] cubic = (float[]) MiscTools.applyTransformationMT(sourceImp, targetImp,
+                new BSplineModel(sourceImp.getProcessor(), false, 1), intervals, cx, cy).getPixels();
+        ImageProcessor bilinearGrey = MiscTools.applyTransformationMT(sourceImp, targetImp, null, intervals, cx, cy,
+                MiscTools.Interpolation.BILINEAR);
+        ImageProcessor bilinearColor = MiscTools.applyTransformationMT(new ImagePlus("color", color), targetImp,
+                null, intervals, cx, cy, MiscTools.Interpolation.BILINEAR);
+        double error = 0;
+        float[] grey = (float[]) bilinearGrey.getPixels();
+        float[] red = (float[]) ((ColorProcessor) bilinearColor).toFloat(0, null).getPixels();
+        for (int n = 0; n < cubic.length; n++) {
+            error += Math.abs(cubic[n] - grey[n]);
+            assertEquals(Math.round(Math.max(0, Math.min(255, grey[n]))), red[n], 1.0);
+        }
+        assertTrue(error / cubic.length < 10, "mean difference to cubic warping: " + error / cubic.length);
+    }
+
+    @Test
+    void arrayWarper_primitiveArrays() throws Exception {
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        ImagePlus targetImp = MiscTools.createImagePlusByte(testContainer.targetMtxInt, "target image");
+        ImagePlus sourceImp = MiscTools.createImagePlusByte(testContainer.sourceMtxInt, "source image");
+        int width = sourceImp.getWidth(), height = sourceImp.getHeight(), intervals = 4;
+
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 5, 17);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        ArrayWarper warper = new ArrayWarper(intervals, cx, cy, width, height,
+                targetImp.getWidth(), targetImp.getHeight());
+        float[] source = (float[]) sourceImp.getProcessor().convertToFloatProcessor().getPixels();
+
+        // same pixels as the ImageJ based warping
+        float[] expected = (float[]) MiscTools.applyTransformationMT(sourceImp, targetImp,
+                new BSplineModel(sourceImp.getProcessor(), false, 1), intervals, cx, cy).getPixels();
+        assertTrue(Arrays.equals(expected, warper.warp(source, null, MiscTools.Interpolation.BSPLINE)));
+        float[] expectedNearest = (float[]) MiscTools.applyTransformationMT(sourceImp, targetImp, null,
+                intervals, cx, cy, MiscTools.Interpolation.NEAREST_NEIGHBOR).getPixels();
+        assertTrue(Arrays.equals(expectedNearest,
+                warper.warp(source, null, MiscTools.Interpolation.NEAREST_NEIGHBOR)));
+
+        // offset and stride: image embedded in a padded double buffer
+        int pad = 3, stride = width + 2 * pad, outStride = targetImp.getWidth() + 1;
+        double[] padded = new double[stride * (height + 2 * pad)];
+        for (int v = 0; v < height; v++)
+            for (int u = 0; u < width; u++)
+                padded[(v + pad) * stride + u + pad] = source[v * width + u];
+        double[] output = new double[outStride * targetImp.getHeight() + 5];
+        warper.warp(padded, pad * stride + pad, stride, output, 5, outStride, MiscTools.Interpolation.BSPLINE, true);
+        for (int v = 0; v < targetImp.getHeight(); v++)
+            for (int u = 0; u < targetImp.getWidth(); u++)
+                assertEquals(expected[v * targetImp.getWidth() + u], (float) output[5 + v * outStride + u], 0.0);
+        warper.warp(padded, pad * stride + pad, stride, output, 5, outStride,
+                MiscTools.Interpolation.NEAREST_NEIGHBOR, false);
+        for (int v = 0; v < targetImp.getHeight(); v++)
+            for (int u = 0; u < targetImp.getWidth(); u++)
+                assertEquals(expectedNearest[v * targetImp.getWidth() + u], (float) output[5 + v * outStride + u], 0.0);
+
+        // batch with reused output buffers
+        float[][] batch = new float[5][];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = source.clone();
+            for (int n = 0; n < source.length; n++)
+                batch[i][n] += i;
+        }
+        float[][] outputs = warper.warpAll(batch, null, MiscTools.Interpolation.BILINEAR);
+        float[] first = outputs[0];
+        assertTrue(first == warper.warpAll(batch, outputs, MiscTools.Interpolation.BILINEAR)[0]);
+        for (int i = 0; i < batch.length; i++)
+            assertTrue(Arrays.equals(warper.warp(batch[i], null, MiscTools.Interpolation.BILINEAR), outputs[i]));
+        float[][] cubicOutputs = warper.warpAll(batch, null, MiscTools.Interpolation.BSPLINE);
+        for (int i = 0; i < batch.length; i++)
+            assertTrue(Arrays.equals(warper.warp(batch[i], null, MiscTools.Interpolation.BSPLINE), cubicOutputs[i]));
+
+        // same pixels split between several threads
+        warper.setNumberOfThreads(3);
+        assertTrue(Arrays.equals(expected, warper.warp(source, null, MiscTools.Interpolation.BSPLINE)));
+        float[][] threadedOutputs = warper.warpAll(batch, null, MiscTools.Interpolation.BSPLINE);
+        for (int i = 0; i < batch.length; i++)
+            assertTrue(Arrays.equals(cubicOutputs[i], threadedOutputs[i]));
+
+        // as many output buffers as images are needed
+        assertTrue(warper.warpAll(batch, new float[batch.length - 1][], MiscTools.Interpolation.BILINEAR) == null);
+    }
+
+    @Test
+    void transform_batchedPoints() throws Exception {
+        Path inputFolder = this.resourcePath.resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.mode = 0;
+        testContainer.options.max_scale_deformation = 1;
+        Transformation warp = bUnwarpJ_.computeTransformationBatch(testContainer.targetMtxInt,
+                testContainer.sourceMtxInt, testContainer.options);
+        int width = testContainer.targetMtxInt[0].length, height = testContainer.targetMtxInt.length;
+
+        // points inside and around the image, in random order
+        Random random = new Random(19);
+        int nPoints = 20000;
+        double[] u = new double[nPoints], v = new double[nPoints];
+        for (int n = 0; n < nPoints; n++) {
+            u[n] = -20 + (width + 40) * random.nextDouble();
+            v[n] = -20 + (height + 40) * random.nextDouble();
+        }
+
+        // in the calling thread and split among threads
+        for (int threads : new int[]{1, 4}) {
+            warp.setNumberOfThreads(threads);
+            for (boolean reverse : new boolean[]{false, true}) {
+                double[][] xy = warp.transform(u, v, reverse);
+                double[] point = new double[2];
+                for (int n = 0; n < nPoints; n++) {
+                    warp.transform(u[n], v[n], point, reverse);
+                    assertEquals(point[0], xy[0][n], 0.0);
+                    assertEquals(point[1], xy[1][n], 0.0);
+                }
+            }
+        }
+
+        // in place
+        double[] x = u.clone(), y = v.clone();
+        warp.transform(x, y, x, y, false);
+        assertTrue(Arrays.equals(warp.transform(u, v, false)[0], x));
+        assertTrue(Arrays.equals(warp.transform(u, v, false)[1], y));
+    }
+
+    @Test
+    void invertRawTransformation_complete() throws Exception {
+        int width = 60, height = 40;
+        ImagePlus imp = new ImagePlus("grid", new FloatProcessor(width, height));
+
+        // strong expansion: the old rounding scatter left every other pixel empty
+        double[][] tx = new double[height][width], ty = new double[height][width];
+        for (int i = 0; i < height; i++)
+            for (int j = 0; j < width; j++) {
+                tx[i][j] = 2 * j + 0.3;
+                ty[i][j] = 1.5 * i;
+            }
+        double[][] invX = new double[height][width], invY = new double[height][width];
+        MiscTools.invertRawTransformation(imp, tx, ty, invX, invY);
+        for (int q = 0; q < height; q++)
+            for (int p = 0; p < width; p++) {
+                assertTrue(Double.isFinite(invX[q][p]) && Double.isFinite(invY[q][p]));
+                if (p >= 0.3 && q <= 1.5 * (height - 1)) {
+                    assertEquals((p - 0.3) / 2, invX[q][p], 1e-9);
+                    assertEquals(q / 1.5, invY[q][p], 1e-9);
+                }
+            }
+
+        // smooth random deformation: mapping the inverse forward gives back the pixel
+        int intervals = 2;
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 3, 23);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        MiscTools.convertElasticTransformationToRaw(imp, intervals, cx, cy, tx, ty);
+        int holes = RawTransformationInverter.invert(tx, ty, invX, invY);
+        assertTrue(holes < width * height / 4, "holes: " + holes);
+        int covered = 0;
+        for (int q = 0; q < height; q++)
+            for (int p = 0; p < width; p++) {
+                double x = invX[q][p], y = invY[q][p];
+                assertTrue(Double.isFinite(x) && Double.isFinite(y));
+                int j = (int) Math.min(width - 2, x), i = (int) Math.min(height - 2, y);
+                double s = x - j, t = y - i;
+                double fx = (1 - s) * (1 - t) * tx[i][j] + s * (1 - t) * tx[i][j + 1]
+                        + (1 - s) * t * tx[i + 1][j] + s * t * tx[i + 1][j + 1];
+                double fy = (1 - s) * (1 - t) * ty[i][j] + s * (1 - t) * ty[i][j + 1]
+                        + (1 - s) * t * ty[i + 1][j] + s * t * ty[i + 1][j + 1];
+                if (Math.abs(fx - p) < 1e-6 && Math.abs(fy - q) < 1e-6)
+                    covered++;
+            }
+        assertEquals(width * height - holes, covered);
+    }
+
+    @Test
+    void inverseCoordinateIndex_queries() throws Exception {
+        int width = 70, height = 50, intervals = 2;
+        ImagePlus imp = new ImagePlus("grid", new FloatProcessor(width, height));
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 4, 29);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        double[][] tx = new double[height][width], ty = new double[height][width];
+        MiscTools.convertElasticTransformationToRaw(imp, intervals, cx, cy, tx, ty);
+        tx[3][4] = Double.NaN;
+        Random random = new Random(29);
+
+        InverseCoordinateIndex index = new InverseCoordinateIndex(tx, ty);
+        int refined = 0;
+        for (int n = 0; n < 500; n++) {
+            double[] point = {-30 + (width + 60) * random.nextDouble(), -30 + (height + 60) * random.nextDouble()};
+            assertTrue(Arrays.equals(MiscTools.approximateInverseCoords(point, imp, tx, ty),
+                    MiscTools.approximateInverseCoords(point, index)));
+
+            // sub-pixel refinement (when the point is inside the transformed image) maps back onto it
+            double[] inverse = index.inverse(point);
+            int j = (int) Math.min(width - 2, inverse[0]), i = (int) Math.min(height - 2, inverse[1]);
+            double s = inverse[0] - j, t = inverse[1] - i;
+            if (Arrays.equals(inverse, index.nearest(point)))
+                continue;
+            refined++;
+            assertEquals(point[0], (1 - s) * (1 - t) * tx[i][j] + s * (1 - t) * tx[i][j + 1]
+                    + (1 - s) * t * tx[i + 1][j] + s * t * tx[i + 1][j + 1], 1e-6);
+            assertEquals(point[1], (1 - s) * (1 - t) * ty[i][j] + s * (1 - t) * ty[i][j + 1]
+                    + (1 - s) * t * ty[i + 1][j] + s * t * ty[i + 1][j + 1], 1e-6);
+        }
+        assertTrue(refined > 100, "refined points: " + refined);
+    }
+
+    @Test
+    void invertElasticTransformation_leastSquares() throws Exception {
+        int targetWidth = 90, targetHeight = 70, sourceWidth = 80, sourceHeight = 60, intervals = 4;
+        ImagePlus targetImp = new ImagePlus("target", new FloatProcessor(targetWidth, targetHeight));
+        ImagePlus sourceImp = new ImagePlus("source", new FloatProcessor(sourceWidth, sourceHeight));
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, sourceWidth, sourceHeight, 2, 31);
+        double[][] cx = coefficients[0], cy = coefficients[1];
+        MiscTools.fillAntiSymmetricBorders(intervals, cx, cy);
+
+        double[][] invCx = new double[intervals + 3][intervals + 3], invCy = new double[intervals + 3][intervals + 3];
+        double rms = MiscTools.invertElasticTransformation(intervals, cx, cy, targetImp, sourceImp, invCx, invCy);
+        assertTrue(rms >= 0 && rms < 0.2, "rms: " + rms);
+
+        // the direct transformation maps the inverse back onto the source pixels
+        double[][] tx = new double[targetHeight][targetWidth], ty = new double[targetHeight][targetWidth];
+        MiscTools.convertElasticTransformationToRaw(targetImp, intervals, cx, cy, tx, ty);
+        double[][] ix = new double[sourceHeight][sourceWidth], iy = new double[sourceHeight][sourceWidth];
+        MiscTools.convertElasticTransformationToRaw(sourceImp, intervals, invCx, invCy, ix, iy);
+        double sum = 0, max = 0;
+        int count = 0;
+        for (int q = 0; q < sourceHeight; q++)
+            for (int p = 0; p < sourceWidth; p++) {
+                double u = ix[q][p], v = iy[q][p];
+                if (u < 5 || v < 5 || u > targetWidth - 6 || v > targetHeight - 6)
+                    continue;
+                int j = (int) u, i = (int) v;
+                double s = u - j, t = v - i;
+                double fx = (1 - s) * (1 - t) * tx[i][j] + s * (1 - t) * tx[i][j + 1]
+                        + (1 - s) * t * tx[i + 1][j] + s * t * tx[i + 1][j + 1];
+                double fy = (1 - s) * (1 - t) * ty[i][j] + s * (1 - t) * ty[i][j + 1]
+                        + (1 - s) * t * ty[i + 1][j] + s * t * ty[i + 1][j + 1];
+                double error = Math.hypot(fx - p, fy - q);
+                sum += error;
+                max = Math.max(max, error);
+                count++;
+            }
+        assertTrue(count > sourceWidth * sourceHeight / 2, "checked pixels: " + count);
+        assertTrue(sum / count < 0.1, "mean error: " + sum / count);
+        assertTrue(max < 0.5, "max error: " + max);
+    }
+
+    @Test
+    void invertElasticTransformation_files(@TempDir Path tempDir) throws Exception {
+        int width = 80, height = 60, intervals = 4;
+        ImagePlus imp = new ImagePlus("image", new FloatProcessor(width, height));
+        double[][][] coefficients = TestHelper.randomElasticCoefficients(intervals, width, height, 2, 37);
+        String input = tempDir.resolve("direct.txt").toString();
+        MiscTools.saveElasticTransformation(intervals, coefficients[0], coefficients[1], input);
+
+        // same inverse as the one computed from the coefficients
+        String output = tempDir.resolve("inverse.txt").toString();
+        MiscTools.invertElasticTransformation(input, output, imp, imp);
+        double[][] invCx = new double[intervals + 3][intervals + 3], invCy = new double[intervals + 3][intervals + 3];
+        MiscTools.invertElasticTransformation(intervals, coefficients[0], coefficients[1], imp, imp, invCx, invCy);
+        double[][][] saved = MiscTools.loadElasticTransformation(output);
+        for (int i = 0; i < intervals + 3; i++) {
+            assertTrue(Arrays.equals(invCx[i], saved[0][i]));
+            assertTrue(Arrays.equals(invCy[i], saved[1][i]));
+        }
+
+        // an unreadable input gives no output
+        String missing = tempDir.resolve("missing-inverse.txt").toString();
+        MiscTools.invertElasticTransformation(tempDir.resolve("missing.txt").toString(), missing, imp, imp);
+        assertTrue(!new File(missing).exists());
+    }
+
+}
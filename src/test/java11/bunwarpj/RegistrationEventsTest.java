@@ -0,0 +1,81 @@
+package bunwarpj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests of the flight recorder events of the multi-release overlay
+ * (src/main/java11), compiled and run only on Java 11 or later.
+ */
+class RegistrationEventsTest {
+
+    /**
+     * @return true if the JFR recorder of the overlay can be loaded
+     */
+    private static boolean jfrEventsLoaded() {
+        try {
+            Class.forName("bunwarpj.JfrRegistrationEvents");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A registration emits flight recorder events for its stages
+     * @throws Exception
+     */
+    @Test
+    void doUnidirectionalRegistration_flightRecorderEvents_2d_int(@TempDir Path tempDir) throws Exception {
+
+        assumeTrue(jfrEventsLoaded(), "the JFR overlay is not on the class path");
+
+        Path inputFolder = Paths.get("", TestHelper.RESOURCES_DIR).resolve("2D-int");
+        TestContainer testContainer = new TestContainer(inputFolder.toString());
+        testContainer.options.max_scale_deformation = 1;
+
+        Path dump = tempDir.resolve("registration.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("bunwarpj.Pyramid");
+            recording.enable("bunwarpj.OptimizationLevel");
+            recording.enable("bunwarpj.EnergyEvaluation");
+            recording.start();
+            testContainer.initializeTransformationInputs_Int();
+            testContainer.buildBSplineModels();
+            testContainer.initializeTransformationObject();
+            testContainer.warp.doUnidirectionalRegistration();
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        int pyramids = 0, levels = 0, evaluations = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            String name = event.getEventType().getName();
+            if (name.equals("bunwarpj.Pyramid"))
+                pyramids++;
+            else if (name.equals("bunwarpj.OptimizationLevel")) {
+                levels++;
+                assertTrue(event.getInt("intervals") >= 1);
+                assertTrue(event.getInt("energyEvaluations") > 0);
+            }
+            else if (name.equals("bunwarpj.EnergyEvaluation"))
+                evaluations++;
+        }
+        RegistrationMetrics metrics = testContainer.warp.getMetrics();
+        assertTrue(pyramids >= 2);
+        assertEquals(metrics.getStages().size(), levels);
+        assertEquals(metrics.getEnergyEvaluations(), evaluations);
+    }
+
+}